@@ -17,29 +17,16 @@
 
 package to.sven.applicationcache;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
-import android.net.Uri;
-import android.os.SystemClock;
+import android.content.Context;
 
 import com.android.volley.Cache;
 import com.android.volley.VolleyLog;
@@ -51,34 +38,43 @@ import com.android.volley.VolleyLog;
  * This implementation has an additional handling for AppCacheEntries:
  * - They won't be delete if cache grows to large
  * - They never expires/needs refresh until the AppCacheManifest didn't change.
+ * 
+ * The disk handling lives in the pure Java {@link AppCacheStore}, this class adapts it
+ * to Volley's {@link Cache}.
  */
 public class AppCacheDiskBasedCache implements Cache {
 
-    /** Map of the Key, CacheHeader pairs */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
-
-    /** Total amount of space currently used by the cache in bytes. */
-    private long mTotalSize = 0;
+    static {
+        AppCacheLog.DEBUG = VolleyLog.DEBUG;
+        AppCacheLog.setSink(new AppCacheLog.Sink() {
+            @Override
+            public void v(String message) {
+                VolleyLog.v("%s", message);
+            }
 
-    /** The root directory to use for the cache. */
-    private final File mRootDirectory;
+            @Override
+            public void d(String message) {
+                VolleyLog.d("%s", message);
+            }
 
-    /** The maximum size of the cache in bytes. */
-    private final int mMaxCacheSizeInBytes;
+            @Override
+            public void e(Throwable tr, String message) {
+                if (tr == null) {
+                    VolleyLog.e("%s", message);
+                } else {
+                    VolleyLog.e(tr, "%s", message);
+                }
+            }
+        });
+    }
 
     /** Default maximum disk usage in bytes. */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
-    /** High water mark percentage for the cache */
-    private static final float HYSTERESIS_FACTOR = 0.9f;
+    private static final int SNAPSHOT_BUFFER_SIZE = 64 * 1024;
+    private static final int PACK_BUFFER_SIZE = 64 * 1024;
 
-    /** Current cache version */
-    private static final int CACHE_VERSION = 3;
-    
-    private CacheManifest mCacheManifest;
-    
-    private final String mCacheManifestURL;
+    private final AppCacheStore mStore;
 
     /**
      * Constructs an instance of the AppCacheDiskBasedCache at the specified directory.
@@ -86,9 +82,17 @@ public class AppCacheDiskBasedCache implements Cache {
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
      */
     public AppCacheDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes, String cacheManifestURL) {
-        mRootDirectory = rootDirectory;
-        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
-        mCacheManifestURL = cacheManifestURL;
+        mStore = new AppCacheStore(rootDirectory, maxCacheSizeInBytes, cacheManifestURL, AndroidClock.INSTANCE);
+    }
+
+    /**
+     * Constructs an instance of the AppCacheDiskBasedCache on a storage engine, e.g. a
+     * {@link LogStorageEngine} for many small entries.
+     * @param engine Keeps the entries.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public AppCacheDiskBasedCache(StorageEngine engine, int maxCacheSizeInBytes, String cacheManifestURL) {
+        mStore = new AppCacheStore(engine, maxCacheSizeInBytes, cacheManifestURL, AndroidClock.INSTANCE);
     }
 
     /**
@@ -99,164 +103,180 @@ public class AppCacheDiskBasedCache implements Cache {
     public AppCacheDiskBasedCache(File rootDirectory, String cacheManifestURL) {
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES, cacheManifestURL);
     }
-    
-    public synchronized boolean contains(String key) {
-    	return mEntries.containsKey(key);
+
+    /**
+     * @return The underlying store.
+     */
+    public AppCacheStore getStore() {
+        return mStore;
     }
-    
+
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * @return The live metrics of the cache, see {@link AppCacheStore#getMetrics()}.
      */
-    @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
-            }
-        }
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
+    public CacheMetrics getMetrics() {
+        return mStore.getMetrics();
     }
 
     /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
+     * @return A snapshot of the metrics.
      */
-    @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
-        }
+    public CacheStats getStats() {
+        return mStore.getStats();
+    }
+
+    /**
+     * Sets which bodies are compressed on disk, see {@link AppCacheStore#setCompressionPolicy(CompressionPolicy)}.
+     * {@link #get(String)} and {@link #getStream(String)} decompress transparently.
+     */
+    public void setCompressionPolicy(CompressionPolicy policy) {
+        mStore.setCompressionPolicy(policy);
+    }
+
+    /**
+     * Stores identical bodies only once, see {@link AppCacheStore#setDeduplication(boolean)}.
+     */
+    public void setDeduplication(boolean deduplication) {
+        mStore.setDeduplication(deduplication);
+    }
 
-        File file = getFileForKey(key);
-        CountingInputStream cis = null;
+    /**
+     * Sets the number of threads {@link #initialize()} scans with, see {@link AppCacheStore#setScanThreads(int)}.
+     */
+    public void setScanThreads(int threads) {
+        mStore.setScanThreads(threads);
+    }
+
+    /**
+     * Sets when entries are synced to the disk, see {@link AppCacheStore#setDurability(int)}.
+     */
+    public void setDurability(int durability) {
+        mStore.setDurability(durability);
+    }
+
+    /**
+     * Sets which reads verify the body against its checksum, see {@link AppCacheStore#setVerification(int, int)}.
+     */
+    public void setVerification(int verification, int sampleInterval) {
+        mStore.setVerification(verification, sampleInterval);
+    }
+
+    /**
+     * Imports a cache snapshot, see {@link AppCacheStore#importSnapshot(InputStream)}.
+     */
+    public int importSnapshot(InputStream in) throws IOException {
+        return mStore.importSnapshot(in);
+    }
+
+    /**
+     * Imports a cache snapshot packaged as an asset of the app, unless the manifest
+     * is cached already. Call it before the first update, e.g. on the cache thread
+     * after {@link #initialize()}.
+     * @param assetName The name of the snapshot in the assets.
+     * @return The number of imported entries, 0 if the cache wasn't empty.
+     */
+    public int importSnapshot(Context context, String assetName) throws IOException {
+        if (mStore.contains(mStore.getCacheManifestURL())) {
+            return 0;
+        }
+        InputStream in = new BufferedInputStream(context.getAssets().open(assetName), SNAPSHOT_BUFFER_SIZE);
         try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
+            return mStore.importSnapshot(in);
         } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
-            }
+            in.close();
         }
     }
-    
 
     /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
+     * Exports the cache into a single pack file, see {@link AppCacheStore#exportTo(OutputStream)}.
+     * @return The number of exported entries.
      */
-    public synchronized InputStream getStream(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
+    public int exportTo(File pack) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(pack), PACK_BUFFER_SIZE);
+        try {
+            return mStore.exportTo(out);
+        } finally {
+            out.close();
         }
+    }
 
-        File file = getFileForKey(key);
-        InputStream inputStream = null;
+    /**
+     * Imports a pack file, see {@link AppCacheStore#importFrom(CachePack)}.
+     * @return The number of imported entries.
+     */
+    public int importFrom(File pack) throws IOException {
+        CachePack cachePack = new CachePack(pack);
         try {
-            inputStream = new FileInputStream(file);
-            CacheHeader.readHeader(inputStream); // eat header
-            return inputStream;
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            if(inputStream != null) {
-	            try {
-	            	inputStream.close();
-	            } catch (IOException ioe) {
-	                return null;
-	            }
-            }
-            return null;
+            return mStore.importFrom(cachePack);
+        } finally {
+            cachePack.close();
         }
     }
-    
+
+    /**
+     * Creates a loopback HTTP server for this cache, see {@link CacheServer}.
+     * Call {@link CacheServer#start()} to serve and {@link CacheServer#stop()} when done.
+     * @param port The port or 0 for any free port.
+     */
+    public CacheServer createServer(int port) throws IOException {
+        return new CacheServer(mStore, port);
+    }
+
+    public boolean contains(String key) {
+        return mStore.contains(key);
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        mStore.clear();
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        return toEntry(mStore.get(key));
+    }
+
+    /**
+     * Returns the body of the entry with the specified key if it exists, null otherwise.
+     */
+    public InputStream getStream(String key) {
+        return mStore.getStream(key);
+    }
+
     public static InputStream getStreamStatic(String key, File rootDirectory) {
-    	File file = new File(rootDirectory, getFilenameForKey(key));
-        InputStream inputStream = null;
-        try {
-            inputStream = new FileInputStream(file);
-            CacheHeader.readHeader(inputStream); // eat header
-            return inputStream;
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            if(inputStream != null) {
-	            try {
-	            	inputStream.close();
-	            } catch (IOException ioe) {
-	                return null;
-	            }
-            }
-            return null;
-        }
+        return AppCacheStore.getStreamStatic(key, rootDirectory);
     }
 
     /**
      * Initializes the AppCacheDiskBasedCache by scanning for all files currently in the
      * specified root directory. Creates the root directory if necessary.
+     * Entries already scanned are served by other threads while the scan runs.
      */
     @Override
-    public synchronized void initialize() {
-        if (!mRootDirectory.exists()) {
-            if (!mRootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
-            }
-            return;
-        }
+    public void initialize() {
+        mStore.initialize();
+    }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
-            return;
-        }
-        for (File file : files) {
-            FileInputStream fis = null;
-            try {
-                fis = new FileInputStream(file);
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
-                loadManifest(fis, entry);
-                putEntry(entry.key, entry);
-            } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
-                }
-            } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
-                    }
-                } catch (IOException ignored) { }
-            }
-        }
+    public void setCacheManifest(CacheManifest manifest) {
+        mStore.setCacheManifest(manifest);
     }
 
-    private void loadManifest(InputStream inStream, CacheHeader entry) throws IOException {
-    	if(entry.key.equals(mCacheManifestURL)) {
-    		try {
-    			mCacheManifest = CacheManifest.parse(mCacheManifestURL, inStream);
-    		} catch(URISyntaxException ex) {
-    			VolleyLog.e(ex, "Error reading CacheManifest from disk.");
-    		} catch(IOException ex) {
-    			VolleyLog.e(ex, "Error reading CacheManifest from disk.");
-    		}
-    	}
+    public String getCacheManifestURL() {
+        return mStore.getCacheManifestURL();
     }
-    
-    public synchronized void setCacheManifest(CacheManifest manifest) {
-    	mCacheManifest = manifest;
+
+    /**
+     * Returns true, if the key belongs to this cache: It's the manifest itself,
+     * a master entry of the manifest or already stored in this cache.
+     */
+    public boolean isResponsibleFor(String key) {
+        return mStore.isResponsibleFor(key);
     }
 
     /**
@@ -265,405 +285,112 @@ public class AppCacheDiskBasedCache implements Cache {
      * @param fullExpire True to fully expire the entry, false to soft expire
      */
     @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
-            }
-            put(key, entry);
-        }
-
+    public void invalidate(String key, boolean fullExpire) {
+        mStore.invalidate(key, fullExpire);
     }
 
     /**
      * Puts the entry with the specified key into the cache.
      */
     @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
-        File file = getFileForKey(key);
-        try {
-            FileOutputStream fos = new FileOutputStream(file);
-            boolean isMasterEntry = mCacheManifest != null && mCacheManifest.isMasterEntry(key);
-            CacheHeader e = new CacheHeader(key, entry, isMasterEntry);
-            e.writeHeader(fos);
-            fos.write(entry.data);
-            fos.close();
-            putEntry(key, e);
-            return;
-        } catch (IOException e) {
-        }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
-        }
+    public void put(String key, Entry entry) {
+        mStore.put(key, toStoreEntry(entry));
     }
 
     /**
-     * Removes the specified key from the cache if it exists.
+     * Streams the body of an entry into the cache, see {@link AppCacheStore#putStream}.
+     * @return The number of body bytes written.
      */
-    @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
-        }
+    public long putStream(String key, Entry entry, InputStream body) throws IOException {
+        return mStore.putStream(key, toStoreEntry(entry), body);
     }
-    
+
     /**
-     * Marks all file depending on if it's a AppCache Master Entry or not.
-     * And marks the Master Entries for updating. 
-     * @param pendingMasterEntries
+     * Returns the metadata of the entry without reading its body, null if it doesn't exist.
      */
-    public synchronized void markPendingMasterEntries() {
-    	for(Map.Entry<String, CacheHeader> entry : mEntries.entrySet()) {
-    		CacheHeader header = entry.getValue();
-    		header.appCacheMasterEntry = mCacheManifest.isMasterEntry(entry.getKey());
-    		header.isAppCacheUpgradePending = header.appCacheMasterEntry;
-    		upgradeAppCacheData(header);
-    	}
-    }
-    
-    /**
-     * Get all pending Master Entries
-     */
-    public synchronized List<String> getPendingMasterEntries() {
-    	
-    	ArrayList<String> pendingMasterEntries = new ArrayList<String>();
-    	for(URI uri : mCacheManifest.getMasterEntries()) {
-    		String url = uri.toString();
-    		CacheHeader header = mEntries.get(url);
-    		if(header != null) {
-        		if(!header.isAppCacheUpgradePending) {
-        			continue;
-        		}
-    		}
-    		pendingMasterEntries.add(url);
-    	}
-    	return pendingMasterEntries;
-    }
-    
-    /**
-     * Updates the AppCache Field of the CacheHeader on Disk. 
-     * @param header
-     */
-    private void upgradeAppCacheData(CacheHeader header) {
-        File file = getFileForKey(header.key);
-        try {
-        	RandomAccessFile raf = new RandomAccessFile(file, "rw");
-        	ByteArrayOutputStream bom = new ByteArrayOutputStream();
-        	header.updateAppCacheHeader(bom);
-        	byte[] buffer = bom.toByteArray();
-        	raf.write(buffer, 0, buffer.length);
-        	raf.close();
-            return;
-        } catch (IOException e) {
-        	VolleyLog.e("Could not update header for key %s", header.key);
-        }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
-        }
+    public Entry peek(String key) {
+        return toEntry(mStore.peek(key));
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
-     * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * Marks a pending master entry as up to date, e.g. after a 304 response.
+     * @return False, if the entry is not cached.
      */
-    private static String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    public boolean markUpToDate(String key) {
+        return mStore.markUpToDate(key);
     }
 
     /**
-     * Returns a file object for the given cache key.
+     * Removes the specified key from the cache if it exists.
      */
-    public File getFileForKey(String key) {
-        return new File(mRootDirectory, getFilenameForKey(key));
+    @Override
+    public void remove(String key) {
+        mStore.remove(key);
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Marks all file depending on if it's a AppCache Master Entry or not.
+     * And marks the Master Entries for updating. 
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
-            return;
-        }
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
-        }
-
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
-
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            if(e.appCacheMasterEntry) {
-            	// Don't delete AppCache Files:
-            	continue;
-            }
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-               VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                       e.key, getFilenameForKey(e.key));
-            }
-            iterator.remove();
-            prunedFiles++;
-
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
-            }
-        }
-
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
-        }
+    public void markPendingMasterEntries() {
+        mStore.markPendingMasterEntries();
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
-     * @param key The key to identify the entry by.
-     * @param entry The entry to cache.
-     */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
-        }
-        mEntries.put(key, entry);
+     * Get all pending Master Entries
+     */
+    public List<String> getPendingMasterEntries() {
+        return mStore.getPendingMasterEntries();
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * See {@link AppCacheStore#applyManifest(CacheManifest, boolean)}.
      */
-    private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
-        }
+    public List<String> applyManifest(CacheManifest manifest, boolean modified) {
+        return mStore.applyManifest(manifest, modified);
     }
 
     /**
-     * Reads the contents of an InputStream into a byte[].
-     * */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
-        byte[] bytes = new byte[length];
-        int count;
-        int pos = 0;
-        while (pos < length && ((count = in.read(bytes, pos, length - pos)) != -1)) {
-            pos += count;
-        }
-        if (pos != length) {
-            throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
-        }
-        return bytes;
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(String key) {
+        return mStore.getFileForKey(key);
     }
 
     /**
-     * Handles holding onto the cache headers for an entry.
+     * Creates a pseudo-unique filename for the specified cache key.
      */
-    private static class CacheHeader {
-        /** The size of the data identified by this CacheHeader. (This is not
-         * serialized to disk. */
-        public long size;
-
-        /** The key that identifies the cache entry. */
-        public String key;
-
-        /** ETag for cache coherence. */
-        public String etag;
-
-        /** Date of this response as reported by the server. */
-        public long serverDate;
-
-        /** TTL for this record. */
-        public long ttl;
-
-        /** Soft TTL for this record. */
-        public long softTtl;
-
-        /** Headers from the response resulting in this cache entry. */
-        public Map<String, String> responseHeaders;
-        
-        /** This is a master entry (a file that should be cached) in the AppCache Manifest **/
-        public boolean appCacheMasterEntry;
-		
-		/** The Application Cache has changed and this file needs to be checked for upgrades **/
-		public boolean isAppCacheUpgradePending;
-
-        private CacheHeader() { }
-
-		/**
-         * Instantiates a new CacheHeader object
-         * @param key The key that identifies the cache entry
-         * @param entry The cache entry.
-         */
-        public CacheHeader(String key, Entry entry, boolean isMasterEntry) {
-            this.key = key;
-            this.size = entry.data.length;
-            this.etag = entry.etag;
-            this.serverDate = entry.serverDate;
-            this.ttl = entry.ttl;
-            this.softTtl = entry.softTtl;
-            this.appCacheMasterEntry = isMasterEntry;
-            this.isAppCacheUpgradePending = false;
-            this.responseHeaders = entry.responseHeaders;
-        }
-
-        /**
-         * Reads the header off of an InputStream and returns a CacheHeader object.
-         * @param is The InputStream to read from.
-         * @throws IOException
-         */
-        public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
-            ObjectInputStream ois = new ObjectInputStream(is);
-            int version = ois.readByte();
-            if (version != CACHE_VERSION) {
-                // don't bother deleting, it'll get pruned eventually
-                throw new IOException();
-            }
-            entry.appCacheMasterEntry = ois.readBoolean();
-            entry.isAppCacheUpgradePending = ois.readBoolean();
-            entry.key = ois.readUTF();
-            entry.etag = ois.readUTF();
-            if (entry.etag.equals("")) {
-                entry.etag = null;
-            }
-            entry.serverDate = ois.readLong();
-            entry.ttl = ois.readLong();
-            entry.softTtl = ois.readLong();
-            entry.responseHeaders = readStringStringMap(ois);
-            return entry;
-        }
-
-        /**
-         * Creates a cache entry for the specified data.
-         */
-        public AppCacheEntry toCacheEntry(byte[] data) {
-        	AppCacheEntry e = new AppCacheEntry();
-            e.data = data;
-            e.etag = etag;
-            e.serverDate = serverDate;
-            e.ttl = ttl;
-            e.softTtl = softTtl;
-            e.responseHeaders = responseHeaders;
-            e.wasAppCacheUpgrade = isAppCacheUpgradePending;
-            e.appCacheMasterEntry = appCacheMasterEntry;
-            return e;
-        }
-
-        /**
-         * Writes the contents of this CacheHeader to the specified OutputStream.
-         */
-        public boolean writeHeader(OutputStream os) {
-            try {
-                ObjectOutputStream oos = new ObjectOutputStream(os);
-                oos.writeByte(CACHE_VERSION);
-                oos.writeBoolean(appCacheMasterEntry);
-                oos.writeBoolean(isAppCacheUpgradePending);
-                oos.writeUTF(key);
-                oos.writeUTF(etag == null ? "" : etag);
-                oos.writeLong(serverDate);
-                oos.writeLong(ttl);
-                oos.writeLong(softTtl);
-                writeStringStringMap(responseHeaders, oos);
-                oos.flush();
-                return true;
-            } catch (IOException e) {
-                VolleyLog.d("%s", e.toString());
-                return false;
-            }
-        }
-
-        /**
-         * Writes all entries of {@code map} into {@code oos}.
-         */
-        private static void writeStringStringMap(Map<String, String> map, ObjectOutputStream oos)
-                throws IOException {
-            if (map != null) {
-                oos.writeInt(map.size());
-                for (Map.Entry<String, String> entry : map.entrySet()) {
-                    oos.writeUTF(entry.getKey());
-                    oos.writeUTF(entry.getValue());
-                }
-            } else {
-                oos.writeInt(0);
-            }
-        }
-
-        /**
-         * @return a string to string map which contains the entries read from {@code ois}
-         *     previously written by {@link #writeStringStringMap}
-         */
-        private static Map<String, String> readStringStringMap(ObjectInputStream ois)
-                throws IOException {
-            int size = ois.readInt();
-            Map<String, String> result = (size == 0)
-                    ? Collections.<String, String>emptyMap()
-                    : new HashMap<String, String>(size);
-            for (int i = 0; i < size; i++) {
-                String key = ois.readUTF().intern();
-                String value = ois.readUTF().intern();
-                result.put(key, value);
-            }
-            return result;
-        }
-
-
-
-		public void updateAppCacheHeader(ByteArrayOutputStream bom)
-				throws IOException {
-			ObjectOutputStream oos = new ObjectOutputStream(bom);
-            oos.writeByte(CACHE_VERSION);
-            oos.writeBoolean(appCacheMasterEntry);
-            oos.writeBoolean(isAppCacheUpgradePending);
-		}
+    static String getFilenameForKey(String key) {
+        return AppCacheStore.getFilenameForKey(key);
     }
 
-    private static class CountingInputStream extends FilterInputStream {
-        private int bytesRead = 0;
-
-        private CountingInputStream(InputStream in) {
-            super(in);
-        }
-
-        @Override
-        public int read() throws IOException {
-            int result = super.read();
-            if (result != -1) {
-                bytesRead++;
-            }
-            return result;
+    private static AppCacheEntry toEntry(StoreEntry storeEntry) {
+        if (storeEntry == null) {
+            return null;
         }
+        AppCacheEntry e = new AppCacheEntry();
+        e.data = storeEntry.data;
+        e.etag = storeEntry.etag;
+        e.serverDate = storeEntry.serverDate;
+        e.ttl = storeEntry.ttl;
+        e.softTtl = storeEntry.softTtl;
+        e.responseHeaders = storeEntry.responseHeaders;
+        e.appCacheMasterEntry = storeEntry.appCacheMasterEntry;
+        e.wasAppCacheUpgrade = storeEntry.wasAppCacheUpgrade;
+        return e;
+    }
 
-        @Override
-        public int read(byte[] buffer, int offset, int count) throws IOException {
-            int result = super.read(buffer, offset, count);
-            if (result != -1) {
-                bytesRead += result;
-            }
-            return result;
-        }
+    private static StoreEntry toStoreEntry(Entry entry) {
+        StoreEntry e = new StoreEntry();
+        e.data = entry.data;
+        e.etag = entry.etag;
+        e.serverDate = entry.serverDate;
+        e.ttl = entry.ttl;
+        e.softTtl = entry.softTtl;
+        e.responseHeaders = entry.responseHeaders;
+        return e;
     }
-    
+
 	public static class AppCacheEntry extends Entry {
 		private boolean appCacheMasterEntry = false;
 		private boolean wasAppCacheUpgrade = false;
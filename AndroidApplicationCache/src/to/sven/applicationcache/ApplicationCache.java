@@ -17,6 +17,11 @@ package to.sven.applicationcache;
 
 import java.io.File;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
@@ -24,7 +29,8 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.http.AndroidHttpClient;
 import android.os.Build;
-import android.util.Pair;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.android.volley.Network;
 import com.android.volley.Request;
@@ -32,7 +38,6 @@ import com.android.volley.RequestQueue;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.BasicNetwork;
 import com.android.volley.toolbox.HttpClientStack;
 import com.android.volley.toolbox.HttpStack;
 import com.android.volley.toolbox.HurlStack;
@@ -40,31 +45,40 @@ import com.android.volley.toolbox.HurlStack;
 /**
  * An implementation of the ApplicationCache for Android.
  * Important!: If you use this Class
+ * 
+ * The update lifecycle is the lock-free {@link UpdateStateMachine}:
+ * Each update runs with its own generation, responses
+ * of an aborted or replaced update can't change the state anymore.
+ * {@link #update(boolean)}, {@link #abort()} and {@link #getStatus()} can be
+ * called from any thread.
  * @author sven
  *
  */
 @SuppressLint("NewApi")
-public class ApplicationCache implements ICacheRequestCreator {
+public class ApplicationCache {
 
-	public ApplicationCacheEventListener mEventListener;
-	private short mStatus = STATUS_UNCACHED;
-	private RequestQueue mQueue;
-	private AppCacheDiskBasedCache mCache;
-	private int mDownloadTotal = 0;
-	private int mDownloadProgress = 0;
-	private String mManifestURL;
+	public volatile ApplicationCacheEventListener mEventListener;
+	private final UpdateStateMachine mStateMachine = new UpdateStateMachine();
+	private volatile RequestQueue mQueue;
+	private volatile AppCacheDiskBasedCache mCache;
+	private volatile String mManifestURL;
+	private volatile ProgressDeliveryPolicy mProgressPolicy = ProgressDeliveryPolicy.EVERY_RESPONSE;
+	private volatile boolean mStreamingDownloads = false;
+	private volatile String mBundleURL;
+	private volatile RequestTracer mRequestTracer;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
 
     /** Default on-disk cache directory. */
     private static final String DEFAULT_CACHE_DIR = "applicationCache";
 	
 	// update status
-	public static final short STATUS_UNCACHED = 0;
-	public static final short STATUS_IDLE = 1;
-	public static final short STATUS_CHECKING = 2;
-	public static final short STATUS_DOWNLOADING = 3;
-	public static final short STATUS_UPDATEREADY = 4;
-	public static final short STATUS_OBSOLETE = 5;
+	public static final short STATUS_UNCACHED = UpdateStateMachine.STATUS_UNCACHED;
+	public static final short STATUS_IDLE = UpdateStateMachine.STATUS_IDLE;
+	public static final short STATUS_CHECKING = UpdateStateMachine.STATUS_CHECKING;
+	public static final short STATUS_DOWNLOADING = UpdateStateMachine.STATUS_DOWNLOADING;
+	public static final short STATUS_UPDATEREADY = UpdateStateMachine.STATUS_UPDATEREADY;
+	public static final short STATUS_OBSOLETE = UpdateStateMachine.STATUS_OBSOLETE;
 	
 	public ApplicationCache() {
 		
@@ -87,13 +101,45 @@ public class ApplicationCache implements ICacheRequestCreator {
 	 * @throws URISyntaxException 
 	 */
 	public void init(String manifestURL, Context context, AppCacheDiskBasedCache cache) throws URISyntaxException {
+		init(manifestURL, newRequestQueue(cache, newNetwork(context, null)), cache);
+	}
+	
+	/**
+	 * Initializes the ApplicationCache with a {@link RequestQueue} that is shared with
+	 * other ApplicationCaches, e.g. by an {@link ApplicationCacheGroup}.
+	 * The Cache of the queue must pass all requests for {@code manifestURL} to {@code cache}.
+	 * @param manifestURL
+	 * @param queue The started, shared RequestQueue.
+	 * @param cache The cache for this manifest.
+	 * @throws URISyntaxException 
+	 */
+	public void init(String manifestURL, RequestQueue queue, AppCacheDiskBasedCache cache) throws URISyntaxException {
 		mManifestURL = manifestURL;
 		mCache = cache;
-		mQueue = newRequestQueue(context, null);
-		updateInternal(false);
+		mQueue = queue;
+		cache.getStore().setCorruptionListener(new AppCacheStore.CorruptionListener() {
+			@Override
+			public void onCorrupted(String key, boolean masterEntry) {
+				if(!masterEntry) {
+					return;
+				}
+				// The removed master entry is pending again, an update downloads it. A running
+				// update may have checked the pending entries already, so one follows it.
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						long generation = mStateMachine.requestUpdate();
+						if(generation != UpdateStateMachine.NO_GENERATION) {
+							startUpdate(generation, false);
+						}
+					}
+				});
+			}
+		});
+		startUpdate(mStateMachine.init(), false);
 	}
 	
-	private RequestQueue newRequestQueue(Context context, HttpStack stack) {
+	static Network newNetwork(Context context, HttpStack stack) {
 
         String userAgent = "volley/0";
         try {
@@ -114,9 +160,11 @@ public class ApplicationCache implements ICacheRequestCreator {
             }
         }
 
-        Network network = new BasicNetwork(stack);
+        return new StreamingNetwork(stack);
+    }
 
-        RequestQueue queue = new RequestQueue(mCache, network);
+	private static RequestQueue newRequestQueue(AppCacheDiskBasedCache cache, Network network) {
+        RequestQueue queue = new RequestQueue(cache, network);
         queue.start();
 
         return queue;
@@ -130,13 +178,20 @@ public class ApplicationCache implements ICacheRequestCreator {
 		return mCache;
 	}
 
+	/**
+	 * @return A snapshot of the metrics of the cache and its updates.
+	 */
+	public CacheStats getStats() {
+		return mCache.getStats();
+	}
+
 	/**
 	 * Returning the Update Status
 	 * Note: Before calling {@link ApplicationCache#init(String)} this method returns {@link #UNCACHED}.
 	 * @return Update Status
 	 */
 	public short getStatus() {
-		return mStatus;
+		return mStateMachine.getStatus();
 	}
 
 	/**
@@ -144,43 +199,47 @@ public class ApplicationCache implements ICacheRequestCreator {
 	 * @return True, if the update was started, false if it's already running.
 	 */
 	public boolean update(boolean force) {
-		switch (mStatus) {
-		case STATUS_UNCACHED:
-			throw new IllegalStateException("Run init(...) before!");
-		case STATUS_IDLE:
-		case STATUS_UPDATEREADY:
-		case STATUS_OBSOLETE:
-			updateInternal(force);
-			return true;
-		case STATUS_CHECKING:
-		case STATUS_DOWNLOADING:
-		default:
+		long generation = mStateMachine.beginUpdate();
+		if(generation == UpdateStateMachine.NO_GENERATION) {
 			return false;
 		}
+		startUpdate(generation, force);
+		return true;
 	}
 	
-	private void updateInternal(boolean force) {
-		mStatus = STATUS_CHECKING;
+	private void startUpdate(long generation, boolean force) {
 		// TODO: Proirity High?
-		mDownloadProgress = 0;
 		if(force) {
 			mCache.invalidate(mManifestURL, true);
 		}
-		addRequest(new CacheManifestRequest(mManifestURL, manifestListener, manifestErrorListener, mCache, this));
+		UpdateRun run = new UpdateRun(generation);
+		CacheManifestRequest request = new CacheManifestRequest(mManifestURL, run.manifestListener, run.manifestErrorListener, mCache, run);
+		request.setTracer(mRequestTracer);
+		addRequest(request);
 	}
 
+	/**
+	 * Starts the update requested by the corruption listener of {@link #init(String, RequestQueue, AppCacheDiskBasedCache)}
+	 * while another update was running.
+	 */
+	private void startPendingUpdate() {
+		long generation = mStateMachine.takePendingUpdate();
+		if(generation != UpdateStateMachine.NO_GENERATION) {
+			startUpdate(generation, false);
+		}
+	}
+
+	/**
+	 * Aborts a running update. Responses of the aborted update are ignored.
+	 */
 	public void abort() {
+		mStateMachine.abort();
 		mQueue.cancelAll(this);
-		mStatus = STATUS_IDLE;
 	}
 
 	public void swapCache() {
 		// TODO: Implement this correct?
-		if(mStatus == STATUS_UPDATEREADY) {
-			mStatus = STATUS_IDLE;
-		} else {
-			throw new IllegalStateException("Not in state STATUS_UPDATEREADY.");
-		}
+		mStateMachine.swapCache();
 	}
 
 	// events
@@ -188,67 +247,318 @@ public class ApplicationCache implements ICacheRequestCreator {
 		this.mEventListener = listener;
 	}
 
-	private final ErrorListener manifestErrorListener = new ErrorListener() {
-		@Override
-		public void onErrorResponse(VolleyError error) {
-			mStatus = STATUS_OBSOLETE;
-			if(mEventListener != null) {
-				mEventListener.onError(ApplicationCache.this, false, error);
-				mEventListener.onObsolete(ApplicationCache.this);
+	/**
+	 * Sets how often {@link ApplicationCacheEventListener#onProgress} is called.
+	 * Default is {@link ProgressDeliveryPolicy#EVERY_RESPONSE}.
+	 */
+	public void setProgressDeliveryPolicy(ProgressDeliveryPolicy policy) {
+		if(policy == null) {
+			throw new IllegalArgumentException();
+		}
+		mProgressPolicy = policy;
+	}
+
+	public ProgressDeliveryPolicy getProgressDeliveryPolicy() {
+		return mProgressPolicy;
+	}
+
+	/**
+	 * If enabled, master entries are streamed directly from the network into the cache
+	 * instead of being buffered in memory. Streaming needs a {@link StreamingNetwork},
+	 * which is the default network of {@link #init(String, Context)} and {@link ApplicationCacheGroup}.
+	 * With another network the bodies are still buffered and then written into the cache.
+	 */
+	public void setStreamingDownloads(boolean streamingDownloads) {
+		mStreamingDownloads = streamingDownloads;
+	}
+
+	public boolean isStreamingDownloads() {
+		return mStreamingDownloads;
+	}
+
+	/**
+	 * Sets a bundle endpoint. If set, all pending master entries of an update are
+	 * requested at once with a {@link CacheBundleRequest} and streamed into the cache.
+	 * Entries missing in the bundle, or all remaining entries if the bundle fails,
+	 * are requested one by one.
+	 * @param bundleURL The URL of the bundle endpoint or null to request every entry separately.
+	 */
+	public void setBundleURL(String bundleURL) {
+		mBundleURL = bundleURL;
+	}
+
+	public String getBundleURL() {
+		return mBundleURL;
+	}
+
+	/**
+	 * Traces the stages of the manifest and master entry requests of the following updates,
+	 * e.g. with a {@link ChromeTraceWriter}.
+	 * @param tracer The tracer or null to disable tracing.
+	 */
+	public void setRequestTracer(RequestTracer tracer) {
+		mRequestTracer = tracer;
+	}
+
+	public RequestTracer getRequestTracer() {
+		return mRequestTracer;
+	}
+
+	/**
+	 * State of a single update. All callbacks are ignored as soon as another
+	 * update was started or this one was aborted.
+	 */
+	private final class UpdateRun implements ICacheRequestCreator {
+		private final long mGeneration;
+		private final DownloadTracker mTracker = new DownloadTracker(mProgressPolicy, AndroidClock.INSTANCE);
+		private final long mStartNanos = System.nanoTime();
+		/** Set by the first {@link #completeIfLoaded()} after the last master entry, which syncs the store. */
+		private final AtomicBoolean mCompleting = new AtomicBoolean();
+		/** The last delivered progress, only accessed on the main thread. */
+		private DownloadProgress mLastProgress;
+
+		private UpdateRun(long generation) {
+			mGeneration = generation;
+		}
+
+		private boolean isCurrent() {
+			return mStateMachine.isCurrent(mGeneration);
+		}
+
+		/**
+		 * Changes the status, if this update is still the current one and in status {@code from}.
+		 */
+		private boolean transition(short from, short to) {
+			return mStateMachine.transition(mGeneration, from, to);
+		}
+
+		/**
+		 * Changes the status like {@link #transition(short, short)} and records the
+		 * duration of the update, if {@code to} is a final status.
+		 */
+		private boolean finish(short from, short to) {
+			if(!transition(from, to)) {
+				return false;
 			}
+			mCache.getMetrics().recordUpdate(System.nanoTime() - mStartNanos);
+			return true;
 		}
-	};
-	
-	private final Listener<Integer> manifestListener = new Listener<Integer>() {
+
 		@Override
-		public void onResponse(Integer downloadTotal) {
-			if(downloadTotal > 0) {
-				mStatus = STATUS_DOWNLOADING;
-				if(mEventListener != null) {
-					mEventListener.onDownloading(ApplicationCache.this, downloadTotal);
-				}
+		public void createCacheRequests(List<String> urls) {
+			if(!isCurrent()) {
+				return;
+			}
+			AppCacheStore store = mCache.getStore();
+			for(String url : urls) {
+				mTracker.expect(url, store.getSizeHint(url));
+			}
+			String bundleURL = mBundleURL;
+			if(bundleURL != null && urls.size() > 1) {
+				BundleListener bundleListener = new BundleListener(urls);
+				bundleListener.request = new CacheBundleRequest(bundleURL, urls, bundleListener, bundleListener, mCache, urls.size());
+				addRequest(bundleListener.request);
 			} else {
-				// No update and no unloaded master entries from a previous update.
-				mStatus = STATUS_IDLE;
-				if(mEventListener != null) {
-					mEventListener.onNoUpdate(ApplicationCache.this);
-				}
+				createCacheRequests(urls, urls.size());
 			}
 		}
-	};
-	
-	private final ErrorListener downloadErrorListener = new ErrorListener() {
-		@Override
-		public void onErrorResponse(VolleyError error) {
-			if(mEventListener != null) {
-				mEventListener.onError(ApplicationCache.this, false, error);
+
+		private void createCacheRequests(List<String> urls, int total) {
+			RequestTracer tracer = mRequestTracer;
+			for(String url : urls) {
+				CacheOnlyReqeuest request = new CacheOnlyReqeuest(url, downloadProgressListener, downloadErrorListener, total,
+						mStreamingDownloads ? mCache : null);
+				request.setTracer(tracer);
+				request.setProgressTracker(mTracker, receiveProgressListener);
+				addRequest(request);
 			}
 		}
-	};
-	
 
-	private final Listener<Pair<String,Integer>> downloadProgressListener = new Listener<Pair<String,Integer>>() {
+		/**
+		 * Counts the entries of a bundle and requests the missing ones separately.
+		 */
+		private final class BundleListener implements Listener<List<CacheOnlyReqeuest.CachedUrl>>, ErrorListener {
+			private final List<String> mUrls;
+			private CacheBundleRequest request;
 
-		@Override
-		public void onResponse(Pair<String,Integer> downloadedUrl) {
-			mDownloadProgress++;
-			if(mDownloadProgress == downloadedUrl.second) {
-				mStatus = STATUS_UPDATEREADY;
+			private BundleListener(List<String> urls) {
+				mUrls = urls;
+			}
+
+			@Override
+			public void onResponse(List<CacheOnlyReqeuest.CachedUrl> stored) {
+				finish(stored);
 			}
-			if(mEventListener != null) {
-				mEventListener.onProgress(ApplicationCache.this, downloadedUrl.first, mDownloadProgress, downloadedUrl.second);
-				if(mStatus == STATUS_UPDATEREADY) {
-					mEventListener.onUpdateReady(ApplicationCache.this);
+
+			@Override
+			public void onErrorResponse(VolleyError error) {
+				finish(request.getStored());
+			}
+
+			private void finish(List<CacheOnlyReqeuest.CachedUrl> stored) {
+				if(!isCurrent()) {
+					return;
+				}
+				Set<String> missing = new HashSet<String>(mUrls);
+				for(CacheOnlyReqeuest.CachedUrl cachedUrl : stored) {
+					missing.remove(cachedUrl.url);
+				}
+				List<String> remaining = new ArrayList<String>();
+				for(String url : mUrls) {
+					if(missing.contains(url)) {
+						remaining.add(url);
+					}
+				}
+				createCacheRequests(remaining, mUrls.size());
+				for(CacheOnlyReqeuest.CachedUrl cachedUrl : stored) {
+					downloadProgressListener.onResponse(cachedUrl);
 				}
 			}
 		}
+
+		private final ErrorListener manifestErrorListener = new ErrorListener() {
+			@Override
+			public void onErrorResponse(VolleyError error) {
+				if(!finish(STATUS_CHECKING, STATUS_OBSOLETE)) {
+					return;
+				}
+				ApplicationCacheEventListener listener = mEventListener;
+				if(listener != null) {
+					listener.onError(ApplicationCache.this, false, error);
+					listener.onObsolete(ApplicationCache.this);
+				}
+				startPendingUpdate();
+			}
+		};
 		
-	};
-	
-	// TODO: GeCachte Responses können früher als DownloadProgess kommen:
-	@Override
-	public void createCacheRequest(String url, int total) {
-		addRequest(new CacheOnlyReqeuest(url, downloadProgressListener, downloadErrorListener , total));
+		private final Listener<Integer> manifestListener = new Listener<Integer>() {
+			@Override
+			public void onResponse(Integer downloadTotal) {
+				ApplicationCacheEventListener listener = mEventListener;
+				if(downloadTotal > 0) {
+					mTracker.start(downloadTotal);
+					if(!transition(STATUS_CHECKING, STATUS_DOWNLOADING)) {
+						return;
+					}
+					if(listener != null) {
+						listener.onDownloading(ApplicationCache.this, downloadTotal);
+					}
+					// Cached master entries can be delivered before the manifest.
+					completeIfLoaded();
+				} else {
+					// No update and no unloaded master entries from a previous update.
+					if(!finish(STATUS_CHECKING, STATUS_IDLE)) {
+						return;
+					}
+					if(listener != null) {
+						listener.onNoUpdate(ApplicationCache.this);
+					}
+					startPendingUpdate();
+				}
+			}
+		};
+		
+		private final ErrorListener downloadErrorListener = new ErrorListener() {
+			@Override
+			public void onErrorResponse(VolleyError error) {
+				mCache.getMetrics().recordFailedDownload();
+				ApplicationCacheEventListener listener = mEventListener;
+				if(isCurrent() && listener != null) {
+					listener.onError(ApplicationCache.this, false, error);
+				}
+			}
+		};
+
+		private final Listener<CacheOnlyReqeuest.CachedUrl> downloadProgressListener = new Listener<CacheOnlyReqeuest.CachedUrl>() {
+
+			@Override
+			public void onResponse(CacheOnlyReqeuest.CachedUrl downloadedUrl) {
+				if(downloadedUrl.downloadNanos >= 0) {
+					mCache.getMetrics().recordDownload(downloadedUrl.downloadNanos);
+				}
+				if(!isCurrent()) {
+					return;
+				}
+				DownloadProgress progress = mTracker.onLoaded(downloadedUrl.url, downloadedUrl.bytes, downloadedUrl.total);
+				if(progress != null) {
+					deliverProgress(progress);
+				}
+				completeIfLoaded();
+			}
+			
+		};
+
+		/**
+		 * Progress of streamed bodies, delivered on the network thread. Only an
+		 * {@link ApplicationCacheBatchedProgressListener} gets it, the URL count doesn't change.
+		 */
+		private final Listener<DownloadProgress> receiveProgressListener = new Listener<DownloadProgress>() {
+			@Override
+			public void onResponse(final DownloadProgress progress) {
+				mMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						DownloadProgress last = mLastProgress;
+						// Progress of another entry may have overtaken this one.
+						if(!(mEventListener instanceof ApplicationCacheBatchedProgressListener)
+								|| !isCurrent() || mTracker.isComplete() || (last != null
+								&& (last.getLoaded() > progress.getLoaded() || last.getReceivedBytes() > progress.getReceivedBytes()))) {
+							return;
+						}
+						deliverProgress(progress);
+					}
+				});
+			}
+		};
+
+		private void deliverProgress(DownloadProgress progress) {
+			mLastProgress = progress;
+			ApplicationCacheEventListener listener = mEventListener;
+			if(listener instanceof ApplicationCacheBatchedProgressListener) {
+				((ApplicationCacheBatchedProgressListener) listener).onProgress(ApplicationCache.this, progress);
+			} else if(listener != null) {
+				listener.onProgress(ApplicationCache.this, progress.getLastLoadedUrl(), progress.getLoaded(), progress.getTotal());
+			}
+		}
+
+		/**
+		 * Switches to {@link #STATUS_UPDATEREADY} once all master entries are loaded.
+		 * Only the caller that wins the transition fires {@code onUpdateReady}, and only
+		 * the first caller after completion syncs the store.
+		 */
+		private void completeIfLoaded() {
+			if(!mTracker.isComplete() || !mCompleting.compareAndSet(false, true)) {
+				return;
+			}
+			final AppCacheStore store = mCache.getStore();
+			if(store.getDurability() != StorageEngine.DURABILITY_BATCH) {
+				ready();
+				return;
+			}
+			// One sync for all master entries, off the main thread.
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					store.sync();
+					mMainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							ready();
+						}
+					});
+				}
+			}, "AppCache-Sync").start();
+		}
+
+		private void ready() {
+			if(finish(STATUS_DOWNLOADING, STATUS_UPDATEREADY)) {
+				ApplicationCacheEventListener listener = mEventListener;
+				if(listener != null) {
+					listener.onUpdateReady(ApplicationCache.this);
+				}
+				startPendingUpdate();
+			}
+		}
 	}
 	
 	private void addRequest(Request<?> r) {
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * An {@link ApplicationCacheEventListener} that receives the download progress
+ * in batches according to the {@link ProgressDeliveryPolicy}.
+ * For this listener {@link #onProgress(ApplicationCache, DownloadProgress)} is called
+ * instead of {@link #onProgress(ApplicationCache, String, int, int)}.
+ * With streaming downloads it's also called while large entries are loading,
+ * at most every 250 ms, so received bytes, throughput and ETA stay current.
+ */
+public interface ApplicationCacheBatchedProgressListener extends ApplicationCacheEventListener {
+
+	  public void onProgress(ApplicationCache source, DownloadProgress progress);
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+
+import com.android.volley.Cache;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.HttpStack;
+
+/**
+ * Runs several {@link ApplicationCache}s (one per manifest) over one shared
+ * {@link RequestQueue}: One cache dispatcher, one pool of network dispatchers,
+ * one HTTP stack and one storage root.
+ * 
+ * Every manifest gets its own {@link AppCacheDiskBasedCache} with its own quota
+ * in a sub directory of the storage root. Requests, which don't belong to any
+ * manifest, are stored in a shared cache.
+ */
+public class ApplicationCacheGroup {
+
+    /** Default on-disk cache directory. */
+    private static final String DEFAULT_CACHE_DIR = "applicationCache";
+
+    /** Directory of the cache for requests that don't belong to a manifest. */
+    private static final String SHARED_CACHE_DIR = "shared";
+
+    /** Default maximum disk usage in bytes per manifest. */
+    private static final int DEFAULT_QUOTA_BYTES = 5 * 1024 * 1024;
+
+    /** Default number of network dispatcher threads. */
+    private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+
+	private final File mRootDirectory;
+	private final GroupCache mGroupCache;
+	private final RequestQueue mQueue;
+	private final Map<String, ApplicationCache> mApplicationCaches = new LinkedHashMap<String, ApplicationCache>();
+
+	/**
+	 * Creates a group in the default cache directory with the default pool size.
+	 */
+	public ApplicationCacheGroup(Context context) {
+		this(context, new File(context.getCacheDir(), DEFAULT_CACHE_DIR),
+				DEFAULT_NETWORK_THREAD_POOL_SIZE, DEFAULT_QUOTA_BYTES, null);
+	}
+
+	/**
+	 * @param context
+	 * @param rootDirectory The storage root of all caches in this group.
+	 * @param networkThreadPoolSize Number of network dispatcher threads shared by all manifests.
+	 * @param sharedQuotaBytes Quota of the cache for requests that don't belong to a manifest.
+	 * @param stack HTTP stack to use or null for the default one.
+	 */
+	public ApplicationCacheGroup(Context context, File rootDirectory, int networkThreadPoolSize,
+			int sharedQuotaBytes, HttpStack stack) {
+		mRootDirectory = rootDirectory;
+		mGroupCache = new GroupCache(new AppCacheDiskBasedCache(
+				new File(rootDirectory, SHARED_CACHE_DIR), sharedQuotaBytes, null));
+		mQueue = new RequestQueue(mGroupCache, ApplicationCache.newNetwork(context, stack), networkThreadPoolSize);
+		mQueue.start();
+	}
+
+	/**
+	 * Adds a manifest with the default quota and starts its first update.
+	 */
+	public ApplicationCache add(String manifestURL) throws URISyntaxException {
+		return add(manifestURL, DEFAULT_QUOTA_BYTES);
+	}
+
+	/**
+	 * Adds a manifest and starts its first update.
+	 * If the manifest is already part of this group, the existing ApplicationCache is returned.
+	 * @param manifestURL The manifest's URL.
+	 * @param quotaBytes The maximum size of the cache of this manifest in bytes.
+	 * @throws URISyntaxException 
+	 */
+	public synchronized ApplicationCache add(String manifestURL, int quotaBytes) throws URISyntaxException {
+		ApplicationCache applicationCache = mApplicationCaches.get(manifestURL);
+		if(applicationCache != null) {
+			return applicationCache;
+		}
+		File directory = new File(mRootDirectory, AppCacheDiskBasedCache.getFilenameForKey(manifestURL));
+		AppCacheDiskBasedCache cache = new AppCacheDiskBasedCache(directory, quotaBytes, manifestURL);
+		mGroupCache.addMember(cache);
+		applicationCache = new ApplicationCache();
+		applicationCache.init(manifestURL, mQueue, cache);
+		mApplicationCaches.put(manifestURL, applicationCache);
+		return applicationCache;
+	}
+
+	/**
+	 * @return The ApplicationCache for the manifest or null, if it's not part of this group.
+	 */
+	public synchronized ApplicationCache get(String manifestURL) {
+		return mApplicationCaches.get(manifestURL);
+	}
+
+	/**
+	 * Aborts all updates of the manifest and removes it from this group.
+	 * The cached files stay on disk.
+	 */
+	public synchronized void remove(String manifestURL) {
+		ApplicationCache applicationCache = mApplicationCaches.remove(manifestURL);
+		if(applicationCache != null) {
+			applicationCache.abort();
+			mGroupCache.removeMember(applicationCache.getCache());
+		}
+	}
+
+	public RequestQueue getQueue() {
+		return mQueue;
+	}
+
+	/**
+	 * Aborts all updates and stops the shared dispatcher threads.
+	 */
+	public synchronized void stop() {
+		for(ApplicationCache applicationCache : mApplicationCaches.values()) {
+			applicationCache.abort();
+		}
+		mQueue.stop();
+	}
+
+	/**
+	 * Passes each request to the caches of all manifests it belongs to.
+	 */
+	private static class GroupCache implements Cache {
+		private final CopyOnWriteArrayList<Member> mMembers = new CopyOnWriteArrayList<Member>();
+		private final Member mShared;
+
+		private GroupCache(AppCacheDiskBasedCache sharedCache) {
+			mShared = new Member(sharedCache);
+		}
+
+		private void addMember(AppCacheDiskBasedCache cache) {
+			mMembers.add(new Member(cache));
+		}
+
+		private void removeMember(AppCacheDiskBasedCache cache) {
+			for(Member member : mMembers) {
+				if(member.cache == cache) {
+					mMembers.remove(member);
+				}
+			}
+		}
+
+		/**
+		 * @return The caches of all manifests the key belongs to or the shared cache.
+		 * Manifests may list the same URL, each of them needs its own copy.
+		 */
+		private List<AppCacheDiskBasedCache> route(String key) {
+			List<AppCacheDiskBasedCache> caches = null;
+			for(Member member : mMembers) {
+				AppCacheDiskBasedCache cache = member.initializedCache();
+				if(cache.isResponsibleFor(key)) {
+					if(caches == null) {
+						caches = new ArrayList<AppCacheDiskBasedCache>(1);
+					}
+					caches.add(cache);
+				}
+			}
+			return caches != null ? caches : Collections.singletonList(mShared.initializedCache());
+		}
+
+		@Override
+		public Entry get(String key) {
+			for(AppCacheDiskBasedCache cache : route(key)) {
+				Entry entry = cache.get(key);
+				if(entry != null) {
+					return entry;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void put(String key, Entry entry) {
+			for(AppCacheDiskBasedCache cache : route(key)) {
+				cache.put(key, entry);
+			}
+		}
+
+		/**
+		 * Members added later are initialized lazily on their first use,
+		 * so the disk scan always runs on a dispatcher thread.
+		 */
+		@Override
+		public void initialize() {
+			mShared.initializedCache();
+			for(Member member : mMembers) {
+				member.initializedCache();
+			}
+		}
+
+		@Override
+		public void invalidate(String key, boolean fullExpire) {
+			for(AppCacheDiskBasedCache cache : route(key)) {
+				cache.invalidate(key, fullExpire);
+			}
+		}
+
+		@Override
+		public void remove(String key) {
+			for(AppCacheDiskBasedCache cache : route(key)) {
+				cache.remove(key);
+			}
+		}
+
+		@Override
+		public void clear() {
+			mShared.initializedCache().clear();
+			for(Member member : mMembers) {
+				member.initializedCache().clear();
+			}
+		}
+	}
+
+	private static class Member {
+		private final AppCacheDiskBasedCache cache;
+		private volatile boolean initialized = false;
+
+		private Member(AppCacheDiskBasedCache cache) {
+			this.cache = cache;
+		}
+
+		private AppCacheDiskBasedCache initializedCache() {
+			if(!initialized) {
+				synchronized(this) {
+					if(!initialized) {
+						cache.initialize();
+						initialized = true;
+					}
+				}
+			}
+			return cache;
+		}
+	}
+}
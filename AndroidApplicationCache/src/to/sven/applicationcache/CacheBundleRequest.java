@@ -0,0 +1,126 @@
+package to.sven.applicationcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.android.volley.Cache.Entry;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+/**
+ * Requests many master entries at once from a bundle endpoint.
+ * The URLs are posted line by line, the server answers with a bundle
+ * (see {@link CacheBundleReader}) that is streamed directly into the cache.
+ * URLs, which are missing in the bundle, are not delivered and must be requested separately.
+ */
+public class CacheBundleRequest extends Request<List<CacheOnlyReqeuest.CachedUrl>> implements IStreamingRequest {
+
+	private static final String CHARSET = "UTF-8";
+
+	private final Listener<List<CacheOnlyReqeuest.CachedUrl>> mListener;
+	private final AppCacheDiskBasedCache mCache;
+	private final List<String> mUrls;
+	private final Set<String> mRequested;
+	private final int mTotal;
+	private final List<CacheOnlyReqeuest.CachedUrl> mStored = new CopyOnWriteArrayList<CacheOnlyReqeuest.CachedUrl>();
+	private volatile boolean mStreamed = false;
+
+	/**
+	 * @param bundleUrl The URL of the bundle endpoint.
+	 * @param urls The URLs to request.
+	 * @param total Number of URLs loaded in this update.
+	 */
+	public CacheBundleRequest(String bundleUrl, List<String> urls, Listener<List<CacheOnlyReqeuest.CachedUrl>> listener,
+			ErrorListener errorListener, AppCacheDiskBasedCache cache, int total) {
+		super(Method.POST, bundleUrl, errorListener);
+		mListener = listener;
+		mCache = cache;
+		mUrls = urls;
+		mRequested = new HashSet<String>(urls);
+		mTotal = total;
+		setShouldCache(false);
+	}
+
+	@Override
+	public String getBodyContentType() {
+		return "text/plain; charset=" + CHARSET;
+	}
+
+	@Override
+	public byte[] getBody() {
+		StringBuilder builder = new StringBuilder();
+		for(String url : mUrls) {
+			builder.append(url).append('\n');
+		}
+		try {
+			return builder.toString().getBytes(CHARSET);
+		} catch (UnsupportedEncodingException e) {
+			// Could not happen.
+			return null;
+		}
+	}
+
+	/**
+	 * @return The URLs, which are already stored in the cache. Also valid after an error.
+	 */
+	public List<CacheOnlyReqeuest.CachedUrl> getStored() {
+		return mStored;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return true;
+	}
+
+	@Override
+	public Map<String, String> getStreamingHeaders() {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public void onStreamResponse(int statusCode, Map<String, String> headers, InputStream body) throws IOException {
+		mStreamed = true;
+		CacheBundleReader reader = new CacheBundleReader(body);
+		while(reader.next()) {
+			String url = reader.url();
+			if(!mRequested.remove(url) || reader.statusCode() < 200 || reader.statusCode() > 299) {
+				continue;
+			}
+			Entry entry = HttpHeaderParser.parseCacheHeaders(
+					new NetworkResponse(reader.statusCode(), null, reader.headers(), false));
+			long bytes = mCache.putStream(url, entry, reader.body());
+			mStored.add(new CacheOnlyReqeuest.CachedUrl(url, mTotal, bytes));
+		}
+	}
+
+	@Override
+	protected Response<List<CacheOnlyReqeuest.CachedUrl>> parseNetworkResponse(NetworkResponse response) {
+		if(!mStreamed) {
+			// Performed by a network without streaming support.
+			try {
+				onStreamResponse(response.statusCode, response.headers, new ByteArrayInputStream(response.data));
+			} catch (IOException e) {
+				return Response.error(new ParseError(e));
+			}
+		}
+		return Response.success(getStored(), null);
+	}
+
+	@Override
+	protected void deliverResponse(List<CacheOnlyReqeuest.CachedUrl> stored) {
+		mListener.onResponse(stored);
+	}
+}
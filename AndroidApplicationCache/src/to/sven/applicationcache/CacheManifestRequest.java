@@ -12,6 +12,7 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 
 public class CacheManifestRequest extends Request<Integer> {
@@ -19,6 +20,7 @@ public class CacheManifestRequest extends Request<Integer> {
 	private final String mUrl;
 	private final AppCacheDiskBasedCache mCache;
 	private final ICacheRequestCreator mCacheRequestCreator;
+	private volatile RequestTrace mTrace;
 			
     public CacheManifestRequest(String url, Listener<Integer> listener, ErrorListener errorListener,
     		AppCacheDiskBasedCache cache, ICacheRequestCreator cacheRequestCreator) {
@@ -33,14 +35,9 @@ public class CacheManifestRequest extends Request<Integer> {
 	protected Response<Integer> parseNetworkResponse(NetworkResponse response) {
 		try {
 			CacheManifest manifest = CacheManifest.parse(mUrl, new ByteArrayInputStream(response.data));
-			if(!response.notModified) {
-				mCache.setCacheManifest(manifest);
-				mCache.markPendingMasterEntries();
-			}
-			
-			List<String> pendingMasterEntries = mCache.getPendingMasterEntries();
-			for(String url : pendingMasterEntries) {
-				mCacheRequestCreator.createCacheRequest(url, pendingMasterEntries.size());
+			List<String> pendingMasterEntries = mCache.applyManifest(manifest, !response.notModified);
+			if(!pendingMasterEntries.isEmpty()) {
+				mCacheRequestCreator.createCacheRequests(pendingMasterEntries);
 			}
 			
 			// We save a network response with the notModified flag
@@ -59,5 +56,33 @@ public class CacheManifestRequest extends Request<Integer> {
 	@Override
 	protected void deliverResponse(Integer downloadCount) {
         mListener.onResponse(downloadCount);
+        trace(RequestTracer.STAGE_DELIVERED);
+	}
+
+	/**
+	 * Traces the stages of this request.
+	 * @param tracer The tracer or null.
+	 */
+	public void setTracer(RequestTracer tracer) {
+		mTrace = RequestTrace.start(tracer, "manifest", mUrl);
+	}
+
+	private void trace(int stage) {
+		RequestTrace trace = mTrace;
+		if(trace != null && stage != VolleyTraceMarkers.NO_STAGE) {
+			trace.stage(stage);
+		}
+	}
+
+	@Override
+	public void addMarker(String tag) {
+		super.addMarker(tag);
+		trace(VolleyTraceMarkers.stageOf(tag));
+	}
+
+	@Override
+	public void deliverError(VolleyError error) {
+		super.deliverError(error);
+		trace(RequestTracer.STAGE_FAILED);
 	}
 }
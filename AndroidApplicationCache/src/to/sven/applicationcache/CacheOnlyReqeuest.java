@@ -1,33 +1,82 @@
 package to.sven.applicationcache;
 
-import android.util.Pair;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
+import com.android.volley.Cache.Entry;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 
 
-public class CacheOnlyReqeuest extends Request<Pair<String,Integer>> {
+public class CacheOnlyReqeuest extends Request<CacheOnlyReqeuest.CachedUrl> implements IStreamingRequest {
 
-	private final Listener<Pair<String,Integer>> mListener;
+	private final Listener<CachedUrl> mListener;
 	private final String mUrl;
 	private final int mTotal;
+	private final AppCacheDiskBasedCache mStreamingCache;
+	private volatile long mStreamedBytes;
+	private volatile boolean mStreamed = false;
+	private final long mCreatedNanos = System.nanoTime();
+	private volatile RequestTrace mTrace;
+	private volatile DownloadTracker mProgressTracker;
+	private volatile Listener<DownloadProgress> mReceiveListener;
 	
-	public CacheOnlyReqeuest(String url, Listener<Pair<String,Integer>> listener, ErrorListener errorListener, int total) {
+	public CacheOnlyReqeuest(String url, Listener<CachedUrl> listener, ErrorListener errorListener, int total) {
+		this(url, listener, errorListener, total, null);
+	}
+
+	/**
+	 * Creates a request, that streams the body directly into the cache,
+	 * if it's performed by a {@link StreamingNetwork}. Other networks buffer the body,
+	 * it's written into the cache once it's loaded.
+	 * @param streamingCache The cache to stream the body into or null to use Volley's caching.
+	 */
+	public CacheOnlyReqeuest(String url, Listener<CachedUrl> listener, ErrorListener errorListener, int total,
+			AppCacheDiskBasedCache streamingCache) {
 		super(Method.GET, url, errorListener);
         mListener = listener;
         mUrl = url;
         mTotal = total;
+        mStreamingCache = streamingCache;
+        // The streaming request writes the cache itself:
+        setShouldCache(streamingCache == null);
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return mStreamingCache != null;
 	}
 
 	@Override
-	protected Response<Pair<String,Integer>> parseNetworkResponse(NetworkResponse response) {
+	protected Response<CachedUrl> parseNetworkResponse(NetworkResponse response) {
+		if(isStreaming()) {
+			if(!mStreamed) {
+				// Performed by a network without streaming support.
+				try {
+					onStreamResponse(response.statusCode, response.headers, new ByteArrayInputStream(response.data));
+				} catch(IOException e) {
+					return Response.error(new ParseError(e));
+				}
+			}
+			return Response.success(new CachedUrl(mUrl, mTotal, mStreamedBytes, System.nanoTime() - mCreatedNanos), null);
+		}
 		try {
-			return Response.success(new Pair<String,Integer>(mUrl, mTotal),
+			return Response.success(new CachedUrl(mUrl, mTotal, response.data.length, System.nanoTime() - mCreatedNanos),
 									HttpHeaderParser.parseCacheHeaders(response));
 		} catch (Exception e) {
 			return Response.error(new ParseError(e));
@@ -35,7 +84,137 @@ public class CacheOnlyReqeuest extends Request<Pair<String,Integer>> {
 	}
 	
 	@Override
-	protected void deliverResponse(Pair<String,Integer> cachedUrl) {
+	protected void deliverResponse(CachedUrl cachedUrl) {
         mListener.onResponse(cachedUrl);
+        trace(RequestTracer.STAGE_DELIVERED);
+	}
+
+	/**
+	 * Traces the stages of this request.
+	 * @param tracer The tracer or null.
+	 */
+	public void setTracer(RequestTracer tracer) {
+		mTrace = RequestTrace.start(tracer, "entry", mUrl);
+	}
+
+	/**
+	 * Counts the received bytes of a streaming request while the body is loading.
+	 * @param tracker The tracker of the update.
+	 * @param receiveListener Called on the network thread with the progress, if the tracker delivers it.
+	 */
+	public void setProgressTracker(DownloadTracker tracker, Listener<DownloadProgress> receiveListener) {
+		mProgressTracker = tracker;
+		mReceiveListener = receiveListener;
+	}
+
+	private void trace(int stage) {
+		RequestTrace trace = mTrace;
+		if(trace != null && stage != VolleyTraceMarkers.NO_STAGE) {
+			trace.stage(stage);
+		}
+	}
+
+	@Override
+	public void addMarker(String tag) {
+		super.addMarker(tag);
+		trace(VolleyTraceMarkers.stageOf(tag));
+	}
+
+	@Override
+	public void deliverError(VolleyError error) {
+		super.deliverError(error);
+		trace(RequestTracer.STAGE_FAILED);
+	}
+
+	@Override
+	public Map<String, String> getStreamingHeaders() {
+		Entry entry = isStreaming() ? mStreamingCache.peek(mUrl) : null;
+		if(entry == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> headers = new HashMap<String, String>();
+		if(entry.etag != null) {
+			headers.put("If-None-Match", entry.etag);
+		}
+		if(entry.serverDate > 0) {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			headers.put("If-Modified-Since", format.format(new Date(entry.serverDate)));
+		}
+		return headers;
+	}
+
+	@Override
+	public void onStreamResponse(int statusCode, Map<String, String> headers, InputStream body) throws IOException {
+		if(!isStreaming()) {
+			throw new IllegalStateException("Not a streaming request.");
+		}
+		mStreamed = true;
+		if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			if(!mStreamingCache.markUpToDate(mUrl)) {
+				throw new IOException("Not modified, but not cached anymore: " + mUrl);
+			}
+			mStreamedBytes = 0;
+			trace(RequestTracer.STAGE_CACHE_WRITTEN);
+			return;
+		}
+		Entry entry = HttpHeaderParser.parseCacheHeaders(new NetworkResponse(statusCode, null, headers, false));
+		DownloadTracker tracker = mProgressTracker;
+		if(tracker == null) {
+			mStreamedBytes = mStreamingCache.putStream(mUrl, entry, body);
+		} else {
+			tracker.expect(mUrl, parseContentLength(headers));
+			final Listener<DownloadProgress> receiveListener = mReceiveListener;
+			InputStream progressBody = new ProgressInputStream(body, tracker, mUrl) {
+				@Override
+				protected void onProgress(DownloadProgress progress) {
+					receiveListener.onResponse(progress);
+				}
+			};
+			try {
+				mStreamedBytes = mStreamingCache.putStream(mUrl, entry, progressBody);
+			} catch(IOException e) {
+				tracker.onFailed(mUrl);
+				throw e;
+			}
+		}
+		trace(RequestTracer.STAGE_CACHE_WRITTEN);
+	}
+
+	private static long parseContentLength(Map<String, String> headers) {
+		String contentLength = headers.get("Content-Length");
+		if(contentLength == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The result of a {@link CacheOnlyReqeuest}.
+	 */
+	public static class CachedUrl {
+		/** The cached URL. */
+		public final String url;
+		/** Number of URLs loaded in this update. */
+		public final int total;
+		/** Size of the response body in bytes. */
+		public final long bytes;
+		/** Time from creating the request to the parsed response or -1, if unknown. */
+		public final long downloadNanos;
+
+		public CachedUrl(String url, int total, long bytes) {
+			this(url, total, bytes, -1);
+		}
+
+		public CachedUrl(String url, int total, long bytes, long downloadNanos) {
+			this.url = url;
+			this.total = total;
+			this.bytes = bytes;
+			this.downloadNanos = downloadNanos;
+		}
 	}
 }
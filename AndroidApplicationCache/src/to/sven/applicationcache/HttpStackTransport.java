@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.toolbox.HttpStack;
+
+/**
+ * {@link HttpTransport} that performs the requests with a Volley {@link HttpStack},
+ * so an {@link ApplicationCacheUpdater} can run on Android without a {@code RequestQueue}.
+ */
+public class HttpStackTransport implements HttpTransport {
+
+	private final HttpStack mHttpStack;
+
+	public HttpStackTransport(HttpStack httpStack) {
+		mHttpStack = httpStack;
+	}
+
+	@Override
+	public Response get(String url, Map<String, String> headers) throws IOException {
+		final HttpResponse httpResponse;
+		try {
+			httpResponse = mHttpStack.performRequest(new TransportRequest(url), headers);
+		} catch (AuthFailureError e) {
+			throw new IOException(e.toString());
+		}
+		final int statusCode = httpResponse.getStatusLine().getStatusCode();
+		final Map<String, String> responseHeaders = StreamingNetwork.convertHeaders(httpResponse.getAllHeaders());
+		final HttpEntity entity = httpResponse.getEntity();
+		return new Response() {
+			private InputStream mBody;
+
+			@Override
+			public int getStatusCode() {
+				return statusCode;
+			}
+
+			@Override
+			public Map<String, String> getHeaders() {
+				return responseHeaders;
+			}
+
+			@Override
+			public long getContentLength() {
+				return entity != null ? entity.getContentLength() : -1;
+			}
+
+			@Override
+			public InputStream getBody() throws IOException {
+				if(mBody == null) {
+					mBody = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+				}
+				return mBody;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if(mBody != null) {
+					mBody.close();
+				} else if(entity != null) {
+					entity.consumeContent();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Carries the URL to the {@link HttpStack}, it's never added to a queue.
+	 */
+	private static class TransportRequest extends Request<Void> {
+		TransportRequest(String url) {
+			super(Method.GET, url, null);
+			setShouldCache(false);
+		}
+
+		@Override
+		protected com.android.volley.Response<Void> parseNetworkResponse(NetworkResponse response) {
+			return null;
+		}
+
+		@Override
+		protected void deliverResponse(Void response) {
+		}
+	}
+}
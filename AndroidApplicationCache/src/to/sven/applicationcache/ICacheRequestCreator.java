@@ -1,5 +1,11 @@
 package to.sven.applicationcache;
 
+import java.util.List;
+
 interface ICacheRequestCreator {
-	void createCacheRequest(String url, int total);
+	/**
+	 * Creates the requests for the pending master entries of an update.
+	 * @param urls All pending master entries.
+	 */
+	void createCacheRequests(List<String> urls);
 }
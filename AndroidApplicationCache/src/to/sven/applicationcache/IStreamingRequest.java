@@ -0,0 +1,32 @@
+package to.sven.applicationcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A request whose response body is consumed as a stream by {@link StreamingNetwork}
+ * instead of being buffered in a byte[].
+ * Streaming requests handle the cache themselves and must not be cached by Volley.
+ */
+interface IStreamingRequest {
+	/**
+	 * @return False, if this request is only streamed on demand and has to be
+	 *     performed like any other request for now.
+	 */
+	boolean isStreaming();
+
+	/**
+	 * @return Additional headers for the request, e.g. for a conditional request.
+	 */
+	Map<String, String> getStreamingHeaders();
+
+	/**
+	 * Called on the network thread with the response.
+	 * @param statusCode The HTTP status code, 2xx or 304.
+	 * @param headers The response headers.
+	 * @param body The response body, empty for 304.
+	 * @throws IOException If the body could not be read or stored.
+	 */
+	void onStreamResponse(int statusCode, Map<String, String> headers, InputStream body) throws IOException;
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpStack;
+
+/**
+ * A {@link Network} that passes the body of {@link IStreamingRequest}s directly
+ * from the HTTP stack to the request, so the peak heap usage per download
+ * is a fixed buffer instead of the whole body.
+ * All other requests, also {@link IStreamingRequest}s that are not
+ * {@link IStreamingRequest#isStreaming() streaming}, are performed by a {@link BasicNetwork}.
+ * 
+ * Streaming requests are not retried.
+ */
+public class StreamingNetwork implements Network {
+
+	private static final byte[] EMPTY = new byte[0];
+
+	private final HttpStack mHttpStack;
+	private final Network mNetwork;
+
+	public StreamingNetwork(HttpStack httpStack) {
+		this(httpStack, new BasicNetwork(httpStack));
+	}
+
+	/**
+	 * @param httpStack The HTTP stack for streaming requests.
+	 * @param network The network for all other requests.
+	 */
+	public StreamingNetwork(HttpStack httpStack, Network network) {
+		mHttpStack = httpStack;
+		mNetwork = network;
+	}
+
+	@Override
+	public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+		if(!(request instanceof IStreamingRequest) || !((IStreamingRequest) request).isStreaming()) {
+			return mNetwork.performRequest(request);
+		}
+		IStreamingRequest streamingRequest = (IStreamingRequest) request;
+		HttpResponse httpResponse;
+		try {
+			httpResponse = mHttpStack.performRequest(request, streamingRequest.getStreamingHeaders());
+		} catch (IOException e) {
+			throw new NetworkError(e);
+		}
+
+		int statusCode = httpResponse.getStatusLine().getStatusCode();
+		Map<String, String> headers = convertHeaders(httpResponse.getAllHeaders());
+		HttpEntity entity = httpResponse.getEntity();
+		InputStream body = null;
+		try {
+			if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				streamingRequest.onStreamResponse(statusCode, headers, new ByteArrayInputStream(EMPTY));
+				return new NetworkResponse(statusCode, EMPTY, headers, true);
+			}
+			if(statusCode < 200 || statusCode > 299) {
+				throw new ServerError(new NetworkResponse(statusCode, EMPTY, headers, false));
+			}
+			body = entity != null ? entity.getContent() : new ByteArrayInputStream(EMPTY);
+			streamingRequest.onStreamResponse(statusCode, headers, body);
+			return new NetworkResponse(statusCode, EMPTY, headers, false);
+		} catch (IOException e) {
+			throw new NetworkError(e);
+		} finally {
+			try {
+				if(body != null) {
+					body.close();
+				} else if(entity != null) {
+					entity.consumeContent();
+				}
+			} catch (IOException ignored) { }
+		}
+	}
+
+	static Map<String, String> convertHeaders(Header[] headers) {
+		Map<String, String> result = new HashMap<String, String>();
+		for(Header header : headers) {
+			result.put(header.getName(), header.getValue());
+		}
+		return result;
+	}
+}
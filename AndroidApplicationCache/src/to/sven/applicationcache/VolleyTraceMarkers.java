@@ -0,0 +1,39 @@
+package to.sven.applicationcache;
+
+/**
+ * Maps the markers, that Volley's dispatchers add to a request, to the
+ * {@link RequestTracer} stages.
+ */
+final class VolleyTraceMarkers {
+	static final int NO_STAGE = -1;
+
+	private VolleyTraceMarkers() {
+	}
+
+	/**
+	 * @param marker A marker of {@code Request.addMarker(String)}.
+	 * @return The stage or {@link #NO_STAGE}.
+	 */
+	static int stageOf(String marker) {
+		if("add-to-queue".equals(marker)) {
+			return RequestTracer.STAGE_QUEUED;
+		}
+		if("cache-miss".equals(marker) || "cache-hit-expired".equals(marker)
+				|| "cache-hit".equals(marker)) {
+			return RequestTracer.STAGE_CACHE_CHECKED;
+		}
+		if("network-queue-take".equals(marker)) {
+			return RequestTracer.STAGE_NETWORK_START;
+		}
+		if("network-http-complete".equals(marker)) {
+			return RequestTracer.STAGE_NETWORK_END;
+		}
+		if("network-parse-complete".equals(marker) || "cache-hit-parsed".equals(marker)) {
+			return RequestTracer.STAGE_PARSED;
+		}
+		if("network-cache-written".equals(marker)) {
+			return RequestTracer.STAGE_CACHE_WRITTEN;
+		}
+		return NO_STAGE;
+	}
+}
@@ -0,0 +1,50 @@
+package to.sven.applicationcache.test;
+
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+
+import junit.framework.Assert;
+
+import to.sven.applicationcache.CacheOnlyReqeuest;
+import to.sven.applicationcache.StreamingNetwork;
+
+import android.test.AndroidTestCase;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpStack;
+
+public class StreamingNetworkTest extends AndroidTestCase {
+	public void testNonStreamingRequest() throws VolleyError {
+		final NetworkResponse buffered = new NetworkResponse("index".getBytes());
+		final int[] performed = new int[1];
+		Network network = new Network() {
+			@Override
+			public NetworkResponse performRequest(Request<?> request) {
+				performed[0]++;
+				return buffered;
+			}
+		};
+		HttpStack httpStack = new HttpStack() {
+			@Override
+			public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) {
+				throw new AssertionError("A non-streaming request was streamed.");
+			}
+		};
+		// Without a streaming cache, like every download with streaming downloads disabled:
+		CacheOnlyReqeuest request = new CacheOnlyReqeuest("http://sven.to/index.html",
+				new Response.Listener<CacheOnlyReqeuest.CachedUrl>() {
+					@Override
+					public void onResponse(CacheOnlyReqeuest.CachedUrl response) {
+					}
+				}, null, 1);
+		Assert.assertFalse(request.isStreaming());
+
+		Assert.assertSame(buffered, new StreamingNetwork(httpStack, network).performRequest(request));
+		Assert.assertEquals(1, performed[0]);
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import to.sven.applicationcache.CacheBundleReader;
+
+/**
+ * Compares fetching every master entry separately with fetching all of them
+ * in one bundle from a local {@link BundleServer}.
+ * 
+ * Usage: {@code BundleBenchmark [entries] [entry size] [threads] [iterations]}
+ * Defaults: 1000 entries of 2048 bytes, 4 threads (like Volley's network dispatchers), 5 iterations.
+ */
+public class BundleBenchmark {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int entrySize = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		File root = createSite(entries, entrySize);
+		BundleServer server = new BundleServer(root, 0, threads);
+		server.start();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<String> urls = new ArrayList<String>();
+			for(int i = 0; i < entries; i++) {
+				urls.add(server.getUrl("/" + fileName(i)));
+			}
+			System.out.println(String.format("%d entries of %d bytes, %d threads", entries, entrySize, threads));
+			// Warm up:
+			fetchEach(urls, executor);
+			fetchBundle(server.getUrl(BundleServer.BUNDLE_PATH), urls);
+			for(int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				long bytes = fetchEach(urls, executor);
+				long eachMillis = (System.nanoTime() - start) / 1000000;
+				start = System.nanoTime();
+				long bundleBytes = fetchBundle(server.getUrl(BundleServer.BUNDLE_PATH), urls);
+				long bundleMillis = (System.nanoTime() - start) / 1000000;
+				System.out.println(String.format("per file: %6d ms (%d bytes)   bundle: %6d ms (%d bytes)",
+						eachMillis, bytes, bundleMillis, bundleBytes));
+			}
+		} finally {
+			executor.shutdown();
+			server.stop();
+			deleteRecursive(root);
+		}
+	}
+
+	private static long fetchEach(List<String> urls, ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for(final String url : urls) {
+			futures.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws IOException {
+					HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+					InputStream in = connection.getInputStream();
+					try {
+						return drain(in);
+					} finally {
+						in.close();
+					}
+				}
+			}));
+		}
+		long bytes = 0;
+		for(Future<Long> future : futures) {
+			bytes += future.get();
+		}
+		return bytes;
+	}
+
+	private static long fetchBundle(String bundleUrl, List<String> urls) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(bundleUrl).openConnection();
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+		OutputStream out = connection.getOutputStream();
+		StringBuilder body = new StringBuilder();
+		for(String url : urls) {
+			body.append(url).append('\n');
+		}
+		out.write(body.toString().getBytes("UTF-8"));
+		out.close();
+		InputStream in = connection.getInputStream();
+		try {
+			CacheBundleReader reader = new CacheBundleReader(in);
+			long bytes = 0;
+			int count = 0;
+			while(reader.next()) {
+				bytes += drain(reader.body());
+				count++;
+			}
+			if(count != urls.size()) {
+				throw new IOException("Expected " + urls.size() + " entries, got " + count);
+			}
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long bytes = 0;
+		int count;
+		while((count = in.read(buffer)) != -1) {
+			bytes += count;
+		}
+		return bytes;
+	}
+
+	private static String fileName(int i) {
+		return "entry" + i + ".js";
+	}
+
+	private static File createSite(int entries, int entrySize) throws IOException {
+		File root = File.createTempFile("bundle-benchmark", "");
+		if(!root.delete() || !root.mkdirs()) {
+			throw new IOException("Could not create " + root);
+		}
+		Random random = new Random(42);
+		byte[] data = new byte[entrySize];
+		for(int i = 0; i < entries; i++) {
+			random.nextBytes(data);
+			OutputStream out = new FileOutputStream(new File(root, fileName(i)));
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+		}
+		return root;
+	}
+
+	private static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteRecursive(child);
+			}
+		}
+		file.delete();
+	}
+}
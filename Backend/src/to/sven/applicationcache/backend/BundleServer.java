@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import to.sven.applicationcache.CacheBundleReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for a web server with a bundle endpoint.
+ * Serves the files of a web root by GET and answers a POST of URLs
+ * (one per line) to {@link #BUNDLE_PATH} with a bundle of these files.
+ * 
+ * Usage: {@code BundleServer <web root> [port]}
+ */
+public class BundleServer {
+
+	public static final String BUNDLE_PATH = "/bundle";
+
+	private static final long MAX_AGE_SECONDS = 60;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	static {
+		// Small responses would otherwise wait for delayed ACKs.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final File mRoot;
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+
+	/**
+	 * @param root The web root.
+	 * @param port The port or 0 for any free port.
+	 * @param threads Number of worker threads.
+	 */
+	public BundleServer(File root, int port, int threads) throws IOException {
+		mRoot = root;
+		mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		mExecutor = Executors.newFixedThreadPool(threads);
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/", mFileHandler);
+		mServer.createContext(BUNDLE_PATH, mBundleHandler);
+	}
+
+	public void start() {
+		mServer.start();
+	}
+
+	public void stop() {
+		mServer.stop(0);
+		mExecutor.shutdown();
+	}
+
+	public int getPort() {
+		return mServer.getAddress().getPort();
+	}
+
+	/**
+	 * @return The URL of {@code path} on this server.
+	 */
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + getPort() + path;
+	}
+
+	private final HttpHandler mFileHandler = new HttpHandler() {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				StaticFile file = StaticFile.resolve(mRoot, exchange.getRequestURI().getPath());
+				if(file == null) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				putHeaders(exchange, file.headers(MAX_AGE_SECONDS));
+				if(file.etag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+					return;
+				}
+				exchange.sendResponseHeaders(200, file.length());
+				OutputStream out = exchange.getResponseBody();
+				InputStream in = new FileInputStream(file.getFile());
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int count;
+					while((count = in.read(buffer)) != -1) {
+						out.write(buffer, 0, count);
+					}
+				} finally {
+					in.close();
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	};
+
+	private final HttpHandler mBundleHandler = new HttpHandler() {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if(!"POST".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				exchange.getResponseHeaders().set("Content-Type", CacheBundleReader.CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), BUFFER_SIZE);
+				CacheBundleWriter writer = new CacheBundleWriter(out);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+				String url;
+				while((url = reader.readLine()) != null) {
+					url = url.trim();
+					if(url.length() == 0) {
+						continue;
+					}
+					// Missing files are left out, the client requests them separately.
+					StaticFile file = StaticFile.resolveUrl(mRoot, url);
+					if(file == null) {
+						continue;
+					}
+					InputStream in = new FileInputStream(file.getFile());
+					try {
+						writer.write(url, 200, file.headers(MAX_AGE_SECONDS), in, file.length());
+					} finally {
+						in.close();
+					}
+				}
+				writer.finish();
+				out.flush();
+			} finally {
+				exchange.close();
+			}
+		}
+	};
+
+	private static void putHeaders(HttpExchange exchange, Map<String, String> headers) {
+		for(Map.Entry<String, String> header : headers.entrySet()) {
+			exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: BundleServer <web root> [port]");
+			System.exit(1);
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+		BundleServer server = new BundleServer(new File(args[0]), port, 4);
+		server.start();
+		System.out.println("Serving " + args[0] + " on " + server.getUrl("/"));
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import to.sven.applicationcache.CacheBundleReader;
+
+/**
+ * Writes a cache bundle in the format read by {@link CacheBundleReader}.
+ */
+public class CacheBundleWriter {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final DataOutputStream mOut;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private boolean mFinished = false;
+
+	public CacheBundleWriter(OutputStream out) throws IOException {
+		mOut = new DataOutputStream(out);
+		mOut.write(CacheBundleReader.MAGIC.getBytes("US-ASCII"));
+		mOut.writeInt(CacheBundleReader.VERSION);
+	}
+
+	/**
+	 * Writes one record.
+	 * @param url The URL of the entry.
+	 * @param statusCode The HTTP status code of the entry.
+	 * @param headers The response headers of the entry.
+	 * @param body The body, exactly {@code bodyLength} bytes are copied.
+	 * @param bodyLength The length of the body.
+	 * @throws IOException If {@code body} is shorter than {@code bodyLength}.
+	 */
+	public void write(String url, int statusCode, Map<String, String> headers, InputStream body, long bodyLength)
+			throws IOException {
+		writeHead(url, statusCode, headers, bodyLength);
+		long remaining = bodyLength;
+		while(remaining > 0) {
+			int count = body.read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+			if(count == -1) {
+				throw new IOException("Body of " + url + " is shorter than " + bodyLength + " bytes.");
+			}
+			mOut.write(mBuffer, 0, count);
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Writes the part of a record before the body. The caller has to write exactly
+	 * {@code bodyLength} bytes to the underlying stream before the next record,
+	 * e.g. with {@link java.nio.channels.FileChannel#transferTo}.
+	 * @see #write(String, int, Map, InputStream, long)
+	 */
+	public void writeHead(String url, int statusCode, Map<String, String> headers, long bodyLength)
+			throws IOException {
+		if(mFinished) {
+			throw new IllegalStateException("Bundle is finished.");
+		}
+		mOut.writeByte(CacheBundleReader.RECORD_ENTRY);
+		mOut.writeUTF(url);
+		mOut.writeInt(statusCode);
+		mOut.writeInt(headers.size());
+		for(Map.Entry<String, String> header : headers.entrySet()) {
+			mOut.writeUTF(header.getKey());
+			mOut.writeUTF(header.getValue());
+		}
+		mOut.writeLong(bodyLength);
+	}
+
+	/**
+	 * Writes the end marker and flushes the bundle. The underlying stream stays open.
+	 */
+	public void finish() throws IOException {
+		if(!mFinished) {
+			mOut.writeByte(CacheBundleReader.RECORD_END);
+			mOut.flush();
+			mFinished = true;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Digests of files from a previous run, keyed by path and valid as long as
+ * size and modification time of the file are unchanged.
+ * 
+ * Stored as text, one file per line: {@code size TAB mtime TAB digest TAB path}.
+ */
+public class HashCache {
+
+	private static final String CHARSET = "UTF-8";
+
+	private final Map<String, Record> mRecords = new ConcurrentHashMap<String, Record>();
+
+	/**
+	 * Loads a hash cache. A missing or unreadable file results in an empty cache.
+	 */
+	public static HashCache load(File file) {
+		HashCache cache = new HashCache();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 4);
+				if(fields.length != 4) {
+					continue;
+				}
+				try {
+					cache.mRecords.put(fields[3], new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+				} catch(NumberFormatException ignored) { }
+			}
+		} catch(FileNotFoundException e) {
+			// First run.
+		} catch(IOException e) {
+			cache.mRecords.clear();
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch(IOException ignored) { }
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @return The digest of the file from a previous run or null, if the file was changed.
+	 */
+	public String get(String path, long size, long lastModified) {
+		Record record = mRecords.get(path);
+		if(record == null || record.size != size || record.lastModified != lastModified) {
+			return null;
+		}
+		return record.digest;
+	}
+
+	public void put(String path, long size, long lastModified, String digest) {
+		mRecords.put(path, new Record(size, lastModified, digest));
+	}
+
+	/**
+	 * Writes only the given paths, so deleted files are dropped.
+	 * The file is replaced atomically.
+	 */
+	public void save(File file, Iterable<String> paths) throws IOException {
+		Map<String, Record> sorted = new TreeMap<String, Record>();
+		for(String path : paths) {
+			Record record = mRecords.get(path);
+			if(record != null) {
+				sorted.put(path, record);
+			}
+		}
+		File tmpFile = new File(file.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), CHARSET));
+		try {
+			for(Map.Entry<String, Record> entry : sorted.entrySet()) {
+				Record record = entry.getValue();
+				writer.write(record.size + "\t" + record.lastModified + "\t" + record.digest + "\t" + entry.getKey() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		if(!tmpFile.renameTo(file)) {
+			file.delete();
+			if(!tmpFile.renameTo(file)) {
+				throw new IOException("Could not write " + file);
+			}
+		}
+	}
+
+	private static class Record {
+		private final long size;
+		private final long lastModified;
+		private final String digest;
+
+		private Record(long size, long lastModified, String digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import to.sven.applicationcache.CacheManifest;
+
+/**
+ * Generates a cache manifest for all files of a web root.
+ * 
+ * Every entry is preceded by a comment with the digest and the size of the file
+ * (the size is a hint for the progress of the clients), and the
+ * manifest's comment is a digest over all entries. So the manifest changes
+ * exactly when a file was added, removed or changed, no version comment has
+ * to be bumped by hand.
+ * 
+ * Files are hashed in parallel on a fork/join pool. Digests of the previous run
+ * are kept in a {@link HashCache} and reused for files with unchanged size and
+ * modification time, so only changed files are hashed again.
+ * 
+ * Usage: {@code ManifestGenerator <web root> <manifest URL> [--network-wildcard]}
+ * The manifest is written to the path of the manifest URL inside the web root.
+ */
+public class ManifestGenerator {
+
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/** Name of the hash cache in the web root. */
+	public static final String HASH_CACHE_NAME = ".appcache-hashes";
+
+	/** Files hashed by one task without splitting further. */
+	private static final int SEQUENTIAL_THRESHOLD = 16;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File mRoot;
+	private final URI mManifestURL;
+	private final File mManifestFile;
+	private final File mHashCacheFile;
+	private final ForkJoinPool mPool;
+	private boolean mNetworkWildcard = false;
+
+	private final AtomicInteger mHashed = new AtomicInteger();
+	private int mReused;
+
+	/**
+	 * @param root The web root.
+	 * @param manifestURL The absolute URL of the manifest, its path is relative to the web root.
+	 * @param pool The pool to hash the files on.
+	 */
+	public ManifestGenerator(File root, String manifestURL, ForkJoinPool pool) throws URISyntaxException {
+		mRoot = root;
+		mManifestURL = new URI(manifestURL);
+		mManifestFile = new File(root, mManifestURL.getPath());
+		mHashCacheFile = new File(root, HASH_CACHE_NAME);
+		mPool = pool;
+	}
+
+	public void setNetworkWildcard(boolean networkWildcard) {
+		mNetworkWildcard = networkWildcard;
+	}
+
+	/**
+	 * Hashes the web root and creates the manifest. The hash cache is updated.
+	 */
+	public CacheManifest generate() throws IOException, URISyntaxException {
+		List<SiteFile> files = new ArrayList<SiteFile>();
+		collect(mRoot, "", files);
+		Collections.sort(files);
+
+		HashCache hashCache = HashCache.load(mHashCacheFile);
+		List<SiteFile> changed = new ArrayList<SiteFile>();
+		for(SiteFile file : files) {
+			file.digest = hashCache.get(file.path, file.size, file.lastModified);
+			if(file.digest == null) {
+				changed.add(file);
+			}
+		}
+		mReused = files.size() - changed.size();
+		mHashed.set(0);
+		mPool.invoke(new HashTask(changed, 0, changed.size()));
+
+		List<String> paths = new ArrayList<String>(files.size());
+		MessageDigest versionDigest = newDigest();
+		CacheManifest manifest = new CacheManifest(mManifestURL, true, true);
+		for(SiteFile file : files) {
+			hashCache.put(file.path, file.size, file.lastModified, file.digest);
+			paths.add(file.path);
+			versionDigest.update(file.path.getBytes("UTF-8"));
+			versionDigest.update((byte) 0);
+			versionDigest.update(file.digest.getBytes("US-ASCII"));
+			URI uri = mManifestURL.resolve(new URI(null, null, "/" + file.path, null));
+			manifest.addExplicitEntry(uri, DIGEST_ALGORITHM + ":" + file.digest + " size=" + file.size);
+		}
+		if(mNetworkWildcard) {
+			manifest.setOnlineWhitelistWildcardFlag(CacheManifest.ONLINE_WHITELIST_WILDCARD_FLAG_OPEN);
+		}
+		manifest.setComment("version " + toHex(versionDigest.digest()));
+		hashCache.save(mHashCacheFile, paths);
+		return manifest;
+	}
+
+	/**
+	 * Generates the manifest and writes it to its path in the web root.
+	 */
+	public void write() throws IOException, URISyntaxException {
+		String manifest = generate().toString();
+		File tmpFile = new File(mManifestFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmpFile);
+		try {
+			out.write(manifest.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		if(!tmpFile.renameTo(mManifestFile)) {
+			mManifestFile.delete();
+			if(!tmpFile.renameTo(mManifestFile)) {
+				throw new IOException("Could not write " + mManifestFile);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of files hashed by the last run.
+	 */
+	public int getHashedCount() {
+		return mHashed.get();
+	}
+
+	/**
+	 * @return Number of digests reused from the hash cache by the last run.
+	 */
+	public int getReusedCount() {
+		return mReused;
+	}
+
+	private void collect(File directory, String prefix, List<SiteFile> files) throws IOException {
+		File[] children = directory.listFiles();
+		if(children == null) {
+			throw new IOException("Could not list " + directory);
+		}
+		for(File child : children) {
+			String name = child.getName();
+			if(name.startsWith(".")) {
+				continue;
+			}
+			String path = prefix + name;
+			if(child.isDirectory()) {
+				collect(child, path + "/", files);
+			} else if(child.isFile() && !child.equals(mManifestFile) && !name.endsWith(".tmp")) {
+				files.add(new SiteFile(child, path));
+			}
+		}
+	}
+
+	/**
+	 * Hashes a range of files, splitting it in halves until it's small enough.
+	 */
+	private class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<SiteFile> mFiles;
+		private final int mFrom;
+		private final int mTo;
+
+		private HashTask(List<SiteFile> files, int from, int to) {
+			mFiles = files;
+			mFrom = from;
+			mTo = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(mTo - mFrom <= SEQUENTIAL_THRESHOLD) {
+				MessageDigest digest = newDigest();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				for(int i = mFrom; i < mTo; i++) {
+					SiteFile file = mFiles.get(i);
+					try {
+						file.digest = hash(file.file, digest, buffer);
+					} catch(IOException e) {
+						throw new IllegalStateException("Could not hash " + file.file, e);
+					}
+					mHashed.incrementAndGet();
+				}
+				return;
+			}
+			int middle = (mFrom + mTo) >>> 1;
+			invokeAll(new HashTask(mFiles, mFrom, middle), new HashTask(mFiles, middle, mTo));
+		}
+	}
+
+	private static String hash(File file, MessageDigest digest, byte[] buffer) throws IOException {
+		digest.reset();
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch(NoSuchAlgorithmException e) {
+			// Every JVM has to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	private static class SiteFile implements Comparable<SiteFile> {
+		private final File file;
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private volatile String digest;
+
+		private SiteFile(File file, String path) {
+			this.file = file;
+			this.path = path;
+			this.size = file.length();
+			this.lastModified = file.lastModified();
+		}
+
+		@Override
+		public int compareTo(SiteFile another) {
+			return path.compareTo(another.path);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.err.println("Usage: ManifestGenerator <web root> <manifest URL> [--network-wildcard]");
+			System.exit(1);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			ManifestGenerator generator = new ManifestGenerator(new File(args[0]), args[1], pool);
+			generator.setNetworkWildcard(args.length > 2 && "--network-wildcard".equals(args[2]));
+			long start = System.nanoTime();
+			generator.write();
+			System.out.println(String.format("%d files hashed, %d unchanged, %d ms",
+					generator.getHashedCount(), generator.getReusedCount(), (System.nanoTime() - start) / 1000000));
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
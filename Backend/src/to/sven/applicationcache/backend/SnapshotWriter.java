@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import to.sven.applicationcache.CacheManifest;
+
+/**
+ * Packs a snapshot of a web root for an app: A cache bundle of the manifest and all
+ * its master entries, which the app imports with {@code AppCacheStore.importSnapshot}.
+ * 
+ * Usage: {@code SnapshotWriter <web root> <manifest url> <snapshot file>}
+ */
+public class SnapshotWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File mRoot;
+	private final String mManifestURL;
+
+	/**
+	 * @param root The web root.
+	 * @param manifestURL The absolute URL of the manifest, its path is resolved in the web root.
+	 */
+	public SnapshotWriter(File root, String manifestURL) {
+		mRoot = root;
+		mManifestURL = manifestURL;
+	}
+
+	/**
+	 * Writes the snapshot. Master entries missing in the web root are left out,
+	 * the app downloads them on its first update.
+	 * @return The number of written entries, including the manifest.
+	 * @throws IOException If the manifest doesn't exist or writing failed.
+	 */
+	public int write(OutputStream out) throws IOException, URISyntaxException {
+		StaticFile manifestFile = StaticFile.resolveUrl(mRoot, mManifestURL);
+		if(manifestFile == null) {
+			throw new IOException("Manifest not found: " + mManifestURL);
+		}
+		CacheManifest manifest;
+		InputStream in = new FileInputStream(manifestFile.getFile());
+		try {
+			manifest = CacheManifest.parse(mManifestURL, in);
+		} finally {
+			in.close();
+		}
+		CacheBundleWriter writer = new CacheBundleWriter(out);
+		// The manifest first, so the importer knows the master entries early.
+		write(writer, mManifestURL, manifestFile);
+		int count = 1;
+		for(URI uri : manifest.getMasterEntries()) {
+			String url = uri.toString();
+			StaticFile file = StaticFile.resolveUrl(mRoot, url);
+			if(file == null || url.equals(mManifestURL)) {
+				continue;
+			}
+			write(writer, url, file);
+			count++;
+		}
+		writer.finish();
+		return count;
+	}
+
+	private static void write(CacheBundleWriter writer, String url, StaticFile file) throws IOException {
+		InputStream in = new FileInputStream(file.getFile());
+		try {
+			// The entries are revalidated on the first update anyway.
+			writer.write(url, 200, file.headers(0), in, file.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3) {
+			System.err.println("Usage: SnapshotWriter <web root> <manifest url> <snapshot file>");
+			System.exit(1);
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(args[2]), BUFFER_SIZE);
+		try {
+			int count = new SnapshotWriter(new File(args[0]), args[1]).write(out);
+			out.flush();
+			System.out.println(String.format("%d entries written to %s", count, args[2]));
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A file of a served web root with the response headers for it.
+ */
+public class StaticFile {
+
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+	private static final Map<String, String> CONTENT_TYPES = new LinkedHashMap<String, String>();
+	static {
+		CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+		CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+		CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+		CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+		CONTENT_TYPES.put("json", "application/json; charset=UTF-8");
+		CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+		CONTENT_TYPES.put("xml", "application/xml; charset=UTF-8");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+		CONTENT_TYPES.put("appcache", "text/cache-manifest; charset=UTF-8");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+		CONTENT_TYPES.put("woff", "application/font-woff");
+	}
+
+	private final File mFile;
+	private final String mPath;
+
+	private StaticFile(File file, String path) {
+		mFile = file;
+		mPath = path;
+	}
+
+	/**
+	 * Resolves the path of a request in the web root.
+	 * @param root The web root.
+	 * @param path The decoded path of the request, e.g. {@code /css/main.css}.
+	 * @return The file or null, if it doesn't exist or is outside of the web root.
+	 */
+	public static StaticFile resolve(File root, String path) throws IOException {
+		if(path == null || path.length() == 0) {
+			return null;
+		}
+		File canonicalRoot = root.getCanonicalFile();
+		File file = new File(canonicalRoot, path).getCanonicalFile();
+		if(!file.getPath().startsWith(canonicalRoot.getPath() + File.separator) || !file.isFile()) {
+			return null;
+		}
+		return new StaticFile(file, path);
+	}
+
+	/**
+	 * Resolves an absolute URL or a path in the web root.
+	 * @see #resolve(File, String)
+	 */
+	public static StaticFile resolveUrl(File root, String url) throws IOException {
+		try {
+			return resolve(root, new URI(url).getPath());
+		} catch(java.net.URISyntaxException e) {
+			return null;
+		}
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public String getPath() {
+		return mPath;
+	}
+
+	public long length() {
+		return mFile.length();
+	}
+
+	public long lastModified() {
+		return mFile.lastModified() / 1000 * 1000;
+	}
+
+	/**
+	 * @return A strong ETag derived from size and modification time.
+	 */
+	public String etag() {
+		return "\"" + Long.toHexString(length()) + "-" + Long.toHexString(lastModified()) + "\"";
+	}
+
+	public String contentType() {
+		String name = mFile.getName();
+		int dot = name.lastIndexOf('.');
+		if(dot >= 0) {
+			String type = CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.US));
+			if(type != null) {
+				return type;
+			}
+		}
+		return DEFAULT_CONTENT_TYPE;
+	}
+
+	/**
+	 * @param maxAgeSeconds Value of the max-age directive.
+	 * @return The headers of a 200 response for this file.
+	 */
+	public Map<String, String> headers(long maxAgeSeconds) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Date", formatDate(System.currentTimeMillis()));
+		headers.put("Last-Modified", formatDate(lastModified()));
+		headers.put("ETag", etag());
+		headers.put("Cache-Control", "max-age=" + maxAgeSeconds);
+		headers.put("Content-Type", contentType());
+		return headers;
+	}
+
+	public static String formatDate(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(millis));
+	}
+}
@@ -0,0 +1,735 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import to.sven.applicationcache.AppCacheLog;
+
+/**
+ * A small, embeddable HTTP/1.1 server on one NIO selector thread that serves
+ * a directory like a well-behaved web server:
+ * <ul>
+ * <li>strong ETags, Last-Modified and Cache-Control: max-age,</li>
+ * <li>conditional requests (If-None-Match, If-Modified-Since) answered with 304,</li>
+ * <li>gzip for text content if the client accepts it,</li>
+ * <li>single byte ranges (206/416),</li>
+ * <li>keep-alive and HEAD,</li>
+ * <li>the bundle endpoint of {@link BundleServer} at {@link BundleServer#BUNDLE_PATH}.</li>
+ * </ul>
+ * Latency and bandwidth can be limited to simulate mobile networks. Bodies of
+ * files, also those in bundles, are sent with {@link FileChannel#transferTo}.
+ * 
+ * Usage: {@code StaticServer <web root> [port] [latency ms] [bandwidth bytes/s]}
+ */
+public class StaticServer implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_REQUEST_SIZE = 8 * 1024 * 1024;
+	private static final int MAX_WRITE_CHUNK = 256 * 1024;
+	private static final int GZIP_CACHE_SIZE = 64;
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+
+	private final File mRoot;
+	private final ServerSocketChannel mServerChannel;
+	private final Selector mSelector;
+	private Thread mThread;
+	private volatile boolean mRunning = false;
+
+	private volatile long mLatencyMillis = 0;
+	private volatile long mBandwidthBytesPerSecond = 0;
+	private volatile long mMaxAgeSeconds = 60;
+	private volatile boolean mGzipEnabled = true;
+
+	private final AtomicLong mRequests = new AtomicLong();
+	private final AtomicLong mNotModified = new AtomicLong();
+	private final AtomicLong mBytesSent = new AtomicLong();
+
+	/** Gzipped bodies by ETag. Only accessed by the selector thread. */
+	private final Map<String, byte[]> mGzipCache = new LinkedHashMap<String, byte[]>(16, .75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > GZIP_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * @param root The web root.
+	 * @param port The port or 0 for any free port.
+	 */
+	public StaticServer(File root, int port) throws IOException {
+		mRoot = root;
+		mSelector = Selector.open();
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().setReuseAddress(true);
+		mServerChannel.socket().bind(new InetSocketAddress("127.0.0.1", port));
+		mServerChannel.configureBlocking(false);
+		mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	public synchronized void start() {
+		if(mThread != null) {
+			throw new IllegalStateException("Already started.");
+		}
+		mRunning = true;
+		mThread = new Thread(this, "StaticServer-" + getPort());
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	public synchronized void stop() {
+		mRunning = false;
+		mSelector.wakeup();
+		if(mThread != null) {
+			try {
+				mThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public int getPort() {
+		return mServerChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return The URL of {@code path} on this server.
+	 */
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + getPort() + path;
+	}
+
+	/**
+	 * Delays every response by {@code latencyMillis}.
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		mLatencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Limits the bandwidth of every connection, 0 for unlimited.
+	 */
+	public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+		mBandwidthBytesPerSecond = bandwidthBytesPerSecond;
+	}
+
+	public void setMaxAgeSeconds(long maxAgeSeconds) {
+		mMaxAgeSeconds = maxAgeSeconds;
+	}
+
+	public void setGzipEnabled(boolean gzipEnabled) {
+		mGzipEnabled = gzipEnabled;
+	}
+
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	public long getNotModifiedCount() {
+		return mNotModified.get();
+	}
+
+	/**
+	 * @return Bytes sent, including headers.
+	 */
+	public long getBytesSent() {
+		return mBytesSent.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(mRunning) {
+				long now = now();
+				long timeout = 0;
+				for(SelectionKey key : mSelector.keys()) {
+					Connection connection = (Connection) key.attachment();
+					if(connection == null || !key.isValid() || connection.resumeAt == 0) {
+						continue;
+					}
+					if(connection.resumeAt <= now) {
+						connection.resumeAt = 0;
+						key.interestOps(SelectionKey.OP_WRITE);
+					} else if(timeout == 0 || connection.resumeAt - now < timeout) {
+						timeout = connection.resumeAt - now;
+					}
+				}
+				mSelector.select(timeout);
+				Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+				while(iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					handle(key);
+				}
+			}
+		} catch (IOException e) {
+			AppCacheLog.e(e, "StaticServer stopped");
+		} finally {
+			for(SelectionKey key : mSelector.keys()) {
+				closeQuietly(key);
+			}
+			try {
+				mSelector.close();
+				mServerChannel.close();
+			} catch (IOException ignored) { }
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		try {
+			if(!key.isValid()) {
+				return;
+			}
+			if(key.isAcceptable()) {
+				SocketChannel channel = mServerChannel.accept();
+				if(channel != null) {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					SelectionKey clientKey = channel.register(mSelector, SelectionKey.OP_READ);
+					clientKey.attach(new Connection(channel, clientKey));
+				}
+				return;
+			}
+			Connection connection = (Connection) key.attachment();
+			if(key.isReadable()) {
+				connection.read();
+			} else if(key.isWritable()) {
+				connection.write();
+			}
+		} catch (IOException e) {
+			closeQuietly(key);
+		}
+	}
+
+	private static void closeQuietly(SelectionKey key) {
+		Object attachment = key.attachment();
+		if(attachment instanceof Connection) {
+			((Connection) attachment).close();
+		}
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException ignored) { }
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private class Connection {
+		private final SocketChannel mChannel;
+		private final SelectionKey mKey;
+		private ByteBuffer mIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		// The response in progress:
+		private ByteBuffer mHead;
+		private ByteBuffer mBody;
+		private FileChannel mFile;
+		private long mFilePosition;
+		private long mFileRemaining;
+		/** Records of a bundle, each one is sent after the previous mBody and mFile. */
+		private Iterator<BundlePart> mParts;
+		private boolean mCloseAfterResponse;
+		private long mResponseStart;
+		private long mResponseBytes;
+		private long resumeAt = 0;
+
+		private Connection(SocketChannel channel, SelectionKey key) {
+			mChannel = channel;
+			mKey = key;
+		}
+
+		private void read() throws IOException {
+			if(!mIn.hasRemaining()) {
+				if(mIn.capacity() >= MAX_REQUEST_SIZE) {
+					throw new IOException("Request too large.");
+				}
+				ByteBuffer larger = ByteBuffer.allocate(mIn.capacity() * 2);
+				mIn.flip();
+				larger.put(mIn);
+				mIn = larger;
+			}
+			if(mChannel.read(mIn) == -1) {
+				throw new IOException("Closed by client.");
+			}
+			processRequest();
+		}
+
+		/**
+		 * Starts the response, if a complete request is in the buffer.
+		 */
+		private void processRequest() throws IOException {
+			int headerEnd = indexOf(mIn, HEADER_END);
+			if(headerEnd == -1) {
+				return;
+			}
+			String head = new String(mIn.array(), 0, headerEnd, "ISO-8859-1");
+			String[] lines = head.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if(requestLine.length != 3) {
+				throw new IOException("Bad request line " + lines[0]);
+			}
+			Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			for(int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if(colon > 0) {
+					headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+				}
+			}
+			int bodyLength = 0;
+			if(headers.containsKey("Content-Length")) {
+				try {
+					bodyLength = Integer.parseInt(headers.get("Content-Length"));
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad Content-Length.");
+				}
+			}
+			int requestLength = headerEnd + HEADER_END.length + bodyLength;
+			if(requestLength > MAX_REQUEST_SIZE) {
+				throw new IOException("Request too large.");
+			}
+			if(mIn.position() < requestLength) {
+				return;
+			}
+			byte[] body = new byte[bodyLength];
+			System.arraycopy(mIn.array(), headerEnd + HEADER_END.length, body, 0, bodyLength);
+			mIn.flip();
+			mIn.position(requestLength);
+			mIn.compact();
+
+			String version = requestLine[2];
+			String connection = headers.get("Connection");
+			mCloseAfterResponse = "close".equalsIgnoreCase(connection)
+					|| ("HTTP/1.0".equals(version) && !"keep-alive".equalsIgnoreCase(connection));
+			mRequests.incrementAndGet();
+			respond(requestLine[0], requestLine[1], headers, body);
+			mResponseStart = now() + mLatencyMillis;
+			mResponseBytes = 0;
+			mKey.interestOps(0);
+			resumeAt = Math.max(mResponseStart, 1);
+		}
+
+		private void respond(String method, String target, Map<String, String> headers, byte[] requestBody)
+				throws IOException {
+			String path;
+			try {
+				path = new URI(target).getPath();
+			} catch (URISyntaxException e) {
+				sendStatus(400, "Bad Request");
+				return;
+			}
+			boolean head = "HEAD".equals(method);
+			if(BundleServer.BUNDLE_PATH.equals(path)) {
+				if(!"POST".equals(method)) {
+					sendStatus(405, "Method Not Allowed");
+					return;
+				}
+				sendBundle(requestBody);
+				return;
+			}
+			if(!"GET".equals(method) && !head) {
+				sendStatus(405, "Method Not Allowed");
+				return;
+			}
+			StaticFile file = StaticFile.resolve(mRoot, path);
+			if(file == null) {
+				sendStatus(404, "Not Found");
+				return;
+			}
+			Map<String, String> responseHeaders = file.headers(mMaxAgeSeconds);
+			String etag = file.etag();
+			boolean gzip = mGzipEnabled && acceptsGzip(headers) && isCompressible(file.contentType())
+					&& !headers.containsKey("Range");
+			String gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+			if(gzip) {
+				responseHeaders.put("ETag", gzipEtag);
+			}
+			if(mGzipEnabled && isCompressible(file.contentType())) {
+				responseHeaders.put("Vary", "Accept-Encoding");
+			}
+			if(isNotModified(headers, file, etag, gzipEtag)) {
+				mNotModified.incrementAndGet();
+				responseHeaders.remove("Content-Type");
+				sendHead(304, "Not Modified", responseHeaders, -1);
+				return;
+			}
+			if(gzip) {
+				byte[] compressed = gzip(file, gzipEtag);
+				responseHeaders.put("Content-Encoding", "gzip");
+				sendHead(200, "OK", responseHeaders, compressed.length);
+				if(!head) {
+					mBody = ByteBuffer.wrap(compressed);
+				}
+				return;
+			}
+			long length = file.length();
+			long start = 0;
+			long end = length - 1;
+			int status = 200;
+			String reason = "OK";
+			responseHeaders.put("Accept-Ranges", "bytes");
+			String range = headers.get("Range");
+			if(range != null) {
+				long[] parsed = parseRange(range, length);
+				if(parsed == null) {
+					responseHeaders.put("Content-Range", "bytes */" + length);
+					sendHead(416, "Requested Range Not Satisfiable", responseHeaders, 0);
+					return;
+				}
+				if(parsed.length == 2) {
+					start = parsed[0];
+					end = parsed[1];
+					status = 206;
+					reason = "Partial Content";
+					responseHeaders.put("Content-Range", "bytes " + start + "-" + end + "/" + length);
+				}
+			}
+			sendHead(status, reason, responseHeaders, end - start + 1);
+			if(!head) {
+				mFile = new FileInputStream(file.getFile()).getChannel();
+				mFilePosition = start;
+				mFileRemaining = end - start + 1;
+			}
+		}
+
+		/**
+		 * Only the record heads of the bundle are built in memory, the bodies are
+		 * transferred from the files while the bundle is sent.
+		 */
+		private void sendBundle(byte[] requestBody) throws IOException {
+			List<BundlePart> parts = new ArrayList<BundlePart>();
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			CacheBundleWriter writer = new CacheBundleWriter(head);
+			long length = 0;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(requestBody), "UTF-8"));
+			String url;
+			while((url = reader.readLine()) != null) {
+				url = url.trim();
+				StaticFile file = url.length() == 0 ? null : StaticFile.resolveUrl(mRoot, url);
+				if(file == null) {
+					continue;
+				}
+				long fileLength = file.length();
+				writer.writeHead(url, 200, file.headers(mMaxAgeSeconds), fileLength);
+				parts.add(new BundlePart(head.toByteArray(), file.getFile(), fileLength));
+				length += head.size() + fileLength;
+				head.reset();
+			}
+			writer.finish();
+			parts.add(new BundlePart(head.toByteArray(), null, 0));
+			length += head.size();
+			Map<String, String> headers = new LinkedHashMap<String, String>();
+			headers.put("Content-Type", to.sven.applicationcache.CacheBundleReader.CONTENT_TYPE);
+			sendHead(200, "OK", headers, length);
+			mParts = parts.iterator();
+		}
+
+		private void sendStatus(int status, String reason) throws IOException {
+			byte[] body = (status + " " + reason + "\n").getBytes("US-ASCII");
+			Map<String, String> headers = new LinkedHashMap<String, String>();
+			headers.put("Content-Type", "text/plain; charset=UTF-8");
+			sendHead(status, reason, headers, body.length);
+			mBody = ByteBuffer.wrap(body);
+		}
+
+		private void sendHead(int status, String reason, Map<String, String> headers, long contentLength)
+				throws IOException {
+			StringBuilder builder = new StringBuilder();
+			builder.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+			for(Map.Entry<String, String> header : headers.entrySet()) {
+				builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			if(contentLength >= 0) {
+				builder.append("Content-Length: ").append(contentLength).append("\r\n");
+			}
+			builder.append("Connection: ").append(mCloseAfterResponse ? "close" : "keep-alive").append("\r\n");
+			builder.append("\r\n");
+			mHead = ByteBuffer.wrap(builder.toString().getBytes("ISO-8859-1"));
+		}
+
+		private void write() throws IOException {
+			while(true) {
+				long allowed = allowedBytes();
+				if(allowed <= 0) {
+					// Wait until the bandwidth allows the next chunk.
+					mKey.interestOps(0);
+					resumeAt = mResponseStart + (mResponseBytes + 1) * 1000 / mBandwidthBytesPerSecond;
+					return;
+				}
+				long written;
+				if(mHead != null && mHead.hasRemaining()) {
+					written = writeBuffer(mHead, allowed);
+				} else if(mBody != null && mBody.hasRemaining()) {
+					written = writeBuffer(mBody, allowed);
+				} else if(mFile != null && mFileRemaining > 0) {
+					written = mFile.transferTo(mFilePosition, Math.min(mFileRemaining, allowed), mChannel);
+					if(written == 0 && mFilePosition >= mFile.size()) {
+						throw new IOException("File was truncated while it was sent.");
+					}
+					mFilePosition += written;
+					mFileRemaining -= written;
+				} else if(mParts != null && mParts.hasNext()) {
+					nextPart();
+					continue;
+				} else {
+					finishResponse();
+					return;
+				}
+				if(written == 0) {
+					// Socket buffer is full.
+					mKey.interestOps(SelectionKey.OP_WRITE);
+					return;
+				}
+				mResponseBytes += written;
+				mBytesSent.addAndGet(written);
+			}
+		}
+
+		private long allowedBytes() {
+			long bandwidth = mBandwidthBytesPerSecond;
+			if(bandwidth <= 0) {
+				return MAX_WRITE_CHUNK;
+			}
+			long elapsed = Math.max(0, now() - mResponseStart);
+			// Allow a burst of 10 ms so small responses aren't split into single bytes.
+			long budget = (elapsed + 10) * bandwidth / 1000 - mResponseBytes;
+			return Math.min(budget, MAX_WRITE_CHUNK);
+		}
+
+		private int writeBuffer(ByteBuffer buffer, long allowed) throws IOException {
+			int limit = buffer.limit();
+			buffer.limit((int) Math.min(limit, buffer.position() + allowed));
+			try {
+				return mChannel.write(buffer);
+			} finally {
+				buffer.limit(limit);
+			}
+		}
+
+		private void nextPart() throws IOException {
+			closeFile();
+			BundlePart part = mParts.next();
+			mBody = ByteBuffer.wrap(part.head);
+			if(part.file != null) {
+				mFile = new FileInputStream(part.file).getChannel();
+				mFilePosition = 0;
+				mFileRemaining = part.length;
+			}
+		}
+
+		private void finishResponse() throws IOException {
+			closeFile();
+			mHead = null;
+			mBody = null;
+			mParts = null;
+			if(mCloseAfterResponse) {
+				closeQuietly(mKey);
+				return;
+			}
+			mKey.interestOps(SelectionKey.OP_READ);
+			// Pipelined requests:
+			processRequest();
+		}
+
+		private void closeFile() {
+			if(mFile != null) {
+				try {
+					mFile.close();
+				} catch (IOException ignored) { }
+				mFile = null;
+			}
+		}
+
+		private void close() {
+			closeFile();
+		}
+	}
+
+	/**
+	 * A record of a bundle: its head and the file with its body.
+	 */
+	private static class BundlePart {
+		private final byte[] head;
+		private final File file;
+		private final long length;
+
+		private BundlePart(byte[] head, File file, long length) {
+			this.head = head;
+			this.file = file;
+			this.length = length;
+		}
+	}
+
+	private boolean isNotModified(Map<String, String> headers, StaticFile file, String etag, String gzipEtag) {
+		String ifNoneMatch = headers.get("If-None-Match");
+		if(ifNoneMatch != null) {
+			for(String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if(candidate.equals("*") || candidate.equals(etag) || candidate.equals(gzipEtag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = headers.get("If-Modified-Since");
+		if(ifModifiedSince != null) {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				return file.lastModified() <= format.parse(ifModifiedSince).getTime();
+			} catch (ParseException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return {start, end} of a single satisfiable range, an empty array for
+	 *     ranges that are ignored (multiple ranges) or null if not satisfiable.
+	 */
+	static long[] parseRange(String range, long length) {
+		if(!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+			return new long[0];
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if(dash == -1) {
+			return new long[0];
+		}
+		try {
+			long start;
+			long end;
+			if(dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				if(suffix <= 0) {
+					return null;
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+			}
+			if(start >= length || start > end) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	private byte[] gzip(StaticFile file, String etag) throws IOException {
+		byte[] compressed = mGzipCache.get(etag + file.getPath());
+		if(compressed != null) {
+			return compressed;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		InputStream in = new FileInputStream(file.getFile());
+		try {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		out.close();
+		compressed = bytes.toByteArray();
+		mGzipCache.put(etag + file.getPath(), compressed);
+		return compressed;
+	}
+
+	private static boolean acceptsGzip(Map<String, String> headers) {
+		String acceptEncoding = headers.get("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.US).contains("gzip");
+	}
+
+	private static boolean isCompressible(String contentType) {
+		return contentType.startsWith("text/") || contentType.contains("javascript")
+				|| contentType.contains("json") || contentType.contains("xml");
+	}
+
+	private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+		byte[] array = buffer.array();
+		int end = buffer.position() - pattern.length;
+		outer:
+		for(int i = 0; i <= end; i++) {
+			for(int j = 0; j < pattern.length; j++) {
+				if(array[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 1) {
+			System.err.println("Usage: StaticServer <web root> [port] [latency ms] [bandwidth bytes/s]");
+			System.exit(1);
+		}
+		StaticServer server = new StaticServer(new File(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+		if(args.length > 2) {
+			server.setLatencyMillis(Long.parseLong(args[2]));
+		}
+		if(args.length > 3) {
+			server.setBandwidthBytesPerSecond(Long.parseLong(args[3]));
+		}
+		server.start();
+		System.out.println("Serving " + args[0] + " on " + server.getUrl("/"));
+		try {
+			server.mThread.join();
+		} catch (InterruptedException e) {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package to.sven.applicationcache.backend.test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.backend.HashCache;
+
+public class HashCacheTest extends TestCase {
+	private File mRoot;
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = TestFiles.newDirectory();
+		mFile = new File(mRoot, "hashes");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TestFiles.delete(mRoot);
+	}
+
+	public void testSaveAndLoad() throws Exception {
+		HashCache cache = HashCache.load(mFile);
+		assertNull(cache.get("index.html", 5, 1000));
+		cache.put("index.html", 5, 1000, "abc");
+		cache.put("dir/with tab\tname.css", 7, 2000, "def");
+		cache.save(mFile, Arrays.asList("index.html", "dir/with tab\tname.css"));
+
+		HashCache loaded = HashCache.load(mFile);
+		assertEquals("abc", loaded.get("index.html", 5, 1000));
+		assertEquals("def", loaded.get("dir/with tab\tname.css", 7, 2000));
+		// Changed size or modification time:
+		assertNull(loaded.get("index.html", 6, 1000));
+		assertNull(loaded.get("index.html", 5, 1001));
+		assertFalse(new File(mFile.getPath() + ".tmp").exists());
+	}
+
+	public void testDeletedPathsAreDropped() throws Exception {
+		HashCache cache = HashCache.load(mFile);
+		cache.put("index.html", 5, 1000, "abc");
+		cache.put("deleted.html", 5, 1000, "def");
+		cache.save(mFile, Arrays.asList("index.html"));
+
+		HashCache loaded = HashCache.load(mFile);
+		assertEquals("abc", loaded.get("index.html", 5, 1000));
+		assertNull(loaded.get("deleted.html", 5, 1000));
+	}
+
+	public void testMalformedLinesAreSkipped() throws Exception {
+		TestFiles.write(mRoot, "hashes", "5\t1000\tabc\tindex.html\nbroken line\nx\t1000\tdef\tapp.js\n");
+		HashCache loaded = HashCache.load(mFile);
+		assertEquals("abc", loaded.get("index.html", 5, 1000));
+		assertNull(loaded.get("app.js", 5, 1000));
+	}
+}
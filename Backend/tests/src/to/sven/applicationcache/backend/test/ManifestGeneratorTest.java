@@ -0,0 +1,129 @@
+package to.sven.applicationcache.backend.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.CacheManifest;
+import to.sven.applicationcache.backend.HashCache;
+import to.sven.applicationcache.backend.ManifestGenerator;
+
+public class ManifestGeneratorTest extends TestCase {
+	private static final String MANIFEST_URL = "http://sven.to/manifest.appcache";
+
+	private File mRoot;
+	private ForkJoinPool mPool;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = TestFiles.newDirectory();
+		mPool = new ForkJoinPool(2);
+		TestFiles.write(mRoot, "index.html", "<html></html>");
+		TestFiles.write(mRoot, "css/style.css", "body {}");
+		TestFiles.write(mRoot, ".hidden", "skipped");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mPool.shutdown();
+		TestFiles.delete(mRoot);
+	}
+
+	public void testDigestComments() throws Exception {
+		ManifestGenerator generator = new ManifestGenerator(mRoot, MANIFEST_URL, mPool);
+		generator.write();
+		String manifest = read(new File(mRoot, "manifest.appcache"));
+		String[] lines = manifest.split("\n");
+		assertEquals(6, lines.length);
+		assertEquals("CACHE MANIFEST", lines[0]);
+		assertTrue(lines[1], lines[1].matches("# version [0-9a-f]{64}"));
+		assertEquals("# SHA-256:" + sha256("body {}") + " size=7", lines[2]);
+		assertEquals("css/style.css", lines[3]);
+		assertEquals("# SHA-256:" + sha256("<html></html>") + " size=13", lines[4]);
+		assertEquals("index.html", lines[5]);
+		assertEquals(2, generator.getHashedCount());
+		assertEquals(0, generator.getReusedCount());
+
+		// Clients read the sizes back as progress hints:
+		CacheManifest parsed = CacheManifest.parse(MANIFEST_URL, new ByteArrayInputStream(manifest.getBytes("UTF-8")));
+		assertEquals(2, parsed.getExplicitEntries().size());
+		assertEquals(13, parsed.getSizeHint("http://sven.to/index.html"));
+		assertEquals(7, parsed.getSizeHint("http://sven.to/css/style.css"));
+
+		// The manifest doesn't list itself on the next run:
+		generator.write();
+		assertEquals(manifest, read(new File(mRoot, "manifest.appcache")));
+	}
+
+	public void testUnchangedFiles() throws Exception {
+		String first = new ManifestGenerator(mRoot, MANIFEST_URL, mPool).generate().toString();
+		ManifestGenerator generator = new ManifestGenerator(mRoot, MANIFEST_URL, mPool);
+		assertEquals(first, generator.generate().toString());
+		assertEquals(0, generator.getHashedCount());
+		assertEquals(2, generator.getReusedCount());
+	}
+
+	public void testChangedFile() throws Exception {
+		String first = new ManifestGenerator(mRoot, MANIFEST_URL, mPool).generate().toString();
+		File style = TestFiles.write(mRoot, "css/style.css", "body {color: red}");
+		style.setLastModified(style.lastModified() + 2000);
+
+		ManifestGenerator generator = new ManifestGenerator(mRoot, MANIFEST_URL, mPool);
+		CacheManifest manifest = generator.generate();
+		assertEquals(1, generator.getHashedCount());
+		assertEquals(1, generator.getReusedCount());
+		assertFalse(first.equals(manifest.toString()));
+		assertTrue(manifest.toString().contains("# SHA-256:" + sha256("body {color: red}") + " size=17\n"));
+		assertFalse(version(first).equals(version(manifest.toString())));
+	}
+
+	public void testDeletedFile() throws Exception {
+		String first = new ManifestGenerator(mRoot, MANIFEST_URL, mPool).generate().toString();
+		assertTrue(new File(mRoot, "css/style.css").delete());
+
+		ManifestGenerator generator = new ManifestGenerator(mRoot, MANIFEST_URL, mPool);
+		CacheManifest manifest = generator.generate();
+		assertEquals(0, generator.getHashedCount());
+		assertEquals(1, generator.getReusedCount());
+		assertEquals(1, manifest.getExplicitEntries().size());
+		assertFalse(version(first).equals(version(manifest.toString())));
+		// The hash cache forgets the deleted file:
+		HashCache hashCache = HashCache.load(new File(mRoot, ManifestGenerator.HASH_CACHE_NAME));
+		assertNull(hashCache.get("css/style.css", 7, new File(mRoot, "index.html").lastModified()));
+		assertFalse(read(new File(mRoot, ManifestGenerator.HASH_CACHE_NAME)).contains("css/style.css"));
+	}
+
+	private static String version(String manifest) {
+		return manifest.split("\n")[1];
+	}
+
+	private static String sha256(String content) throws Exception {
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes("UTF-8"));
+		StringBuilder builder = new StringBuilder();
+		for(byte b : digest) {
+			builder.append(String.format("%02x", b & 0xff));
+		}
+		return builder.toString();
+	}
+
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int offset = 0;
+			int count;
+			while(offset < data.length && (count = in.read(data, offset, data.length - offset)) != -1) {
+				offset += count;
+			}
+			return new String(data, 0, offset, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
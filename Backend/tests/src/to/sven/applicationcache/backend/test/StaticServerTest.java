@@ -0,0 +1,189 @@
+package to.sven.applicationcache.backend.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.CacheBundleReader;
+import to.sven.applicationcache.backend.BundleServer;
+import to.sven.applicationcache.backend.StaticServer;
+
+public class StaticServerTest extends TestCase {
+	private File mRoot;
+	private StaticServer mServer;
+	private String mScript;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = TestFiles.newDirectory();
+		StringBuilder script = new StringBuilder();
+		for(int i = 0; i < 1000; i++) {
+			script.append("var a").append(i).append(";\n");
+		}
+		mScript = script.toString();
+		TestFiles.write(mRoot, "index.html", "<html></html>");
+		TestFiles.write(mRoot, "app.js", mScript);
+		mServer = new StaticServer(mRoot, 0);
+		mServer.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		TestFiles.delete(mRoot);
+	}
+
+	public void testConditionalRequests() throws IOException {
+		HttpURLConnection connection = open("/index.html");
+		assertEquals(200, connection.getResponseCode());
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		assertNotNull(etag);
+		assertEquals("max-age=60", connection.getHeaderField("Cache-Control"));
+		assertEquals("<html></html>", read(connection.getInputStream()));
+
+		connection = open("/index.html");
+		connection.setRequestProperty("If-None-Match", etag);
+		assertEquals(304, connection.getResponseCode());
+		assertEquals(etag, connection.getHeaderField("ETag"));
+		connection.disconnect();
+
+		connection = open("/index.html");
+		connection.setRequestProperty("If-Modified-Since", lastModified);
+		assertEquals(304, connection.getResponseCode());
+		connection.disconnect();
+
+		connection = open("/index.html");
+		connection.setRequestProperty("If-None-Match", "\"other\"");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("<html></html>", read(connection.getInputStream()));
+		assertEquals(2, mServer.getNotModifiedCount());
+
+		assertEquals(404, open("/missing.html").getResponseCode());
+	}
+
+	public void testGzip() throws IOException {
+		HttpURLConnection connection = open("/app.js");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+		assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+		String gzipEtag = connection.getHeaderField("ETag");
+		assertTrue(gzipEtag, gzipEtag.endsWith("-gz\""));
+		assertTrue(connection.getContentLength() < mScript.length());
+		assertEquals(mScript, read(new GZIPInputStream(connection.getInputStream())));
+
+		// The gzip ETag validates too:
+		connection = open("/app.js");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		connection.setRequestProperty("If-None-Match", gzipEtag);
+		assertEquals(304, connection.getResponseCode());
+		connection.disconnect();
+
+		connection = open("/app.js");
+		assertEquals(200, connection.getResponseCode());
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		assertEquals(mScript, read(connection.getInputStream()));
+	}
+
+	public void testRange() throws IOException {
+		HttpURLConnection connection = open("/index.html");
+		connection.setRequestProperty("Range", "bytes=6-11");
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("bytes 6-11/13", connection.getHeaderField("Content-Range"));
+		assertEquals("</html", read(connection.getInputStream()));
+
+		connection = open("/index.html");
+		connection.setRequestProperty("Range", "bytes=-7");
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("</html>", read(connection.getInputStream()));
+
+		// No gzip for ranges, the offsets are of the identity encoding:
+		connection = open("/app.js");
+		connection.setRequestProperty("Accept-Encoding", "gzip");
+		connection.setRequestProperty("Range", "bytes=0-5");
+		assertEquals(206, connection.getResponseCode());
+		assertNull(connection.getHeaderField("Content-Encoding"));
+		assertEquals("var a0", read(connection.getInputStream()));
+
+		connection = open("/index.html");
+		connection.setRequestProperty("Range", "bytes=13-");
+		assertEquals(416, connection.getResponseCode());
+		assertEquals("bytes */13", connection.getHeaderField("Content-Range"));
+		connection.disconnect();
+	}
+
+	public void testLatencyAndBandwidth() throws IOException {
+		mServer.setLatencyMillis(200);
+		long start = System.nanoTime();
+		HttpURLConnection connection = open("/index.html");
+		assertEquals("<html></html>", read(connection.getInputStream()));
+		assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+
+		mServer.setLatencyMillis(0);
+		mServer.setBandwidthBytesPerSecond(20000);
+		start = System.nanoTime();
+		connection = open("/app.js");
+		assertEquals(mScript, read(connection.getInputStream()));
+		// At least the body at 20000 bytes/s, minus the burst of 10 ms:
+		assertTrue((System.nanoTime() - start) / 1000000 >= mScript.length() / 20 - 10);
+	}
+
+	public void testBundle() throws IOException {
+		HttpURLConnection connection = open(BundleServer.BUNDLE_PATH);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		OutputStream out = connection.getOutputStream();
+		out.write((mServer.getUrl("/index.html") + "\n/missing.html\n\n/app.js\n").getBytes("UTF-8"));
+		out.close();
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(CacheBundleReader.CONTENT_TYPE, connection.getContentType());
+		// The length of the streamed bundle is known up front:
+		assertTrue(connection.getContentLength() > 13 + mScript.length());
+
+		InputStream in = connection.getInputStream();
+		try {
+			CacheBundleReader reader = new CacheBundleReader(in);
+			assertTrue(reader.next());
+			assertEquals(mServer.getUrl("/index.html"), reader.url());
+			assertEquals(200, reader.statusCode());
+			assertNotNull(reader.headers().get("ETag"));
+			assertEquals("<html></html>", read(reader.body()));
+			// Missing files are left out:
+			assertTrue(reader.next());
+			assertEquals("/app.js", reader.url());
+			assertEquals(mScript.length(), reader.bodyLength());
+			assertEquals(mScript, read(reader.body()));
+			assertFalse(reader.next());
+		} finally {
+			in.close();
+		}
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(mServer.getUrl(path)).openConnection();
+		connection.setUseCaches(false);
+		return connection;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package to.sven.applicationcache.backend.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Temporary web roots for the backend tests.
+ */
+class TestFiles {
+
+	static File newDirectory() throws IOException {
+		File directory = File.createTempFile("backend", "");
+		directory.delete();
+		if(!directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		return directory;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	static File write(File root, String path, String content) throws IOException {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
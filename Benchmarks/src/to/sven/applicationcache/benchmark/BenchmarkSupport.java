@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import to.sven.applicationcache.StoreEntry;
+
+/**
+ * Generated manifests, bodies and scratch directories for the benchmarks.
+ */
+final class BenchmarkSupport {
+	static final String MANIFEST_URL = "http://bench.sven.to/app/manifest.appcache";
+
+	private BenchmarkSupport() {
+	}
+
+	/**
+	 * @return The URL of the master entry {@code i} of {@link #manifest(int)}.
+	 */
+	static String entryUrl(int i) {
+		return "http://bench.sven.to/app/static/" + (i % 64) + "/file" + i + ".js";
+	}
+
+	/**
+	 * Generates a manifest with {@code entries} explicit entries, some fallbacks and a network section.
+	 */
+	static String manifest(int entries) {
+		StringBuilder builder = new StringBuilder(entries * 40);
+		builder.append("CACHE MANIFEST\n# v1\n\nCACHE:\n");
+		for(int i = 0; i < entries; i++) {
+			builder.append("static/").append(i % 64).append("/file").append(i).append(".js\n");
+		}
+		builder.append("\nFALLBACK:\n");
+		for(int i = 0; i < 16; i++) {
+			builder.append("/app/page").append(i).append("/ /app/offline").append(i).append(".html\n");
+		}
+		builder.append("\nNETWORK:\n/api/\n*\n");
+		return builder.toString();
+	}
+
+	static byte[] body(int size) {
+		byte[] body = new byte[size];
+		new Random(size).nextBytes(body);
+		return body;
+	}
+
+	static StoreEntry entry(byte[] data) {
+		StoreEntry entry = new StoreEntry();
+		entry.data = data;
+		entry.etag = "\"" + Integer.toHexString(data.length) + "\"";
+		entry.serverDate = System.currentTimeMillis();
+		entry.ttl = entry.serverDate + 3600 * 1000;
+		entry.softTtl = entry.ttl;
+		return entry;
+	}
+
+	static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		return dir;
+	}
+
+	static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.CompressionPolicy;
+import to.sven.applicationcache.StoreEntry;
+
+/**
+ * Disk footprint versus read and write latency of the compression codecs.
+ * The footprint of the stored entry is printed at the end of every trial
+ * ({@code footprint: ...} in the output of the fork).
+ * 
+ * {@code text} is generated JavaScript, {@code binary} random bytes declared
+ * as {@code image/png}, which the policy stores uncompressed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+	private static final String KEY = "http://bench.sven.to/app/static/body.js";
+	private static final String PUT_KEY = "http://bench.sven.to/app/static/put.js";
+
+	private static final String[] TOKENS = {
+		"function", "var", "return", "if", "else", "for", "this", "null", "true", "false",
+		"document", "window", "length", "push", "apply", "prototype", "callback", "options",
+		"(", ")", "{", "}", ";", "=", "+", ".", ",", "===", "\n", "\n\t", "0", "1"
+	};
+
+	@Param({"none", "deflate-1", "deflate-6", "deflate-9"})
+	public String codec;
+
+	@Param({"text", "binary"})
+	public String content;
+
+	@Param({"65536"})
+	public int bodySize;
+
+	private File mRoot;
+	private AppCacheStore mStore;
+	private StoreEntry mEntry;
+	private byte[] mBuffer = new byte[8 * 1024];
+
+	@Setup
+	public void setUp() throws IOException {
+		mRoot = BenchmarkSupport.createTempDir("compressionbench");
+		mStore = new AppCacheStore(mRoot, Integer.MAX_VALUE, BenchmarkSupport.MANIFEST_URL, Clock.SYSTEM);
+		mStore.initialize();
+		mStore.setCompressionPolicy(policy(codec));
+		boolean text = "text".equals(content);
+		mEntry = BenchmarkSupport.entry(text ? script(bodySize) : BenchmarkSupport.body(bodySize));
+		mEntry.responseHeaders = Collections.singletonMap("Content-Type", text ? "application/javascript" : "image/png");
+		mStore.put(KEY, mEntry);
+	}
+
+	@TearDown
+	public void tearDown() {
+		long diskBytes = mStore.getFileForKey(KEY).length();
+		System.out.println(String.format(Locale.US, "footprint: codec %s, content %s, body %d B, file %d B (%.1f%%)",
+				codec, content, mEntry.data.length, diskBytes, diskBytes * 100.0 / mEntry.data.length));
+		BenchmarkSupport.deleteRecursively(mRoot);
+	}
+
+	@Benchmark
+	public StoreEntry get() {
+		return mStore.get(KEY);
+	}
+
+	@Benchmark
+	public long getStream() throws IOException {
+		InputStream in = mStore.getStream(KEY);
+		long total = 0;
+		try {
+			int count;
+			while((count = in.read(mBuffer)) != -1) {
+				total += count;
+			}
+		} finally {
+			in.close();
+		}
+		return total;
+	}
+
+	@Benchmark
+	public void put() {
+		mStore.put(PUT_KEY, mEntry);
+	}
+
+	private static CompressionPolicy policy(String codec) {
+		if("none".equals(codec)) {
+			return CompressionPolicy.NONE;
+		}
+		if(codec.startsWith("deflate-")) {
+			return CompressionPolicy.deflate(Integer.parseInt(codec.substring("deflate-".length())));
+		}
+		throw new IllegalArgumentException("Unknown codec " + codec);
+	}
+
+	/**
+	 * Generates JavaScript-like text of {@code size} bytes.
+	 */
+	static byte[] script(int size) {
+		Random random = new Random(size);
+		StringBuilder builder = new StringBuilder(size + 16);
+		while(builder.length() < size) {
+			String token = TOKENS[random.nextInt(TOKENS.length)];
+			builder.append(token);
+			if(Character.isLetter(token.charAt(0))) {
+				builder.append(random.nextInt(4) == 0 ? Integer.toString(random.nextInt(100)) : "").append(' ');
+			}
+		}
+		builder.setLength(size);
+		try {
+			return builder.toString().getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
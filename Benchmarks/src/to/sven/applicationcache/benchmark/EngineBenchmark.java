@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.FileStorageEngine;
+import to.sven.applicationcache.LogStorageEngine;
+import to.sven.applicationcache.StorageEngine;
+import to.sven.applicationcache.StoreEntry;
+
+/**
+ * The storage engines under a small object workload: A store of 1000 small entries,
+ * which are read and overwritten round robin, and the startup of the store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EngineBenchmark {
+	private static final int ENTRIES = 1000;
+
+	@Param({"file", "log"})
+	public String engine;
+
+	@Param({"512", "4096"})
+	public int bodySize;
+
+	private File mRoot;
+	private StorageEngine mEngine;
+	private AppCacheStore mStore;
+	private StoreEntry mEntry;
+	private int mNext;
+
+	@Setup
+	public void setUp() throws IOException {
+		mRoot = BenchmarkSupport.createTempDir("enginebench");
+		mEntry = BenchmarkSupport.entry(BenchmarkSupport.body(bodySize));
+		mStore = open();
+		for(int i = 0; i < ENTRIES; i++) {
+			mStore.put(BenchmarkSupport.entryUrl(i), mEntry);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		close();
+		File[] files = mRoot.listFiles();
+		long bytes = 0;
+		for(File file : files) {
+			bytes += file.length();
+		}
+		System.out.println("footprint: engine=" + engine + " bodySize=" + bodySize
+				+ " files=" + files.length + " bytes=" + bytes);
+		BenchmarkSupport.deleteRecursively(mRoot);
+	}
+
+	private AppCacheStore open() {
+		close();
+		mEngine = engine.equals("log") ? new LogStorageEngine(mRoot) : new FileStorageEngine(mRoot);
+		AppCacheStore store = new AppCacheStore(mEngine, Integer.MAX_VALUE, BenchmarkSupport.MANIFEST_URL, Clock.SYSTEM);
+		store.initialize();
+		return store;
+	}
+
+	private void close() {
+		if(mEngine instanceof LogStorageEngine) {
+			((LogStorageEngine) mEngine).close();
+		}
+	}
+
+	private String nextKey() {
+		mNext = (mNext + 1) % ENTRIES;
+		return BenchmarkSupport.entryUrl(mNext);
+	}
+
+	@Benchmark
+	public StoreEntry get() {
+		return mStore.get(nextKey());
+	}
+
+	@Benchmark
+	public void put() {
+		mStore.put(nextKey(), mEntry);
+	}
+
+	@Benchmark
+	public long putStream() throws IOException {
+		return mStore.putStream(nextKey(), BenchmarkSupport.entry(new byte[0]), new ByteArrayInputStream(mEntry.data));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public AppCacheStore initialize() {
+		mStore = open();
+		return mStore;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.FileStorageEngine;
+import to.sven.applicationcache.LogStorageEngine;
+import to.sven.applicationcache.StorageEngine;
+import to.sven.applicationcache.StoreEntry;
+
+/**
+ * Measures the heap an initialized {@link AppCacheStore} keeps per entry: Fills a store
+ * with small entries that have typical response headers, initializes a new store on it
+ * and reports the retained heap after a full GC.
+ * 
+ * Usage: {@code IndexFootprint [entries] [engine]}, the engine is {@code file} or {@code log}.
+ * Defaults: 100000 entries, file.
+ */
+public class IndexFootprint {
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		String engine = args.length > 1 ? args[1] : "file";
+		File root = BenchmarkSupport.createTempDir("footprint");
+		try {
+			AppCacheStore store = open(root, engine);
+			byte[] body = BenchmarkSupport.body(64);
+			for(int i = 0; i < entries; i++) {
+				store.put(BenchmarkSupport.entryUrl(i), entry(body, i));
+			}
+			close(store);
+			store = null;
+
+			long before = usedHeap();
+			store = open(root, engine);
+			long after = usedHeap();
+			System.out.println(String.format(Locale.US, "entries=%d engine=%s heap=%d bytes (%.1f bytes/entry)",
+					entries, engine, after - before, (double) (after - before) / entries));
+			close(store);
+		} finally {
+			BenchmarkSupport.deleteRecursively(root);
+		}
+	}
+
+	private static AppCacheStore open(File root, String engine) {
+		StorageEngine storageEngine = engine.equals("log") ? new LogStorageEngine(root) : new FileStorageEngine(root);
+		AppCacheStore store = new AppCacheStore(storageEngine, Integer.MAX_VALUE, BenchmarkSupport.MANIFEST_URL, Clock.SYSTEM);
+		store.initialize();
+		return store;
+	}
+
+	private static void close(AppCacheStore store) {
+		if(store.getStorageEngine() instanceof LogStorageEngine) {
+			((LogStorageEngine) store.getStorageEngine()).close();
+		}
+	}
+
+	private static StoreEntry entry(byte[] body, int i) {
+		StoreEntry entry = BenchmarkSupport.entry(body);
+		entry.etag = "\"" + Integer.toHexString(i * 31) + "-" + Integer.toHexString(body.length) + "\"";
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Content-Type", "application/javascript");
+		headers.put("Content-Length", String.valueOf(body.length));
+		headers.put("Cache-Control", "max-age=3600");
+		headers.put("ETag", entry.etag);
+		headers.put("Last-Modified", "Tue, 15 Oct 2013 " + (i % 24) + ":" + (i % 60) + ":" + (i / 60 % 60) + " GMT");
+		headers.put("Date", "Wed, 16 Oct 2013 12:00:00 GMT");
+		headers.put("Server", "nginx");
+		entry.responseHeaders = headers;
+		return entry;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for(int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+}
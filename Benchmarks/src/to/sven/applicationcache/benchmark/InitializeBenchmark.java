@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheManifest;
+import to.sven.applicationcache.Clock;
+
+/**
+ * Startup costs on a pre-populated cache directory: {@link AppCacheStore#initialize()}
+ * and marking all master entries after a manifest change.
+ * {@code threads} is the number of threads initialize() scans with, 1 scans sequentially.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InitializeBenchmark {
+	private static final int BODY_SIZE = 2 * 1024;
+
+	@Param({"100", "1000", "10000"})
+	public int entries;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private File mRoot;
+	private CacheManifest mManifest;
+	private AppCacheStore mStore;
+
+	@Setup
+	public void setUp() throws IOException, URISyntaxException {
+		mRoot = BenchmarkSupport.createTempDir("initbench");
+		String manifest = BenchmarkSupport.manifest(entries);
+		mManifest = CacheManifest.parse(BenchmarkSupport.MANIFEST_URL,
+				new ByteArrayInputStream(manifest.getBytes("UTF-8")));
+		AppCacheStore store = newStore();
+		store.put(BenchmarkSupport.MANIFEST_URL, BenchmarkSupport.entry(manifest.getBytes("UTF-8")));
+		store.setCacheManifest(mManifest);
+		byte[] body = BenchmarkSupport.body(BODY_SIZE);
+		for(int i = 0; i < entries; i++) {
+			store.put(BenchmarkSupport.entryUrl(i), BenchmarkSupport.entry(body));
+		}
+		mStore = newStore();
+		mStore.initialize();
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkSupport.deleteRecursively(mRoot);
+	}
+
+	private AppCacheStore newStore() {
+		AppCacheStore store = new AppCacheStore(mRoot, Integer.MAX_VALUE, BenchmarkSupport.MANIFEST_URL, Clock.SYSTEM);
+		store.setScanThreads(threads);
+		store.initialize();
+		return store;
+	}
+
+	@Benchmark
+	public AppCacheStore initialize() {
+		return newStore();
+	}
+
+	@Benchmark
+	public void markPendingMasterEntries() {
+		mStore.setCacheManifest(mManifest);
+		mStore.markPendingMasterEntries();
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import to.sven.applicationcache.CacheManifest;
+
+/**
+ * Parsing, serializing and lookups of generated manifests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ManifestBenchmark {
+
+	@Param({"100", "1000", "10000", "50000"})
+	public int entries;
+
+	private byte[] mManifestBytes;
+	private CacheManifest mManifest;
+	private String mHitUrl;
+	private String mMissUrl;
+
+	@Setup
+	public void setUp() throws IOException, URISyntaxException {
+		mManifestBytes = BenchmarkSupport.manifest(entries).getBytes("UTF-8");
+		mManifest = parse();
+		mHitUrl = BenchmarkSupport.entryUrl(entries / 2);
+		mMissUrl = BenchmarkSupport.entryUrl(entries + 1);
+	}
+
+	private CacheManifest parse() throws IOException, URISyntaxException {
+		return CacheManifest.parse(BenchmarkSupport.MANIFEST_URL, new ByteArrayInputStream(mManifestBytes));
+	}
+
+	@Benchmark
+	public CacheManifest parseManifest() throws IOException, URISyntaxException {
+		return parse();
+	}
+
+	@Benchmark
+	public String manifestToString() {
+		return mManifest.toString();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public boolean isMasterEntryHit() {
+		return mManifest.isMasterEntry(mHitUrl);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public boolean isMasterEntryMiss() {
+		return mManifest.isMasterEntry(mMissUrl);
+	}
+}
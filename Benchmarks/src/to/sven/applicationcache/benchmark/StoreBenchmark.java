@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.StoreEntry;
+
+/**
+ * Reads and writes of single entries across body sizes.
+ * {@code AppCacheDiskBasedCache} only converts the entries and delegates to the
+ * {@link AppCacheStore}, so the store is measured directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StoreBenchmark {
+	private static final String KEY = "http://bench.sven.to/app/static/body.bin";
+	private static final String PUT_KEY = "http://bench.sven.to/app/static/put.bin";
+
+	@Param({"1024", "65536", "1048576"})
+	public int bodySize;
+
+	private File mRoot;
+	private AppCacheStore mStore;
+	private StoreEntry mEntry;
+	private byte[] mBuffer = new byte[8 * 1024];
+
+	@Setup
+	public void setUp() throws IOException {
+		mRoot = BenchmarkSupport.createTempDir("storebench");
+		mStore = new AppCacheStore(mRoot, Integer.MAX_VALUE, BenchmarkSupport.MANIFEST_URL, Clock.SYSTEM);
+		mStore.initialize();
+		mEntry = BenchmarkSupport.entry(BenchmarkSupport.body(bodySize));
+		mStore.put(KEY, mEntry);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkSupport.deleteRecursively(mRoot);
+	}
+
+	@Benchmark
+	public StoreEntry get() {
+		return mStore.get(KEY);
+	}
+
+	@Benchmark
+	public long getStream() throws IOException {
+		InputStream in = mStore.getStream(KEY);
+		long total = 0;
+		try {
+			int count;
+			while((count = in.read(mBuffer)) != -1) {
+				total += count;
+			}
+		} finally {
+			in.close();
+		}
+		return total;
+	}
+
+	@Benchmark
+	public void put() {
+		mStore.put(PUT_KEY, mEntry);
+	}
+
+	@Benchmark
+	public long putStream() throws IOException {
+		return mStore.putStream(PUT_KEY, BenchmarkSupport.entry(new byte[0]), new ByteArrayInputStream(mEntry.data));
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.ApplicationCacheUpdater;
+import to.sven.applicationcache.ChromeTraceWriter;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.DownloadProgress;
+import to.sven.applicationcache.ProgressDeliveryPolicy;
+import to.sven.applicationcache.RequestTracer;
+import to.sven.applicationcache.UpdateStateMachine;
+import to.sven.applicationcache.UrlConnectionTransport;
+import to.sven.applicationcache.backend.ManifestGenerator;
+import to.sven.applicationcache.backend.StaticServer;
+
+/**
+ * End-to-end soak test of the update pipeline: Generates a synthetic site, serves it
+ * with a {@link StaticServer} and runs repeated update cycles with an
+ * {@link ApplicationCacheUpdater}. Before every cycle a fraction of the files is
+ * changed and the manifest is regenerated with the {@link ManifestGenerator}.
+ * 
+ * Reports per cycle and as percentiles over all update cycles: time from
+ * {@code STATUS_CHECKING} to {@code onUpdateReady}, requests, 304s, bytes sent by
+ * the server, bytes written to the store, bytes written by the process (from
+ * {@code /proc/self/io}, Linux only) and peak heap.
+ * 
+ * The Volley requests ({@code CacheManifestRequest}, {@code CacheOnlyReqeuest}) need
+ * an Android runtime; the updater does the same conditional requests and streams the
+ * bodies into the same {@link AppCacheStore}.
+ * 
+ * Usage: {@code UpdateSoak [entries] [mean size] [changed fraction] [cycles] [threads] [latency ms] [json file] [trace file]}
+ * The optional trace file gets the stages of every request in the format of {@code chrome://tracing}.
+ * Defaults: 1000 entries with a mean of 8192 bytes (log-normal), 10% changed, 20 cycles,
+ * 4 threads (like Volley's network dispatchers), no latency.
+ */
+public class UpdateSoak {
+	private static final String MANIFEST_PATH = "/manifest.appcache";
+
+	private final File mWebRoot;
+	private final File mCacheDir;
+	private final int mEntries;
+	private final int mMeanSize;
+	private final Random mRandom = new Random(42);
+	private final ManifestGenerator mGenerator;
+	private final StaticServer mServer;
+	/** Modification time of the files of the current cycle, one second later every cycle. */
+	private final long mStartSeconds = System.currentTimeMillis() / 1000;
+
+	private UpdateSoak(File webRoot, File cacheDir, int entries, int meanSize, long latencyMillis) throws Exception {
+		mWebRoot = webRoot;
+		mCacheDir = cacheDir;
+		mEntries = entries;
+		mMeanSize = meanSize;
+		mServer = new StaticServer(webRoot, 0);
+		mServer.setLatencyMillis(latencyMillis);
+		mGenerator = new ManifestGenerator(webRoot, mServer.getUrl(MANIFEST_PATH), new ForkJoinPool());
+	}
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int meanSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+		double changed = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+		int cycles = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+		long latencyMillis = args.length > 5 ? Long.parseLong(args[5]) : 0;
+		File jsonFile = args.length > 6 && !args[6].isEmpty() ? new File(args[6]) : null;
+		File traceFile = args.length > 7 ? new File(args[7]) : null;
+
+		File webRoot = BenchmarkSupport.createTempDir("soak-site");
+		File cacheDir = BenchmarkSupport.createTempDir("soak-cache");
+		UpdateSoak soak = new UpdateSoak(webRoot, cacheDir, entries, meanSize, latencyMillis);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ChromeTraceWriter tracer = traceFile != null ? new ChromeTraceWriter(traceFile) : null;
+		try {
+			System.out.println(String.format(Locale.US,
+					"%d entries, mean %d bytes, %.0f%% changed per cycle, %d cycles, %d threads, %d ms latency",
+					entries, meanSize, changed * 100, cycles, threads, latencyMillis));
+			List<Cycle> results = soak.run(executor, tracer, changed, cycles);
+			printSummary(results);
+			if(jsonFile != null) {
+				writeJson(jsonFile, entries, meanSize, changed, threads, latencyMillis, results);
+			}
+		} finally {
+			executor.shutdown();
+			if(tracer != null) {
+				tracer.close();
+			}
+			soak.mServer.stop();
+			BenchmarkSupport.deleteRecursively(webRoot);
+			BenchmarkSupport.deleteRecursively(cacheDir);
+		}
+	}
+
+	/**
+	 * Runs the initial download (cycle 0) and {@code cycles} update cycles.
+	 */
+	private List<Cycle> run(ExecutorService executor, RequestTracer tracer, double changed, int cycles)
+			throws Exception {
+		for(int i = 0; i < mEntries; i++) {
+			writeFile(i, 0);
+		}
+		writeManifest(0);
+		mServer.start();
+
+		String manifestURL = mServer.getUrl(MANIFEST_PATH);
+		AppCacheStore store = new AppCacheStore(mCacheDir, Integer.MAX_VALUE, manifestURL, Clock.SYSTEM);
+		store.initialize();
+		ApplicationCacheUpdater updater = new ApplicationCacheUpdater(manifestURL, store,
+				new UrlConnectionTransport(30000), executor, Clock.SYSTEM);
+		updater.setProgressDeliveryPolicy(ProgressDeliveryPolicy.batched(Integer.MAX_VALUE));
+		updater.setRequestTracer(tracer);
+		CycleListener listener = new CycleListener();
+		updater.setUpdateListener(listener);
+
+		List<Cycle> results = new ArrayList<Cycle>();
+		System.out.println("cycle   status        ms  requests    304s      sent B    stored B   written B   peak heap B");
+		for(int cycle = 0; cycle <= cycles; cycle++) {
+			if(cycle > 0) {
+				int count = (int) Math.round(mEntries * changed);
+				for(int i = 0; i < count; i++) {
+					writeFile(mRandom.nextInt(mEntries), cycle);
+				}
+				writeManifest(cycle);
+			}
+			Cycle result = runCycle(cycle, updater, listener);
+			results.add(result);
+			System.out.println(result);
+			if(updater.getStatus() == UpdateStateMachine.STATUS_UPDATEREADY) {
+				updater.swapCache();
+			}
+		}
+		System.out.println(store.getStats());
+		return results;
+	}
+
+	private Cycle runCycle(int cycle, ApplicationCacheUpdater updater, CycleListener listener)
+			throws InterruptedException {
+		long requests = mServer.getRequestCount();
+		long notModified = mServer.getNotModifiedCount();
+		long sent = mServer.getBytesSent();
+		long written = processWriteBytes();
+		List<MemoryPoolMXBean> heapPools = heapPools();
+		for(MemoryPoolMXBean pool : heapPools) {
+			pool.resetPeakUsage();
+		}
+		listener.reset();
+
+		long start = System.nanoTime();
+		short status = updater.update(false);
+		long end = listener.updateReadyNanos != 0 ? listener.updateReadyNanos : System.nanoTime();
+
+		Cycle result = new Cycle();
+		result.cycle = cycle;
+		result.status = status;
+		result.millis = (end - start) / 1e6;
+		result.requests = mServer.getRequestCount() - requests;
+		result.notModified = mServer.getNotModifiedCount() - notModified;
+		result.bytesSent = mServer.getBytesSent() - sent;
+		result.bytesStored = listener.lastProgress != null ? listener.lastProgress.getLoadedBytes() : 0;
+		result.bytesWritten = written < 0 ? -1 : processWriteBytes() - written;
+		for(MemoryPoolMXBean pool : heapPools) {
+			result.peakHeap += pool.getPeakUsage().getUsed();
+		}
+		return result;
+	}
+
+	/**
+	 * Writes file {@code i} with a log-normal size around the mean size.
+	 * The modification time is bumped per cycle, so size and time based caches
+	 * (the ManifestGenerator's hash cache, the StaticServer's ETags) see the change.
+	 */
+	private void writeFile(int i, int cycle) throws IOException {
+		double size = mMeanSize * Math.exp(mRandom.nextGaussian() - 0.5);
+		byte[] data = new byte[(int) Math.max(64, Math.min(size, mMeanSize * 16L))];
+		mRandom.nextBytes(data);
+		File file = new File(mWebRoot, "s" + (i % 32) + "/f" + i + ".bin");
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		file.setLastModified((mStartSeconds + cycle) * 1000);
+	}
+
+	/**
+	 * Regenerates the manifest. The StaticServer's ETag is based on size and modification
+	 * time, so the time is bumped per cycle like the files.
+	 */
+	private void writeManifest(int cycle) throws Exception {
+		mGenerator.write();
+		new File(mWebRoot, MANIFEST_PATH).setLastModified((mStartSeconds + cycle) * 1000);
+	}
+
+	private static List<MemoryPoolMXBean> heapPools() {
+		List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pools.add(pool);
+			}
+		}
+		return pools;
+	}
+
+	/**
+	 * @return The bytes this process passed to write calls ({@code wchar} of {@code /proc/self/io}) or -1.
+	 */
+	private static long processWriteBytes() {
+		File io = new File("/proc/self/io");
+		if(!io.canRead()) {
+			return -1;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(io));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(line.startsWith("wchar:")) {
+						return Long.parseLong(line.substring(6).trim());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch(IOException e) {
+		} catch(NumberFormatException e) {
+		}
+		return -1;
+	}
+
+	private static void printSummary(List<Cycle> results) {
+		List<Cycle> updates = results.subList(1, results.size());
+		if(updates.isEmpty()) {
+			return;
+		}
+		double[] millis = millis(updates);
+		System.out.println(String.format(Locale.US,
+				"time to UPDATEREADY over %d update cycles: p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+				millis.length, percentile(millis, 50), percentile(millis, 90), percentile(millis, 99),
+				millis[millis.length - 1]));
+		long sent = 0;
+		long written = 0;
+		long peakHeap = 0;
+		int failed = 0;
+		for(Cycle cycle : updates) {
+			sent += cycle.bytesSent;
+			written += Math.max(0, cycle.bytesWritten);
+			peakHeap = Math.max(peakHeap, cycle.peakHeap);
+			if(cycle.status != UpdateStateMachine.STATUS_UPDATEREADY) {
+				failed++;
+			}
+		}
+		System.out.println(String.format(Locale.US,
+				"total sent %d B, written %d B, peak heap %d B, %d cycles not UPDATEREADY",
+				sent, written, peakHeap, failed));
+	}
+
+	private static double[] millis(List<Cycle> cycles) {
+		double[] millis = new double[cycles.size()];
+		for(int i = 0; i < millis.length; i++) {
+			millis[i] = cycles.get(i).millis;
+		}
+		Arrays.sort(millis);
+		return millis;
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted values.
+	 */
+	private static double percentile(double[] sorted, int percent) {
+		int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static void writeJson(File file, int entries, int meanSize, double changed, int threads,
+			long latencyMillis, List<Cycle> results) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(String.format(Locale.US,
+					"{\n  \"entries\": %d,\n  \"meanSize\": %d,\n  \"changed\": %s,\n  \"threads\": %d,\n  \"latencyMillis\": %d,\n",
+					entries, meanSize, Double.toString(changed), threads, latencyMillis));
+			List<Cycle> updates = results.subList(1, results.size());
+			if(!updates.isEmpty()) {
+				double[] millis = millis(updates);
+				out.write(String.format(Locale.US,
+						"  \"updateMillis\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f},\n",
+						percentile(millis, 50), percentile(millis, 90), percentile(millis, 99), millis[millis.length - 1]));
+			}
+			out.write("  \"cycles\": [\n");
+			for(int i = 0; i < results.size(); i++) {
+				Cycle cycle = results.get(i);
+				out.write(String.format(Locale.US,
+						"    {\"cycle\": %d, \"status\": %d, \"millis\": %.3f, \"requests\": %d, \"notModified\": %d, "
+						+ "\"bytesSent\": %d, \"bytesStored\": %d, \"bytesWritten\": %d, \"peakHeap\": %d}%s\n",
+						cycle.cycle, cycle.status, cycle.millis, cycle.requests, cycle.notModified, cycle.bytesSent,
+						cycle.bytesStored, cycle.bytesWritten, cycle.peakHeap, i + 1 < results.size() ? "," : ""));
+			}
+			out.write("  ]\n}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Measurements of one update cycle.
+	 */
+	private static class Cycle {
+		int cycle;
+		short status;
+		double millis;
+		long requests;
+		long notModified;
+		long bytesSent;
+		long bytesStored;
+		long bytesWritten;
+		long peakHeap;
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%5d %8s %9.1f %9d %7d %11d %11d %11d %13d",
+					cycle, statusName(status), millis, requests, notModified, bytesSent, bytesStored, bytesWritten, peakHeap);
+		}
+	}
+
+	private static String statusName(short status) {
+		switch(status) {
+		case UpdateStateMachine.STATUS_IDLE:
+			return "IDLE";
+		case UpdateStateMachine.STATUS_UPDATEREADY:
+			return "READY";
+		case UpdateStateMachine.STATUS_OBSOLETE:
+			return "OBSOLETE";
+		default:
+			return Short.toString(status);
+		}
+	}
+
+	private static class CycleListener implements ApplicationCacheUpdater.UpdateListener {
+		volatile long updateReadyNanos;
+		volatile DownloadProgress lastProgress;
+		volatile Exception lastError;
+
+		void reset() {
+			updateReadyNanos = 0;
+			lastProgress = null;
+			lastError = null;
+		}
+
+		@Override
+		public void onNoUpdate() {
+		}
+
+		@Override
+		public void onDownloading(int total) {
+		}
+
+		@Override
+		public void onProgress(DownloadProgress progress) {
+			lastProgress = progress;
+		}
+
+		@Override
+		public void onError(String url, Exception error) {
+			if(lastError == null) {
+				System.err.println(url + ": " + error);
+			}
+			lastError = error;
+		}
+
+		@Override
+		public void onUpdateReady() {
+			updateReadyNanos = System.nanoTime();
+		}
+
+		@Override
+		public void onObsolete() {
+		}
+	}
+}
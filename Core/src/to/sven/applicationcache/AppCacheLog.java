@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging of the core classes, modeled after Volley's {@code VolleyLog}.
+ * By default it logs to {@link java.util.logging}; the Android adapters replace the
+ * {@link Sink} with one that logs to {@code VolleyLog}.
+ */
+public class AppCacheLog {
+	public static boolean DEBUG = false;
+
+	/**
+	 * Receives the formatted log messages.
+	 */
+	public interface Sink {
+		void v(String message);
+		void d(String message);
+		void e(Throwable tr, String message);
+	}
+
+	private static final Logger LOGGER = Logger.getLogger("to.sven.applicationcache");
+
+	private static volatile Sink sSink = new Sink() {
+		@Override
+		public void v(String message) {
+			LOGGER.finer(message);
+		}
+
+		@Override
+		public void d(String message) {
+			LOGGER.fine(message);
+		}
+
+		@Override
+		public void e(Throwable tr, String message) {
+			LOGGER.log(Level.SEVERE, message, tr);
+		}
+	};
+
+	public static void setSink(Sink sink) {
+		if(sink == null) {
+			throw new IllegalArgumentException();
+		}
+		sSink = sink;
+	}
+
+	public static void v(String format, Object... args) {
+		if(DEBUG) {
+			sSink.v(buildMessage(format, args));
+		}
+	}
+
+	public static void d(String format, Object... args) {
+		sSink.d(buildMessage(format, args));
+	}
+
+	public static void e(String format, Object... args) {
+		sSink.e(null, buildMessage(format, args));
+	}
+
+	public static void e(Throwable tr, String format, Object... args) {
+		sSink.e(tr, buildMessage(format, args));
+	}
+
+	private static String buildMessage(String format, Object... args) {
+		return (args == null || args.length == 0) ? format : String.format(Locale.US, format, args);
+	}
+}
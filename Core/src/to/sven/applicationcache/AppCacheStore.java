@@ -0,0 +1,2077 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package to.sven.applicationcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Store that caches files directly onto the hard disk in the specified
+ * directory. The default disk usage size is 5MB, but is configurable.
+ * 
+ * This implementation has an additional handling for AppCacheEntries:
+ * - They won't be delete if cache grows to large
+ * - They never expires/needs refresh until the AppCacheManifest didn't change.
+ * 
+ * This is the pure Java part of {@code AppCacheDiskBasedCache}, it runs on any JVM.
+ * The entries are kept by a {@link StorageEngine}, by default a {@link FileStorageEngine}
+ * with one file per entry.
+ * 
+ * With {@link #setDeduplication(boolean)} bodies are stored content-addressed:
+ * Once per digest in a blob file that the entries reference, so storing a body
+ * under another key only writes the header of the entry.
+ * 
+ * Entries carry a CRC32 of their body, which is verified on reads as selected by
+ * {@link #setVerification(int, int)}. A corrupt entry is removed, so a master entry
+ * is pending again and the next update downloads it.
+ * 
+ * {@link #initialize()} reads the headers of the records on a pool of threads and
+ * doesn't lock the store meanwhile: Entries that are already loaded are served,
+ * the others are misses until the scan reaches them.
+ */
+public class AppCacheStore {
+
+    /** The entries by the hash of their key, in LRU order. */
+    private final EntryIndex mEntries = new EntryIndex();
+
+    /** Total amount of space currently used by the cache in bytes. */
+    private long mTotalSize = 0;
+
+    /** Where the entries are kept. */
+    private final StorageEngine mEngine;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** High water mark percentage for the cache */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** Current cache version */
+    private static final int CACHE_VERSION = 6;
+
+    /** Version of headers without a checksum. */
+    private static final int CACHE_VERSION_UNCHECKED = 5;
+
+    /** Version of headers without a blob, their bodies follow the header. */
+    private static final int CACHE_VERSION_INLINE = 4;
+
+    /** Version of headers without a codec, their bodies are not compressed. */
+    private static final int CACHE_VERSION_UNCOMPRESSED = 3;
+
+    /** Buffer size for streaming bodies to disk. */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+    /** Smaller bodies are stored inline, a blob file would cost more than it saves. */
+    private static final int DEDUP_MIN_SIZE = 4 * 1024;
+
+    /** The checksum of entries written without one. */
+    private static final long CHECKSUM_NONE = -1;
+
+    /** Bodies are not verified. */
+    public static final int VERIFY_NEVER = 0;
+    /** The body of an entry is verified on its first read after it was loaded or written. The default. */
+    public static final int VERIFY_FIRST_READ = 1;
+    /** Every n-th read is verified. */
+    public static final int VERIFY_SAMPLED = 2;
+    /** Every read is verified. */
+    public static final int VERIFY_ALWAYS = 3;
+
+    /** Default interval of {@link #VERIFY_SAMPLED}. */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 16;
+
+    /** Records scanned by a thread of initialize() before they are merged into the index. */
+    private static final int SCAN_BATCH_SIZE = 64;
+    
+    private CacheManifest mCacheManifest;
+    
+    private final String mCacheManifestURL;
+
+    private final Clock mClock;
+
+    private final CacheMetrics mMetrics = new CacheMetrics();
+
+    private volatile CompressionPolicy mCompressionPolicy = CompressionPolicy.NONE;
+
+    private volatile boolean mDeduplication = false;
+
+    /** The blobs of deduplicated bodies. */
+    private final BlobIndex mBlobs;
+
+    private int mVerification = VERIFY_FIRST_READ;
+    private int mSampleInterval = DEFAULT_SAMPLE_INTERVAL;
+    /** Reads counted for {@link #VERIFY_SAMPLED}. */
+    private int mReads;
+
+    private volatile CorruptionListener mCorruptionListener;
+
+    private volatile int mScanThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /** Serializes initialize() calls, the store itself isn't locked while scanning. */
+    private final Object mInitializeLock = new Object();
+
+    /** The running scan or null. */
+    private Scan mScan;
+
+    /** True, after the first scan, records that aren't indexed are orphans then. */
+    private boolean mInitialized;
+
+    /** Records written or deleted while a {@link CacheSweeper} batch runs or null. */
+    private Set<String> mSweepTouched;
+
+    /**
+     * What changed while initialize() scanned, the scanned records are older.
+     */
+    private static class Scan {
+        /** Records written or deleted since the scan started. */
+        final Set<String> touched = new HashSet<String>();
+        boolean cleared;
+        boolean manifestSet;
+    }
+
+    /**
+     * What a thread of initialize() read of a record.
+     */
+    private static class ScannedRecord {
+        final String name;
+        /** Null, if the record is corrupt. */
+        CacheHeader header;
+        long size;
+        int bodyOffset;
+        long blobSize;
+        CacheManifest manifest;
+
+        ScannedRecord(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Is told about entries that were removed, because their body didn't match its checksum.
+     */
+    public interface CorruptionListener {
+        /**
+         * Called with the store locked, keep it short.
+         * @param masterEntry True, if the entry is a master entry, the next update downloads it again.
+         */
+        void onCorrupted(String key, boolean masterEntry);
+    }
+
+    /**
+     * The body of an entry as a region of an open file, see {@link AppCacheStore#openFileRegion(String)}.
+     */
+    public static class FileRegion {
+        /** The file, it stays valid if the entry is replaced. Close it after the transfer. */
+        public final FileChannel channel;
+        /** Position of the body in the file. */
+        public final long position;
+        /** Length of the body. */
+        public final long length;
+
+        FileRegion(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructs an instance of the AppCacheStore at the specified directory.
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param cacheManifestURL The URL of the manifest.
+     * @param clock The clock for timing measurements.
+     */
+    public AppCacheStore(File rootDirectory, int maxCacheSizeInBytes, String cacheManifestURL, Clock clock) {
+        this(new FileStorageEngine(rootDirectory), maxCacheSizeInBytes, cacheManifestURL, clock);
+    }
+
+    /**
+     * Constructs an instance of the AppCacheStore on a storage engine.
+     * @param engine Keeps the entries, e.g. a {@link LogStorageEngine} for many small entries.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param cacheManifestURL The URL of the manifest.
+     * @param clock The clock for timing measurements.
+     */
+    public AppCacheStore(StorageEngine engine, int maxCacheSizeInBytes, String cacheManifestURL, Clock clock) {
+        mEngine = engine;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mCacheManifestURL = cacheManifestURL;
+        mClock = clock;
+        mBlobs = new BlobIndex(engine);
+    }
+
+    /**
+     * Constructs an instance of the AppCacheStore at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public AppCacheStore(File rootDirectory, String cacheManifestURL) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES, cacheManifestURL, Clock.SYSTEM);
+    }
+    
+    /**
+     * Sets which bodies are compressed when they are put into the store.
+     * Default is {@link CompressionPolicy#NONE}. Stored entries are read
+     * with the codec they were written with.
+     */
+    public void setCompressionPolicy(CompressionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        mCompressionPolicy = policy;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return mCompressionPolicy;
+    }
+
+    /**
+     * If enabled, bodies of at least 4KB are stored once per content (SHA-256 digest and
+     * codec) with a reference count, so the same body under multiple URLs takes its space
+     * only once. Default is disabled. Stored entries are read either way.
+     */
+    public void setDeduplication(boolean deduplication) {
+        mDeduplication = deduplication;
+    }
+
+    public boolean isDeduplication() {
+        return mDeduplication;
+    }
+
+    public StorageEngine getStorageEngine() {
+        return mEngine;
+    }
+
+    /**
+     * Sets when records are synced to the disk, see {@link StorageEngine#DURABILITY_NONE},
+     * {@link StorageEngine#DURABILITY_BATCH} and {@link StorageEngine#DURABILITY_SYNC}.
+     * With {@code DURABILITY_BATCH} the updaters call {@link #sync()} once all master entries
+     * are loaded instead of syncing every entry while it's written. With the default
+     * {@link FileStorageEngine} that is still one fsync per entry, see
+     * {@link StorageEngine#DURABILITY_BATCH}.
+     */
+    public void setDurability(int durability) {
+        mEngine.setDurability(durability);
+    }
+
+    public int getDurability() {
+        return mEngine.getDurability();
+    }
+
+    /**
+     * Syncs the records written since the last sync, see {@link StorageEngine#sync()}.
+     * Doesn't lock the store.
+     * @return False, if the records could not be synced.
+     */
+    public boolean sync() {
+        try {
+            int records = mEngine.sync();
+            if (records > 0) {
+                AppCacheLog.d("Synced %d records", records);
+            }
+            return true;
+        } catch (IOException e) {
+            AppCacheLog.e(e, "Could not sync the cache");
+            return false;
+        }
+    }
+
+    /**
+     * Sets which reads verify the body against its checksum. Entries written before
+     * checksums were added are never verified.
+     * @param verification {@link #VERIFY_NEVER}, {@link #VERIFY_FIRST_READ} (default),
+     *     {@link #VERIFY_SAMPLED} or {@link #VERIFY_ALWAYS}.
+     * @param sampleInterval For {@link #VERIFY_SAMPLED}, every {@code sampleInterval}-th read is verified.
+     */
+    public synchronized void setVerification(int verification, int sampleInterval) {
+        if (verification < VERIFY_NEVER || verification > VERIFY_ALWAYS || sampleInterval < 1) {
+            throw new IllegalArgumentException();
+        }
+        mVerification = verification;
+        mSampleInterval = sampleInterval;
+    }
+
+    public synchronized int getVerification() {
+        return mVerification;
+    }
+
+    public void setCorruptionListener(CorruptionListener listener) {
+        mCorruptionListener = listener;
+    }
+
+    /**
+     * Sets the number of threads {@link #initialize()} reads the records with.
+     * Default is the number of processors, at most 4. 1 scans on the calling thread.
+     */
+    public void setScanThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException();
+        }
+        mScanThreads = threads;
+    }
+
+    public int getScanThreads() {
+        return mScanThreads;
+    }
+
+    public synchronized boolean contains(String key) {
+    	return mEntries.find(key) != EntryIndex.NONE;
+    }
+    
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    public synchronized void clear() {
+        if (mScan != null) {
+            mScan.cleared = true;
+        }
+        mEngine.clear();
+        mEntries.clear();
+        mBlobs.clear();
+        mTotalSize = 0;
+        AppCacheLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    public synchronized StoreEntry get(String key) {
+        long startNanos = System.nanoTime();
+        int slot = mEntries.get(key);
+        // if the entry does not exist, return.
+        if (slot == EntryIndex.NONE) {
+            mMetrics.recordGet(false, false, 0, System.nanoTime() - startNanos);
+            return null;
+        }
+
+        String name = getFilenameForKey(key);
+        CountingInputStream cis = null;
+        try {
+            cis = new CountingInputStream(mEngine.read(name));
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (!header.key.equals(key)) {
+                // The record belongs to another key with the same hash.
+                mMetrics.recordGet(false, false, 0, System.nanoTime() - startNanos);
+                return null;
+            }
+            byte[] data;
+            if (header.blob == null && header.codec == CompressionPolicy.CODEC_NONE) {
+                data = streamToBytes(cis, (int) (mEngine.length(name) - cis.bytesRead));
+            } else {
+                data = streamToBytes(openBody(mEngine, header, cis));
+            }
+            if (shouldVerify(slot)) {
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+                verified(slot, crc.getValue());
+            }
+            mMetrics.recordGet(true, mEntries.isMasterEntry(slot), data.length, System.nanoTime() - startNanos);
+            return toCacheEntry(slot, header, data);
+        } catch (IOException e) {
+            AppCacheLog.d("%s: %s", name, e.toString());
+            if (e instanceof ChecksumException) {
+                corrupted(key, slot);
+            }
+            remove(key);
+            mMetrics.recordGet(false, false, 0, System.nanoTime() - startNanos);
+            return null;
+        } finally {
+            if (cis != null) {
+                try {
+                    cis.close();
+                } catch (IOException ioe) {
+                    return null;
+                }
+            }
+        }
+    }
+    
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    public synchronized InputStream getStream(String key) {
+        long startNanos = System.nanoTime();
+        int slot = mEntries.get(key);
+        // if the entry does not exist, return.
+        if (slot == EntryIndex.NONE) {
+            mMetrics.recordGet(false, false, 0, System.nanoTime() - startNanos);
+            return null;
+        }
+
+        String name = getFilenameForKey(key);
+        InputStream inputStream = null;
+        try {
+            boolean verify = shouldVerify(slot);
+            if (verify && mVerification == VERIFY_ALWAYS) {
+                // Verified before the caller reads it, a stream can't be taken back.
+                CheckedInputStream checked = new CheckedInputStream(openBody(slot, name), new CRC32());
+                drain(checked);
+                verified(slot, checked.getChecksum().getValue());
+            }
+            inputStream = openBody(slot, name);
+            if (verify && mVerification != VERIFY_ALWAYS) {
+                // Verified while the caller reads it, without reading the body twice.
+                inputStream = new VerifyingInputStream(inputStream, key, mEntries.getChecksum(slot));
+            }
+            // The body is read by the caller, count the file size.
+            mMetrics.recordGet(true, mEntries.isMasterEntry(slot), mEntries.getSize(slot),
+                    System.nanoTime() - startNanos);
+            return inputStream;
+        } catch (IOException e) {
+            AppCacheLog.d("%s: %s", name, e.toString());
+            if (e instanceof ChecksumException) {
+                corrupted(key, slot);
+            }
+            remove(key);
+            mMetrics.recordGet(false, false, 0, System.nanoTime() - startNanos);
+            if(inputStream != null) {
+	            try {
+	            	inputStream.close();
+	            } catch (IOException ioe) {
+	                return null;
+	            }
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Opens the file the body of an entry is stored in, so it can be sent with
+     * {@link FileChannel#transferTo} without copying it through the heap.
+     * @return The region of the body or null, if the entry isn't cached, its body isn't
+     * stored uncompressed in a file of a {@link FileStorageEngine} or this read has to be
+     * verified by reading it. Use {@link #getStream(String)} then, it verifies while it's read.
+     */
+    public synchronized FileRegion openFileRegion(String key) {
+        long startNanos = System.nanoTime();
+        int slot = mEntries.get(key);
+        if (slot == EntryIndex.NONE || !(mEngine instanceof FileStorageEngine)
+                || mEntries.getCodec(slot) != CompressionPolicy.CODEC_NONE) {
+            return null;
+        }
+        if (mVerification != VERIFY_ALWAYS && isVerificationDue(slot)) {
+            return null;
+        }
+        FileStorageEngine engine = (FileStorageEngine) mEngine;
+        String name = getFilenameForKey(key);
+        String blob = mEntries.getBlob(slot);
+        FileChannel channel = null;
+        try {
+            if (shouldVerify(slot)) {
+                CheckedInputStream checked = new CheckedInputStream(openBody(slot, name), new CRC32());
+                drain(checked);
+                verified(slot, checked.getChecksum().getValue());
+            }
+            // Opened with the store locked, a replaced record is renamed over and this one stays.
+            channel = new FileInputStream(engine.getFile(blob != null ? blob : name)).getChannel();
+            long position = blob != null ? 0 : mEntries.getBodyOffset(slot);
+            long length = channel.size() - position;
+            mMetrics.recordGet(true, mEntries.isMasterEntry(slot), length, System.nanoTime() - startNanos);
+            return new FileRegion(channel, position, length);
+        } catch (IOException e) {
+            AppCacheLog.d("%s: %s", name, e.toString());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    // ignored, the region is given up anyway
+                }
+            }
+            if (e instanceof ChecksumException) {
+                corrupted(key, slot);
+                remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Opens the decompressed body of an indexed entry, the index knows where the body starts.
+     */
+    private InputStream openBody(int slot, String name) throws IOException {
+        InputStream inputStream;
+        String blob = mEntries.getBlob(slot);
+        if (blob != null) {
+            inputStream = mEngine.read(blob);
+        } else {
+            inputStream = mEngine.read(name);
+            try {
+                skipFully(inputStream, mEntries.getBodyOffset(slot));
+            } catch (IOException e) {
+                inputStream.close();
+                throw e;
+            }
+        }
+        return CompressionPolicy.decompress(inputStream, mEntries.getCodec(slot));
+    }
+
+    /**
+     * @return True, if the {@link #setVerification(int, int) verification} selects this read.
+     */
+    private boolean shouldVerify(int slot) {
+        if (!mEntries.hasChecksum(slot)) {
+            return false;
+        }
+        switch (mVerification) {
+            case VERIFY_ALWAYS:
+                return true;
+            case VERIFY_SAMPLED:
+                return ++mReads % mSampleInterval == 0;
+            case VERIFY_FIRST_READ:
+                return !mEntries.isVerified(slot);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Like {@link #shouldVerify(int)}, but doesn't count the read.
+     */
+    private boolean isVerificationDue(int slot) {
+        if (!mEntries.hasChecksum(slot)) {
+            return false;
+        }
+        switch (mVerification) {
+            case VERIFY_ALWAYS:
+                return true;
+            case VERIFY_SAMPLED:
+                return (mReads + 1) % mSampleInterval == 0;
+            case VERIFY_FIRST_READ:
+                return !mEntries.isVerified(slot);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compares the checksum of a body that was read by the caller of {@link #getStream(String)}
+     * with the checksum it was opened with. A corrupt entry is removed, unless it was replaced meanwhile.
+     * @throws ChecksumException If they don't match.
+     */
+    private synchronized void verifiedStream(String key, long expected, long checksum) throws ChecksumException {
+        mMetrics.recordVerified();
+        int slot = mEntries.find(key);
+        boolean current = slot != EntryIndex.NONE && mEntries.hasChecksum(slot)
+                && mEntries.getChecksum(slot) == expected;
+        if (checksum != expected) {
+            if (current) {
+                corrupted(key, slot);
+                remove(key);
+            }
+            throw new ChecksumException();
+        }
+        if (current) {
+            mEntries.setVerified(slot);
+        }
+    }
+
+    /**
+     * Compares the checksum of a body that was read with the index.
+     * @throws ChecksumException If they don't match.
+     */
+    private void verified(int slot, long checksum) throws ChecksumException {
+        mMetrics.recordVerified();
+        if (checksum != mEntries.getChecksum(slot)) {
+            throw new ChecksumException();
+        }
+        mEntries.setVerified(slot);
+    }
+
+    /**
+     * Handles an entry whose body doesn't match its checksum, before it's removed.
+     * A corrupt blob is deleted at once, so it's neither served for other entries nor reused.
+     */
+    private void corrupted(String key, int slot) {
+        boolean masterEntry = mEntries.isMasterEntry(slot);
+        AppCacheLog.e("Removing corrupt entry %s", key);
+        String blob = mEntries.getBlob(slot);
+        if (blob != null) {
+            mTotalSize -= mBlobs.discard(blob);
+        }
+        mMetrics.recordCorrupted();
+        CorruptionListener listener = mCorruptionListener;
+        if (listener != null) {
+            listener.onCorrupted(key, masterEntry);
+        }
+    }
+
+    /**
+     * Reads an entry without a store, only for stores with a {@link FileStorageEngine}.
+     */
+    public static InputStream getStreamStatic(String key, File rootDirectory) {
+    	StorageEngine engine = new FileStorageEngine(rootDirectory);
+    	String name = getFilenameForKey(key);
+        InputStream inputStream = null;
+        try {
+            inputStream = engine.read(name);
+            CacheHeader header = CacheHeader.readHeader(inputStream);
+            return openBody(engine, header, inputStream);
+        } catch (IOException e) {
+            AppCacheLog.d("%s: %s", name, e.toString());
+            if(inputStream != null) {
+	            try {
+	            	inputStream.close();
+	            } catch (IOException ioe) {
+	                return null;
+	            }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Opens the decompressed body of an entry, after its header was read from {@code entryStream}.
+     * For a body in a blob, {@code entryStream} is closed and the blob is opened.
+     */
+    private static InputStream openBody(StorageEngine engine, CacheHeader header, InputStream entryStream)
+            throws IOException {
+        InputStream body = entryStream;
+        if (header.blob != null) {
+            entryStream.close();
+            body = engine.read(header.blob);
+        }
+        return CompressionPolicy.decompress(body, header.codec);
+    }
+
+    /**
+     * Initializes the AppCacheStore by scanning all records of the storage engine.
+     * Creates the root directory if necessary.
+     * The headers are read by {@link #setScanThreads(int) a pool of threads} and merged
+     * into the index in batches. The store isn't locked meanwhile, so entries that are
+     * already loaded can be read and entries can be put and removed while scanning.
+     */
+    public void initialize() {
+        synchronized (mInitializeLock) {
+            long startNanos = System.nanoTime();
+            scan();
+            mMetrics.recordInitialize(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void scan() {
+        try {
+            mEngine.open();
+        } catch (IOException e) {
+            AppCacheLog.e(e, "Unable to open the cache");
+            return;
+        }
+
+        final Scan scan = new Scan();
+        List<String> releasedBlobs = new ArrayList<String>();
+        synchronized (this) {
+            mScan = scan;
+            mBlobs.setDeferredDeletes(releasedBlobs);
+        }
+        List<String> blobNames = new ArrayList<String>();
+        List<List<String>> batches = new ArrayList<List<String>>();
+        List<String> batch = null;
+        for (String name : mEngine.list()) {
+            if (BlobIndex.isBlob(name)) {
+                blobNames.add(name);
+                continue;
+            }
+            if (batch == null || batch.size() == SCAN_BATCH_SIZE) {
+                batch = new ArrayList<String>(SCAN_BATCH_SIZE);
+                batches.add(batch);
+            }
+            batch.add(name);
+        }
+
+        try {
+            int threads = Math.min(mScanThreads, batches.size());
+            if (threads <= 1) {
+                for (List<String> names : batches) {
+                    merge(scan, scanRecords(names));
+                }
+            } else {
+                scanParallel(scan, batches, threads);
+            }
+        } finally {
+            synchronized (this) {
+                mScan = null;
+                mInitialized = true;
+                mBlobs.setDeferredDeletes(null);
+                if (!scan.cleared) {
+                    releasedBlobs.addAll(blobNames);
+                }
+                for (String name : releasedBlobs) {
+                    if (!mBlobs.contains(name)) {
+                        // Not referenced anymore, e.g. after an interrupted put().
+                        mEngine.delete(name);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scanParallel(final Scan scan, List<List<String>> batches, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AppCache-Scan");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(batches.size());
+        for (final List<String> names : batches) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    merge(scan, scanRecords(names));
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            AppCacheLog.e(e, "Scan of the cache interrupted");
+        } catch (ExecutionException e) {
+            AppCacheLog.e(e.getCause(), "Scan of the cache failed");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the headers of records, without locking the store.
+     */
+    private List<ScannedRecord> scanRecords(List<String> names) {
+        List<ScannedRecord> records = new ArrayList<ScannedRecord>(names.size());
+        for (String name : names) {
+            ScannedRecord record = new ScannedRecord(name);
+            CountingInputStream in = null;
+            try {
+                in = new CountingInputStream(mEngine.read(name));
+                CacheHeader header = CacheHeader.readHeader(in);
+                record.bodyOffset = in.bytesRead;
+                if (header.blob != null) {
+                    record.blobSize = mEngine.length(header.blob);
+                    if (record.blobSize <= 0) {
+                        throw new IOException("Missing blob " + header.blob);
+                    }
+                }
+                record.manifest = loadManifest(in, header);
+                record.size = mEngine.length(name);
+                record.header = header;
+            } catch (IOException e) {
+                record.header = null;
+            } finally {
+                try {
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (IOException ignored) { }
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Merges scanned records into the index, unless they changed since the scan started.
+     */
+    private synchronized void merge(Scan scan, List<ScannedRecord> records) {
+        if (scan.cleared) {
+            return;
+        }
+        for (ScannedRecord record : records) {
+            if (scan.touched.contains(record.name)) {
+                continue;
+            }
+            CacheHeader header = record.header;
+            if (header == null) {
+                mEngine.delete(record.name);
+                continue;
+            }
+            if (record.manifest != null && !scan.manifestSet) {
+                mCacheManifest = record.manifest;
+            }
+            if (header.blob != null) {
+                mTotalSize += mBlobs.acquire(header.blob, record.blobSize);
+            }
+            indexEntry(EntryIndex.hash(header.key), header, record.size, record.bodyOffset);
+        }
+    }
+
+    /**
+     * Records a write or delete of a record for a running scan.
+     */
+    private void touch(String name) {
+        if (mScan != null) {
+            mScan.touched.add(name);
+        }
+        if (mSweepTouched != null) {
+            mSweepTouched.add(name);
+        }
+    }
+
+    /**
+     * @return False, before the store is initialized and while it's scanned.
+     */
+    synchronized boolean isSweepable() {
+        return mInitialized && mScan == null;
+    }
+
+    /**
+     * Reconciles records with the index for a {@link CacheSweeper}: Deletes records that
+     * aren't indexed, unreadable records, records whose size doesn't match the index
+     * and blobs without references. The records are read without locking the store,
+     * it's only locked to delete a record.
+     * @param names The records to check.
+     * @param deadlineNanos Stops after this {@link System#nanoTime()}, but checks at least one record.
+     * @return The number of records checked, 0 while the store is not initialized or scanned.
+     */
+    int sweep(List<String> names, long deadlineNanos, CacheSweeper sweeper) {
+        synchronized (this) {
+            if (!isSweepable()) {
+                return 0;
+            }
+            mSweepTouched = new HashSet<String>();
+        }
+        int checked = 0;
+        int files = 0;
+        long bytes = 0;
+        try {
+            for (String name : names) {
+                if (checked > 0 && System.nanoTime() - deadlineNanos > 0) {
+                    break;
+                }
+                checked++;
+                long length = mEngine.length(name);
+                if (length < 0) {
+                    continue;
+                }
+                long hash = 0;
+                boolean readable = BlobIndex.isBlob(name);
+                if (!readable) {
+                    hash = sweepHash(name);
+                    readable = hash != 0;
+                }
+                synchronized (this) {
+                    if (mSweepTouched.contains(name)) {
+                        continue;
+                    }
+                    if (BlobIndex.isBlob(name)) {
+                        if (mBlobs.contains(name)) {
+                            continue;
+                        }
+                    } else {
+                        int slot = mEntries.findByName(name);
+                        if (readable && slot != EntryIndex.NONE && mEntries.getHash(slot) == hash
+                                && mEntries.getSize(slot) == length) {
+                            continue;
+                        }
+                        if (slot != EntryIndex.NONE) {
+                            removeSlot(slot);
+                        }
+                    }
+                    if (mEngine.delete(name)) {
+                        AppCacheLog.d("Swept %s (%d bytes)", name, length);
+                        files++;
+                        bytes += length;
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mSweepTouched = null;
+            }
+            if (files > 0) {
+                sweeper.onReclaimed(files, bytes);
+                mMetrics.recordSweep(files, bytes);
+            }
+        }
+        return checked;
+    }
+
+    /**
+     * @return The hash of the key of a readable record, whose blob exists, otherwise 0.
+     */
+    private long sweepHash(String name) {
+        InputStream in = null;
+        try {
+            in = mEngine.read(name);
+            CacheHeader header = CacheHeader.readHeader(in);
+            if (header.blob != null && mEngine.length(header.blob) <= 0) {
+                return 0;
+            }
+            return EntryIndex.hash(header.key);
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * @return The manifest, if the entry is the manifest and it's readable, otherwise null.
+     */
+    private CacheManifest loadManifest(InputStream inStream, CacheHeader entry) throws IOException {
+    	if(entry.key.equals(mCacheManifestURL)) {
+    		InputStream body = openBody(mEngine, entry, inStream);
+    		try {
+    			return CacheManifest.parse(mCacheManifestURL, body);
+    		} catch(URISyntaxException ex) {
+    			AppCacheLog.e(ex, "Error reading CacheManifest from disk.");
+    		} catch(IOException ex) {
+    			AppCacheLog.e(ex, "Error reading CacheManifest from disk.");
+    		} finally {
+    			body.close();
+    		}
+    	}
+    	return null;
+    }
+    
+    public synchronized void setCacheManifest(CacheManifest manifest) {
+    	if(mScan != null) {
+    		mScan.manifestSet = true;
+    	}
+    	mCacheManifest = manifest;
+    }
+
+    /**
+     * @return The current manifest or null, if it isn't known yet.
+     */
+    public synchronized CacheManifest getCacheManifest() {
+        return mCacheManifest;
+    }
+
+    /**
+     * @return The live metrics of this store, the updaters record into them too.
+     */
+    public CacheMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return A snapshot of the metrics.
+     */
+    public CacheStats getStats() {
+        return mMetrics.snapshot();
+    }
+
+    public String getCacheManifestURL() {
+    	return mCacheManifestURL;
+    }
+
+    /**
+     * @return The size hint of the manifest for a master entry or -1, if unknown.
+     * @see CacheManifest#getSizeHint(String)
+     */
+    public synchronized long getSizeHint(String key) {
+    	return mCacheManifest != null ? mCacheManifest.getSizeHint(key) : -1;
+    }
+
+    /**
+     * Returns true, if the key belongs to this cache: It's the manifest itself,
+     * a master entry of the manifest or already stored in this cache.
+     */
+    public synchronized boolean isResponsibleFor(String key) {
+    	if(key.equals(mCacheManifestURL) || mEntries.find(key) != EntryIndex.NONE) {
+    		return true;
+    	}
+    	return mCacheManifest != null && mCacheManifest.isMasterEntry(key);
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        StoreEntry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     * The body is compressed, if the {@link CompressionPolicy} selects it and it gets smaller.
+     * With deduplication, a body that is already stored only gets another reference.
+     */
+    public synchronized void put(String key, StoreEntry entry) {
+        long startNanos = System.nanoTime();
+        CompressionPolicy policy = mCompressionPolicy;
+        int codec = policy.codecFor(entry.responseHeaders, entry.data.length);
+        byte[] digest = null;
+        String blob = null;
+        if (mDeduplication && entry.data.length >= DEDUP_MIN_SIZE) {
+            digest = BlobIndex.newDigest().digest(entry.data);
+            blob = BlobIndex.getName(digest, codec);
+        }
+        byte[] body = entry.data;
+        if (codec != CompressionPolicy.CODEC_NONE && (blob == null || !mBlobs.contains(blob))) {
+            byte[] compressed = policy.compress(entry.data);
+            if (compressed.length < body.length) {
+                body = compressed;
+            } else {
+                codec = CompressionPolicy.CODEC_NONE;
+                if (digest != null) {
+                    blob = BlobIndex.getName(digest, codec);
+                }
+            }
+        }
+        boolean deduplicated = blob != null && mBlobs.contains(blob);
+        boolean acquired = false;
+        if (deduplicated) {
+            // Referenced before pruning, so the blob isn't pruned with another entry.
+            mTotalSize += mBlobs.acquire(blob, 0);
+            acquired = true;
+        }
+        pruneIfNeeded(deduplicated ? 0 : body.length);
+        StorageEngine.Writer writer = null;
+        try {
+            if (blob != null && !deduplicated) {
+                writeBlob(blob, body);
+                mTotalSize += mBlobs.acquire(blob, body.length);
+                acquired = true;
+            }
+            writer = mEngine.create();
+            boolean isMasterEntry = mCacheManifest != null && mCacheManifest.isMasterEntry(key);
+            CacheHeader e = new CacheHeader(key, entry, isMasterEntry);
+            e.codec = codec;
+            e.blob = blob;
+            CRC32 crc = new CRC32();
+            crc.update(entry.data, 0, entry.data.length);
+            e.checksum = crc.getValue();
+            e.writeHeader(writer);
+            int bodyOffset = (int) writer.length();
+            if (blob == null) {
+                writer.write(body);
+            }
+            writer.commit(getFilenameForKey(key));
+            putEntry(key, e, writer.length(), bodyOffset);
+            if (deduplicated) {
+                mMetrics.recordDeduplicated(entry.data.length);
+            }
+            mMetrics.recordPut(entry.data.length, System.nanoTime() - startNanos);
+            return;
+        } catch (IOException e) {
+            AppCacheLog.d("Could not write %s: %s", key, e.toString());
+        }
+        if (writer != null) {
+            writer.abort();
+        }
+        if (acquired) {
+            mTotalSize -= mBlobs.release(blob);
+        }
+    }
+
+    /**
+     * Writes a new blob.
+     */
+    private void writeBlob(String blob, byte[] body) throws IOException {
+        StorageEngine.Writer writer = mEngine.create();
+        try {
+            writer.write(body);
+            writer.commit(blob);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache, reading the body from a stream.
+     * The body is written to a new record with a fixed size buffer and published
+     * atomically into the cache when complete, so the body is never held in memory
+     * and the cache isn't locked while the body is downloaded.
+     * A compressible body is compressed while it's written, if at least the minimum size
+     * of the {@link CompressionPolicy} is received. With deduplication, the body is
+     * dropped after the download, if it's already stored.
+     * @param key The key of the entry.
+     * @param entry The entry's headers. {@code entry.data} is ignored.
+     * @param body The body of the entry.
+     * @return The number of body bytes written.
+     * @throws IOException If reading the body or writing the file failed.
+     */
+    public long putStream(String key, StoreEntry entry, InputStream body) throws IOException {
+        long startNanos = System.nanoTime();
+        boolean isMasterEntry;
+        synchronized (this) {
+            isMasterEntry = mCacheManifest != null && mCacheManifest.isMasterEntry(key);
+        }
+        CacheHeader e = new CacheHeader(key, entry, isMasterEntry);
+        CompressionPolicy policy = mCompressionPolicy;
+        e.codec = policy.codecFor(entry.responseHeaders, -1);
+        // Small bodies are neither compressed nor deduplicated, read ahead to know the size.
+        int readAhead = e.codec != CompressionPolicy.CODEC_NONE ? policy.getMinSize() : 0;
+        if (mDeduplication) {
+            readAhead = Math.max(readAhead, DEDUP_MIN_SIZE);
+        }
+        byte[] buffer = new byte[Math.max(STREAM_BUFFER_SIZE, readAhead)];
+        int buffered = 0;
+        int count;
+        while (buffered < readAhead && (count = body.read(buffer, buffered, buffer.length - buffered)) != -1) {
+            buffered += count;
+        }
+        if (buffered < policy.getMinSize()) {
+            e.codec = CompressionPolicy.CODEC_NONE;
+        }
+        // A deduplicated body is written without header, it becomes a blob.
+        MessageDigest digest = mDeduplication && buffered >= DEDUP_MIN_SIZE ? BlobIndex.newDigest() : null;
+        CRC32 crc = new CRC32();
+        StorageEngine.Writer writer = mEngine.create();
+        try {
+            // The checksum is only known at the end, it's written into the header when published.
+            e.checksum = CHECKSUM_NONE;
+            if (digest == null && !e.writeHeader(writer)) {
+                throw new IOException("Could not write header for key " + key);
+            }
+            int bodyOffset = (int) writer.length();
+            OutputStream out = e.codec == CompressionPolicy.CODEC_NONE ? writer : policy.compress(writer);
+            out.write(buffer, 0, buffered);
+            crc.update(buffer, 0, buffered);
+            if (digest != null) {
+                digest.update(buffer, 0, buffered);
+            }
+            long bodyBytes = buffered;
+            while ((count = body.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                crc.update(buffer, 0, count);
+                if (digest != null) {
+                    digest.update(buffer, 0, count);
+                }
+                bodyBytes += count;
+            }
+            out.close();
+            e.checksum = crc.getValue();
+            if (digest != null) {
+                e.blob = BlobIndex.getName(digest.digest(), e.codec);
+                publishBlob(key, e, writer, bodyBytes);
+            } else {
+                publish(key, e, writer.length(), bodyOffset, writer, true);
+            }
+            mMetrics.recordPut(bodyBytes, System.nanoTime() - startNanos);
+            return bodyBytes;
+        } catch (IOException ex) {
+            writer.abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Publishes an entry whose body was written to {@code bodyWriter} without header:
+     * The body becomes the blob or is dropped, if the blob exists already.
+     */
+    private void publishBlob(String key, CacheHeader e, StorageEngine.Writer bodyWriter, long bodyBytes)
+            throws IOException {
+        StorageEngine.Writer writer = mEngine.create();
+        try {
+            if (!e.writeHeader(writer)) {
+                throw new IOException("Could not write header for key " + key);
+            }
+            writer.close();
+            long size = writer.length();
+            synchronized (this) {
+                if (mBlobs.contains(e.blob)) {
+                    mTotalSize += mBlobs.acquire(e.blob, 0);
+                    bodyWriter.abort();
+                    mMetrics.recordDeduplicated(bodyBytes);
+                } else {
+                    pruneIfNeeded((int) Math.min(bodyWriter.length(), Integer.MAX_VALUE));
+                    bodyWriter.commit(e.blob);
+                    mTotalSize += mBlobs.acquire(e.blob, bodyWriter.length());
+                }
+                try {
+                    publish(key, e, size, (int) size, writer, false);
+                } catch (IOException ex) {
+                    mTotalSize -= mBlobs.release(e.blob);
+                    throw ex;
+                }
+            }
+        } catch (IOException ex) {
+            writer.abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Commits a completely written record.
+     * @param writeChecksum True, if the header was written without the checksum of the body.
+     */
+    private synchronized void publish(String key, CacheHeader header, long size, int bodyOffset,
+            StorageEngine.Writer writer, boolean writeChecksum) throws IOException {
+        pruneIfNeeded((int) Math.min(size, Integer.MAX_VALUE));
+        String name = getFilenameForKey(key);
+        writer.commit(name);
+        if (writeChecksum) {
+            // The header keeps its length, only the checksum changes.
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(bodyOffset);
+            try {
+                if (!header.writeHeader(bos)) {
+                    throw new IOException("Could not write header for key " + key);
+                }
+                mEngine.overwrite(name, bos.toByteArray());
+            } catch (IOException e) {
+                // The record is still valid, only not verifiable.
+                AppCacheLog.d("Could not write checksum of %s: %s", key, e.toString());
+                header.checksum = CHECKSUM_NONE;
+            }
+        }
+        putEntry(key, header, size, bodyOffset);
+    }
+
+    /**
+     * Returns the cache entry with the specified key without loading its body
+     * ({@code data} is null), or null if it doesn't exist.
+     * Only the header is read from disk.
+     */
+    public synchronized StoreEntry peek(String key) {
+        int slot = mEntries.get(key);
+        if (slot == EntryIndex.NONE) {
+            return null;
+        }
+        String name = getFilenameForKey(key);
+        InputStream in = null;
+        try {
+            in = mEngine.read(name);
+            CacheHeader header = CacheHeader.readHeader(in);
+            if (!header.key.equals(key)) {
+                // The record belongs to another key with the same hash.
+                return null;
+            }
+            return toCacheEntry(slot, header, null);
+        } catch (IOException e) {
+            AppCacheLog.d("%s: %s", name, e.toString());
+            remove(key);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Marks a master entry as up to date, e.g. after the server answered "Not Modified".
+     * Only the AppCache flags of the header are rewritten, the body stays untouched.
+     * @return False, if the entry does not exist.
+     */
+    public synchronized boolean markUpToDate(String key) {
+        int slot = mEntries.find(key);
+        if (slot == EntryIndex.NONE) {
+            return false;
+        }
+        if (mEntries.isUpgradePending(slot)) {
+            mEntries.setFlags(slot, mEntries.isMasterEntry(slot), false);
+            upgradeAppCacheData(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    public synchronized void remove(String key) {
+        int slot = mEntries.find(EntryIndex.hash(key));
+        if (slot != EntryIndex.NONE && !mEntries.matches(slot, key)) {
+            // The record belongs to another key with the same hash.
+            return;
+        }
+        touch(getFilenameForKey(key));
+        boolean deleted = mEngine.delete(getFilenameForKey(key));
+        removeEntry(key);
+        if (!deleted) {
+            AppCacheLog.d("Could not delete cache entry for key=%s, filename=%s",
+                    key, getFilenameForKey(key));
+        }
+    }
+    
+    /**
+     * Marks all file depending on if it's a AppCache Master Entry or not.
+     * And marks the Master Entries for updating. 
+     * @param pendingMasterEntries
+     */
+    public synchronized void markPendingMasterEntries() {
+    	markMasterEntries(Collections.<String>emptySet());
+    }
+
+    /**
+     * Flags the master entries of the current manifest, all but {@code current} as pending.
+     */
+    private void markMasterEntries(Set<String> current) {
+    	// The index has no keys, so the master entries are looked up by the keys of the manifest.
+    	for(int slot = mEntries.first(); slot != EntryIndex.NONE; slot = mEntries.next(slot)) {
+    		mEntries.setFlags(slot, false, false);
+    	}
+    	for(URI uri : mCacheManifest.getMasterEntries()) {
+    		String url = uri.toString();
+    		int slot = mEntries.find(url);
+    		if(slot != EntryIndex.NONE) {
+    			mEntries.setFlags(slot, true, !current.contains(url));
+    		}
+    	}
+    	for(int slot = mEntries.first(); slot != EntryIndex.NONE; slot = mEntries.next(slot)) {
+    		upgradeAppCacheData(slot);
+    	}
+    }
+    
+    /**
+     * Applies a downloaded manifest: If it was modified, it replaces the current manifest
+     * and all master entries are marked for updating.
+     * @param manifest The downloaded manifest.
+     * @param modified False, if the server answered 304 Not Modified.
+     * @return All pending master entries.
+     */
+    public synchronized List<String> applyManifest(CacheManifest manifest, boolean modified) {
+        if (modified || mCacheManifest == null) {
+            setCacheManifest(manifest);
+            markPendingMasterEntries();
+        }
+        return getPendingMasterEntries();
+    }
+
+    /**
+     * Get all pending Master Entries
+     */
+    public synchronized List<String> getPendingMasterEntries() {
+    	
+    	ArrayList<String> pendingMasterEntries = new ArrayList<String>();
+    	for(URI uri : mCacheManifest.getMasterEntries()) {
+    		String url = uri.toString();
+    		int slot = mEntries.find(url);
+    		if(slot != EntryIndex.NONE) {
+        		if(!mEntries.isUpgradePending(slot)) {
+        			continue;
+        		}
+    		}
+    		pendingMasterEntries.add(url);
+    	}
+    	return pendingMasterEntries;
+    }
+    
+    /**
+     * Imports a snapshot of the cache, e.g. one packaged with the app: A cache bundle
+     * (see {@link CacheBundleReader}) of the manifest and its entries. The entries are
+     * streamed into the store in one pass and the bundled manifest becomes the current
+     * one with its imported master entries up to date. The first update then revalidates
+     * them with their bundled validators and only downloads what changed since the snapshot.
+     * Records other than 2xx responses are skipped.
+     * @param in The snapshot, it isn't closed.
+     * @return The number of imported entries.
+     * @throws IOException If the snapshot is corrupt or an entry could not be written.
+     * The entries imported so far are kept, but the manifest isn't applied.
+     */
+    public int importSnapshot(InputStream in) throws IOException {
+        CacheBundleReader reader = new CacheBundleReader(in);
+        Set<String> imported = new HashSet<String>();
+        CacheManifest manifest = null;
+        while (reader.next()) {
+            String url = reader.url();
+            if (reader.statusCode() < 200 || reader.statusCode() > 299) {
+                continue;
+            }
+            StoreEntry entry = CacheHeaderParser.parseCacheHeaders(reader.headers());
+            if (url.equals(mCacheManifestURL)) {
+                entry.data = streamToBytes(reader.body());
+                try {
+                    manifest = CacheManifest.parse(mCacheManifestURL, new ByteArrayInputStream(entry.data));
+                } catch (URISyntaxException e) {
+                    throw new IOException("Invalid manifest in snapshot: " + e.getMessage());
+                }
+                put(url, entry);
+            } else {
+                putStream(url, entry, reader.body());
+            }
+            imported.add(url);
+        }
+        // The updaters rely on the imported entries, so they have to be on the disk first.
+        if (!sync()) {
+            throw new IOException("Could not sync the snapshot.");
+        }
+        if (manifest != null) {
+            applyImportedManifest(manifest, imported);
+        }
+        AppCacheLog.d("Imported %d entries from a snapshot", imported.size());
+        return imported.size();
+    }
+
+    /**
+     * Exports all entries into a pack, see {@link CachePack}. The store is locked per entry,
+     * not for the whole export. Entries that turn out to be corrupt are left out and removed.
+     * @param out The pack, it should be buffered. It isn't closed.
+     * @return The number of exported entries.
+     * @throws IOException If reading an entry or writing the pack failed.
+     */
+    public int exportTo(OutputStream out) throws IOException {
+        long[] hashes;
+        synchronized (this) {
+            hashes = new long[mEntries.size()];
+            int count = 0;
+            for (int slot = mEntries.first(); slot != EntryIndex.NONE; slot = mEntries.next(slot)) {
+                hashes[count++] = mEntries.getHash(slot);
+            }
+        }
+        CachePackWriter writer = new CachePackWriter(out, mCacheManifestURL);
+        for (long hash : hashes) {
+            synchronized (this) {
+                int slot = mEntries.find(hash);
+                if (slot != EntryIndex.NONE) {
+                    exportEntry(writer, slot);
+                }
+            }
+        }
+        int count = writer.finish();
+        AppCacheLog.d("Exported %d entries", count);
+        return count;
+    }
+
+    private void exportEntry(CachePackWriter writer, int slot) throws IOException {
+        String name = EntryIndex.getName(mEntries.getHash(slot));
+        CacheHeader header;
+        InputStream body;
+        try {
+            InputStream in = mEngine.read(name);
+            try {
+                header = CacheHeader.readHeader(in);
+            } finally {
+                in.close();
+            }
+            body = openBody(slot, name);
+        } catch (IOException e) {
+            // Unreadable records are left out, the scan or a CacheSweeper deletes them.
+            AppCacheLog.d("%s: %s", name, e.toString());
+            return;
+        }
+        CachePack.Entry entry = new CachePack.Entry();
+        entry.key = header.key;
+        entry.etag = header.etag;
+        entry.serverDate = header.serverDate;
+        entry.ttl = header.ttl;
+        entry.softTtl = header.softTtl;
+        entry.responseHeaders = header.responseHeaders;
+        entry.flags = (mEntries.isMasterEntry(slot) ? CachePack.FLAG_MASTER_ENTRY : 0)
+                | (mEntries.isUpgradePending(slot) ? CachePack.FLAG_UPGRADE_PENDING : 0);
+        long length = -1;
+        if (header.blob == null && header.codec == CompressionPolicy.CODEC_NONE) {
+            length = mEngine.length(name) - mEntries.getBodyOffset(slot);
+        }
+        try {
+            writer.write(entry, body, length);
+        } finally {
+            body.close();
+        }
+        if (mEntries.hasChecksum(slot)) {
+            try {
+                verified(slot, entry.checksum);
+            } catch (ChecksumException e) {
+                writer.discard(entry);
+                corrupted(header.key, slot);
+                remove(header.key);
+            }
+        }
+    }
+
+    /**
+     * Imports all entries of a pack, see {@link CachePack}. The bodies are read in the order
+     * they are packed, from their mappings, and are checked against their checksums. If the
+     * pack has the manifest, it becomes the current manifest and the master entries keep
+     * their state of the pack.
+     * @return The number of imported entries.
+     * @throws IOException If the pack belongs to another manifest or an entry could not be
+     * written. The entries imported so far are kept, but the manifest isn't applied.
+     */
+    public int importFrom(CachePack pack) throws IOException {
+        if (pack.getManifestURL() != null && !pack.getManifestURL().equals(mCacheManifestURL)) {
+            throw new IOException("The pack belongs to " + pack.getManifestURL());
+        }
+        Set<String> current = new HashSet<String>();
+        CacheManifest manifest = null;
+        int count = 0;
+        for (CachePack.Entry entry : pack.getEntries()) {
+            CheckedInputStream body = new CheckedInputStream(pack.openBody(entry), new CRC32());
+            putStream(entry.key, entry.toStoreEntry(), body);
+            if (body.getChecksum().getValue() != entry.checksum) {
+                AppCacheLog.e("Skipping corrupt entry %s of the pack", entry.key);
+                remove(entry.key);
+                continue;
+            }
+            count++;
+            if (entry.isMasterEntry() && !entry.isUpgradePending()) {
+                current.add(entry.key);
+            }
+            if (entry.key.equals(mCacheManifestURL)) {
+                try {
+                    manifest = CacheManifest.parse(mCacheManifestURL, pack.openBody(entry));
+                } catch (URISyntaxException e) {
+                    throw new IOException("Invalid manifest in pack: " + e.getMessage());
+                }
+            }
+        }
+        if (!sync()) {
+            throw new IOException("Could not sync the pack.");
+        }
+        if (manifest != null) {
+            applyImportedManifest(manifest, current);
+        }
+        AppCacheLog.d("Imported %d entries from a pack", count);
+        return count;
+    }
+
+    /**
+     * Makes an imported manifest the current one, only the master entries in {@code current}
+     * are up to date.
+     */
+    private synchronized void applyImportedManifest(CacheManifest manifest, Set<String> current) {
+        setCacheManifest(manifest);
+        markMasterEntries(current);
+    }
+
+    /**
+     * Updates the AppCache Field of the CacheHeader on Disk. 
+     * @param header
+     */
+    private void upgradeAppCacheData(int slot) {
+        String name = EntryIndex.getName(mEntries.getHash(slot));
+        try {
+            byte[] start = new byte[CacheHeader.APPCACHE_FLAGS_MAX_END];
+            int length = 0;
+            InputStream in = mEngine.read(name);
+            try {
+                int count;
+                while (length < start.length && (count = in.read(start, length, start.length - length)) != -1) {
+                    length += count;
+                }
+            } finally {
+                in.close();
+            }
+            int end = CacheHeader.updateAppCacheHeader(start, length,
+                    mEntries.isMasterEntry(slot), mEntries.isUpgradePending(slot));
+            mEngine.overwrite(name, Arrays.copyOf(start, end));
+            return;
+        } catch (IOException e) {
+        	AppCacheLog.e("Could not update header of %s", name);
+        }
+        boolean deleted = mEngine.delete(name);
+        if (!deleted) {
+            AppCacheLog.d("Could not clean up record %s", name);
+        }
+    }
+
+    /**
+     * Creates a pseudo-unique filename for the specified cache key.
+     * @param key The key to generate a file name for.
+     * @return A pseudo-unique filename.
+     */
+    static String getFilenameForKey(String key) {
+        return EntryIndex.getName(EntryIndex.hash(key));
+    }
+
+    /**
+     * Returns a file object for the given cache key or null, if the storage engine
+     * doesn't keep a file per entry.
+     */
+    public File getFileForKey(String key) {
+        if (mEngine instanceof FileStorageEngine) {
+            return ((FileStorageEngine) mEngine).getFile(getFilenameForKey(key));
+        }
+        return null;
+    }
+
+    /**
+     * Prunes the cache to fit the amount of bytes specified.
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     */
+    private void pruneIfNeeded(int neededSpace) {
+        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+            return;
+        }
+        if (AppCacheLog.DEBUG) {
+            AppCacheLog.v("Pruning old cache entries.");
+        }
+
+        long before = mTotalSize;
+        int prunedFiles = 0;
+        long startTime = mClock.elapsedRealtime();
+
+        int next;
+        for (int slot = mEntries.first(); slot != EntryIndex.NONE; slot = next) {
+            next = mEntries.next(slot);
+            if(mEntries.isMasterEntry(slot)) {
+            	// Don't delete AppCache Files:
+            	continue;
+            }
+            String name = EntryIndex.getName(mEntries.getHash(slot));
+            touch(name);
+            boolean deleted = mEngine.delete(name);
+            if (deleted) {
+                mTotalSize -= mEntries.getSize(slot);
+            } else {
+               AppCacheLog.d("Could not delete cache entry, filename=%s", name);
+            }
+            String blob = mEntries.getBlob(slot);
+            mEntries.remove(slot);
+            mTotalSize -= mBlobs.release(blob);
+            prunedFiles++;
+
+            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+
+        if (AppCacheLog.DEBUG) {
+            AppCacheLog.v("pruned %d files, %d bytes, %d ms",
+                    prunedFiles, (mTotalSize - before), mClock.elapsedRealtime() - startTime);
+        }
+        mMetrics.recordPrune(prunedFiles, before - mTotalSize);
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     * @param key The key to identify the entry by.
+     * @param header The header of the entry.
+     * @param size The size of the record of the entry.
+     * @param bodyOffset The offset of the body in the record.
+     */
+    private void putEntry(String key, CacheHeader header, long size, int bodyOffset) {
+        long hash = EntryIndex.hash(key);
+        touch(EntryIndex.getName(hash));
+        indexEntry(hash, header, size, bodyOffset);
+    }
+
+    private void indexEntry(long hash, CacheHeader header, long size, int bodyOffset) {
+        int slot = mEntries.get(hash);
+        if (slot == EntryIndex.NONE) {
+            slot = mEntries.add(hash);
+            mTotalSize += size;
+        } else {
+            mTotalSize += (size - mEntries.getSize(slot));
+            mTotalSize -= mBlobs.release(mEntries.getBlob(slot));
+        }
+        mEntries.setKey(slot, header.key);
+        mEntries.set(slot, size, bodyOffset, header.codec, header.blob, header.checksum);
+        mEntries.setFlags(slot, header.appCacheMasterEntry, header.isAppCacheUpgradePending);
+    }
+
+    /**
+     * Removes the entry identified by 'key' from the cache.
+     */
+    private void removeEntry(String key) {
+        int slot = mEntries.find(key);
+        if (slot != EntryIndex.NONE) {
+            removeSlot(slot);
+        }
+    }
+
+    private void removeSlot(int slot) {
+        mTotalSize -= mEntries.getSize(slot);
+        mTotalSize -= mBlobs.release(mEntries.getBlob(slot));
+        mEntries.remove(slot);
+    }
+
+    /**
+     * Creates a cache entry from the headers read from disk, the flags of the index are current.
+     */
+    private StoreEntry toCacheEntry(int slot, CacheHeader header, byte[] data) {
+        header.appCacheMasterEntry = mEntries.isMasterEntry(slot);
+        header.isAppCacheUpgradePending = mEntries.isUpgradePending(slot);
+        return header.toCacheEntry(data);
+    }
+
+    /**
+     * Reads an InputStream of unknown length into a byte[] and closes it.
+     */
+    private static byte[] streamToBytes(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(STREAM_BUFFER_SIZE);
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads an InputStream to its end and closes it.
+     */
+    private static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Discarded.
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Reads the contents of an InputStream into a byte[].
+     * */
+    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int count;
+        int pos = 0;
+        while (pos < length && ((count = in.read(bytes, pos, length - pos)) != -1)) {
+            pos += count;
+        }
+        if (pos != length) {
+            throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Handles holding onto the cache headers for an entry.
+     */
+    private static class CacheHeader {
+        /** The key that identifies the cache entry. */
+        public String key;
+
+        /** ETag for cache coherence. */
+        public String etag;
+
+        /** Date of this response as reported by the server. */
+        public long serverDate;
+
+        /** TTL for this record. */
+        public long ttl;
+
+        /** Soft TTL for this record. */
+        public long softTtl;
+
+        /** Headers from the response resulting in this cache entry. */
+        public Map<String, String> responseHeaders;
+        
+        /** This is a master entry (a file that should be cached) in the AppCache Manifest **/
+        public boolean appCacheMasterEntry;
+		
+		/** The Application Cache has changed and this file needs to be checked for upgrades **/
+		public boolean isAppCacheUpgradePending;
+
+        /** The codec of the body, one of the {@code CompressionPolicy.CODEC_} constants. */
+        public int codec = CompressionPolicy.CODEC_NONE;
+
+        /** The blob of a deduplicated body or null, if the body follows the header. */
+        public String blob;
+
+        /** The CRC32 of the uncompressed body or {@link AppCacheStore#CHECKSUM_NONE}. */
+        public long checksum = CHECKSUM_NONE;
+
+        private CacheHeader() { }
+
+		/**
+         * Instantiates a new CacheHeader object
+         * @param key The key that identifies the cache entry
+         * @param entry The cache entry.
+         */
+        public CacheHeader(String key, StoreEntry entry, boolean isMasterEntry) {
+            this.key = key;
+            this.etag = entry.etag;
+            this.serverDate = entry.serverDate;
+            this.ttl = entry.ttl;
+            this.softTtl = entry.softTtl;
+            this.appCacheMasterEntry = isMasterEntry;
+            this.isAppCacheUpgradePending = false;
+            this.responseHeaders = entry.responseHeaders;
+        }
+
+        /** Bytes up to and including the AppCache flags with a long block header. */
+        public static final int APPCACHE_FLAGS_MAX_END = 4 + 5 + 3;
+
+        /**
+         * Reads the header off of an InputStream and returns a CacheHeader object.
+         * @param is The InputStream to read from.
+         * @throws IOException
+         */
+        public static CacheHeader readHeader(InputStream is) throws IOException {
+            CacheHeader entry = new CacheHeader();
+            ObjectInputStream ois = new ObjectInputStream(is);
+            int version = ois.readByte();
+            if (version != CACHE_VERSION && version != CACHE_VERSION_UNCHECKED
+                    && version != CACHE_VERSION_INLINE && version != CACHE_VERSION_UNCOMPRESSED) {
+                // don't bother deleting, the scan or a CacheSweeper deletes it
+                throw new IOException();
+            }
+            entry.appCacheMasterEntry = ois.readBoolean();
+            entry.isAppCacheUpgradePending = ois.readBoolean();
+            entry.key = ois.readUTF();
+            entry.etag = ois.readUTF();
+            if (entry.etag.equals("")) {
+                entry.etag = null;
+            }
+            entry.serverDate = ois.readLong();
+            entry.ttl = ois.readLong();
+            entry.softTtl = ois.readLong();
+            entry.responseHeaders = readStringStringMap(ois);
+            if (version >= CACHE_VERSION_INLINE) {
+                entry.codec = ois.readByte();
+            }
+            if (version >= CACHE_VERSION_UNCHECKED) {
+                entry.blob = ois.readUTF();
+                if (entry.blob.equals("")) {
+                    entry.blob = null;
+                }
+            }
+            if (version >= CACHE_VERSION) {
+                entry.checksum = ois.readLong();
+            }
+            return entry;
+        }
+
+        /**
+         * Creates a cache entry for the specified data.
+         */
+        public StoreEntry toCacheEntry(byte[] data) {
+        	StoreEntry e = new StoreEntry();
+            e.data = data;
+            e.etag = etag;
+            e.serverDate = serverDate;
+            e.ttl = ttl;
+            e.softTtl = softTtl;
+            e.responseHeaders = responseHeaders;
+            e.wasAppCacheUpgrade = isAppCacheUpgradePending;
+            e.appCacheMasterEntry = appCacheMasterEntry;
+            return e;
+        }
+
+        /**
+         * Writes the contents of this CacheHeader to the specified OutputStream.
+         */
+        public boolean writeHeader(OutputStream os) {
+            try {
+                ObjectOutputStream oos = new ObjectOutputStream(os);
+                oos.writeByte(CACHE_VERSION);
+                oos.writeBoolean(appCacheMasterEntry);
+                oos.writeBoolean(isAppCacheUpgradePending);
+                oos.writeUTF(key);
+                oos.writeUTF(etag == null ? "" : etag);
+                oos.writeLong(serverDate);
+                oos.writeLong(ttl);
+                oos.writeLong(softTtl);
+                writeStringStringMap(responseHeaders, oos);
+                oos.writeByte(codec);
+                oos.writeUTF(blob == null ? "" : blob);
+                oos.writeLong(checksum);
+                oos.flush();
+                return true;
+            } catch (IOException e) {
+                AppCacheLog.d("%s", e.toString());
+                return false;
+            }
+        }
+
+        /**
+         * Writes all entries of {@code map} into {@code oos}.
+         */
+        private static void writeStringStringMap(Map<String, String> map, ObjectOutputStream oos)
+                throws IOException {
+            if (map != null) {
+                oos.writeInt(map.size());
+                for (Map.Entry<String, String> entry : map.entrySet()) {
+                    oos.writeUTF(entry.getKey());
+                    oos.writeUTF(entry.getValue());
+                }
+            } else {
+                oos.writeInt(0);
+            }
+        }
+
+        /**
+         * @return a string to string map which contains the entries read from {@code ois}
+         *     previously written by {@link #writeStringStringMap}
+         */
+        private static Map<String, String> readStringStringMap(ObjectInputStream ois)
+                throws IOException {
+            int size = ois.readInt();
+            Map<String, String> result = (size == 0)
+                    ? Collections.<String, String>emptyMap()
+                    : new HashMap<String, String>(size);
+            for (int i = 0; i < size; i++) {
+                String key = ois.readUTF().intern();
+                String value = ois.readUTF().intern();
+                result.put(key, value);
+            }
+            return result;
+        }
+
+
+
+        /**
+         * Sets the AppCache flags in the first bytes of a header written by {@link #writeHeader}.
+         * The stream header is followed by the tag and the length (1 or 4 bytes) of a block
+         * of primitive data, that starts with the version and the two flags.
+         * Writing the flags with a new ObjectOutputStream would write a block of another length.
+         * @param start At least the first {@link #APPCACHE_FLAGS_MAX_END} bytes of the record.
+         * @param length The number of valid bytes in {@code start}.
+         * @return The number of bytes of {@code start} to write back to the record.
+         */
+        public static int updateAppCacheHeader(byte[] start, int length,
+                boolean appCacheMasterEntry, boolean isAppCacheUpgradePending) throws IOException {
+            int offset;
+            if (length < 6 || start[0] != (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8)
+                    || start[1] != (byte) ObjectStreamConstants.STREAM_MAGIC) {
+                throw new IOException("Not a cache header");
+            } else if (start[4] == ObjectStreamConstants.TC_BLOCKDATA) {
+                offset = 6;
+            } else if (start[4] == ObjectStreamConstants.TC_BLOCKDATALONG) {
+                offset = 9;
+            } else {
+                throw new IOException("Not a cache header");
+            }
+            // Skip the version.
+            offset++;
+            if (length < offset + 2) {
+                throw new IOException("Truncated cache header");
+            }
+            start[offset] = (byte) (appCacheMasterEntry ? 1 : 0);
+            start[offset + 1] = (byte) (isAppCacheUpgradePending ? 1 : 0);
+            return offset + 2;
+        }
+    }
+
+    /**
+     * A body that doesn't match its checksum.
+     */
+    private static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ChecksumException() {
+            super("Checksum mismatch");
+        }
+    }
+
+    /**
+     * A body that is verified when the caller reads its end.
+     */
+    private class VerifyingInputStream extends CheckedInputStream {
+        private final String mKey;
+        private final long mExpected;
+        private boolean mVerified = false;
+
+        private VerifyingInputStream(InputStream in, String key, long expected) {
+            super(in, new CRC32());
+            mKey = key;
+            mExpected = expected;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                verify();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                verify();
+            }
+            return read;
+        }
+
+        private void verify() throws IOException {
+            if (!mVerified) {
+                mVerified = true;
+                verifiedStream(mKey, mExpected, getChecksum().getValue());
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private int bytesRead = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+            public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                bytesRead++;
+            }
+            return result;
+        }
+
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result = super.read(buffer, offset, count);
+            if (result != -1) {
+                bytesRead += result;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * The update pipeline of an application cache for plain JVMs: Checks the manifest,
+ * downloads the pending master entries into an {@link AppCacheStore} and runs the
+ * {@link UpdateStateMachine}. Unlike the Volley based {@code ApplicationCache}
+ * an update runs synchronously in {@link #update(boolean)}, the master entries
+ * are downloaded with an {@link Executor}.
+ */
+public class ApplicationCacheUpdater {
+
+	/**
+	 * Receives the events of an update. Called on the updating or downloading threads.
+	 */
+	public interface UpdateListener {
+		void onNoUpdate();
+		void onDownloading(int total);
+		void onProgress(DownloadProgress progress);
+		void onError(String url, Exception error);
+		void onUpdateReady();
+		void onObsolete();
+	}
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final String mManifestURL;
+	private final AppCacheStore mStore;
+	private final HttpTransport mTransport;
+	private final Executor mExecutor;
+	private final Clock mClock;
+	private final UpdateStateMachine mStateMachine = new UpdateStateMachine();
+	private volatile UpdateListener mListener;
+	private volatile ProgressDeliveryPolicy mProgressPolicy = ProgressDeliveryPolicy.EVERY_RESPONSE;
+	private volatile RequestTracer mRequestTracer;
+
+	/**
+	 * Creates an updater that downloads the master entries one by one on the updating thread.
+	 */
+	public ApplicationCacheUpdater(String manifestURL, AppCacheStore store, HttpTransport transport) {
+		this(manifestURL, store, transport, null, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param executor Downloads the master entries or null to download them on the updating thread.
+	 */
+	public ApplicationCacheUpdater(String manifestURL, AppCacheStore store, HttpTransport transport,
+			Executor executor, Clock clock) {
+		mManifestURL = manifestURL;
+		mStore = store;
+		mTransport = transport;
+		mExecutor = executor;
+		mClock = clock;
+	}
+
+	public void setUpdateListener(UpdateListener listener) {
+		mListener = listener;
+	}
+
+	public void setProgressDeliveryPolicy(ProgressDeliveryPolicy policy) {
+		if(policy == null) {
+			throw new IllegalArgumentException();
+		}
+		mProgressPolicy = policy;
+	}
+
+	/**
+	 * Traces the stages of the manifest and master entry requests of the following updates.
+	 * @param tracer The tracer or null to disable tracing.
+	 */
+	public void setRequestTracer(RequestTracer tracer) {
+		mRequestTracer = tracer;
+	}
+
+	public AppCacheStore getStore() {
+		return mStore;
+	}
+
+	public UpdateStateMachine getStateMachine() {
+		return mStateMachine;
+	}
+
+	public short getStatus() {
+		return mStateMachine.getStatus();
+	}
+
+	/**
+	 * Runs an update and waits until it's finished. The first call initializes the state machine.
+	 * If the download of a master entry fails, the update ends in
+	 * {@link UpdateStateMachine#STATUS_IDLE} and the next update retries the pending entries.
+	 * @param force True to load the manifest unconditionally.
+	 * @return The status after the update. If another update is running, its current status.
+	 * @throws InterruptedException If interrupted while waiting for the downloads.
+	 */
+	public short update(boolean force) throws InterruptedException {
+		long generation;
+		if(mStateMachine.getStatus() == UpdateStateMachine.STATUS_UNCACHED) {
+			generation = mStateMachine.init();
+		} else {
+			generation = mStateMachine.beginUpdate();
+			if(generation == UpdateStateMachine.NO_GENERATION) {
+				return mStateMachine.getStatus();
+			}
+		}
+		long startNanos = System.nanoTime();
+		try {
+			run(generation, force);
+		} finally {
+			mStore.getMetrics().recordUpdate(System.nanoTime() - startNanos);
+		}
+		return mStateMachine.getStatus();
+	}
+
+	/**
+	 * Aborts a running update. Entries that are currently downloaded are still stored.
+	 */
+	public boolean abort() {
+		return mStateMachine.abort();
+	}
+
+	public void swapCache() {
+		mStateMachine.swapCache();
+	}
+
+	private void run(final long generation, boolean force) throws InterruptedException {
+		List<String> pending;
+		RequestTrace manifestTrace = RequestTrace.start(mRequestTracer, "manifest", mManifestURL);
+		trace(manifestTrace, RequestTracer.STAGE_QUEUED);
+		try {
+			pending = checkManifest(force, manifestTrace);
+			trace(manifestTrace, RequestTracer.STAGE_DELIVERED);
+		} catch(Exception e) {
+			trace(manifestTrace, RequestTracer.STAGE_FAILED);
+			if(mStateMachine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_OBSOLETE)) {
+				UpdateListener listener = mListener;
+				if(listener != null) {
+					listener.onError(mManifestURL, e);
+					listener.onObsolete();
+				}
+			}
+			return;
+		}
+
+		final int total = pending.size();
+		if(total == 0) {
+			if(mStateMachine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_IDLE)) {
+				UpdateListener listener = mListener;
+				if(listener != null) {
+					listener.onNoUpdate();
+				}
+			}
+			return;
+		}
+
+		final DownloadTracker tracker = new DownloadTracker(mProgressPolicy, mClock);
+		for(String url : pending) {
+			tracker.expect(url, mStore.getSizeHint(url));
+		}
+		tracker.start(total);
+		if(!mStateMachine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_DOWNLOADING)) {
+			return;
+		}
+		UpdateListener listener = mListener;
+		if(listener != null) {
+			listener.onDownloading(total);
+		}
+
+		final CountDownLatch done = new CountDownLatch(total);
+		RequestTracer tracer = mRequestTracer;
+		for(final String url : pending) {
+			final RequestTrace entryTrace = RequestTrace.start(tracer, "entry", url);
+			trace(entryTrace, RequestTracer.STAGE_QUEUED);
+			Runnable download = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if(mStateMachine.isCurrent(generation)) {
+							download(url, entryTrace, generation, tracker, total);
+						} else {
+							trace(entryTrace, RequestTracer.STAGE_FAILED);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			if(mExecutor == null) {
+				download.run();
+			} else {
+				mExecutor.execute(download);
+			}
+		}
+		done.await();
+
+		listener = mListener;
+		if(tracker.isComplete()) {
+			// One sync for all master entries, see AppCacheStore.setDurability(int).
+			mStore.sync();
+			if(mStateMachine.transition(generation, UpdateStateMachine.STATUS_DOWNLOADING, UpdateStateMachine.STATUS_UPDATEREADY)
+					&& listener != null) {
+				listener.onUpdateReady();
+			}
+		} else {
+			mStateMachine.transition(generation, UpdateStateMachine.STATUS_DOWNLOADING, UpdateStateMachine.STATUS_IDLE);
+		}
+	}
+
+	/**
+	 * Loads the manifest (conditionally, if cached) and applies it to the store.
+	 * @return The pending master entries.
+	 */
+	private List<String> checkManifest(boolean force, RequestTrace trace) throws IOException, URISyntaxException {
+		StoreEntry cached = force ? null : mStore.peek(mManifestURL);
+		trace(trace, RequestTracer.STAGE_CACHE_CHECKED);
+		trace(trace, RequestTracer.STAGE_NETWORK_START);
+		HttpTransport.Response response = mTransport.get(mManifestURL, CacheHeaderParser.conditionalHeaders(cached));
+		try {
+			int statusCode = response.getStatusCode();
+			if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				trace(trace, RequestTracer.STAGE_NETWORK_END);
+				InputStream body = mStore.getStream(mManifestURL);
+				if(body == null) {
+					throw new IOException("Not modified, but not cached anymore: " + mManifestURL);
+				}
+				try {
+					List<String> pending = mStore.applyManifest(CacheManifest.parse(mManifestURL, body), false);
+					trace(trace, RequestTracer.STAGE_PARSED);
+					return pending;
+				} finally {
+					body.close();
+				}
+			}
+			if(statusCode < 200 || statusCode > 299) {
+				throw new IOException("Unexpected response code " + statusCode + " for " + mManifestURL);
+			}
+			byte[] data = readFully(response.getBody());
+			trace(trace, RequestTracer.STAGE_NETWORK_END);
+			CacheManifest manifest = CacheManifest.parse(mManifestURL, new ByteArrayInputStream(data));
+			List<String> pending = mStore.applyManifest(manifest, true);
+			trace(trace, RequestTracer.STAGE_PARSED);
+			StoreEntry entry = CacheHeaderParser.parseCacheHeaders(response.getHeaders());
+			entry.data = data;
+			mStore.put(mManifestURL, entry);
+			trace(trace, RequestTracer.STAGE_CACHE_WRITTEN);
+			return pending;
+		} finally {
+			response.close();
+		}
+	}
+
+	private void download(String url, RequestTrace trace, long generation, DownloadTracker tracker, int total) {
+		long bytes;
+		long startNanos = System.nanoTime();
+		try {
+			bytes = downloadEntry(url, trace, generation, tracker);
+			mStore.getMetrics().recordDownload(System.nanoTime() - startNanos);
+		} catch(IOException e) {
+			tracker.onFailed(url);
+			mStore.getMetrics().recordFailedDownload();
+			trace(trace, RequestTracer.STAGE_FAILED);
+			UpdateListener listener = mListener;
+			if(mStateMachine.isCurrent(generation) && listener != null) {
+				listener.onError(url, e);
+			}
+			return;
+		}
+		deliverProgress(tracker.onLoaded(url, bytes, total), generation);
+		trace(trace, RequestTracer.STAGE_DELIVERED);
+	}
+
+	private void deliverProgress(DownloadProgress progress, long generation) {
+		UpdateListener listener = mListener;
+		if(progress != null && mStateMachine.isCurrent(generation) && listener != null) {
+			listener.onProgress(progress);
+		}
+	}
+
+	/**
+	 * Streams a master entry into the store. The body is read while it's written to the store,
+	 * so the cache write stage of the trace includes the transfer of the body.
+	 * The received bytes are counted while streaming, so the progress of large
+	 * entries is delivered before they are complete.
+	 * @return The size of the body, 0 if it was not modified.
+	 */
+	private long downloadEntry(String url, RequestTrace trace, final long generation, DownloadTracker tracker)
+			throws IOException {
+		StoreEntry cached = mStore.peek(url);
+		trace(trace, RequestTracer.STAGE_CACHE_CHECKED);
+		trace(trace, RequestTracer.STAGE_NETWORK_START);
+		HttpTransport.Response response = mTransport.get(url, CacheHeaderParser.conditionalHeaders(cached));
+		try {
+			int statusCode = response.getStatusCode();
+			trace(trace, RequestTracer.STAGE_NETWORK_END);
+			if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				if(!mStore.markUpToDate(url)) {
+					throw new IOException("Not modified, but not cached anymore: " + url);
+				}
+				trace(trace, RequestTracer.STAGE_CACHE_WRITTEN);
+				return 0;
+			}
+			if(statusCode < 200 || statusCode > 299) {
+				throw new IOException("Unexpected response code " + statusCode + " for " + url);
+			}
+			tracker.expect(url, response.getContentLength());
+			InputStream body = new ProgressInputStream(response.getBody(), tracker, url) {
+				@Override
+				protected void onProgress(DownloadProgress progress) {
+					deliverProgress(progress, generation);
+				}
+			};
+			long bytes = mStore.putStream(url, CacheHeaderParser.parseCacheHeaders(response.getHeaders()), body);
+			trace(trace, RequestTracer.STAGE_CACHE_WRITTEN);
+			return bytes;
+		} finally {
+			response.close();
+		}
+	}
+
+	private static void trace(RequestTrace trace, int stage) {
+		if(trace != null) {
+			trace.stage(stage);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+		while((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The content-addressed bodies of an {@link AppCacheStore}: Bodies are stored once
+ * per digest (and codec) in a blob record, the entries only reference them.
+ * Counts the references and deletes a blob with its last reference.
+ * The counts aren't persisted, {@code AppCacheStore.initialize()} rebuilds them
+ * from the entry headers. Not thread-safe, guarded by the store.
+ */
+class BlobIndex {
+	/** Prefix of blob records, entry records are named by numbers. */
+	static final String PREFIX = "blob-";
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final StorageEngine mEngine;
+	private final Map<String, Blob> mBlobs = new HashMap<String, Blob>();
+	/** Collects unreferenced blobs instead of deleting them, if not null. */
+	private List<String> mDeferredDeletes;
+
+	private static class Blob {
+		final long size;
+		int references;
+
+		Blob(long size) {
+			this.size = size;
+		}
+	}
+
+	BlobIndex(StorageEngine engine) {
+		mEngine = engine;
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			IllegalStateException ex = new IllegalStateException(DIGEST_ALGORITHM + " is not available");
+			ex.initCause(e);
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return The name of the blob of a body with the digest {@code digest}, stored with {@code codec}.
+	 */
+	static String getName(byte[] digest, int codec) {
+		StringBuilder name = new StringBuilder(PREFIX.length() + digest.length * 2 + 2);
+		name.append(PREFIX);
+		for(byte b : digest) {
+			name.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return name.append('-').append(codec).toString();
+	}
+
+	static boolean isBlob(String filename) {
+		return filename.startsWith(PREFIX);
+	}
+
+	boolean contains(String name) {
+		return mBlobs.containsKey(name);
+	}
+
+	/**
+	 * Adds a reference to a blob.
+	 * @param size The size of the blob, used if it's not referenced yet.
+	 * @return The bytes the blob adds to the size of the store: Its size for the first reference, otherwise 0.
+	 */
+	long acquire(String name, long size) {
+		Blob blob = mBlobs.get(name);
+		if(blob == null) {
+			blob = new Blob(size);
+			mBlobs.put(name, blob);
+		}
+		blob.references++;
+		return blob.references == 1 ? blob.size : 0;
+	}
+
+	/**
+	 * Removes a reference and deletes the blob with the last one.
+	 * @param name The blob or null for an entry with an inline body.
+	 * @return The bytes freed.
+	 */
+	long release(String name) {
+		Blob blob = name != null ? mBlobs.get(name) : null;
+		if(blob == null || --blob.references > 0) {
+			return 0;
+		}
+		mBlobs.remove(name);
+		if(mDeferredDeletes != null) {
+			mDeferredDeletes.add(name);
+		} else if(!mEngine.delete(name)) {
+			AppCacheLog.d("Could not delete blob %s", name);
+		}
+		return blob.size;
+	}
+
+	/**
+	 * Deletes a corrupt blob, the entries that still reference it can't be read anymore.
+	 * @return The bytes freed.
+	 */
+	long discard(String name) {
+		Blob blob = mBlobs.remove(name);
+		if(blob == null) {
+			return 0;
+		}
+		if(!mEngine.delete(name)) {
+			AppCacheLog.d("Could not delete blob %s", name);
+		}
+		return blob.size;
+	}
+
+	/**
+	 * While the store is scanned, a blob without references may be referenced by an entry
+	 * that isn't loaded yet: Its deletion is deferred to the end of the scan.
+	 * @param deferredDeletes Collects the unreferenced blobs or null to delete them again.
+	 */
+	void setDeferredDeletes(List<String> deferredDeletes) {
+		mDeferredDeletes = deferredDeletes;
+	}
+
+	/**
+	 * Forgets all blobs, the records are deleted by the store.
+	 */
+	void clear() {
+		mBlobs.clear();
+	}
+
+	int size() {
+		return mBlobs.size();
+	}
+}
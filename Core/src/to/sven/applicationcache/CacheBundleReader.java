@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a cache bundle: Many responses in one length-prefixed stream.
+ * 
+ * Format (all numbers big-endian, strings in modified UTF-8 as written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}):
+ * <pre>
+ * bundle  = MAGIC version:int record* end
+ * record  = 0x01 url:UTF statusCode:int headerCount:int (name:UTF value:UTF)* bodyLength:long body
+ * end     = 0x00
+ * </pre>
+ * The body of a record can be read with {@link #body()} while the bundle is
+ * streamed, nothing is buffered.
+ */
+public class CacheBundleReader {
+
+	public static final String MAGIC = "ACBUNDLE";
+	public static final int VERSION = 1;
+	public static final int RECORD_END = 0;
+	public static final int RECORD_ENTRY = 1;
+
+	/** Content type of a bundle response. */
+	public static final String CONTENT_TYPE = "application/x-appcache-bundle";
+
+	private final DataInputStream mIn;
+	private String mUrl;
+	private int mStatusCode;
+	private Map<String, String> mHeaders;
+	private long mBodyLength;
+	private BodyInputStream mBody;
+
+	/**
+	 * @param in The bundle.
+	 * @throws IOException If {@code in} is not a bundle of a supported version.
+	 */
+	public CacheBundleReader(InputStream in) throws IOException {
+		mIn = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length()];
+		mIn.readFully(magic);
+		if(!MAGIC.equals(new String(magic, "US-ASCII"))) {
+			throw new IOException("Not a cache bundle.");
+		}
+		int version = mIn.readInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported bundle version " + version);
+		}
+	}
+
+	/**
+	 * Moves to the next record. The unread rest of the current body is skipped.
+	 * @return False, if the end of the bundle was reached.
+	 * @throws IOException If the bundle is truncated or corrupt.
+	 */
+	public boolean next() throws IOException {
+		if(mBody != null) {
+			mBody.skipRemaining();
+			mBody = null;
+		}
+		int type = mIn.read();
+		if(type == RECORD_END) {
+			mUrl = null;
+			return false;
+		} else if(type != RECORD_ENTRY) {
+			throw new IOException(type == -1 ? "Bundle is truncated." : "Unknown record type " + type);
+		}
+		mUrl = mIn.readUTF();
+		mStatusCode = mIn.readInt();
+		int headerCount = mIn.readInt();
+		if(headerCount == 0) {
+			mHeaders = Collections.emptyMap();
+		} else {
+			mHeaders = new HashMap<String, String>(headerCount);
+			for(int i = 0; i < headerCount; i++) {
+				String name = mIn.readUTF();
+				mHeaders.put(name, mIn.readUTF());
+			}
+		}
+		mBodyLength = mIn.readLong();
+		if(mBodyLength < 0) {
+			throw new IOException("Invalid body length " + mBodyLength);
+		}
+		mBody = new BodyInputStream(mIn, mBodyLength);
+		return true;
+	}
+
+	public String url() {
+		return mUrl;
+	}
+
+	public int statusCode() {
+		return mStatusCode;
+	}
+
+	public Map<String, String> headers() {
+		return mHeaders;
+	}
+
+	public long bodyLength() {
+		return mBodyLength;
+	}
+
+	/**
+	 * @return The body of the current record. Closing it doesn't close the bundle.
+	 */
+	public InputStream body() {
+		return mBody;
+	}
+
+	/**
+	 * The body of one record, ends after {@code length} bytes.
+	 */
+	private static class BodyInputStream extends FilterInputStream {
+		private long mRemaining;
+
+		private BodyInputStream(InputStream in, long length) {
+			super(in);
+			mRemaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(mRemaining <= 0) {
+				return -1;
+			}
+			int result = super.read();
+			if(result == -1) {
+				throw new EOFException("Bundle is truncated.");
+			}
+			mRemaining--;
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if(mRemaining <= 0) {
+				return -1;
+			}
+			int result = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+			if(result == -1) {
+				throw new EOFException("Bundle is truncated.");
+			}
+			mRemaining -= result;
+			return result;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(Math.min(count, mRemaining));
+			mRemaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), mRemaining);
+		}
+
+		@Override
+		public void close() {
+			// The bundle stays open.
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		private void skipRemaining() throws IOException {
+			while(mRemaining > 0) {
+				if(skip(mRemaining) <= 0 && read() == -1) {
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Converts HTTP headers to {@link StoreEntry} metadata and back,
+ * like Volley's {@code HttpHeaderParser} does for {@code Cache.Entry}.
+ */
+public class CacheHeaderParser {
+	private static final String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	private CacheHeaderParser() {
+	}
+
+	/**
+	 * Extracts a {@link StoreEntry} from the response headers.
+	 * Unlike Volley, responses with {@code no-cache}/{@code no-store} get an expired
+	 * entry instead of none: Master entries are cached until the manifest changes anyway.
+	 * @param headers The response headers.
+	 * @return The entry without data.
+	 */
+	public static StoreEntry parseCacheHeaders(Map<String, String> headers) {
+		long now = System.currentTimeMillis();
+
+		long serverDate = parseDateAsEpoch(headers.get("Date"));
+		long serverExpires = parseDateAsEpoch(headers.get("Expires"));
+		long maxAge = 0;
+		boolean hasCacheControl = false;
+
+		String headerValue = headers.get("Cache-Control");
+		if (headerValue != null) {
+			hasCacheControl = true;
+			String[] tokens = headerValue.split(",");
+			for (int i = 0; i < tokens.length; i++) {
+				String token = tokens[i].trim();
+				if (token.equals("no-cache") || token.equals("no-store")
+						|| token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
+					maxAge = 0;
+					break;
+				} else if (token.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(token.substring(8));
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+
+		long softExpire = 0;
+		if (hasCacheControl) {
+			softExpire = now + maxAge * 1000;
+		} else if (serverDate > 0 && serverExpires >= serverDate) {
+			softExpire = now + (serverExpires - serverDate);
+		}
+
+		StoreEntry entry = new StoreEntry();
+		entry.etag = headers.get("ETag");
+		entry.softTtl = softExpire;
+		entry.ttl = entry.softTtl;
+		entry.serverDate = serverDate;
+		entry.responseHeaders = headers;
+		return entry;
+	}
+
+	/**
+	 * Builds the headers for a conditional request of a cached entry.
+	 * @param entry The cached entry or null.
+	 * @return If-None-Match and If-Modified-Since, if known.
+	 */
+	public static Map<String, String> conditionalHeaders(StoreEntry entry) {
+		Map<String, String> headers = new HashMap<String, String>();
+		if(entry == null) {
+			return headers;
+		}
+		if(entry.etag != null) {
+			headers.put("If-None-Match", entry.etag);
+		}
+		if(entry.serverDate > 0) {
+			headers.put("If-Modified-Since", newDateFormat().format(new Date(entry.serverDate)));
+		}
+		return headers;
+	}
+
+	/**
+	 * Parses a RFC1123 date.
+	 * @return Milliseconds since epoch or 0, if the date is missing or invalid.
+	 */
+	public static long parseDateAsEpoch(String dateStr) {
+		if(dateStr == null) {
+			return 0;
+		}
+		try {
+			return newDateFormat().parse(dateStr).getTime();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	private static SimpleDateFormat newDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat(RFC1123_PATTERN, Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+}
@@ -23,6 +23,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -44,6 +45,7 @@ public class CacheManifest {
 	private static final String SECTION_NETWORK = "NETWORK:";
 	private static final String SECTION_SETTINGS = "SETTINGS:";
 	private static final String MODE_FLAG_PREFER_ONLINE = "prefer-online";
+	private static final String SIZE_HINT_PREFIX = "size=";
 	
 	public static final short CACHE_MODE_FAST = 0;
 	public static final short CACHE_MODE_PREFER_ONLINE = 1;
@@ -63,6 +65,8 @@ public class CacheManifest {
 	private final Map<URI, URI> mFallbackEntries = new LinkedHashMap<URI, URI>();
 	private final List<URI> mOnlineWhitelistNamespaces = new ArrayList<URI>();
 	private final LinkedHashSet<URI> mMasterEntries = new LinkedHashSet<URI>(); 
+	private final Map<URI, String> mEntryComments = new HashMap<URI, String>();
+	private final Map<URI, Long> mSizeHints = new HashMap<URI, Long>();
 	private short mOnlineWhitelistWildcardFlag = ONLINE_WHITELIST_WILDCARD_FLAG_BLOCKING;
 	
 	private int mode = MODE_EXPLICIT;
@@ -168,14 +172,25 @@ public class CacheManifest {
 			throw new IOException("Not a cache manifest file.");
 		}
 		
+		long sizeHint = -1;
 		while((line = buffReader.readLine()) != null) {
 			line = line.trim();
 			if(line.length() == 0) continue;
-			if(isComment(line)) continue;
-			if(parseMode(line)) continue;
+			if(isComment(line)) {
+				sizeHint = parseSizeHint(line);
+				continue;
+			}
+			if(parseMode(line)) {
+				sizeHint = -1;
+				continue;
+			}
 			
 			String[] tokens = line.split("[ \n]");
 			processTokens(tokens);
+			if(sizeHint >= 0 && mode == MODE_EXPLICIT) {
+				mSizeHints.put(removeFragment(parseURI(tokens[0])), sizeHint);
+			}
+			sizeHint = -1;
 		}
 	}
 	
@@ -223,6 +238,25 @@ public class CacheManifest {
 		return true;
 	}
 
+	/**
+	 * Adds URI to Explicit/CACHE Section with a comment, e.g. the digest of the file.
+	 * The comment is written in the line before the URI. Only a size hint
+	 * ({@code size=<bytes>}) is parsed from the comment, see {@link #getSizeHint(String)}.
+	 * @param uri URI
+	 * @param comment The comment
+	 * @return true if it was added, false if it's an invalid URI.
+	 */
+	public boolean addExplicitEntry(URI uri, String comment) {
+		if(!addExplicitEntry(uri)) return false;
+		uri = removeFragment(uri);
+		mEntryComments.put(uri, comment);
+		long sizeHint = parseSizeHint(comment);
+		if(sizeHint >= 0) {
+			mSizeHints.put(uri, sizeHint);
+		}
+		return true;
+	}
+
 	/**
 	 * Adds URI to FALLBACK section.
 	 * @param uri URI
@@ -294,6 +328,29 @@ public class CacheManifest {
 		return line.startsWith("#");
 	}
 
+	/**
+	 * @return The size of a {@code size=<bytes>} token in the comment or -1.
+	 */
+	private static long parseSizeHint(String comment) {
+		int start = -1;
+		while((start = comment.indexOf(SIZE_HINT_PREFIX, start + 1)) >= 0) {
+			if(start > 0 && comment.charAt(start - 1) > ' ') {
+				// Part of another token like "filesize=".
+				continue;
+			}
+			int digits = start + SIZE_HINT_PREFIX.length();
+			int end = digits;
+			while(end < comment.length() && Character.isDigit(comment.charAt(end))) {
+				end++;
+			}
+			if(end == digits || end - digits > 18) {
+				return -1;
+			}
+			return Long.parseLong(comment.substring(digits, end));
+		}
+		return -1;
+	}
+
 	private boolean parseMode(String line) {
 		if(line.equals(SECTION_CACHE))
 			mode = MODE_EXPLICIT;
@@ -380,6 +437,10 @@ public class CacheManifest {
 		}
 		
 		for(URI uri : mExplicitEntries) {
+			String entryComment = mEntryComments.get(uri);
+			if(entryComment != null) {
+				builder.append("# " + entryComment).append(LF);
+			}
 			builder.append(toString(uri)).append(LF);
 		}
 		
@@ -415,11 +476,22 @@ public class CacheManifest {
 	}
 	
 	private String toString(URI uri) {
-		if(mManifestURL != null) {
-			uri = mManifestURL.relativize(uri);
-			if(getWithoutPath(uri).equals(getWithoutPath(mManifestURL))) {
-				return uri.getPath();
+		if(mManifestURL != null && getWithoutPath(uri).equals(getWithoutPath(mManifestURL))) {
+			// Relative to the directory of the manifest. URI.relativize() only does this on Android,
+			// the JVM only strips a base path that is a prefix of the entry.
+			// Keep the encoding, a decoded space would split the line into two tokens.
+			String path = uri.getRawPath();
+			String manifestPath = mManifestURL.getRawPath();
+			String directory = manifestPath.substring(0, manifestPath.lastIndexOf('/') + 1);
+			if(path.length() > directory.length() && path.startsWith(directory)) {
+				String relative = path.substring(directory.length());
+				int colon = relative.indexOf(':');
+				if(colon == -1 || relative.lastIndexOf('/', colon) != -1) {
+					path = relative;
+				}
 			}
+			String query = uri.getRawQuery();
+			return query == null ? path : path + "?" + query;
 		}
 		return uri.toString();
 	}
@@ -478,6 +550,23 @@ public class CacheManifest {
 		}
 	}
 
+	/**
+	 * The size of an explicit entry as announced by the comment in the line before it,
+	 * e.g. {@code # SHA-256:... size=4096}. Used to estimate the progress of an update.
+	 * @return The size in bytes or -1, if the manifest has no size hint for the URL.
+	 */
+	public long getSizeHint(String url) {
+		if(mSizeHints.isEmpty()) {
+			return -1;
+		}
+		try {
+			Long sizeHint = mSizeHints.get(new URI(url));
+			return sizeHint != null ? sizeHint : -1;
+		} catch (URISyntaxException e) {
+			return -1;
+		}
+	}
+
 	public ArrayList<URI> getExplicitEntries() {
 		return new ArrayList<URI>(mExplicitEntries);
 	}
@@ -489,12 +578,47 @@ public class CacheManifest {
 	public ArrayList<URI> getOnlineWhitelistNamespaces() {
 		return new ArrayList<URI>(mOnlineWhitelistNamespaces);
 	}
+
+	/**
+	 * Finds the fallback entry of the longest fallback namespace {@code url} starts with.
+	 * @return The fallback entry or null, if the URL is in no fallback namespace.
+	 */
+	public URI getFallbackEntry(String url) {
+		URI fallbackEntry = null;
+		int longest = -1;
+		for(Map.Entry<URI, URI> fallback : mFallbackEntries.entrySet()) {
+			String namespace = fallback.getKey().toString();
+			if(namespace.length() > longest && url.startsWith(namespace)) {
+				fallbackEntry = fallback.getValue();
+				longest = namespace.length();
+			}
+		}
+		return fallbackEntry;
+	}
+
+	/**
+	 * @return True, if {@code url} starts with a namespace of the NETWORK section
+	 * or the online whitelist wildcard flag is open.
+	 */
+	public boolean isOnlineWhitelisted(String url) {
+		if(mOnlineWhitelistWildcardFlag == ONLINE_WHITELIST_WILDCARD_FLAG_OPEN) {
+			return true;
+		}
+		for(URI namespace : mOnlineWhitelistNamespaces) {
+			if(url.startsWith(namespace.toString())) {
+				return true;
+			}
+		}
+		return false;
+	}
 	
 	public void clear() {
 		mExplicitEntries.clear();
 		mFallbackEntries.clear();
 		mOnlineWhitelistNamespaces.clear();
 		mMasterEntries.clear();
+		mEntryComments.clear();
+		mSizeHints.clear();
 	}
 
 	public String getComment() {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * Live counters and latency histograms of an {@link AppCacheStore} and the updates
+ * that fill it. Recording is lock-free and cheap enough to leave on in production;
+ * {@link #snapshot()} returns an immutable {@link CacheStats}.
+ */
+public class CacheMetrics {
+
+	/**
+	 * Receives a snapshot after every finished update, every prune of the cache and
+	 * every batch of a {@link CacheSweeper} that reclaimed space.
+	 * Called on the thread that finished the update or pruned the cache, keep it short.
+	 */
+	public interface Listener {
+		void onStats(CacheStats stats);
+	}
+
+	final StripedCounter pinnedHits = new StripedCounter();
+	final StripedCounter evictableHits = new StripedCounter();
+	final StripedCounter misses = new StripedCounter();
+	final StripedCounter bytesRead = new StripedCounter();
+	final StripedCounter bytesWritten = new StripedCounter();
+	final StripedCounter prunedEntries = new StripedCounter();
+	final StripedCounter prunedBytes = new StripedCounter();
+	final StripedCounter updates = new StripedCounter();
+	final StripedCounter failedDownloads = new StripedCounter();
+	final StripedCounter deduplicatedPuts = new StripedCounter();
+	final StripedCounter deduplicatedBytes = new StripedCounter();
+	final StripedCounter verifiedReads = new StripedCounter();
+	final StripedCounter corruptEntries = new StripedCounter();
+	final StripedCounter sweptFiles = new StripedCounter();
+	final StripedCounter sweptBytes = new StripedCounter();
+	final LatencyHistogram getLatency = new LatencyHistogram();
+	final LatencyHistogram putLatency = new LatencyHistogram();
+	final LatencyHistogram initializeLatency = new LatencyHistogram();
+	final LatencyHistogram updateLatency = new LatencyHistogram();
+	final LatencyHistogram downloadLatency = new LatencyHistogram();
+
+	private volatile Listener mListener;
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Records a lookup of an entry.
+	 * @param found False for a miss.
+	 * @param pinned True, if the entry is a master entry and can't be evicted.
+	 * @param bytes The bytes read.
+	 * @param nanos The duration of the lookup.
+	 */
+	void recordGet(boolean found, boolean pinned, long bytes, long nanos) {
+		if(!found) {
+			misses.increment();
+		} else if(pinned) {
+			pinnedHits.increment();
+		} else {
+			evictableHits.increment();
+		}
+		bytesRead.add(bytes);
+		getLatency.record(nanos);
+	}
+
+	void recordPut(long bytes, long nanos) {
+		bytesWritten.add(bytes);
+		putLatency.record(nanos);
+	}
+
+	/**
+	 * Records a put of a body that was already stored.
+	 * @param bytes The size of the body that was not written again.
+	 */
+	void recordDeduplicated(long bytes) {
+		deduplicatedPuts.increment();
+		deduplicatedBytes.add(bytes);
+	}
+
+	void recordInitialize(long nanos) {
+		initializeLatency.record(nanos);
+	}
+
+	void recordPrune(int entries, long bytes) {
+		prunedEntries.add(entries);
+		prunedBytes.add(bytes);
+		publish();
+	}
+
+	/**
+	 * Records a read that verified the body against its checksum.
+	 */
+	void recordVerified() {
+		verifiedReads.increment();
+	}
+
+	/**
+	 * Records an entry removed because its body didn't match its checksum.
+	 */
+	void recordCorrupted() {
+		corruptEntries.increment();
+	}
+
+	/**
+	 * Records records deleted by a {@link CacheSweeper}.
+	 */
+	void recordSweep(int files, long bytes) {
+		sweptFiles.add(files);
+		sweptBytes.add(bytes);
+		publish();
+	}
+
+	/**
+	 * Records the download of a master entry, from the request to the stored entry.
+	 */
+	public void recordDownload(long nanos) {
+		downloadLatency.record(nanos);
+	}
+
+	/**
+	 * Records a failed download of a master entry.
+	 */
+	public void recordFailedDownload() {
+		failedDownloads.increment();
+	}
+
+	/**
+	 * Records a finished update, from {@code STATUS_CHECKING} to its final status.
+	 */
+	public void recordUpdate(long nanos) {
+		updates.increment();
+		updateLatency.record(nanos);
+		publish();
+	}
+
+	public CacheStats snapshot() {
+		return new CacheStats(this);
+	}
+
+	private void publish() {
+		Listener listener = mListener;
+		if(listener != null) {
+			listener.onStats(snapshot());
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache pack: All entries of a cache in one self-describing file, written by
+ * {@link CachePackWriter}. The bodies are stored uncompressed, so they can be
+ * memory-mapped and read in place with {@link #map(Entry)}.
+ * 
+ * Format (all numbers big-endian, strings in modified UTF-8 as written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}):
+ * <pre>
+ * pack    = MAGIC version:int padding body* index trailer
+ * index   = manifestURL:UTF count:int entry*
+ * entry   = key:UTF flags:byte etag:UTF serverDate:long ttl:long softTtl:long
+ *           headerCount:int (name:UTF value:UTF)* offset:long length:long checksum:long
+ * trailer = indexOffset:long MAGIC
+ * </pre>
+ * The first body starts at {@link #ALIGNMENT}. A body of at least {@code ALIGNMENT}
+ * bytes starts on a multiple of it, smaller bodies don't cross such a boundary,
+ * so every body can be mapped with as few pages as possible. The index is at the end,
+ * the pack is written in one sequential pass.
+ */
+public class CachePack {
+
+	public static final String MAGIC = "ACPACK\r\n";
+	public static final int VERSION = 1;
+
+	/** Bodies are aligned to pages of this size. */
+	public static final int ALIGNMENT = 4096;
+
+	/** The entry is a master entry of the manifest. */
+	public static final int FLAG_MASTER_ENTRY = 1;
+	/** The entry is a master entry that waits for its update. */
+	public static final int FLAG_UPGRADE_PENDING = 2;
+
+	static final int TRAILER_SIZE = 8 + 8;
+
+	/**
+	 * One entry of the index.
+	 */
+	public static class Entry {
+		public String key;
+		public int flags;
+		public String etag;
+		public long serverDate;
+		public long ttl;
+		public long softTtl;
+		public Map<String, String> responseHeaders = Collections.emptyMap();
+		/** Position of the body in the pack. */
+		public long offset;
+		/** Length of the body. */
+		public long length;
+		/** The CRC32 of the body. */
+		public long checksum;
+
+		public boolean isMasterEntry() {
+			return (flags & FLAG_MASTER_ENTRY) != 0;
+		}
+
+		public boolean isUpgradePending() {
+			return (flags & FLAG_UPGRADE_PENDING) != 0;
+		}
+
+		/**
+		 * @return The metadata of this entry, without data.
+		 */
+		public StoreEntry toStoreEntry() {
+			StoreEntry entry = new StoreEntry();
+			entry.etag = etag;
+			entry.serverDate = serverDate;
+			entry.ttl = ttl;
+			entry.softTtl = softTtl;
+			entry.responseHeaders = responseHeaders;
+			entry.appCacheMasterEntry = isMasterEntry();
+			entry.wasAppCacheUpgrade = isUpgradePending();
+			return entry;
+		}
+	}
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private String mManifestURL;
+	private final List<Entry> mEntries = new ArrayList<Entry>();
+	private final Map<String, Entry> mEntriesByKey = new HashMap<String, Entry>();
+
+	/**
+	 * Opens a pack and reads its index.
+	 * @throws IOException If {@code file} is not a pack of a supported version.
+	 */
+	public CachePack(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		mChannel = mFile.getChannel();
+		try {
+			readIndex();
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		}
+	}
+
+	private void readIndex() throws IOException {
+		long length = mFile.length();
+		if(length < ALIGNMENT + TRAILER_SIZE) {
+			throw new IOException("Not a cache pack.");
+		}
+		readMagic();
+		int version = mFile.readInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported pack version " + version);
+		}
+		mFile.seek(length - TRAILER_SIZE);
+		long indexOffset = mFile.readLong();
+		readMagic();
+		if(indexOffset < ALIGNMENT || indexOffset > length - TRAILER_SIZE) {
+			throw new IOException("Invalid index offset " + indexOffset);
+		}
+		mChannel.position(indexOffset);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(mChannel)));
+		mManifestURL = in.readUTF();
+		if(mManifestURL.length() == 0) {
+			mManifestURL = null;
+		}
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			Entry entry = new Entry();
+			entry.key = in.readUTF();
+			entry.flags = in.readByte();
+			entry.etag = in.readUTF();
+			if(entry.etag.length() == 0) {
+				entry.etag = null;
+			}
+			entry.serverDate = in.readLong();
+			entry.ttl = in.readLong();
+			entry.softTtl = in.readLong();
+			int headerCount = in.readInt();
+			if(headerCount > 0) {
+				entry.responseHeaders = new HashMap<String, String>(headerCount);
+				for(int j = 0; j < headerCount; j++) {
+					String name = in.readUTF();
+					entry.responseHeaders.put(name, in.readUTF());
+				}
+			}
+			entry.offset = in.readLong();
+			entry.length = in.readLong();
+			entry.checksum = in.readLong();
+			if(entry.offset < ALIGNMENT || entry.length < 0 || entry.offset + entry.length > indexOffset) {
+				throw new IOException("Invalid body of " + entry.key);
+			}
+			mEntries.add(entry);
+			mEntriesByKey.put(entry.key, entry);
+		}
+	}
+
+	private void readMagic() throws IOException {
+		byte[] magic = new byte[MAGIC.length()];
+		mFile.readFully(magic);
+		if(!MAGIC.equals(new String(magic, "US-ASCII"))) {
+			throw new IOException("Not a cache pack.");
+		}
+	}
+
+	/**
+	 * @return The URL of the manifest of the packed cache or null.
+	 */
+	public String getManifestURL() {
+		return mManifestURL;
+	}
+
+	/**
+	 * @return All entries in the order of their bodies.
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(mEntries);
+	}
+
+	/**
+	 * @return The entry of {@code key} or null.
+	 */
+	public Entry getEntry(String key) {
+		return mEntriesByKey.get(key);
+	}
+
+	/**
+	 * Maps the body of an entry read-only into memory.
+	 */
+	public ByteBuffer map(Entry entry) throws IOException {
+		return mChannel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+	}
+
+	/**
+	 * @return The body of an entry, read from its mapping.
+	 */
+	public InputStream openBody(Entry entry) throws IOException {
+		return new ByteBufferInputStream(map(entry));
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	/**
+	 * Reads the remaining bytes of a buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) {
+			if(!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			count = Math.min(count, mBuffer.remaining());
+			mBuffer.get(buffer, offset, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long count) {
+			int skipped = (int) Math.min(Math.max(count, 0), mBuffer.remaining());
+			mBuffer.position(mBuffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+	}
+}
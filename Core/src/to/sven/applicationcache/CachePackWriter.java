@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a cache pack in the format read by {@link CachePack}, in one sequential pass.
+ */
+public class CachePackWriter {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte[] PADDING = new byte[CachePack.ALIGNMENT];
+
+	private final DataOutputStream mOut;
+	private final String mManifestURL;
+	private final List<CachePack.Entry> mEntries = new ArrayList<CachePack.Entry>();
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private long mPosition;
+	private boolean mFinished = false;
+
+	/**
+	 * @param out The pack, it should be buffered.
+	 * @param manifestURL The URL of the manifest of the packed cache or null.
+	 */
+	public CachePackWriter(OutputStream out, String manifestURL) throws IOException {
+		mOut = new DataOutputStream(out);
+		mManifestURL = manifestURL;
+		mOut.write(CachePack.MAGIC.getBytes("US-ASCII"));
+		mOut.writeInt(CachePack.VERSION);
+		mPosition = CachePack.MAGIC.length() + 4;
+		pad(CachePack.ALIGNMENT - mPosition);
+	}
+
+	/**
+	 * Writes the body of an entry and adds the entry to the index.
+	 * @param entry The metadata of the entry, its offset, length and checksum are set.
+	 * @param body The uncompressed body, read to its end but not closed.
+	 * @param lengthHint The length of the body or -1, if it's unknown. With a hint,
+	 * small bodies are packed closer.
+	 */
+	public void write(CachePack.Entry entry, InputStream body, long lengthHint) throws IOException {
+		if(mFinished) {
+			throw new IllegalStateException("Pack is finished.");
+		}
+		long pageOffset = mPosition % CachePack.ALIGNMENT;
+		if(pageOffset != 0 && (lengthHint < 0 || pageOffset + lengthHint > CachePack.ALIGNMENT)) {
+			pad(CachePack.ALIGNMENT - pageOffset);
+		}
+		CRC32 crc = new CRC32();
+		entry.offset = mPosition;
+		int count;
+		while((count = body.read(mBuffer)) != -1) {
+			mOut.write(mBuffer, 0, count);
+			crc.update(mBuffer, 0, count);
+			mPosition += count;
+		}
+		entry.length = mPosition - entry.offset;
+		entry.checksum = crc.getValue();
+		mEntries.add(entry);
+	}
+
+	/**
+	 * Removes the last written entry from the index, e.g. because its body turned out to
+	 * be corrupt. Its body stays in the pack as unreferenced bytes.
+	 */
+	public void discard(CachePack.Entry entry) {
+		mEntries.remove(entry);
+	}
+
+	/**
+	 * Writes the index and the trailer and flushes the pack. The underlying stream stays open.
+	 * @return The number of entries in the pack.
+	 */
+	public int finish() throws IOException {
+		if(!mFinished) {
+			long indexOffset = mPosition;
+			mOut.writeUTF(mManifestURL == null ? "" : mManifestURL);
+			mOut.writeInt(mEntries.size());
+			for(CachePack.Entry entry : mEntries) {
+				mOut.writeUTF(entry.key);
+				mOut.writeByte(entry.flags);
+				mOut.writeUTF(entry.etag == null ? "" : entry.etag);
+				mOut.writeLong(entry.serverDate);
+				mOut.writeLong(entry.ttl);
+				mOut.writeLong(entry.softTtl);
+				Map<String, String> headers = entry.responseHeaders;
+				mOut.writeInt(headers == null ? 0 : headers.size());
+				if(headers != null) {
+					for(Map.Entry<String, String> header : headers.entrySet()) {
+						mOut.writeUTF(header.getKey());
+						mOut.writeUTF(header.getValue());
+					}
+				}
+				mOut.writeLong(entry.offset);
+				mOut.writeLong(entry.length);
+				mOut.writeLong(entry.checksum);
+			}
+			mOut.writeLong(indexOffset);
+			mOut.write(CachePack.MAGIC.getBytes("US-ASCII"));
+			mOut.flush();
+			mFinished = true;
+		}
+		return mEntries.size();
+	}
+
+	private void pad(long count) throws IOException {
+		mOut.write(PADDING, 0, (int) count);
+		mPosition += count;
+	}
+}
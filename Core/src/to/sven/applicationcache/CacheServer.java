@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A loopback HTTP server that serves the application cache, e.g. to a WebView or another
+ * process on the device. The target of a request is resolved against the origin of the
+ * manifest, absolute targets are used as they are. The manifest's rules decide the response:
+ * <ul>
+ * <li>The manifest and its cached master entries are served from the store.</li>
+ * <li>Other URLs in a FALLBACK namespace get their cached fallback entry, the server
+ * doesn't use the network.</li>
+ * <li>URLs on the online whitelist get 502 Bad Gateway, the client loads them itself.</li>
+ * <li>Everything else gets 404 Not Found.</li>
+ * </ul>
+ * Bodies stored uncompressed in files are sent with {@link java.nio.channels.FileChannel#transferTo}
+ * and support single byte ranges. Other bodies and reads that have to be verified are
+ * streamed, chunked for HTTP/1.1.
+ * Connections are kept alive until they are idle for {@link #setIdleTimeout(int)}.
+ */
+public class CacheServer {
+
+	public static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 15000;
+
+	private static final int MAX_LINE_LENGTH = 8 * 1024;
+	private static final int MAX_HEADERS = 100;
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final String CRLF = "\r\n";
+
+	private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+
+	private final AppCacheStore mStore;
+	private final String mOrigin;
+	private final ServerSocketChannel mServerChannel;
+	private final ExecutorService mExecutor;
+	private final Set<SocketChannel> mConnections = new HashSet<SocketChannel>();
+	private volatile int mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private volatile boolean mStopped = false;
+
+	/**
+	 * Binds the server to the loopback interface, {@link #start()} starts serving.
+	 * @param store The cache to serve.
+	 * @param port The port or 0 for any free port.
+	 * @throws IOException If the port could not be bound.
+	 */
+	public CacheServer(AppCacheStore store, int port) throws IOException {
+		mStore = store;
+		mOrigin = getOrigin(store.getCacheManifestURL());
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+		mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AppCache-Server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private static String getOrigin(String manifestURL) throws IOException {
+		try {
+			URI uri = new URI(manifestURL);
+			return uri.getScheme() + "://" + uri.getRawAuthority();
+		} catch(URISyntaxException e) {
+			throw new IOException("Invalid manifest URL " + manifestURL);
+		}
+	}
+
+	/**
+	 * Sets how long a kept alive connection waits for its next request.
+	 */
+	public void setIdleTimeout(int idleTimeoutMillis) {
+		mIdleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public int getPort() {
+		return mServerChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * @return The URL of {@code path} on this server.
+	 */
+	public String getUrl(String path) {
+		return "http://127.0.0.1:" + getPort() + path;
+	}
+
+	/**
+	 * Starts accepting connections on a background thread.
+	 */
+	public void start() {
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	/**
+	 * Stops the server and closes all connections.
+	 */
+	public void stop() {
+		mStopped = true;
+		close(mServerChannel);
+		synchronized(mConnections) {
+			for(SocketChannel channel : mConnections) {
+				close(channel);
+			}
+			mConnections.clear();
+		}
+		mExecutor.shutdown();
+	}
+
+	private void accept() {
+		while(!mStopped) {
+			final SocketChannel channel;
+			try {
+				channel = mServerChannel.accept();
+			} catch(ClosedChannelException e) {
+				return;
+			} catch(IOException e) {
+				AppCacheLog.e(e, "Could not accept a connection");
+				continue;
+			}
+			synchronized(mConnections) {
+				if(mStopped) {
+					close(channel);
+					return;
+				}
+				mConnections.add(channel);
+			}
+			try {
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(channel);
+					}
+				});
+			} catch(RejectedExecutionException e) {
+				close(channel);
+			}
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+		try {
+			Socket socket = channel.socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(mIdleTimeoutMillis);
+			// The socket's stream honors the timeout, a stream of the channel wouldn't.
+			InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+			Connection connection = new Connection(channel);
+			while(!mStopped) {
+				Request request = Request.read(in);
+				if(request == null || !connection.respond(request)) {
+					break;
+				}
+			}
+		} catch(SocketTimeoutException e) {
+			// Idle, the client reconnects if it needs to.
+		} catch(IOException e) {
+			if(!mStopped) {
+				AppCacheLog.d("Connection failed: %s", e.toString());
+			}
+		} finally {
+			synchronized(mConnections) {
+				mConnections.remove(channel);
+			}
+			close(channel);
+		}
+	}
+
+	/**
+	 * Finds the entry that answers a URL by the rules of the manifest.
+	 * @return The key of the entry or null.
+	 */
+	private String resolveKey(String url, CacheManifest manifest) {
+		if(url.equals(mStore.getCacheManifestURL()) || (manifest != null && manifest.isMasterEntry(url))) {
+			if(mStore.contains(url)) {
+				return url;
+			}
+		}
+		if(manifest != null) {
+			URI fallbackEntry = manifest.getFallbackEntry(url);
+			if(fallbackEntry != null && mStore.contains(fallbackEntry.toString())) {
+				return fallbackEntry.toString();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a Range header with a single byte range.
+	 * @return The first and last byte of the range, an empty array if it isn't satisfiable
+	 * or null, if the header should be ignored.
+	 */
+	static long[] parseRange(String range, long length) {
+		if(range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if(dash == -1) {
+			return null;
+		}
+		try {
+			if(dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				if(suffix <= 0 || length == 0) {
+					return new long[0];
+				}
+				return new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			long first = Long.parseLong(spec.substring(0, dash));
+			long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+			if(first < 0 || last < first) {
+				return null;
+			}
+			if(first >= length) {
+				return new long[0];
+			}
+			return new long[] { first, Math.min(last, length - 1) };
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String getHeader(Map<String, String> headers, String name) {
+		for(Map.Entry<String, String> header : headers.entrySet()) {
+			if(header.getKey().equalsIgnoreCase(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static String getReason(int status) {
+		switch(status) {
+			case 200: return "OK";
+			case 206: return "Partial Content";
+			case 304: return "Not Modified";
+			case 400: return "Bad Request";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			case 416: return "Requested Range Not Satisfiable";
+			case 502: return "Bad Gateway";
+			default: return "Unknown";
+		}
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch(IOException e) {
+			// ignored, it's closed anyway
+		}
+	}
+
+	/**
+	 * A parsed request line and its headers.
+	 */
+	private static class Request {
+		String method;
+		String target;
+		boolean http11;
+		final Map<String, String> headers = new HashMap<String, String>();
+
+		/**
+		 * @return The next request or null, if the client closed the connection.
+		 */
+		static Request read(InputStream in) throws IOException {
+			String line;
+			do {
+				line = readLine(in);
+				if(line == null) {
+					return null;
+				}
+			} while(line.length() == 0);
+			Request request = new Request();
+			String[] parts = line.split(" ");
+			if(parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+				request.method = null;
+			} else {
+				request.method = parts[0];
+				request.target = parts[1];
+				request.http11 = !parts[2].equals("HTTP/1.0");
+			}
+			while((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if(colon > 0 && request.headers.size() < MAX_HEADERS) {
+					request.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+							line.substring(colon + 1).trim());
+				}
+			}
+			if(line == null) {
+				return null;
+			}
+			String contentLength = request.headers.get("content-length");
+			if(contentLength != null) {
+				// GET and HEAD don't have bodies, but the next request starts after it.
+				try {
+					long remaining = Long.parseLong(contentLength);
+					while(remaining > 0) {
+						long skipped = in.skip(remaining);
+						if(skipped <= 0) {
+							return null;
+						}
+						remaining -= skipped;
+					}
+				} catch(NumberFormatException e) {
+					request.method = null;
+				}
+			}
+			return request;
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int b;
+			while((b = in.read()) != -1) {
+				if(b == '\n') {
+					int length = line.length();
+					if(length > 0 && line.charAt(length - 1) == '\r') {
+						line.setLength(length - 1);
+					}
+					return line.toString();
+				}
+				if(line.length() == MAX_LINE_LENGTH) {
+					throw new IOException("Line too long.");
+				}
+				line.append((char) b);
+			}
+			return null;
+		}
+
+		boolean isKeepAlive() {
+			String connection = headers.get("connection");
+			return http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+		}
+	}
+
+	/**
+	 * Writes the responses of one connection.
+	 */
+	private class Connection {
+		private final SocketChannel mChannel;
+		private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+		Connection(SocketChannel channel) {
+			mChannel = channel;
+		}
+
+		/**
+		 * @return True, if the connection is kept alive.
+		 */
+		boolean respond(Request request) throws IOException {
+			if(request.method == null) {
+				sendError(400, false, false);
+				return false;
+			}
+			boolean keepAlive = request.isKeepAlive();
+			boolean head = request.method.equals("HEAD");
+			if(!head && !request.method.equals("GET")) {
+				sendError(405, false, keepAlive);
+				return keepAlive;
+			}
+			String url = request.target.startsWith("/") ? mOrigin + request.target : request.target;
+			CacheManifest manifest = mStore.getCacheManifest();
+			String key = resolveKey(url, manifest);
+			StoreEntry entry = key != null ? mStore.peek(key) : null;
+			if(entry == null) {
+				sendError(manifest != null && manifest.isOnlineWhitelisted(url) ? 502 : 404, head, keepAlive);
+				return keepAlive;
+			}
+
+			StringBuilder headers = new StringBuilder();
+			String contentType = getHeader(entry.responseHeaders, "Content-Type");
+			if(contentType != null) {
+				headers.append("Content-Type: ").append(contentType).append(CRLF);
+			}
+			if(entry.etag != null) {
+				headers.append("ETag: ").append(entry.etag).append(CRLF);
+			}
+			String lastModified = getHeader(entry.responseHeaders, "Last-Modified");
+			if(lastModified != null) {
+				headers.append("Last-Modified: ").append(lastModified).append(CRLF);
+			}
+			// The client revalidates, so it sees a swapped cache.
+			headers.append("Cache-Control: no-cache").append(CRLF);
+			if(entry.etag != null && entry.etag.equals(request.headers.get("if-none-match"))) {
+				sendHeaders(304, headers, keepAlive);
+				return keepAlive;
+			}
+
+			AppCacheStore.FileRegion region = mStore.openFileRegion(key);
+			if(region != null) {
+				try {
+					return sendRegion(request, entry, region, headers, head, keepAlive);
+				} finally {
+					close(region.channel);
+				}
+			}
+			InputStream body = mStore.getStream(key);
+			if(body == null) {
+				sendError(404, head, keepAlive);
+				return keepAlive;
+			}
+			try {
+				return sendStream(request, body, headers, head, keepAlive);
+			} finally {
+				body.close();
+			}
+		}
+
+		private boolean sendRegion(Request request, StoreEntry entry, AppCacheStore.FileRegion region,
+				StringBuilder headers, boolean head, boolean keepAlive) throws IOException {
+			long length = region.length;
+			long[] range = null;
+			String ifRange = request.headers.get("if-range");
+			if(ifRange == null || ifRange.equals(entry.etag)) {
+				range = parseRange(request.headers.get("range"), length);
+			}
+			headers.append("Accept-Ranges: bytes").append(CRLF);
+			if(range != null && range.length == 0) {
+				headers.append("Content-Range: bytes */").append(length).append(CRLF);
+				headers.append("Content-Length: 0").append(CRLF);
+				sendHeaders(416, headers, keepAlive);
+				return keepAlive;
+			}
+			long first = 0;
+			long count = length;
+			int status = 200;
+			if(range != null) {
+				first = range[0];
+				count = range[1] - range[0] + 1;
+				status = 206;
+				headers.append("Content-Range: bytes ").append(first).append('-').append(range[1])
+						.append('/').append(length).append(CRLF);
+			}
+			headers.append("Content-Length: ").append(count).append(CRLF);
+			sendHeaders(status, headers, keepAlive);
+			if(!head) {
+				long position = region.position + first;
+				while(count > 0) {
+					long sent = region.channel.transferTo(position, count, mChannel);
+					if(sent <= 0) {
+						throw new IOException("Body is truncated.");
+					}
+					position += sent;
+					count -= sent;
+				}
+			}
+			return keepAlive;
+		}
+
+		private boolean sendStream(Request request, InputStream body, StringBuilder headers,
+				boolean head, boolean keepAlive) throws IOException {
+			// The decompressed length isn't known up front.
+			keepAlive &= request.http11;
+			if(request.http11) {
+				headers.append("Transfer-Encoding: chunked").append(CRLF);
+			}
+			sendHeaders(200, headers, keepAlive);
+			if(head) {
+				return keepAlive;
+			}
+			int count;
+			while((count = body.read(mBuffer)) != -1) {
+				if(count == 0) {
+					continue;
+				}
+				if(request.http11) {
+					write(ascii(Integer.toHexString(count) + CRLF), ByteBuffer.wrap(mBuffer, 0, count), ascii(CRLF));
+				} else {
+					write(ByteBuffer.wrap(mBuffer, 0, count));
+				}
+			}
+			if(request.http11) {
+				write(ascii("0" + CRLF + CRLF));
+			}
+			return keepAlive;
+		}
+
+		/**
+		 * @param head True for a HEAD request, the body is left out.
+		 */
+		private void sendError(int status, boolean head, boolean keepAlive) throws IOException {
+			byte[] body = (status + " " + getReason(status) + "\n").getBytes("US-ASCII");
+			StringBuilder headers = new StringBuilder();
+			headers.append("Content-Type: text/plain").append(CRLF);
+			headers.append("Content-Length: ").append(body.length).append(CRLF);
+			if(status == 405) {
+				headers.append("Allow: GET, HEAD").append(CRLF);
+			}
+			sendHeaders(status, headers, keepAlive);
+			if(!head) {
+				write(ByteBuffer.wrap(body));
+			}
+		}
+
+		private void sendHeaders(int status, StringBuilder headers, boolean keepAlive) throws IOException {
+			StringBuilder response = new StringBuilder(headers.length() + 128);
+			response.append("HTTP/1.1 ").append(status).append(' ').append(getReason(status)).append(CRLF);
+			response.append("Date: ").append(DATE_FORMAT.get().format(new Date())).append(CRLF);
+			response.append(headers);
+			response.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append(CRLF);
+			response.append(CRLF);
+			write(ascii(response.toString()));
+		}
+
+		private void write(ByteBuffer... buffers) throws IOException {
+			ByteBuffer last = buffers[buffers.length - 1];
+			do {
+				mChannel.write(buffers);
+			} while(last.hasRemaining());
+		}
+	}
+
+	private static ByteBuffer ascii(String string) throws IOException {
+		return ByteBuffer.wrap(string.getBytes("ISO-8859-1"));
+	}
+}
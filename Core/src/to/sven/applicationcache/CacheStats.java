@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * An immutable snapshot of {@link CacheMetrics}.
+ * The counters are read one after another, they are not an atomic snapshot.
+ */
+public class CacheStats {
+	private final long mPinnedHits;
+	private final long mEvictableHits;
+	private final long mMisses;
+	private final long mBytesRead;
+	private final long mBytesWritten;
+	private final long mPrunedEntries;
+	private final long mPrunedBytes;
+	private final long mUpdates;
+	private final long mFailedDownloads;
+	private final long mDeduplicatedPuts;
+	private final long mDeduplicatedBytes;
+	private final long mVerifiedReads;
+	private final long mCorruptEntries;
+	private final long mSweptFiles;
+	private final long mSweptBytes;
+	private final LatencyHistogram.Snapshot mGetLatency;
+	private final LatencyHistogram.Snapshot mPutLatency;
+	private final LatencyHistogram.Snapshot mInitializeLatency;
+	private final LatencyHistogram.Snapshot mUpdateLatency;
+	private final LatencyHistogram.Snapshot mDownloadLatency;
+
+	CacheStats(CacheMetrics metrics) {
+		mPinnedHits = metrics.pinnedHits.sum();
+		mEvictableHits = metrics.evictableHits.sum();
+		mMisses = metrics.misses.sum();
+		mBytesRead = metrics.bytesRead.sum();
+		mBytesWritten = metrics.bytesWritten.sum();
+		mPrunedEntries = metrics.prunedEntries.sum();
+		mPrunedBytes = metrics.prunedBytes.sum();
+		mUpdates = metrics.updates.sum();
+		mFailedDownloads = metrics.failedDownloads.sum();
+		mDeduplicatedPuts = metrics.deduplicatedPuts.sum();
+		mDeduplicatedBytes = metrics.deduplicatedBytes.sum();
+		mVerifiedReads = metrics.verifiedReads.sum();
+		mCorruptEntries = metrics.corruptEntries.sum();
+		mSweptFiles = metrics.sweptFiles.sum();
+		mSweptBytes = metrics.sweptBytes.sum();
+		mGetLatency = metrics.getLatency.snapshot();
+		mPutLatency = metrics.putLatency.snapshot();
+		mInitializeLatency = metrics.initializeLatency.snapshot();
+		mUpdateLatency = metrics.updateLatency.snapshot();
+		mDownloadLatency = metrics.downloadLatency.snapshot();
+	}
+
+	/**
+	 * @return Hits of master entries, which are pinned in the cache.
+	 */
+	public long getPinnedHits() {
+		return mPinnedHits;
+	}
+
+	/**
+	 * @return Hits of other entries, which can be evicted.
+	 */
+	public long getEvictableHits() {
+		return mEvictableHits;
+	}
+
+	public long getHits() {
+		return mPinnedHits + mEvictableHits;
+	}
+
+	public long getMisses() {
+		return mMisses;
+	}
+
+	public double getHitRate() {
+		long requests = getHits() + mMisses;
+		return requests == 0 ? 0 : (double) getHits() / requests;
+	}
+
+	public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * @return Entries evicted because the cache was full.
+	 */
+	public long getPrunedEntries() {
+		return mPrunedEntries;
+	}
+
+	public long getPrunedBytes() {
+		return mPrunedBytes;
+	}
+
+	/**
+	 * @return Finished updates, successful or not.
+	 */
+	public long getUpdates() {
+		return mUpdates;
+	}
+
+	public long getFailedDownloads() {
+		return mFailedDownloads;
+	}
+
+	/**
+	 * @return Puts of bodies that were already stored, they only wrote the header.
+	 */
+	public long getDeduplicatedPuts() {
+		return mDeduplicatedPuts;
+	}
+
+	public long getDeduplicatedBytes() {
+		return mDeduplicatedBytes;
+	}
+
+	/**
+	 * @return Reads that verified the body against its checksum.
+	 */
+	public long getVerifiedReads() {
+		return mVerifiedReads;
+	}
+
+	/**
+	 * @return Entries removed because their body didn't match its checksum.
+	 */
+	public long getCorruptEntries() {
+		return mCorruptEntries;
+	}
+
+	/**
+	 * @return Orphaned and corrupt records deleted by a {@link CacheSweeper}.
+	 */
+	public long getSweptFiles() {
+		return mSweptFiles;
+	}
+
+	public long getSweptBytes() {
+		return mSweptBytes;
+	}
+
+	public LatencyHistogram.Snapshot getGetLatency() {
+		return mGetLatency;
+	}
+
+	/**
+	 * @return Latency of {@code put} and {@code putStream}, the latter includes reading the body.
+	 */
+	public LatencyHistogram.Snapshot getPutLatency() {
+		return mPutLatency;
+	}
+
+	public LatencyHistogram.Snapshot getInitializeLatency() {
+		return mInitializeLatency;
+	}
+
+	/**
+	 * @return Duration of the updates, from {@code STATUS_CHECKING} to their final status.
+	 */
+	public LatencyHistogram.Snapshot getUpdateLatency() {
+		return mUpdateLatency;
+	}
+
+	/**
+	 * @return Duration of the master entry downloads.
+	 */
+	public LatencyHistogram.Snapshot getDownloadLatency() {
+		return mDownloadLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHits() + " (pinned " + mPinnedHits + ") misses=" + mMisses
+				+ " read=" + mBytesRead + "B written=" + mBytesWritten + "B"
+				+ " pruned=" + mPrunedEntries + " (" + mPrunedBytes + "B) updates=" + mUpdates
+				+ " failedDownloads=" + mFailedDownloads
+				+ " deduplicated=" + mDeduplicatedPuts + " (" + mDeduplicatedBytes + "B)"
+				+ " verified=" + mVerifiedReads + " corrupt=" + mCorruptEntries
+				+ " swept=" + mSweptFiles + " (" + mSweptBytes + "B)"
+				+ "\n  get: " + mGetLatency + "\n  put: " + mPutLatency
+				+ "\n  initialize: " + mInitializeLatency + "\n  update: " + mUpdateLatency
+				+ "\n  download: " + mDownloadLatency;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconciles the records of an {@link AppCacheStore} with its index in the background.
+ * Deletes records that aren't indexed (e.g. left by a crashed process), records that
+ * are unreadable or truncated, records of old cache versions and blobs without references.
+ * 
+ * The records are checked in small batches, each limited to a time slice, and read
+ * without locking the store, so reads of the cache aren't blocked. A pass lists the
+ * records once and checks them batch by batch, the next pass starts over.
+ * The reclaimed space is reported to the {@link CacheMetrics} of the store.
+ */
+public class CacheSweeper {
+	public static final int DEFAULT_BATCH_SIZE = 32;
+	public static final long DEFAULT_TIME_SLICE_MILLIS = 5;
+	public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+	private static ScheduledExecutorService sDefaultExecutor;
+
+	private final AppCacheStore mStore;
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+	private long mTimeSliceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_SLICE_MILLIS);
+
+	/** The records of the current pass or null. */
+	private List<String> mPass;
+	private int mPosition;
+	private long mPasses;
+	private long mReclaimedFiles;
+	private long mReclaimedBytes;
+	private ScheduledFuture<?> mFuture;
+
+	public CacheSweeper(AppCacheStore store) {
+		mStore = store;
+	}
+
+	/**
+	 * @param batchSize The maximum number of records checked per batch.
+	 * @param timeSliceMillis The time after which a batch stops, at least one record is checked.
+	 */
+	public synchronized void setBatch(int batchSize, long timeSliceMillis) {
+		if(batchSize < 1 || timeSliceMillis < 0) {
+			throw new IllegalArgumentException();
+		}
+		mBatchSize = batchSize;
+		mTimeSliceNanos = TimeUnit.MILLISECONDS.toNanos(timeSliceMillis);
+	}
+
+	/**
+	 * Checks the next batch of records. Does nothing, while the store is not initialized.
+	 * @return True, if the batch finished a pass.
+	 */
+	public synchronized boolean sweepBatch() {
+		if(!mStore.isSweepable()) {
+			return false;
+		}
+		if(mPass == null) {
+			mPass = mStore.getStorageEngine().list();
+			mPosition = 0;
+		}
+		int end = Math.min(mPosition + mBatchSize, mPass.size());
+		mPosition += mStore.sweep(mPass.subList(mPosition, end), System.nanoTime() + mTimeSliceNanos, this);
+		if(mPosition < mPass.size()) {
+			return false;
+		}
+		mPass = null;
+		mPasses++;
+		return true;
+	}
+
+	/**
+	 * Finishes the current pass or runs a complete one on the calling thread, without
+	 * pauses between the batches. Does nothing, while the store is not initialized.
+	 * @return The bytes reclaimed.
+	 */
+	public long sweep() {
+		long reclaimed = getReclaimedBytes();
+		while(mStore.isSweepable() && !sweepBatch()) {
+			// Next batch.
+		}
+		return getReclaimedBytes() - reclaimed;
+	}
+
+	/**
+	 * Sweeps a batch every {@link #DEFAULT_INTERVAL_MILLIS} on a shared low priority thread.
+	 */
+	public void start() {
+		start(getDefaultExecutor(), DEFAULT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Sweeps a batch every {@code intervalMillis} on {@code executor}, until {@link #stop()}.
+	 */
+	public synchronized void start(ScheduledExecutorService executor, long intervalMillis) {
+		if(mFuture != null) {
+			return;
+		}
+		mFuture = executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweepBatch();
+				} catch(RuntimeException e) {
+					AppCacheLog.e(e, "Sweeping the cache failed");
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if(mFuture != null) {
+			mFuture.cancel(false);
+			mFuture = null;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getDefaultExecutor() {
+		if(sDefaultExecutor == null) {
+			sDefaultExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AppCache-Sweeper");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return sDefaultExecutor;
+	}
+
+	synchronized void onReclaimed(int files, long bytes) {
+		mReclaimedFiles += files;
+		mReclaimedBytes += bytes;
+	}
+
+	/**
+	 * @return The finished passes.
+	 */
+	public synchronized long getPasses() {
+		return mPasses;
+	}
+
+	public synchronized long getReclaimedFiles() {
+		return mReclaimedFiles;
+	}
+
+	public synchronized long getReclaimedBytes() {
+		return mReclaimedBytes;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link RequestTracer} that writes the stages in the Trace Event Format of
+ * {@code chrome://tracing} (and Perfetto). Every request gets its own row; the time
+ * between two stages is a slice named after the later stage, e.g. {@code network}
+ * from {@link #STAGE_NETWORK_START} to {@link #STAGE_NETWORK_END}.
+ * 
+ * The events are written while tracing in the JSON array format, so a trace of a
+ * crashed process is still readable. {@link #close()} terminates the array.
+ */
+public class ChromeTraceWriter implements RequestTracer, Closeable {
+	private static final String[] SLICE_NAMES = {
+		"queued", "cache lookup", "network queue", "network", "parse", "cache write", "delivery", "failed"
+	};
+
+	private final Writer mWriter;
+	private final long mOriginNanos = System.nanoTime();
+	/** Timestamp of the last stage per request. */
+	private final Map<Long, Long> mLastStage = new HashMap<Long, Long>();
+	private boolean mFirstEvent = true;
+	private boolean mClosed = false;
+
+	public ChromeTraceWriter(File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+
+	public ChromeTraceWriter(OutputStream out) throws IOException {
+		mWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		mWriter.write("[\n");
+	}
+
+	@Override
+	public synchronized void trace(long requestId, String kind, String url, int stage, long nanos) {
+		if(mClosed) {
+			return;
+		}
+		Long last = mLastStage.get(requestId);
+		boolean finished = stage == STAGE_DELIVERED || stage == STAGE_FAILED;
+		if(finished) {
+			mLastStage.remove(requestId);
+		} else {
+			mLastStage.put(requestId, nanos);
+		}
+		StringBuilder event = new StringBuilder(160);
+		event.append(mFirstEvent ? "" : ",\n");
+		event.append("{\"name\":\"").append(SLICE_NAMES[stage]).append("\",\"cat\":\"").append(escape(kind));
+		if(last == null) {
+			event.append("\",\"ph\":\"i\",\"s\":\"t\",\"ts\":").append(micros(nanos));
+		} else {
+			event.append("\",\"ph\":\"X\",\"ts\":").append(micros(last)).append(",\"dur\":").append(formatMicros(nanos - last));
+		}
+		event.append(",\"pid\":1,\"tid\":").append(requestId);
+		event.append(",\"args\":{\"url\":\"").append(escape(url)).append("\"}}");
+		try {
+			mWriter.write(event.toString());
+			mFirstEvent = false;
+			if(finished) {
+				mWriter.flush();
+			}
+		} catch(IOException e) {
+			AppCacheLog.e(e, "Could not write trace event, tracing stopped.");
+			mClosed = true;
+		}
+	}
+
+	/**
+	 * Terminates the trace and closes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(mClosed) {
+			mWriter.close();
+			return;
+		}
+		mClosed = true;
+		try {
+			mWriter.write("\n]\n");
+		} finally {
+			mWriter.close();
+		}
+	}
+
+	/**
+	 * @return The timestamp relative to the start of the trace.
+	 */
+	private String micros(long nanos) {
+		return formatMicros(nanos - mOriginNanos);
+	}
+
+	private static String formatMicros(long nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1000.0);
+	}
+
+	private static String escape(String value) {
+		StringBuilder builder = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if(c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+}
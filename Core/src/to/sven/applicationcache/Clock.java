@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * Monotonic clock for timing measurements.
+ * On Android the {@code AndroidClock} uses {@code SystemClock.elapsedRealtime()}.
+ */
+public interface Clock {
+	/**
+	 * @return Milliseconds since some fixed point, not affected by changes of the wall clock.
+	 */
+	long elapsedRealtime();
+
+	/** Clock based on {@link System#nanoTime()}. */
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long elapsedRealtime() {
+			return System.nanoTime() / 1000000L;
+		}
+	};
+}
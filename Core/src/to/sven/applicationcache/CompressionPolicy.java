@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decides which bodies the {@link AppCacheStore} compresses: Only text-like content
+ * types (HTML, CSS, JavaScript, JSON, XML, SVG, ...) with at least {@code minSize}
+ * bytes. Images, media and archives are already compressed and stored as they are.
+ * The codec of a body is recorded in its header, so entries are decompressed
+ * transparently and the policy can be changed at any time.
+ * 
+ * Only deflate is supported, it's available on every Android version and JVM.
+ */
+public class CompressionPolicy {
+
+	/** The body is stored as it is. */
+	public static final int CODEC_NONE = 0;
+	/** The body is stored deflated (zlib format). */
+	public static final int CODEC_DEFLATE = 1;
+
+	/** Bodies smaller than this aren't worth the overhead of compression by default. */
+	public static final int DEFAULT_MIN_SIZE = 1024;
+
+	/** Stores all bodies as they are. */
+	public static final CompressionPolicy NONE = new CompressionPolicy(CODEC_NONE, 0, Integer.MAX_VALUE);
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static final String[] COMPRESSIBLE_TYPES = {
+		"application/javascript", "application/x-javascript", "application/ecmascript",
+		"application/json", "application/xml", "application/wasm", "application/vnd.ms-fontobject",
+		"application/x-font-ttf", "font/ttf", "font/otf", "image/bmp", "image/x-icon",
+		"image/vnd.microsoft.icon"
+	};
+
+	private final int mCodec;
+	private final int mLevel;
+	private final int mMinSize;
+
+	/**
+	 * @param codec One of the {@code CODEC_} constants.
+	 * @param level The compression level, 1 (fastest) to 9 (smallest).
+	 * @param minSize Minimum size of compressed bodies in bytes.
+	 */
+	public CompressionPolicy(int codec, int level, int minSize) {
+		if(codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+			throw new IllegalArgumentException("Unknown codec " + codec);
+		}
+		if(codec == CODEC_DEFLATE && (level < 1 || level > 9)) {
+			throw new IllegalArgumentException("Invalid level " + level);
+		}
+		if(minSize < 0) {
+			throw new IllegalArgumentException();
+		}
+		mCodec = codec;
+		mLevel = level;
+		mMinSize = minSize;
+	}
+
+	/**
+	 * Deflates compressible bodies of at least {@link #DEFAULT_MIN_SIZE} bytes.
+	 * @param level The compression level, 1 (fastest) to 9 (smallest).
+	 */
+	public static CompressionPolicy deflate(int level) {
+		return new CompressionPolicy(CODEC_DEFLATE, level, DEFAULT_MIN_SIZE);
+	}
+
+	/**
+	 * @param responseHeaders The headers of the response.
+	 * @param size The size of the body or -1, if it's not known yet.
+	 * @return The codec to store the body with.
+	 */
+	public int codecFor(Map<String, String> responseHeaders, long size) {
+		if(mCodec == CODEC_NONE || (size >= 0 && size < mMinSize)) {
+			return CODEC_NONE;
+		}
+		String contentEncoding = getHeader(responseHeaders, "Content-Encoding");
+		if(contentEncoding != null && !contentEncoding.trim().equalsIgnoreCase("identity")) {
+			return CODEC_NONE;
+		}
+		return isCompressible(getHeader(responseHeaders, "Content-Type")) ? mCodec : CODEC_NONE;
+	}
+
+	/**
+	 * @return True for text-like content types, that usually shrink by compression.
+	 */
+	public static boolean isCompressible(String contentType) {
+		if(contentType == null) {
+			return false;
+		}
+		int end = contentType.indexOf(';');
+		String type = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.US);
+		if(type.startsWith("text/") || type.endsWith("+xml") || type.endsWith("+json")) {
+			return true;
+		}
+		for(String compressible : COMPRESSIBLE_TYPES) {
+			if(compressible.equals(type)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getCodec() {
+		return mCodec;
+	}
+
+	public int getLevel() {
+		return mLevel;
+	}
+
+	public int getMinSize() {
+		return mMinSize;
+	}
+
+	/**
+	 * Compresses a complete body.
+	 */
+	byte[] compress(byte[] data) {
+		Deflater deflater = new Deflater(mLevel);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while(!deflater.finished()) {
+				int count = deflater.deflate(buffer);
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return A stream that compresses into {@code out}. Closing it closes {@code out}.
+	 */
+	OutputStream compress(OutputStream out) {
+		return new DeflaterOutputStream(out, new Deflater(mLevel), BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					def.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return A stream of the decompressed body of an entry stored with {@code codec}.
+	 */
+	static InputStream decompress(InputStream in, int codec) throws IOException {
+		switch(codec) {
+		case CODEC_NONE:
+			return in;
+		case CODEC_DEFLATE:
+			return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		default:
+			throw new IOException("Unknown codec " + codec);
+		}
+	}
+
+	/**
+	 * Looks up a header, ignoring the case of its name.
+	 */
+	private static String getHeader(Map<String, String> headers, String name) {
+		if(headers == null) {
+			return null;
+		}
+		String value = headers.get(name);
+		if(value != null) {
+			return value;
+		}
+		for(Map.Entry<String, String> header : headers.entrySet()) {
+			if(name.equalsIgnoreCase(header.getKey())) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * A batch of download progress, delivered to an
+ * {@code ApplicationCacheBatchedProgressListener}.
+ */
+public class DownloadProgress {
+
+	private final String mLastLoadedUrl;
+	private final int mLoaded;
+	private final int mTotal;
+	private final int mBatchCount;
+	private final long mLoadedBytes;
+	private final long mElapsedMillis;
+	private final long mReceivedBytes;
+	private final long mExpectedBytes;
+	private final long mCurrentBytesPerSecond;
+
+	public DownloadProgress(String lastLoadedUrl, int loaded, int total, int batchCount,
+			long loadedBytes, long elapsedMillis) {
+		this(lastLoadedUrl, loaded, total, batchCount, loadedBytes, elapsedMillis, loadedBytes, -1, -1);
+	}
+
+	/**
+	 * @param receivedBytes Bytes received so far, including the entries that are still loading.
+	 * @param expectedBytes Estimated size of all entries or -1, if unknown.
+	 * @param currentBytesPerSecond Recent throughput or -1, if unknown.
+	 */
+	public DownloadProgress(String lastLoadedUrl, int loaded, int total, int batchCount,
+			long loadedBytes, long elapsedMillis, long receivedBytes, long expectedBytes, long currentBytesPerSecond) {
+		mLastLoadedUrl = lastLoadedUrl;
+		mLoaded = loaded;
+		mTotal = total;
+		mBatchCount = batchCount;
+		mLoadedBytes = loadedBytes;
+		mElapsedMillis = elapsedMillis;
+		mReceivedBytes = receivedBytes;
+		mExpectedBytes = expectedBytes;
+		mCurrentBytesPerSecond = currentBytesPerSecond;
+	}
+
+	/**
+	 * @return The last URL of this batch or the URL that is loading,
+	 * if the progress was delivered while receiving its body.
+	 */
+	public String getLastLoadedUrl() {
+		return mLastLoadedUrl;
+	}
+
+	/**
+	 * @return Number of downloaded URLs so far.
+	 */
+	public int getLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * @return Number of URLs to download in this update.
+	 */
+	public int getTotal() {
+		return mTotal;
+	}
+
+	/**
+	 * @return Number of URLs downloaded since the last delivered progress.
+	 */
+	public int getBatchCount() {
+		return mBatchCount;
+	}
+
+	/**
+	 * @return Number of body bytes of the completely downloaded URLs.
+	 */
+	public long getLoadedBytes() {
+		return mLoadedBytes;
+	}
+
+	/**
+	 * @return Time since the download was started.
+	 */
+	public long getElapsedMillis() {
+		return mElapsedMillis;
+	}
+
+	/**
+	 * @return Number of body bytes received so far, including partially loaded URLs.
+	 */
+	public long getReceivedBytes() {
+		return mReceivedBytes;
+	}
+
+	/**
+	 * The expected size of all URLs of this update. It's based on the size hints of
+	 * the manifest and the Content-Length of the responses, and extrapolated for URLs
+	 * without either. It gets more accurate while the download proceeds.
+	 * @return Estimated number of body bytes of this update or -1, if unknown.
+	 */
+	public long getExpectedBytes() {
+		return mExpectedBytes;
+	}
+
+	/**
+	 * @return Share of the download that is done, from 0 to 1. By bytes, if the
+	 * expected size is known, otherwise by URLs.
+	 */
+	public float getFraction() {
+		if(mExpectedBytes > 0) {
+			return Math.min(1f, (float) mReceivedBytes / mExpectedBytes);
+		}
+		return mTotal > 0 ? Math.min(1f, (float) mLoaded / mTotal) : 1f;
+	}
+
+	/**
+	 * @return Average throughput since the download was started.
+	 */
+	public long getBytesPerSecond() {
+		if(mElapsedMillis <= 0) {
+			return 0;
+		}
+		return mReceivedBytes * 1000 / mElapsedMillis;
+	}
+
+	/**
+	 * @return Throughput of the last seconds or the average throughput, if unknown.
+	 */
+	public long getCurrentBytesPerSecond() {
+		return mCurrentBytesPerSecond >= 0 ? mCurrentBytesPerSecond : getBytesPerSecond();
+	}
+
+	/**
+	 * @return Estimated time until the download is complete, based on the current
+	 * throughput, or -1, if the expected size or the throughput is unknown.
+	 */
+	public long getEstimatedRemainingMillis() {
+		if(isComplete()) {
+			return 0;
+		}
+		long bytesPerSecond = getCurrentBytesPerSecond();
+		if(mExpectedBytes < 0 || bytesPerSecond <= 0) {
+			return -1;
+		}
+		return Math.max(0, mExpectedBytes - mReceivedBytes) * 1000 / bytesPerSecond;
+	}
+
+	public boolean isComplete() {
+		return mLoaded >= mTotal;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the downloaded master entries and bytes of a single update and decides,
+ * based on a {@link ProgressDeliveryPolicy}, when progress is delivered.
+ * 
+ * The expected bytes are collected with {@link #expect(String, long)} from size hints
+ * and Content-Lengths, bytes of entries that are still loading with
+ * {@link #onReceived(String, long)}. The current throughput is an exponentially
+ * weighted moving average over the delivered progress.
+ * Thread-safe.
+ */
+public class DownloadTracker {
+	/** Minimum time between two deliveries while receiving a body. */
+	private static final long RECEIVE_PROGRESS_INTERVAL_MILLIS = 250;
+	/** Age after which a throughput sample has half of its weight. */
+	private static final long THROUGHPUT_HALF_LIFE_MILLIS = 2000;
+
+	private final ProgressDeliveryPolicy mPolicy;
+	private final Clock mClock;
+	private final AtomicInteger mLoaded = new AtomicInteger();
+	private final AtomicLong mLoadedBytes = new AtomicLong();
+	private final AtomicLong mReceivedBytes = new AtomicLong();
+	private final AtomicInteger mUndeliveredProgress = new AtomicInteger();
+	private final AtomicLong mLastProgressDelivery = new AtomicLong();
+	/** Expected body size per URL. */
+	private final ConcurrentHashMap<String, Long> mExpectedSizes = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong mExpectedBytes = new AtomicLong();
+	/** Received bytes per URL that is still loading. */
+	private final ConcurrentHashMap<String, AtomicLong> mReceiving = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile int mTotal = -1;
+	private volatile long mDownloadStartTime;
+
+	// Throughput, guarded by this.
+	private long mRateSampleTime = -1;
+	private long mRateSampleBytes;
+	private double mBytesPerSecond = -1;
+
+	public DownloadTracker(ProgressDeliveryPolicy policy, Clock clock) {
+		mPolicy = policy;
+		mClock = clock;
+	}
+
+	/**
+	 * Starts the download of {@code total} master entries.
+	 */
+	public void start(int total) {
+		mDownloadStartTime = mClock.elapsedRealtime();
+		mLastProgressDelivery.set(mDownloadStartTime);
+		synchronized(this) {
+			mRateSampleTime = mDownloadStartTime;
+			mRateSampleBytes = mReceivedBytes.get();
+		}
+		mTotal = total;
+	}
+
+	/**
+	 * Sets the expected body size of an entry, e.g. from a size hint of the manifest
+	 * or the Content-Length of the response. A later call replaces the size.
+	 * @param bytes The size or -1, if unknown.
+	 */
+	public void expect(String url, long bytes) {
+		if(bytes < 0) {
+			return;
+		}
+		Long previous = mExpectedSizes.put(url, bytes);
+		mExpectedBytes.addAndGet(previous == null ? bytes : bytes - previous);
+	}
+
+	/**
+	 * Counts bytes of an entry that is still loading.
+	 * @return The progress to deliver or null, if the last delivery was less than the
+	 * minimum interval of the policy (but at least 250 ms) ago.
+	 */
+	public DownloadProgress onReceived(String url, long bytes) {
+		AtomicLong receiving = mReceiving.get(url);
+		if(receiving == null) {
+			AtomicLong created = new AtomicLong();
+			receiving = mReceiving.putIfAbsent(url, created);
+			if(receiving == null) {
+				receiving = created;
+			}
+		}
+		receiving.addAndGet(bytes);
+		long received = mReceivedBytes.addAndGet(bytes);
+		int total = mTotal;
+		if(total < 0) {
+			return null;
+		}
+		long now = mClock.elapsedRealtime();
+		long lastDelivery = mLastProgressDelivery.get();
+		long interval = Math.max(mPolicy.getMinIntervalMillis(), RECEIVE_PROGRESS_INTERVAL_MILLIS);
+		if(now - lastDelivery >= interval && mLastProgressDelivery.compareAndSet(lastDelivery, now)) {
+			return newProgress(url, mLoaded.get(), total, 0, mLoadedBytes.get(), received, now);
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the received bytes of an entry that failed to load.
+	 */
+	public void onFailed(String url) {
+		AtomicLong receiving = mReceiving.remove(url);
+		if(receiving != null) {
+			mReceivedBytes.addAndGet(-receiving.get());
+		}
+	}
+
+	/**
+	 * Counts a downloaded master entry. Entries can be counted before {@link #start(int)}.
+	 * @param url The downloaded URL.
+	 * @param bytes The size of the body.
+	 * @param total Number of URLs to download in this update.
+	 * @return The progress to deliver or null, if the policy holds it back.
+	 */
+	public DownloadProgress onLoaded(String url, long bytes, int total) {
+		AtomicLong receiving = mReceiving.remove(url);
+		long received = mReceivedBytes.addAndGet(bytes - (receiving != null ? receiving.get() : 0));
+		expect(url, bytes);
+		int loaded = mLoaded.incrementAndGet();
+		long loadedBytes = mLoadedBytes.addAndGet(bytes);
+		int undelivered = mUndeliveredProgress.incrementAndGet();
+		long now = mClock.elapsedRealtime();
+		long lastDelivery = mLastProgressDelivery.get();
+		if(loaded >= total
+				|| (mPolicy.shouldDeliver(undelivered, now - lastDelivery)
+					&& mLastProgressDelivery.compareAndSet(lastDelivery, now))) {
+			int batchCount = mUndeliveredProgress.getAndSet(0);
+			return newProgress(url, loaded, total, batchCount, loadedBytes, received, now);
+		}
+		return null;
+	}
+
+	private DownloadProgress newProgress(String url, int loaded, int total, int batchCount,
+			long loadedBytes, long received, long now) {
+		long expected = getExpectedBytes(total);
+		if(expected >= 0) {
+			expected = Math.max(expected, received);
+		}
+		return new DownloadProgress(url, loaded, total, batchCount, loadedBytes, now - mDownloadStartTime,
+				received, expected, sampleThroughput(now));
+	}
+
+	/**
+	 * Updates the moving average with the bytes received since the last sample.
+	 * @return The current throughput or -1, if unknown.
+	 */
+	private synchronized long sampleThroughput(long now) {
+		if(mRateSampleTime < 0) {
+			return -1;
+		}
+		long elapsed = now - mRateSampleTime;
+		if(elapsed > 0) {
+			long received = mReceivedBytes.get();
+			double bytesPerSecond = (received - mRateSampleBytes) * 1000.0 / elapsed;
+			if(mBytesPerSecond < 0) {
+				mBytesPerSecond = bytesPerSecond;
+			} else {
+				double weight = 1 - Math.pow(0.5, (double) elapsed / THROUGHPUT_HALF_LIFE_MILLIS);
+				mBytesPerSecond += weight * (bytesPerSecond - mBytesPerSecond);
+			}
+			mRateSampleTime = now;
+			mRateSampleBytes = received;
+		}
+		return mBytesPerSecond < 0 ? -1 : (long) mBytesPerSecond;
+	}
+
+	/**
+	 * @return True, if {@link #start(int)} was called and all entries are loaded.
+	 */
+	public boolean isComplete() {
+		int total = mTotal;
+		return total >= 0 && mLoaded.get() >= total;
+	}
+
+	public int getLoaded() {
+		return mLoaded.get();
+	}
+
+	public long getLoadedBytes() {
+		return mLoadedBytes.get();
+	}
+
+	public long getReceivedBytes() {
+		return mReceivedBytes.get();
+	}
+
+	/**
+	 * @param total Number of URLs to download in this update.
+	 * @return The expected bytes of all entries, extrapolated by the mean expected size
+	 * for entries without a known size, or -1, if no size is known.
+	 */
+	public long getExpectedBytes(int total) {
+		int known = mExpectedSizes.size();
+		if(known == 0) {
+			return -1;
+		}
+		long expected = mExpectedBytes.get();
+		if(known < total) {
+			expected += expected / known * (total - known);
+		}
+		return expected;
+	}
+}
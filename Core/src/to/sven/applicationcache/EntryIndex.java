@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * The index of an {@link AppCacheStore} in primitive arrays, so it costs about 48 bytes
+ * per entry and a few large arrays instead of a map entry, a key and a value object per entry.
+ * 
+ * Entries are identified by the 64 bit hash of their key, the same two halves the file name
+ * of an entry is made of, and live in slots of parallel arrays. An open addressing table
+ * with linear probing maps the hashes to the slots. As the hash halves are {@link String#hashCode()}s,
+ * different keys collide easily, so every slot keeps an independent check of its key too and
+ * the lookups by key ignore a slot whose check doesn't match. The slots are linked in LRU order
+ * by index arrays: {@link #first()} is the least recently used entry.
+ * Not thread-safe, guarded by the store.
+ */
+class EntryIndex {
+	static final int NONE = -1;
+
+	private static final int FLAG_MASTER_ENTRY = 1;
+	private static final int FLAG_UPGRADE_PENDING = 2;
+	private static final int FLAG_CHECKSUM = 4;
+	private static final int FLAG_VERIFIED = 8;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Slot + 1 for every used bucket, 0 for an empty one. Its length is a power of two. */
+	private int[] mTable;
+
+	private long[] mHashes;
+	private int[] mKeyChecks;
+	private long[] mSizes;
+	private int[] mBodyOffsets;
+	private int[] mChecksums;
+	private byte[] mCodecs;
+	private byte[] mFlags;
+	private String[] mBlobs;
+	private int[] mPrevious;
+	private int[] mNext;
+
+	/** Least and most recently used slot. */
+	private int mHead = NONE;
+	private int mTail = NONE;
+
+	/** Freed slots, linked by {@link #mNext}. */
+	private int mFree = NONE;
+	/** Slots at or above this were never used. */
+	private int mUsed;
+	private int mSize;
+
+	EntryIndex() {
+		clear();
+	}
+
+	/**
+	 * @return The hash of a key, its halves are the hash codes of the halves of the key.
+	 */
+	static long hash(String key) {
+		int firstHalfLength = key.length() / 2;
+		int first = key.substring(0, firstHalfLength).hashCode();
+		int second = key.substring(firstHalfLength).hashCode();
+		return ((long) first << 32) | (second & 0xffffffffL);
+	}
+
+	/**
+	 * @return A 32 bit FNV-1a hash of the key, independent of {@link #hash(String)}.
+	 */
+	static int keyCheck(String key) {
+		int check = 0x811c9dc5;
+		for(int i = 0; i < key.length(); i++) {
+			check ^= key.charAt(i);
+			check *= 0x01000193;
+		}
+		return check;
+	}
+
+	/**
+	 * @return The name of the record of an entry, see {@link AppCacheStore#getFilenameForKey(String)}.
+	 */
+	static String getName(long hash) {
+		return String.valueOf((int) (hash >>> 32)) + String.valueOf((int) hash);
+	}
+
+	/**
+	 * @return The slot of the entry whose record is named {@code name} or {@link #NONE}.
+	 * Doesn't change the LRU order.
+	 */
+	int findByName(String name) {
+		// The name is two numbers without separator, try every split.
+		for(int split = 1; split < name.length(); split++) {
+			int first;
+			int second;
+			try {
+				first = Integer.parseInt(name.substring(0, split));
+				second = Integer.parseInt(name.substring(split));
+			} catch(NumberFormatException e) {
+				continue;
+			}
+			long hash = ((long) first << 32) | (second & 0xffffffffL);
+			int slot = find(hash);
+			if(slot != NONE && getName(hash).equals(name)) {
+				return slot;
+			}
+		}
+		return NONE;
+	}
+
+	void clear() {
+		mTable = new int[INITIAL_CAPACITY * 2];
+		mHashes = new long[INITIAL_CAPACITY];
+		mKeyChecks = new int[INITIAL_CAPACITY];
+		mSizes = new long[INITIAL_CAPACITY];
+		mBodyOffsets = new int[INITIAL_CAPACITY];
+		mChecksums = new int[INITIAL_CAPACITY];
+		mCodecs = new byte[INITIAL_CAPACITY];
+		mFlags = new byte[INITIAL_CAPACITY];
+		mBlobs = new String[INITIAL_CAPACITY];
+		mPrevious = new int[INITIAL_CAPACITY];
+		mNext = new int[INITIAL_CAPACITY];
+		mHead = mTail = mFree = NONE;
+		mUsed = mSize = 0;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return The slot of the entry or {@link #NONE}. Doesn't change the LRU order.
+	 */
+	int find(long hash) {
+		int mask = mTable.length - 1;
+		for(int bucket = bucket(hash, mask); mTable[bucket] != 0; bucket = (bucket + 1) & mask) {
+			int slot = mTable[bucket] - 1;
+			if(mHashes[slot] == hash) {
+				return slot;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * @return The slot of the entry of {@code key} or {@link #NONE}, also if the slot of its
+	 * hash belongs to another key. Doesn't change the LRU order.
+	 */
+	int find(String key) {
+		int slot = find(hash(key));
+		return slot != NONE && matches(slot, key) ? slot : NONE;
+	}
+
+	/**
+	 * @return The slot of the entry of {@code key} or {@link #NONE}, also if the slot of its
+	 * hash belongs to another key. Makes the entry the most recently used.
+	 */
+	int get(String key) {
+		int slot = find(key);
+		if(slot != NONE) {
+			unlink(slot);
+			linkLast(slot);
+		}
+		return slot;
+	}
+
+	/**
+	 * @return The slot of the entry or {@link #NONE}. Makes the entry the most recently used.
+	 */
+	int get(long hash) {
+		int slot = find(hash);
+		if(slot != NONE) {
+			unlink(slot);
+			linkLast(slot);
+		}
+		return slot;
+	}
+
+	/**
+	 * Adds an entry as the most recently used one. The entry must not exist yet.
+	 * @return Its slot.
+	 */
+	int add(long hash) {
+		if(mFree == NONE && mUsed == mHashes.length) {
+			growSlots();
+		}
+		if((mSize + 1) * 4 > mTable.length * 3) {
+			rehash(mTable.length * 2);
+		}
+		int slot;
+		if(mFree != NONE) {
+			slot = mFree;
+			mFree = mNext[slot];
+		} else {
+			slot = mUsed++;
+		}
+		mHashes[slot] = hash;
+		mKeyChecks[slot] = 0;
+		mSizes[slot] = 0;
+		mBodyOffsets[slot] = 0;
+		mChecksums[slot] = 0;
+		mCodecs[slot] = 0;
+		mFlags[slot] = 0;
+		mBlobs[slot] = null;
+		insert(slot);
+		linkLast(slot);
+		mSize++;
+		return slot;
+	}
+
+	void remove(int slot) {
+		int mask = mTable.length - 1;
+		int bucket = bucket(mHashes[slot], mask);
+		while(mTable[bucket] != slot + 1) {
+			bucket = (bucket + 1) & mask;
+		}
+		// Backward shift deletion, entries behind the gap move up if their probe sequence allows it.
+		int gap = bucket;
+		for(int i = (gap + 1) & mask; mTable[i] != 0; i = (i + 1) & mask) {
+			int home = bucket(mHashes[mTable[i] - 1], mask);
+			if(((i - home) & mask) >= ((i - gap) & mask)) {
+				mTable[gap] = mTable[i];
+				gap = i;
+			}
+		}
+		mTable[gap] = 0;
+		unlink(slot);
+		mBlobs[slot] = null;
+		mNext[slot] = mFree;
+		mFree = slot;
+		mSize--;
+	}
+
+	/**
+	 * @return The least recently used slot or {@link #NONE}.
+	 */
+	int first() {
+		return mHead;
+	}
+
+	/**
+	 * @return The next more recently used slot or {@link #NONE}.
+	 */
+	int next(int slot) {
+		return mNext[slot];
+	}
+
+	long getHash(int slot) {
+		return mHashes[slot];
+	}
+
+	/**
+	 * @return False, if the slot belongs to another key with the same hash.
+	 */
+	boolean matches(int slot, String key) {
+		return mKeyChecks[slot] == keyCheck(key);
+	}
+
+	void setKey(int slot, String key) {
+		mKeyChecks[slot] = keyCheck(key);
+	}
+
+	long getSize(int slot) {
+		return mSizes[slot];
+	}
+
+	int getBodyOffset(int slot) {
+		return mBodyOffsets[slot];
+	}
+
+	int getCodec(int slot) {
+		return mCodecs[slot];
+	}
+
+	String getBlob(int slot) {
+		return mBlobs[slot];
+	}
+
+	boolean isMasterEntry(int slot) {
+		return (mFlags[slot] & FLAG_MASTER_ENTRY) != 0;
+	}
+
+	boolean isUpgradePending(int slot) {
+		return (mFlags[slot] & FLAG_UPGRADE_PENDING) != 0;
+	}
+
+	boolean hasChecksum(int slot) {
+		return (mFlags[slot] & FLAG_CHECKSUM) != 0;
+	}
+
+	/**
+	 * @return The CRC32 of the body, if {@link #hasChecksum(int)}.
+	 */
+	long getChecksum(int slot) {
+		return mChecksums[slot] & 0xffffffffL;
+	}
+
+	/**
+	 * @return True, if the body was verified since it was indexed.
+	 */
+	boolean isVerified(int slot) {
+		return (mFlags[slot] & FLAG_VERIFIED) != 0;
+	}
+
+	void setVerified(int slot) {
+		mFlags[slot] |= FLAG_VERIFIED;
+	}
+
+	/**
+	 * @param checksum The CRC32 of the body or a negative value, if it has none.
+	 */
+	void set(int slot, long size, int bodyOffset, int codec, String blob, long checksum) {
+		mSizes[slot] = size;
+		mBodyOffsets[slot] = bodyOffset;
+		mCodecs[slot] = (byte) codec;
+		mBlobs[slot] = blob;
+		mChecksums[slot] = (int) checksum;
+		int flags = mFlags[slot] & (FLAG_MASTER_ENTRY | FLAG_UPGRADE_PENDING);
+		mFlags[slot] = (byte) (checksum >= 0 ? flags | FLAG_CHECKSUM : flags);
+	}
+
+	void setFlags(int slot, boolean masterEntry, boolean upgradePending) {
+		int flags = mFlags[slot] & (FLAG_CHECKSUM | FLAG_VERIFIED);
+		mFlags[slot] = (byte) (flags | (masterEntry ? FLAG_MASTER_ENTRY : 0) | (upgradePending ? FLAG_UPGRADE_PENDING : 0));
+	}
+
+	private static int bucket(long hash, int mask) {
+		int h = (int) (hash ^ (hash >>> 32));
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & mask;
+	}
+
+	private void insert(int slot) {
+		int mask = mTable.length - 1;
+		int bucket = bucket(mHashes[slot], mask);
+		while(mTable[bucket] != 0) {
+			bucket = (bucket + 1) & mask;
+		}
+		mTable[bucket] = slot + 1;
+	}
+
+	private void rehash(int capacity) {
+		int[] old = mTable;
+		mTable = new int[capacity];
+		for(int entry : old) {
+			if(entry != 0) {
+				insert(entry - 1);
+			}
+		}
+	}
+
+	private void growSlots() {
+		int capacity = mHashes.length * 2;
+		long[] hashes = new long[capacity];
+		int[] keyChecks = new int[capacity];
+		long[] sizes = new long[capacity];
+		int[] bodyOffsets = new int[capacity];
+		int[] checksums = new int[capacity];
+		byte[] codecs = new byte[capacity];
+		byte[] flags = new byte[capacity];
+		String[] blobs = new String[capacity];
+		int[] previous = new int[capacity];
+		int[] next = new int[capacity];
+		System.arraycopy(mHashes, 0, hashes, 0, mUsed);
+		System.arraycopy(mKeyChecks, 0, keyChecks, 0, mUsed);
+		System.arraycopy(mSizes, 0, sizes, 0, mUsed);
+		System.arraycopy(mBodyOffsets, 0, bodyOffsets, 0, mUsed);
+		System.arraycopy(mChecksums, 0, checksums, 0, mUsed);
+		System.arraycopy(mCodecs, 0, codecs, 0, mUsed);
+		System.arraycopy(mFlags, 0, flags, 0, mUsed);
+		System.arraycopy(mBlobs, 0, blobs, 0, mUsed);
+		System.arraycopy(mPrevious, 0, previous, 0, mUsed);
+		System.arraycopy(mNext, 0, next, 0, mUsed);
+		mHashes = hashes;
+		mKeyChecks = keyChecks;
+		mSizes = sizes;
+		mBodyOffsets = bodyOffsets;
+		mChecksums = checksums;
+		mCodecs = codecs;
+		mFlags = flags;
+		mBlobs = blobs;
+		mPrevious = previous;
+		mNext = next;
+	}
+
+	private void linkLast(int slot) {
+		mPrevious[slot] = mTail;
+		mNext[slot] = NONE;
+		if(mTail != NONE) {
+			mNext[mTail] = slot;
+		} else {
+			mHead = slot;
+		}
+		mTail = slot;
+	}
+
+	private void unlink(int slot) {
+		int previous = mPrevious[slot];
+		int next = mNext[slot];
+		if(previous != NONE) {
+			mNext[previous] = next;
+		} else {
+			mHead = next;
+		}
+		if(next != NONE) {
+			mPrevious[next] = previous;
+		} else {
+			mTail = previous;
+		}
+	}
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stores every record in its own file, named like the record.
+ * Records are written to a temporary file and renamed into place.
+ * 
+ * With {@link StorageEngine#DURABILITY_BATCH} committed records stay in their temporary
+ * files until {@link #sync()} syncs all of them and renames them into place, so a crash
+ * before the sync drops the records of the batch and the previous records survive,
+ * but never leaves a partially written record. Until then the temporary files
+ * are read in place of the records, only readers of the directory don't see them.
+ * This is not a group commit: {@link #sync()} still costs one fsync per record, the batch
+ * only moves them off the writing threads. The renames aren't followed by an fsync of the
+ * directory (Java can't open one), so a crash right after a sync may still lose records.
+ * A batch that reaches {@value #MAX_BATCH_SIZE} records is synced on a background thread.
+ */
+public class FileStorageEngine implements StorageEngine {
+	/** Suffix of files that are still being written. */
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+
+	/** A batch is synced in the background, if it reaches this many records. */
+	private static final int MAX_BATCH_SIZE = 256;
+
+	private final File mDirectory;
+
+	private volatile int mDurability = DURABILITY_NONE;
+
+	/** The temporary files of records committed with {@link StorageEngine#DURABILITY_BATCH}. */
+	private final Map<String, File> mBatch = new HashMap<String, File>();
+
+	/**
+	 * Syncs full batches. A commit may run inside the lock of the store, which
+	 * must not wait for the fsyncs.
+	 */
+	private final ThreadPoolExecutor mSyncExecutor;
+	private final AtomicBoolean mSyncScheduled = new AtomicBoolean();
+
+	public FileStorageEngine(File directory) {
+		mDirectory = directory;
+		mSyncExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "FileStorageEngine-Sync");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		mSyncExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return The file of a record, the temporary file of a record that is not synced yet.
+	 */
+	public File getFile(String name) {
+		synchronized(mBatch) {
+			File file = mBatch.get(name);
+			if(file != null) {
+				return file;
+			}
+		}
+		return new File(mDirectory, name);
+	}
+
+	@Override
+	public void open() throws IOException {
+		synchronized(mBatch) {
+			mBatch.clear();
+		}
+		if(!mDirectory.exists()) {
+			if(!mDirectory.mkdirs()) {
+				throw new IOException("Unable to create cache dir " + mDirectory.getAbsolutePath());
+			}
+			return;
+		}
+		File[] files = mDirectory.listFiles();
+		if(files == null) {
+			return;
+		}
+		for(File file : files) {
+			if(file.getName().endsWith(TMP_FILE_SUFFIX)) {
+				// Left over from an interrupted write.
+				file.delete();
+			}
+		}
+	}
+
+	@Override
+	public List<String> list() {
+		String[] names = mDirectory.list();
+		List<String> result = new ArrayList<String>(names == null ? 0 : names.length);
+		if(names != null) {
+			for(String name : names) {
+				if(!name.endsWith(TMP_FILE_SUFFIX)) {
+					result.add(name);
+				}
+			}
+		}
+		synchronized(mBatch) {
+			for(String name : mBatch.keySet()) {
+				if(!new File(mDirectory, name).exists()) {
+					result.add(name);
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public InputStream read(String name) throws IOException {
+		return new FileInputStream(getFile(name));
+	}
+
+	@Override
+	public long length(String name) {
+		File file = getFile(name);
+		return file.exists() ? file.length() : -1;
+	}
+
+	@Override
+	public Writer create() throws IOException {
+		return new FileWriter(File.createTempFile("record", TMP_FILE_SUFFIX, mDirectory));
+	}
+
+	@Override
+	public void overwrite(String name, byte[] data) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(getFile(name), "rw");
+		try {
+			raf.write(data, 0, data.length);
+			if(mDurability == DURABILITY_SYNC) {
+				raf.getFD().sync();
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public boolean delete(String name) {
+		File batched;
+		synchronized(mBatch) {
+			batched = mBatch.remove(name);
+		}
+		boolean deleted = batched != null && batched.delete();
+		return new File(mDirectory, name).delete() || deleted;
+	}
+
+	@Override
+	public void clear() {
+		synchronized(mBatch) {
+			mBatch.clear();
+		}
+		File[] files = mDirectory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	@Override
+	public void setDurability(int durability) {
+		if(durability < DURABILITY_NONE || durability > DURABILITY_SYNC) {
+			throw new IllegalArgumentException("Unknown durability " + durability);
+		}
+		mDurability = durability;
+		if(durability != DURABILITY_BATCH) {
+			try {
+				sync();
+			} catch(IOException e) {
+				AppCacheLog.e(e, "Could not sync the batch");
+			}
+		}
+	}
+
+	@Override
+	public int getDurability() {
+		return mDurability;
+	}
+
+	/**
+	 * Syncs the temporary files of the batch one after another, one fsync each, and renames
+	 * them into place. Records of the batch that are replaced or deleted meanwhile are skipped.
+	 */
+	@Override
+	public int sync() throws IOException {
+		Map<String, File> batch;
+		synchronized(mBatch) {
+			if(mBatch.isEmpty()) {
+				return 0;
+			}
+			batch = new HashMap<String, File>(mBatch);
+		}
+		for(File file : batch.values()) {
+			try {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					raf.getFD().sync();
+				} finally {
+					raf.close();
+				}
+			} catch(FileNotFoundException e) {
+				// Replaced or deleted meanwhile.
+			}
+		}
+		int synced = 0;
+		synchronized(mBatch) {
+			for(Map.Entry<String, File> entry : batch.entrySet()) {
+				String name = entry.getKey();
+				File file = entry.getValue();
+				if(mBatch.get(name) != file) {
+					continue;
+				}
+				if(!file.renameTo(new File(mDirectory, name))) {
+					throw new IOException("Could not rename " + file.getAbsolutePath());
+				}
+				mBatch.remove(name);
+				synced++;
+			}
+		}
+		return synced;
+	}
+
+	/**
+	 * Syncs the batch on the sync thread, unless a sync is already waiting there.
+	 */
+	private void scheduleSync() {
+		if(!mSyncScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		mSyncExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				mSyncScheduled.set(false);
+				try {
+					AppCacheLog.d("Synced %d records of a full batch", sync());
+				} catch(IOException e) {
+					AppCacheLog.e(e, "Could not sync the batch");
+				}
+			}
+		});
+	}
+
+	private class FileWriter extends Writer {
+		private final File mTmpFile;
+		private final FileOutputStream mOut;
+		private long mLength;
+		private boolean mClosed;
+
+		FileWriter(File tmpFile) throws IOException {
+			mTmpFile = tmpFile;
+			mOut = new FileOutputStream(tmpFile);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			mOut.write(b);
+			mLength++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			mOut.write(buffer, offset, count);
+			mLength += count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!mClosed) {
+				mClosed = true;
+				try {
+					if(mDurability == DURABILITY_SYNC) {
+						mOut.getFD().sync();
+					}
+				} finally {
+					mOut.close();
+				}
+			}
+		}
+
+		@Override
+		public long length() {
+			return mLength;
+		}
+
+		@Override
+		public void commit(String name) throws IOException {
+			int durability = mDurability;
+			close();
+			if(durability == DURABILITY_BATCH) {
+				File replaced;
+				int size;
+				synchronized(mBatch) {
+					replaced = mBatch.put(name, mTmpFile);
+					size = mBatch.size();
+				}
+				if(replaced != null && !replaced.delete()) {
+					AppCacheLog.d("Could not clean up file %s", replaced.getAbsolutePath());
+				}
+				if(size >= MAX_BATCH_SIZE) {
+					scheduleSync();
+				}
+				return;
+			}
+			File file = new File(mDirectory, name);
+			synchronized(mBatch) {
+				// A record committed now replaces a record of an earlier batch.
+				File replaced = mBatch.remove(name);
+				if(replaced != null) {
+					replaced.delete();
+				}
+				if(!mTmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + mTmpFile.getAbsolutePath());
+				}
+			}
+		}
+
+		@Override
+		public void abort() {
+			if(!mClosed) {
+				mClosed = true;
+				try {
+					mOut.close();
+				} catch(IOException ignored) { }
+			}
+			if(mTmpFile.exists() && !mTmpFile.delete()) {
+				AppCacheLog.d("Could not clean up file %s", mTmpFile.getAbsolutePath());
+			}
+		}
+	}
+}
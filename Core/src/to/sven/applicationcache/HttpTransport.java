@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Minimal HTTP client used by the {@link ApplicationCacheUpdater}.
+ * {@link UrlConnectionTransport} works on every JVM, on Android the
+ * {@code HttpStackTransport} wraps a Volley {@code HttpStack}.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Performs a GET request.
+	 * @param url The URL.
+	 * @param headers Additional request headers.
+	 * @return The response, the caller must close it.
+	 * @throws IOException On network errors.
+	 */
+	Response get(String url, Map<String, String> headers) throws IOException;
+
+	/**
+	 * A response with a not yet consumed body.
+	 */
+	interface Response extends Closeable {
+		int getStatusCode();
+
+		/**
+		 * @return The response headers, the value of the last header wins for repeated headers.
+		 */
+		Map<String, String> getHeaders();
+
+		/**
+		 * @return The length of the body or -1 if unknown.
+		 */
+		long getContentLength();
+
+		/**
+		 * @return The body, empty for 304.
+		 */
+		InputStream getBody() throws IOException;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Every power of two is split into
+ * {@link #SUB_BUCKETS} buckets, so percentiles are exact within 25%.
+ * Recording is a few atomic adds, cheap enough to leave on.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final StripedCounter mCount = new StripedCounter();
+	private final StripedCounter mSum = new StripedCounter();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Records a duration, negative durations are recorded as 0.
+	 */
+	public void record(long nanos) {
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		mBuckets.incrementAndGet(bucketOf(nanos));
+		mCount.increment();
+		mSum.add(nanos);
+		long max;
+		while(nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) {
+			// Retry, another thread recorded a new maximum.
+		}
+	}
+
+	public Snapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			buckets[i] = mBuckets.get(i);
+		}
+		return new Snapshot(buckets, mCount.sum(), mSum.sum(), mMax.get());
+	}
+
+	static int bucketOf(long nanos) {
+		if(nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The largest value that falls into {@code bucket}.
+	 */
+	static long upperBoundOf(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (SUB_BUCKETS + sub) * width;
+		return lower + width - 1;
+	}
+
+	/**
+	 * An immutable copy of a histogram.
+	 */
+	public static class Snapshot {
+		private final long[] mBuckets;
+		private final long mCount;
+		private final long mSum;
+		private final long mMax;
+
+		Snapshot(long[] buckets, long count, long sum, long max) {
+			mBuckets = buckets;
+			mCount = count;
+			mSum = sum;
+			mMax = max;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getTotalNanos() {
+			return mSum;
+		}
+
+		public long getMeanNanos() {
+			return mCount == 0 ? 0 : mSum / mCount;
+		}
+
+		public long getMaxNanos() {
+			return mMax;
+		}
+
+		/**
+		 * @param percentile 0 to 100.
+		 * @return Upper bound of the bucket that contains the percentile, at most the maximum.
+		 */
+		public long getPercentileNanos(double percentile) {
+			long total = 0;
+			for(long count : mBuckets) {
+				total += count;
+			}
+			if(total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+			long seen = 0;
+			for(int i = 0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				if(seen >= rank) {
+					return Math.min(upperBoundOf(i), mMax);
+				}
+			}
+			return mMax;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%dus p50=%dus p99=%dus max=%dus", mCount, getMeanNanos() / 1000,
+					getPercentileNanos(50) / 1000, getPercentileNanos(99) / 1000, mMax / 1000);
+		}
+	}
+}
@@ -0,0 +1,774 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Appends all records to large segment files and keeps their offsets in memory, so a cache
+ * of many small entries doesn't pay for a file per entry: A {@code get} is one positional
+ * read of an already open file, a {@code put} one append.
+ *
+ * A replaced or deleted record stays in its segment as dead bytes, a delete appends a
+ * tombstone. Segments with more dead than live bytes are compacted in the background:
+ * Their live records are appended to the current segment and the segment is deleted.
+ * {@link #open()} rebuilds the offsets by reading all segments and truncates a record
+ * that was not completely written.
+ *
+ * With {@link StorageEngine#DURABILITY_BATCH} {@link #sync()} syncs the segments written
+ * since the last sync, usually only the active one. With a durability, a compacted segment
+ * is only deleted after its records are synced in their new segment.
+ */
+public class LogStorageEngine implements StorageEngine {
+	/** Default size after which a new segment is started. */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String TMP_FILE_SUFFIX = ".tmp";
+
+	private static final int RECORD_MAGIC = 0x4143524c;
+	private static final int TYPE_PUT = 1;
+	private static final int TYPE_DELETE = 2;
+
+	/** Records up to this size are read with one read, larger ones are streamed. */
+	private static final int READ_INTO_MEMORY_SIZE = 64 * 1024;
+
+	/** Writers keep this many bytes in memory before they spill into a temporary file. */
+	private static final int SPILL_SIZE = 256 * 1024;
+
+	/** A segment is compacted when more than this fraction of it is dead. */
+	private static final float COMPACTION_THRESHOLD = 0.5f;
+
+	private static Executor sDefaultExecutor;
+
+	private final File mDirectory;
+	private final long mSegmentSize;
+	private final Executor mCompactionExecutor;
+	private final Map<String, Location> mIndex = new HashMap<String, Location>();
+	private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+	private Segment mActive;
+	private int mNextSegmentId;
+	private boolean mCompactionScheduled;
+	private volatile int mDurability = DURABILITY_NONE;
+	/** Segments written since the last sync, only tracked with a durability. */
+	private final Set<Segment> mDirty = new HashSet<Segment>();
+	private int mUnsyncedRecords;
+
+	private static class Segment {
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		long size;
+		long dead;
+		boolean closed;
+
+		Segment(int id, File file) throws FileNotFoundException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.channel = raf.getChannel();
+		}
+
+		void close() {
+			closed = true;
+			try {
+				raf.close();
+			} catch(IOException ignored) { }
+		}
+
+		void delete() {
+			close();
+			if(!file.delete()) {
+				AppCacheLog.d("Could not delete segment %s", file.getAbsolutePath());
+			}
+		}
+	}
+
+	private static class Location {
+		final Segment segment;
+		final long offset;
+		final int headerLength;
+		final int length;
+
+		Location(Segment segment, long offset, int headerLength, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.headerLength = headerLength;
+			this.length = length;
+		}
+
+		long dataOffset() {
+			return offset + headerLength;
+		}
+
+		long recordLength() {
+			return headerLength + length;
+		}
+	}
+
+	/**
+	 * Creates an engine with 1MB segments that compacts on a shared background thread.
+	 */
+	public LogStorageEngine(File directory) {
+		this(directory, DEFAULT_SEGMENT_SIZE, getDefaultExecutor());
+	}
+
+	/**
+	 * @param directory The directory of the segments.
+	 * @param segmentSize The size after which a new segment is started.
+	 * @param compactionExecutor Runs the compaction or null to compact only on {@link #compact()}.
+	 */
+	public LogStorageEngine(File directory, long segmentSize, Executor compactionExecutor) {
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+		mCompactionExecutor = compactionExecutor;
+	}
+
+	private static synchronized Executor getDefaultExecutor() {
+		if(sDefaultExecutor == null) {
+			sDefaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "AppCache-Compaction");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return sDefaultExecutor;
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		if(!mDirectory.exists() && !mDirectory.mkdirs()) {
+			throw new IOException("Unable to create cache dir " + mDirectory.getAbsolutePath());
+		}
+		close();
+		File[] files = mDirectory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				String name = file.getName();
+				if(name.endsWith(TMP_FILE_SUFFIX)) {
+					// Spilled by a writer that was not committed.
+					file.delete();
+				} else if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+								name.length() - SEGMENT_SUFFIX.length()));
+						mSegments.put(id, new Segment(id, file));
+					} catch(NumberFormatException e) {
+						AppCacheLog.d("Ignoring %s", file.getAbsolutePath());
+					}
+				}
+			}
+		}
+		for(Segment segment : mSegments.values()) {
+			replay(segment);
+		}
+		if(mSegments.isEmpty()) {
+			mNextSegmentId = 0;
+			mActive = newSegment();
+		} else {
+			mNextSegmentId = mSegments.lastKey() + 1;
+			mActive = mSegments.get(mSegments.lastKey());
+		}
+		scheduleCompactionIfNeeded();
+	}
+
+	/**
+	 * Reads the records of a segment into the index.
+	 */
+	private void replay(Segment segment) throws IOException {
+		long fileLength = segment.file.length();
+		long position = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		try {
+			while(position < fileLength) {
+				if(in.readInt() != RECORD_MAGIC) {
+					break;
+				}
+				int type = in.readByte();
+				String name = in.readUTF();
+				int length = in.readInt();
+				int headerLength = 4 + 1 + 2 + utfLength(name) + 4;
+				if((type != TYPE_PUT && type != TYPE_DELETE) || length < 0
+						|| position + headerLength + length > fileLength) {
+					break;
+				}
+				skipFully(in, length);
+				Location location = new Location(segment, position, headerLength, length);
+				position += location.recordLength();
+				segment.size = position;
+				if(type == TYPE_PUT) {
+					markDead(mIndex.put(name, location));
+				} else {
+					markDead(mIndex.remove(name));
+					markDead(location);
+				}
+			}
+		} catch(EOFException e) {
+			// Truncated below.
+		} finally {
+			in.close();
+		}
+		if(segment.size < fileLength) {
+			AppCacheLog.d("Truncating incomplete record in %s at %d", segment.file.getName(), segment.size);
+			segment.raf.setLength(segment.size);
+		}
+	}
+
+	@Override
+	public synchronized List<String> list() {
+		return new ArrayList<String>(mIndex.keySet());
+	}
+
+	@Override
+	public synchronized InputStream read(String name) throws IOException {
+		Location location = getLocation(name);
+		if(location.length <= READ_INTO_MEMORY_SIZE) {
+			byte[] data = new byte[location.length];
+			readFully(location.segment.channel, ByteBuffer.wrap(data), location.dataOffset());
+			return new ByteArrayInputStream(data);
+		}
+		// The opened file stays readable, even if the segment is compacted and deleted meanwhile.
+		FileInputStream in = new FileInputStream(location.segment.file);
+		in.getChannel().position(location.dataOffset());
+		return new BoundedInputStream(in, location.length);
+	}
+
+	@Override
+	public synchronized long length(String name) {
+		Location location = mIndex.get(name);
+		return location != null ? location.length : -1;
+	}
+
+	@Override
+	public Writer create() throws IOException {
+		return new LogWriter();
+	}
+
+	@Override
+	public synchronized void overwrite(String name, byte[] data) throws IOException {
+		Location location = getLocation(name);
+		if(data.length > location.length) {
+			throw new IOException("Record " + name + " is shorter than " + data.length + " bytes");
+		}
+		writeFully(location.segment.channel, ByteBuffer.wrap(data), location.dataOffset());
+		if(mDurability != DURABILITY_NONE) {
+			mDirty.add(location.segment);
+			mUnsyncedRecords++;
+			if(mDurability == DURABILITY_SYNC) {
+				forceDirty();
+			}
+		}
+	}
+
+	@Override
+	public synchronized boolean delete(String name) {
+		Location location = mIndex.remove(name);
+		if(location == null) {
+			return false;
+		}
+		markDead(location);
+		try {
+			markDead(append(TYPE_DELETE, name, null, null, 0, 0));
+			if(mDurability == DURABILITY_SYNC) {
+				forceDirty();
+			}
+		} catch(IOException e) {
+			// The record comes back on the next open().
+			AppCacheLog.e(e, "Could not write tombstone of " + name);
+		}
+		scheduleCompactionIfNeeded();
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		for(Segment segment : mSegments.values()) {
+			segment.delete();
+		}
+		mSegments.clear();
+		mIndex.clear();
+		mDirty.clear();
+		mUnsyncedRecords = 0;
+		try {
+			mActive = newSegment();
+		} catch(IOException e) {
+			AppCacheLog.e(e, "Could not create segment");
+		}
+	}
+
+	/**
+	 * Closes all segments, the engine can be opened again.
+	 */
+	public synchronized void close() {
+		try {
+			forceDirty();
+		} catch(IOException e) {
+			AppCacheLog.e(e, "Could not sync the segments");
+		}
+		for(Segment segment : mSegments.values()) {
+			segment.close();
+		}
+		mSegments.clear();
+		mIndex.clear();
+		mActive = null;
+	}
+
+	@Override
+	public void setDurability(int durability) {
+		if(durability < DURABILITY_NONE || durability > DURABILITY_SYNC) {
+			throw new IllegalArgumentException("Unknown durability " + durability);
+		}
+		mDurability = durability;
+		if(durability != DURABILITY_BATCH) {
+			try {
+				sync();
+			} catch(IOException e) {
+				AppCacheLog.e(e, "Could not sync the segments");
+			}
+		}
+	}
+
+	@Override
+	public int getDurability() {
+		return mDurability;
+	}
+
+	@Override
+	public synchronized int sync() throws IOException {
+		return forceDirty();
+	}
+
+	/**
+	 * Syncs the segments written since the last sync.
+	 * @return The records written since the last sync.
+	 */
+	private int forceDirty() throws IOException {
+		for(Segment segment : mDirty) {
+			if(!segment.closed) {
+				segment.channel.force(false);
+			}
+		}
+		mDirty.clear();
+		int records = mUnsyncedRecords;
+		mUnsyncedRecords = 0;
+		return records;
+	}
+
+	/**
+	 * @return The bytes of all segments.
+	 */
+	public synchronized long getSize() {
+		long size = 0;
+		for(Segment segment : mSegments.values()) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The bytes of replaced and deleted records, which are not compacted yet.
+	 */
+	public synchronized long getDeadBytes() {
+		long dead = 0;
+		for(Segment segment : mSegments.values()) {
+			dead += segment.dead;
+		}
+		return dead;
+	}
+
+	public synchronized int getSegmentCount() {
+		return mSegments.size();
+	}
+
+	/**
+	 * Compacts all segments with more dead than live bytes on the calling thread.
+	 */
+	public void compact() {
+		Segment segment;
+		while((segment = nextCompactionCandidate()) != null) {
+			try {
+				compact(segment);
+			} catch(IOException e) {
+				AppCacheLog.e(e, "Compaction of " + segment.file.getName() + " failed");
+				synchronized(this) {
+					mCompactionScheduled = false;
+				}
+				return;
+			}
+		}
+	}
+
+	private synchronized Segment nextCompactionCandidate() {
+		Segment candidate = findCompactionCandidate();
+		if(candidate == null) {
+			mCompactionScheduled = false;
+		}
+		return candidate;
+	}
+
+	private Segment findCompactionCandidate() {
+		for(Segment segment : mSegments.values()) {
+			if(segment != mActive && segment.dead > segment.size * COMPACTION_THRESHOLD) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Moves the live records of a segment to the active segment and deletes it.
+	 * The segment is read without lock, only the moves of the single records lock the engine.
+	 */
+	private void compact(Segment segment) throws IOException {
+		long position = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+		try {
+			while(position < segment.size) {
+				in.readInt();
+				int type = in.readByte();
+				String name = in.readUTF();
+				int length = in.readInt();
+				int headerLength = 4 + 1 + 2 + utfLength(name) + 4;
+				skipFully(in, length);
+				synchronized(this) {
+					if(segment.closed) {
+						return;
+					}
+					if(type == TYPE_PUT) {
+						Location location = mIndex.get(name);
+						if(location != null && location.segment == segment && location.offset == position) {
+							mIndex.put(name, append(TYPE_PUT, name, null, segment.channel,
+									location.dataOffset(), location.length));
+						}
+					} else if(!mIndex.containsKey(name) && mSegments.firstKey() < segment.id) {
+						// An older segment may still hold the deleted record.
+						markDead(append(TYPE_DELETE, name, null, null, 0, 0));
+					}
+				}
+				position += headerLength + length;
+			}
+		} finally {
+			in.close();
+		}
+		synchronized(this) {
+			if(!segment.closed) {
+				if(mDurability != DURABILITY_NONE) {
+					// The moved records must not get lost with the segment.
+					forceDirty();
+				}
+				mSegments.remove(segment.id);
+				mDirty.remove(segment);
+				segment.delete();
+			}
+		}
+	}
+
+	private void scheduleCompactionIfNeeded() {
+		if(mCompactionExecutor == null || mCompactionScheduled || findCompactionCandidate() == null) {
+			return;
+		}
+		mCompactionScheduled = true;
+		mCompactionExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				compact();
+			}
+		});
+	}
+
+	private Location getLocation(String name) throws IOException {
+		Location location = mIndex.get(name);
+		if(location == null) {
+			throw new FileNotFoundException(name);
+		}
+		return location;
+	}
+
+	private void markDead(Location location) {
+		if(location != null) {
+			location.segment.dead += location.recordLength();
+		}
+	}
+
+	/**
+	 * Appends a record to the active segment, the data is either {@code data} or
+	 * {@code length} bytes of {@code source} at {@code sourcePosition}.
+	 */
+	private Location append(int type, String name, byte[] data, FileChannel source, long sourcePosition, int length)
+			throws IOException {
+		if(mActive == null) {
+			throw new IOException("Storage engine is closed");
+		}
+		if(mActive.size >= mSegmentSize) {
+			mActive = newSegment();
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream(data != null ? 64 + length : 64);
+		DataOutputStream out = new DataOutputStream(record);
+		out.writeInt(RECORD_MAGIC);
+		out.writeByte(type);
+		out.writeUTF(name);
+		out.writeInt(length);
+		int headerLength = record.size();
+		long offset = mActive.size;
+		if(data != null) {
+			// One write for header and data.
+			record.write(data, 0, length);
+			writeFully(mActive.channel, ByteBuffer.wrap(record.toByteArray()), offset);
+		} else {
+			writeFully(mActive.channel, ByteBuffer.wrap(record.toByteArray()), offset);
+			mActive.channel.position(offset + headerLength);
+			long transferred = 0;
+			while(transferred < length) {
+				long count = source.transferTo(sourcePosition + transferred, length - transferred, mActive.channel);
+				if(count <= 0) {
+					throw new EOFException("Record " + name + " is incomplete");
+				}
+				transferred += count;
+			}
+		}
+		mActive.size = offset + headerLength + length;
+		if(mDurability != DURABILITY_NONE) {
+			mDirty.add(mActive);
+			mUnsyncedRecords++;
+		}
+		return new Location(mActive, offset, headerLength, length);
+	}
+
+	private synchronized void commit(String name, byte[] data, FileChannel source, int length) throws IOException {
+		Location location = append(TYPE_PUT, name, data, source, 0, length);
+		if(mDurability == DURABILITY_SYNC) {
+			forceDirty();
+		}
+		markDead(mIndex.put(name, location));
+		scheduleCompactionIfNeeded();
+	}
+
+	private Segment newSegment() throws IOException {
+		int id = mNextSegmentId++;
+		Segment segment = new Segment(id, new File(mDirectory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+		segment.raf.setLength(0);
+		mSegments.put(id, segment);
+		return segment;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if(count < 0) {
+				throw new EOFException();
+			}
+			position += count;
+		}
+	}
+
+	private static void skipFully(DataInputStream in, int count) throws IOException {
+		while(count > 0) {
+			int skipped = in.skipBytes(count);
+			if(skipped <= 0) {
+				throw new EOFException();
+			}
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * @return The length of {@code s} in modified UTF-8, as written by {@link DataOutputStream#writeUTF(String)}.
+	 */
+	private static int utfLength(String s) {
+		int length = 0;
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c >= 0x0001 && c <= 0x007f) {
+				length++;
+			} else if(c <= 0x07ff) {
+				length += 2;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Buffers the record in memory and spills it into a temporary file, if it gets large.
+	 */
+	private class LogWriter extends Writer {
+		private ExposedByteArrayOutputStream mBuffer = new ExposedByteArrayOutputStream();
+		private File mSpillFile;
+		private OutputStream mSpill;
+		private long mLength;
+		private boolean mClosed;
+
+		@Override
+		public void write(int b) throws IOException {
+			if(mSpill == null && mBuffer.size() + 1 > SPILL_SIZE) {
+				spill();
+			}
+			(mSpill != null ? mSpill : mBuffer).write(b);
+			mLength++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			if(mSpill == null && mBuffer.size() + count > SPILL_SIZE) {
+				spill();
+			}
+			(mSpill != null ? mSpill : mBuffer).write(buffer, offset, count);
+			mLength += count;
+		}
+
+		private void spill() throws IOException {
+			mSpillFile = File.createTempFile("record", TMP_FILE_SUFFIX, mDirectory);
+			mSpill = new FileOutputStream(mSpillFile);
+			mBuffer.writeTo(mSpill);
+			mBuffer = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!mClosed) {
+				mClosed = true;
+				if(mSpill != null) {
+					mSpill.close();
+				}
+			}
+		}
+
+		@Override
+		public long length() {
+			return mLength;
+		}
+
+		@Override
+		public void commit(String name) throws IOException {
+			close();
+			if(mLength > Integer.MAX_VALUE) {
+				abort();
+				throw new IOException("Record " + name + " is too large");
+			}
+			if(mSpillFile == null) {
+				LogStorageEngine.this.commit(name, mBuffer.array(), null, (int) mLength);
+				return;
+			}
+			FileInputStream in = new FileInputStream(mSpillFile);
+			try {
+				LogStorageEngine.this.commit(name, null, in.getChannel(), (int) mLength);
+			} finally {
+				in.close();
+				abort();
+			}
+		}
+
+		@Override
+		public void abort() {
+			try {
+				close();
+			} catch(IOException ignored) { }
+			if(mSpillFile != null && mSpillFile.exists() && !mSpillFile.delete()) {
+				AppCacheLog.d("Could not clean up file %s", mSpillFile.getAbsolutePath());
+			}
+		}
+	}
+
+	private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		byte[] array() {
+			return buf;
+		}
+	}
+
+	private static class BoundedInputStream extends FilterInputStream {
+		private long mRemaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			mRemaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(mRemaining <= 0) {
+				return -1;
+			}
+			int result = super.read();
+			if(result != -1) {
+				mRemaining--;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if(mRemaining <= 0) {
+				return -1;
+			}
+			int result = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+			if(result != -1) {
+				mRemaining -= result;
+			}
+			return result;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(Math.min(count, mRemaining));
+			mRemaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), mRemaining);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * Decides how often download progress is delivered to the
+ * {@code ApplicationCacheEventListener}.
+ * Progress is delivered as soon as {@code maxBatchSize} downloads are pending
+ * or at least {@code minIntervalMillis} have passed since the last delivery,
+ * whatever comes first. The final progress is always delivered.
+ */
+public class ProgressDeliveryPolicy {
+
+	/** Delivers the progress for every downloaded URL. */
+	public static final ProgressDeliveryPolicy EVERY_RESPONSE = new ProgressDeliveryPolicy(0, 1);
+
+	private final long mMinIntervalMillis;
+	private final int mMaxBatchSize;
+
+	/**
+	 * @param minIntervalMillis Minimum time between two deliveries.
+	 * @param maxBatchSize Maximum number of downloads collected into one delivery.
+	 */
+	public ProgressDeliveryPolicy(long minIntervalMillis, int maxBatchSize) {
+		if(minIntervalMillis < 0 || maxBatchSize < 1) {
+			throw new IllegalArgumentException();
+		}
+		mMinIntervalMillis = minIntervalMillis;
+		mMaxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Delivers the progress at most every {@code intervalMillis}.
+	 */
+	public static ProgressDeliveryPolicy throttled(long intervalMillis) {
+		return new ProgressDeliveryPolicy(intervalMillis, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Delivers the progress for every {@code count} downloaded URLs.
+	 */
+	public static ProgressDeliveryPolicy batched(int count) {
+		return new ProgressDeliveryPolicy(Long.MAX_VALUE, count);
+	}
+
+	/**
+	 * @param pendingCount Number of downloads not delivered yet.
+	 * @param millisSinceLastDelivery Time since the last delivery.
+	 * @return True, if the pending progress should be delivered now.
+	 */
+	public boolean shouldDeliver(int pendingCount, long millisSinceLastDelivery) {
+		return pendingCount >= mMaxBatchSize || millisSinceLastDelivery >= mMinIntervalMillis;
+	}
+
+	public long getMinIntervalMillis() {
+		return mMinIntervalMillis;
+	}
+
+	public int getMaxBatchSize() {
+		return mMaxBatchSize;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a response body with a {@link DownloadTracker}, so the
+ * progress of a large entry is known before it's completely loaded.
+ */
+public abstract class ProgressInputStream extends FilterInputStream {
+	private final DownloadTracker mTracker;
+	private final String mUrl;
+
+	public ProgressInputStream(InputStream in, DownloadTracker tracker, String url) {
+		super(in);
+		mTracker = tracker;
+		mUrl = url;
+	}
+
+	/**
+	 * Called on the reading thread, if the tracker decided to deliver progress.
+	 */
+	protected abstract void onProgress(DownloadProgress progress);
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b >= 0) {
+			received(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int read = super.read(buffer, offset, count);
+		if(read > 0) {
+			received(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long skipped = super.skip(count);
+		if(skipped > 0) {
+			received(skipped);
+		}
+		return skipped;
+	}
+
+	private void received(long bytes) {
+		DownloadProgress progress = mTracker.onReceived(mUrl, bytes);
+		if(progress != null) {
+			onProgress(progress);
+		}
+	}
+}
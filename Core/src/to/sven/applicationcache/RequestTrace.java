@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The trace of a single request: Passes its stages with timestamps to a {@link RequestTracer}.
+ */
+public class RequestTrace {
+	private static final AtomicLong sNextId = new AtomicLong();
+
+	private final RequestTracer mTracer;
+	private final long mId = sNextId.incrementAndGet();
+	private final String mKind;
+	private final String mUrl;
+
+	private RequestTrace(RequestTracer tracer, String kind, String url) {
+		mTracer = tracer;
+		mKind = kind;
+		mUrl = url;
+	}
+
+	/**
+	 * @return The trace of a new request or null, if {@code tracer} is null.
+	 */
+	public static RequestTrace start(RequestTracer tracer, String kind, String url) {
+		return tracer == null ? null : new RequestTrace(tracer, kind, url);
+	}
+
+	/**
+	 * Traces a stage with the current time.
+	 * @param stage One of the {@code RequestTracer.STAGE_} constants.
+	 */
+	public void stage(int stage) {
+		mTracer.trace(mId, mKind, mUrl, stage, System.nanoTime());
+	}
+
+	public long getId() {
+		return mId;
+	}
+}
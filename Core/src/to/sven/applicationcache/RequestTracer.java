@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+/**
+ * Receives the stages of the manifest and master entry requests of an update,
+ * e.g. to find out whether the time goes into the network, parsing or the cache write.
+ * Called on the threads of the request pipeline, implementations must be thread-safe and fast.
+ * {@link ChromeTraceWriter} writes the stages to a file for {@code chrome://tracing}.
+ */
+public interface RequestTracer {
+	/** The request was added to the queue. */
+	int STAGE_QUEUED = 0;
+	/** The cache was checked for the request. */
+	int STAGE_CACHE_CHECKED = 1;
+	/** A network thread took the request. */
+	int STAGE_NETWORK_START = 2;
+	/** The response was received. Streaming requests have already written the body to the cache. */
+	int STAGE_NETWORK_END = 3;
+	/** The response was parsed. */
+	int STAGE_PARSED = 4;
+	/** The response was written to the cache. */
+	int STAGE_CACHE_WRITTEN = 5;
+	/** The response was delivered to the listener, the request is finished. */
+	int STAGE_DELIVERED = 6;
+	/** The request failed or an error was delivered, the request is finished. */
+	int STAGE_FAILED = 7;
+
+	/**
+	 * @param requestId Identifies the request, unique per process.
+	 * @param kind The kind of request, e.g. {@code "manifest"} or {@code "entry"}.
+	 * @param url The URL of the request.
+	 * @param stage One of the {@code STAGE_} constants.
+	 * @param nanos Timestamp of {@link System#nanoTime()}.
+	 */
+	void trace(long requestId, String kind, String url, int stage, long nanos);
+}
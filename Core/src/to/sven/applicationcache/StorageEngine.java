@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Where the {@link AppCacheStore} keeps its records: Named byte sequences, the
+ * store decides what's in them (header and body of an entry or a blob).
+ * {@link FileStorageEngine} keeps one file per record, {@link LogStorageEngine}
+ * appends the records to large segment files.
+ * Implementations must be thread-safe.
+ */
+public interface StorageEngine {
+	/** Records are not synced, the system writes them back when it likes. The default. */
+	int DURABILITY_NONE = 0;
+
+	/**
+	 * Records are synced together by {@link #sync()}, e.g. once at the end of an update.
+	 * A crash may lose records committed after the last sync, but doesn't leave records
+	 * that are partially written. What a sync costs depends on the engine:
+	 * {@link LogStorageEngine} forces each written segment once (a group commit),
+	 * {@link FileStorageEngine} still fsyncs every record file and doesn't fsync the
+	 * directory after renaming them into place.
+	 */
+	int DURABILITY_BATCH = 1;
+
+	/** Every record is synced when it's committed. */
+	int DURABILITY_SYNC = 2;
+
+	/**
+	 * Prepares the engine for use, e.g. creates its directory and drops incomplete writes.
+	 * Called by {@link AppCacheStore#initialize()}.
+	 */
+	void open() throws IOException;
+
+	/**
+	 * @return The names of all records.
+	 */
+	List<String> list();
+
+	/**
+	 * @return The record, the caller must close it.
+	 * @throws IOException If the record does not exist or can't be read.
+	 */
+	InputStream read(String name) throws IOException;
+
+	/**
+	 * @return The size of the record in bytes or -1, if it does not exist.
+	 */
+	long length(String name);
+
+	/**
+	 * Starts a new record, it's not visible until it's committed.
+	 */
+	Writer create() throws IOException;
+
+	/**
+	 * Overwrites the start of an existing record in place.
+	 */
+	void overwrite(String name, byte[] data) throws IOException;
+
+	/**
+	 * @return False, if the record did not exist or could not be deleted.
+	 */
+	boolean delete(String name);
+
+	/**
+	 * Deletes all records.
+	 */
+	void clear();
+
+	/**
+	 * @param durability {@link #DURABILITY_NONE}, {@link #DURABILITY_BATCH} or {@link #DURABILITY_SYNC}.
+	 */
+	void setDurability(int durability);
+
+	int getDurability();
+
+	/**
+	 * Syncs the records committed since the last sync to the disk.
+	 * Nothing to do, unless the durability is {@link #DURABILITY_BATCH}.
+	 * @return The number of records synced.
+	 */
+	int sync() throws IOException;
+
+	/**
+	 * A record that is being written. {@link #close()} finishes writing,
+	 * {@link #commit(String)} publishes it atomically, replacing a record of the same name.
+	 * Records that are not committed must be aborted.
+	 */
+	abstract class Writer extends OutputStream {
+		/**
+		 * @return The bytes written so far.
+		 */
+		public abstract long length();
+
+		/**
+		 * Closes the writer, if not done yet, and publishes the record.
+		 */
+		public abstract void commit(String name) throws IOException;
+
+		/**
+		 * Discards the record.
+		 */
+		public abstract void abort();
+	}
+}
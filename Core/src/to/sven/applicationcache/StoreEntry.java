@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Data and metadata for an entry of the {@link AppCacheStore}.
+ * Mirrors the fields of Volley's {@code Cache.Entry}, so the Android adapter can copy them 1:1.
+ * 
+ * AppCache master entries never expire/need refresh until the manifest changed.
+ */
+public class StoreEntry {
+	/** The data returned from cache. */
+	public byte[] data;
+
+	/** ETag for cache coherency. */
+	public String etag;
+
+	/** Date of this response as reported by the server. */
+	public long serverDate;
+
+	/** TTL for this record. */
+	public long ttl;
+
+	/** Soft TTL for this record. */
+	public long softTtl;
+
+	/** Immutable response headers as received from server; must be non-null. */
+	public Map<String, String> responseHeaders = Collections.emptyMap();
+
+	/** True, if the entry is a master entry of the current manifest. */
+	public boolean appCacheMasterEntry = false;
+
+	/** True, if the entry is a master entry that waits for its update. */
+	public boolean wasAppCacheUpgrade = false;
+
+	private boolean doNotRefresh() {
+		return appCacheMasterEntry && !wasAppCacheUpgrade;
+	}
+
+	/** True if the entry is expired. */
+	public boolean isExpired() {
+		return !doNotRefresh() && this.ttl < System.currentTimeMillis();
+	}
+
+	/** True if a refresh is needed from the original data source. */
+	public boolean refreshNeeded() {
+		return !doNotRefresh() && this.softTtl < System.currentTimeMillis();
+	}
+}
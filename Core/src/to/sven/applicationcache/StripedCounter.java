@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent updates over padded cells, so threads that
+ * count at the same time don't contend on one cache line. Reading sums all cells.
+ */
+public class StripedCounter {
+	/** Longs per cell, 64 bytes apart to avoid false sharing. */
+	private static final int PADDING = 8;
+	private static final int STRIPES;
+
+	static {
+		int stripes = 1;
+		int target = Runtime.getRuntime().availableProcessors() * 2;
+		while(stripes < target && stripes < 64) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long delta) {
+		mCells.addAndGet(stripe() * PADDING, delta);
+	}
+
+	/**
+	 * @return The sum of all cells. Not an atomic snapshot while other threads count.
+	 */
+	public long sum() {
+		long sum = 0;
+		for(int i = 0; i < STRIPES; i++) {
+			sum += mCells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) ((id ^ (id >>> 16)) & (STRIPES - 1));
+	}
+}
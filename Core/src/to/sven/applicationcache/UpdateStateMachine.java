@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The update lifecycle of an application cache as a lock-free state machine:
+ * status and generation of the update are packed into one atomic value, so every
+ * transition is a single compare-and-set. Each update runs with its own generation,
+ * responses of an aborted or replaced update can't change the state anymore.
+ * All methods can be called from any thread.
+ */
+public class UpdateStateMachine {
+	// update status
+	public static final short STATUS_UNCACHED = 0;
+	public static final short STATUS_IDLE = 1;
+	public static final short STATUS_CHECKING = 2;
+	public static final short STATUS_DOWNLOADING = 3;
+	public static final short STATUS_UPDATEREADY = 4;
+	public static final short STATUS_OBSOLETE = 5;
+
+	/** Returned by {@link #beginUpdate()} if an update is already running. */
+	public static final long NO_GENERATION = -1;
+
+	private static final int STATUS_BITS = 8;
+	private static final long STATUS_MASK = (1 << STATUS_BITS) - 1;
+
+	/** Generation (upper bits) and status (lower {@link #STATUS_BITS} bits) of the update. */
+	private final AtomicLong mState = new AtomicLong(STATUS_UNCACHED);
+	/** Set by {@link #requestUpdate()} while an update is running. */
+	private final AtomicBoolean mUpdatePending = new AtomicBoolean();
+
+	/**
+	 * @return The current status.
+	 */
+	public short getStatus() {
+		return statusOf(mState.get());
+	}
+
+	/**
+	 * @return The generation of the current (or last) update.
+	 */
+	public long getGeneration() {
+		return generationOf(mState.get());
+	}
+
+	/**
+	 * Starts the first update, independent of the current status.
+	 * A running update is replaced.
+	 * @return The generation of the new update.
+	 */
+	public long init() {
+		long state;
+		do {
+			state = mState.get();
+		} while(!mState.compareAndSet(state, nextGeneration(state, STATUS_CHECKING)));
+		return generationOf(state) + 1;
+	}
+
+	/**
+	 * Starts an update, if none is running.
+	 * @return The generation of the new update or {@link #NO_GENERATION}, if an update is already running.
+	 * @throws IllegalStateException If {@link #init()} wasn't called before.
+	 */
+	public long beginUpdate() {
+		while(true) {
+			long state = mState.get();
+			switch (statusOf(state)) {
+			case STATUS_UNCACHED:
+				throw new IllegalStateException("Run init(...) before!");
+			case STATUS_IDLE:
+			case STATUS_UPDATEREADY:
+			case STATUS_OBSOLETE:
+				if(mState.compareAndSet(state, nextGeneration(state, STATUS_CHECKING))) {
+					return generationOf(state) + 1;
+				}
+				// Lost the race against another transition, check again.
+				break;
+			case STATUS_CHECKING:
+			case STATUS_DOWNLOADING:
+			default:
+				return NO_GENERATION;
+			}
+		}
+	}
+
+	/**
+	 * Starts an update like {@link #beginUpdate()}. If an update is running (or {@link #init()}
+	 * wasn't called yet), another update is started by {@link #takePendingUpdate()} once
+	 * it's finished, e.g. because the running update already checked the entries to load.
+	 * @return The generation of the new update or {@link #NO_GENERATION}, if it's pending.
+	 */
+	public long requestUpdate() {
+		mUpdatePending.set(true);
+		return takePendingUpdate();
+	}
+
+	/**
+	 * Starts the update requested by {@link #requestUpdate()}, if no update is running anymore.
+	 * Has to be called whenever an update has finished.
+	 * @return The generation of the new update or {@link #NO_GENERATION}, if none was started.
+	 */
+	public long takePendingUpdate() {
+		while(mUpdatePending.compareAndSet(true, false)) {
+			if(getStatus() != STATUS_UNCACHED) {
+				long generation = beginUpdate();
+				if(generation != NO_GENERATION) {
+					return generation;
+				}
+			}
+			mUpdatePending.set(true);
+			// Check again, the running update may have finished before the flag was set back.
+			short status = getStatus();
+			if(status == STATUS_UNCACHED || status == STATUS_CHECKING || status == STATUS_DOWNLOADING) {
+				return NO_GENERATION;
+			}
+		}
+		return NO_GENERATION;
+	}
+
+	/**
+	 * Aborts a running update.
+	 * @return True, if an update was running.
+	 */
+	public boolean abort() {
+		while(true) {
+			long state = mState.get();
+			short status = statusOf(state);
+			if(status != STATUS_CHECKING && status != STATUS_DOWNLOADING) {
+				return false;
+			}
+			if(mState.compareAndSet(state, nextGeneration(state, STATUS_IDLE))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Switches from {@link #STATUS_UPDATEREADY} to {@link #STATUS_IDLE}.
+	 * @throws IllegalStateException If not in {@link #STATUS_UPDATEREADY}.
+	 */
+	public void swapCache() {
+		while(true) {
+			long state = mState.get();
+			if(statusOf(state) != STATUS_UPDATEREADY) {
+				throw new IllegalStateException("Not in state STATUS_UPDATEREADY.");
+			}
+			if(mState.compareAndSet(state, withStatus(state, STATUS_IDLE))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return True, if no other update was started since the update of {@code generation}.
+	 */
+	public boolean isCurrent(long generation) {
+		return generationOf(mState.get()) == generation;
+	}
+
+	/**
+	 * Changes the status, if the update of {@code generation} is still the current one and in status {@code from}.
+	 */
+	public boolean transition(long generation, short from, short to) {
+		return mState.compareAndSet((generation << STATUS_BITS) | from, (generation << STATUS_BITS) | to);
+	}
+
+	private static short statusOf(long state) {
+		return (short) (state & STATUS_MASK);
+	}
+
+	private static long generationOf(long state) {
+		return state >>> STATUS_BITS;
+	}
+
+	private static long withStatus(long state, short status) {
+		return (state & ~STATUS_MASK) | status;
+	}
+
+	private static long nextGeneration(long state, short status) {
+		return ((generationOf(state) + 1) << STATUS_BITS) | status;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Sven Nobis ( sven.to )
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package to.sven.applicationcache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} based on {@link HttpURLConnection}.
+ * Connections are kept alive by the JVM if the body is read completely.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+	private static final int DEFAULT_TIMEOUT_MS = 2500;
+
+	private final int mTimeoutMs;
+
+	public UrlConnectionTransport() {
+		this(DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 * @param timeoutMs Connect and read timeout.
+	 */
+	public UrlConnectionTransport(int timeoutMs) {
+		mTimeoutMs = timeoutMs;
+	}
+
+	@Override
+	public Response get(String url, Map<String, String> headers) throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(mTimeoutMs);
+		connection.setReadTimeout(mTimeoutMs);
+		connection.setUseCaches(false);
+		connection.setInstanceFollowRedirects(true);
+		for(Map.Entry<String, String> header : headers.entrySet()) {
+			connection.addRequestProperty(header.getKey(), header.getValue());
+		}
+		final int statusCode = connection.getResponseCode();
+		if(statusCode == -1) {
+			connection.disconnect();
+			throw new IOException("Could not retrieve response code from HttpUrlConnection.");
+		}
+		final Map<String, String> responseHeaders = new HashMap<String, String>();
+		for(Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+			if(header.getKey() != null && !header.getValue().isEmpty()) {
+				responseHeaders.put(header.getKey(), header.getValue().get(header.getValue().size() - 1));
+			}
+		}
+		return new Response() {
+			private InputStream mBody;
+
+			@Override
+			public int getStatusCode() {
+				return statusCode;
+			}
+
+			@Override
+			public Map<String, String> getHeaders() {
+				return responseHeaders;
+			}
+
+			@Override
+			public long getContentLength() {
+				String length = connection.getHeaderField("Content-Length");
+				try {
+					return length == null ? -1 : Long.parseLong(length);
+				} catch(NumberFormatException e) {
+					return -1;
+				}
+			}
+
+			@Override
+			public InputStream getBody() throws IOException {
+				if(mBody == null) {
+					if(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+						mBody = new ByteArrayInputStream(new byte[0]);
+					} else if(statusCode >= 400) {
+						mBody = connection.getErrorStream();
+						if(mBody == null) {
+							mBody = new ByteArrayInputStream(new byte[0]);
+						}
+					} else {
+						mBody = connection.getInputStream();
+					}
+				}
+				return mBody;
+			}
+
+			@Override
+			public void close() throws IOException {
+				getBody().close();
+			}
+		};
+	}
+}
@@ -0,0 +1,445 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheBundleReader;
+import to.sven.applicationcache.CacheManifest;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.CompressionPolicy;
+import to.sven.applicationcache.StorageEngine;
+import to.sven.applicationcache.StoreEntry;
+
+public class AppCacheStoreTest extends TestCase {
+	private static final String MANIFEST_URL = "http://sven.to/manifest.appcache";
+	private static final String MANIFEST = "CACHE MANIFEST\n/index.html\n/style.css\n";
+
+	private File mRoot;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = File.createTempFile("appcachestore", "");
+		mRoot.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = mRoot.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		mRoot.delete();
+	}
+
+	private AppCacheStore newStore() {
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		return store;
+	}
+
+	private static CacheManifest manifest(String content) throws IOException, URISyntaxException {
+		return CacheManifest.parse(MANIFEST_URL, new ByteArrayInputStream(content.getBytes("UTF-8")));
+	}
+
+	private static StoreEntry entry(String data) throws IOException {
+		StoreEntry entry = new StoreEntry();
+		entry.data = data.getBytes("UTF-8");
+		entry.etag = "\"1\"";
+		return entry;
+	}
+
+	public void testPutAndGet() throws IOException {
+		AppCacheStore store = newStore();
+		store.put("http://sven.to/a", entry("hello"));
+		StoreEntry entry = store.get("http://sven.to/a");
+		assertEquals("hello", new String(entry.data, "UTF-8"));
+		assertEquals("\"1\"", entry.etag);
+		assertNull(store.peek("http://sven.to/a").data);
+		assertNull(store.get("http://sven.to/b"));
+	}
+
+	public void testHashCollision() throws Exception {
+		// "Aa" and "BB" have the same String.hashCode(), so the keys have the same hash.
+		String a = "http://sven.to/Aa";
+		String b = "http://sven.to/BB";
+		AppCacheStore store = newStore();
+		store.put(a, entry("a"));
+		assertFalse(store.contains(b));
+		assertNull(store.get(b));
+		assertNull(store.peek(b));
+		assertNull(store.getStream(b));
+		assertFalse(store.isResponsibleFor(b));
+		store.remove(b);
+		assertEquals("a", new String(store.get(a).data, "UTF-8"));
+
+		// The record is shared, so the last one put wins.
+		store.put(b, entry("b"));
+		assertFalse(store.contains(a));
+		assertNull(store.get(a));
+		assertEquals("b", new String(store.get(b).data, "UTF-8"));
+		assertEquals("b", new String(newStore().get(b).data, "UTF-8"));
+		assertNull(newStore().get(a));
+	}
+
+	public void testApplyManifest() throws Exception {
+		AppCacheStore store = newStore();
+		List<String> pending = store.applyManifest(manifest(MANIFEST), true);
+		assertEquals(2, pending.size());
+		assertTrue(store.isResponsibleFor("http://sven.to/index.html"));
+
+		StoreEntry index = entry("");
+		// A header of more than 255 bytes has a longer block header before the flags.
+		index.responseHeaders = Collections.singletonMap("Link", new String(new char[300]).replace('\0', 'x'));
+		store.putStream("http://sven.to/index.html", index, new ByteArrayInputStream("index".getBytes("UTF-8")));
+		assertEquals(1, store.applyManifest(manifest(MANIFEST), false).size());
+
+		// A changed manifest marks all master entries as pending again.
+		assertEquals(2, store.applyManifest(manifest(MANIFEST + "# v2\n"), true).size());
+		assertTrue(store.peek("http://sven.to/index.html").wasAppCacheUpgrade);
+		assertTrue(store.markUpToDate("http://sven.to/index.html"));
+		assertEquals(1, store.getPendingMasterEntries().size());
+		assertFalse(store.get("http://sven.to/index.html").isExpired());
+
+		// markUpToDate() rewrote the flags on disk:
+		StoreEntry reloaded = newStore().peek("http://sven.to/index.html");
+		assertTrue(reloaded.appCacheMasterEntry);
+		assertFalse(reloaded.wasAppCacheUpgrade);
+		assertEquals(index.responseHeaders, reloaded.responseHeaders);
+	}
+
+	public void testInitializeReloadsEntries() throws Exception {
+		AppCacheStore store = newStore();
+		store.put(MANIFEST_URL, entry(MANIFEST));
+		store.applyManifest(manifest(MANIFEST), true);
+		store.putStream("http://sven.to/style.css", entry(""), new ByteArrayInputStream("css".getBytes("UTF-8")));
+
+		AppCacheStore reloaded = newStore();
+		assertTrue(reloaded.contains("http://sven.to/style.css"));
+		assertTrue(reloaded.isResponsibleFor("http://sven.to/index.html"));
+		assertEquals(1, reloaded.getPendingMasterEntries().size());
+		assertEquals("css", new String(reloaded.get("http://sven.to/style.css").data, "UTF-8"));
+		// The headers aren't kept in memory, they are read on demand.
+		assertEquals("\"1\"", reloaded.peek("http://sven.to/style.css").etag);
+		assertEquals("css", read(reloaded.getStream("http://sven.to/style.css")));
+	}
+
+	public void testImportSnapshot() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(CacheBundleReader.MAGIC.getBytes("US-ASCII"));
+		out.writeInt(CacheBundleReader.VERSION);
+		// The manifest may come after its entries.
+		writeRecord(out, "http://sven.to/index.html", 200, "index");
+		writeRecord(out, "http://sven.to/missing.html", 404, "");
+		writeRecord(out, MANIFEST_URL, 200, MANIFEST);
+		out.writeByte(CacheBundleReader.RECORD_END);
+
+		AppCacheStore store = newStore();
+		assertEquals(2, store.importSnapshot(new ByteArrayInputStream(bytes.toByteArray())));
+		assertFalse(store.contains("http://sven.to/missing.html"));
+		assertEquals(Collections.singletonList("http://sven.to/style.css"), store.getPendingMasterEntries());
+		assertEquals("\"7\"", store.peek("http://sven.to/index.html").etag);
+
+		AppCacheStore reloaded = newStore();
+		assertTrue(reloaded.isResponsibleFor("http://sven.to/index.html"));
+		assertEquals(Collections.singletonList("http://sven.to/style.css"), reloaded.getPendingMasterEntries());
+		assertEquals("index", read(reloaded.getStream("http://sven.to/index.html")));
+		// The flags of the imported master entries are on disk:
+		StoreEntry entry = reloaded.peek("http://sven.to/index.html");
+		assertTrue(entry.appCacheMasterEntry);
+		assertFalse(entry.wasAppCacheUpgrade);
+		assertFalse(entry.isExpired());
+	}
+
+	private static void writeRecord(DataOutputStream out, String url, int statusCode, String body) throws IOException {
+		byte[] data = body.getBytes("UTF-8");
+		out.writeByte(CacheBundleReader.RECORD_ENTRY);
+		out.writeUTF(url);
+		out.writeInt(statusCode);
+		out.writeInt(1);
+		out.writeUTF("ETag");
+		out.writeUTF("\"7\"");
+		out.writeLong(data.length);
+		out.write(data);
+	}
+
+	public void testPruneLeastRecentlyUsed() throws Exception {
+		AppCacheStore store = new AppCacheStore(mRoot, 64 * 1024, MANIFEST_URL, Clock.SYSTEM);
+		store.initialize();
+		store.applyManifest(manifest(MANIFEST), true);
+		store.put("http://sven.to/index.html", entry("index"));
+		for(int i = 0; i < 200; i++) {
+			store.put("http://sven.to/" + i, entry("entry " + i));
+			// Keeps the first entry recently used.
+			assertNotNull(store.get("http://sven.to/0"));
+		}
+		store.put("http://sven.to/large", entry(new String(new char[50 * 1024])));
+		// Pruning removed the least recently used entries, not the master entry.
+		assertTrue(store.contains("http://sven.to/index.html"));
+		assertTrue(store.contains("http://sven.to/0"));
+		assertTrue(store.contains("http://sven.to/large"));
+		assertFalse(store.contains("http://sven.to/1"));
+		assertTrue(store.contains("http://sven.to/199"));
+		store.put("http://sven.to/1", entry("again"));
+		assertEquals("again", new String(store.get("http://sven.to/1").data, "UTF-8"));
+	}
+
+	public void testCompression() throws Exception {
+		AppCacheStore store = newStore();
+		store.setCompressionPolicy(CompressionPolicy.deflate(6));
+		StringBuilder script = new StringBuilder();
+		for(int i = 0; i < 500; i++) {
+			script.append("function f").append(i).append("(a, b) { return a + b * ").append(i).append("; }\n");
+		}
+		StoreEntry js = entry(script.toString());
+		js.responseHeaders = Collections.singletonMap("Content-Type", "application/javascript; charset=utf-8");
+		store.put("http://sven.to/app.js", js);
+		assertTrue(store.getFileForKey("http://sven.to/app.js").length() < js.data.length / 2);
+
+		StoreEntry png = entry(script.toString());
+		png.responseHeaders = Collections.singletonMap("Content-Type", "image/png");
+		store.put("http://sven.to/image.png", png);
+		assertTrue(store.getFileForKey("http://sven.to/image.png").length() > png.data.length);
+
+		StoreEntry css = entry("");
+		css.responseHeaders = Collections.singletonMap("content-type", "text/css");
+		store.putStream("http://sven.to/style.css", css, new ByteArrayInputStream(js.data));
+		assertTrue(store.getFileForKey("http://sven.to/style.css").length() < js.data.length / 2);
+		// Smaller than the minimum size:
+		store.putStream("http://sven.to/small.css", css, new ByteArrayInputStream("a{}".getBytes("UTF-8")));
+
+		AppCacheStore reloaded = newStore();
+		assertEquals(script.toString(), new String(reloaded.get("http://sven.to/app.js").data, "UTF-8"));
+		assertEquals(script.toString(), new String(reloaded.get("http://sven.to/image.png").data, "UTF-8"));
+		assertEquals(script.toString(), read(reloaded.getStream("http://sven.to/style.css")));
+		assertEquals("a{}", read(reloaded.getStream("http://sven.to/small.css")));
+		assertEquals(script.toString(), read(AppCacheStore.getStreamStatic("http://sven.to/app.js", mRoot)));
+	}
+
+	public void testDeduplication() throws Exception {
+		AppCacheStore store = newStore();
+		store.setDeduplication(true);
+		store.setCompressionPolicy(CompressionPolicy.deflate(6));
+		StringBuilder body = new StringBuilder();
+		for(int i = 0; i < 500; i++) {
+			body.append("/* ").append(i).append(" */ body { margin: 0; }\n");
+		}
+		StoreEntry css = entry(body.toString());
+		css.responseHeaders = Collections.singletonMap("Content-Type", "text/css");
+		store.put("http://sven.to/a.css", css);
+		StoreEntry streamed = entry("");
+		streamed.responseHeaders = css.responseHeaders;
+		store.putStream("http://sven.to/b.css", streamed, new ByteArrayInputStream(css.data));
+		store.put("http://sven.to/c.css", css);
+		assertEquals(1, countBlobs());
+		assertEquals(2, store.getStats().getDeduplicatedPuts());
+		assertTrue(store.getFileForKey("http://sven.to/c.css").length() < 1024);
+		assertEquals(body.toString(), read(store.getStream("http://sven.to/b.css")));
+
+		store.remove("http://sven.to/a.css");
+		store.remove("http://sven.to/b.css");
+		assertEquals(1, countBlobs());
+		assertEquals(body.toString(), new String(store.get("http://sven.to/c.css").data, "UTF-8"));
+		store.remove("http://sven.to/c.css");
+		assertEquals(0, countBlobs());
+
+		StringBuilder manifest = new StringBuilder(MANIFEST);
+		for(int i = 0; i < 500; i++) {
+			manifest.append("# padding ").append(i).append('\n');
+		}
+		StoreEntry manifestEntry = entry(manifest.toString());
+		manifestEntry.responseHeaders = Collections.singletonMap("Content-Type", "text/cache-manifest");
+		store.put(MANIFEST_URL, manifestEntry);
+		store.put("http://sven.to/a.css", css);
+		store.put("http://sven.to/b.css", css);
+		new File(mRoot, "blob-orphan-0").createNewFile();
+
+		AppCacheStore reloaded = newStore();
+		assertEquals(2, countBlobs());
+		assertTrue(reloaded.isResponsibleFor("http://sven.to/index.html"));
+		reloaded.remove("http://sven.to/a.css");
+		assertEquals(body.toString(), new String(reloaded.get("http://sven.to/b.css").data, "UTF-8"));
+		reloaded.remove("http://sven.to/b.css");
+		assertEquals(1, countBlobs());
+	}
+
+	public void testParallelInitialize() throws Exception {
+		AppCacheStore store = newStore();
+		store.setDeduplication(true);
+		store.put(MANIFEST_URL, entry(MANIFEST));
+		StoreEntry shared = entry(new String(new char[8 * 1024]));
+		for(int i = 0; i < 500; i++) {
+			store.put("http://sven.to/" + i, i % 100 == 0 ? shared : entry("entry " + i));
+		}
+		new File(mRoot, "-1-1").createNewFile();
+
+		final AppCacheStore reloaded = new AppCacheStore(mRoot, MANIFEST_URL);
+		reloaded.setScanThreads(4);
+		reloaded.setDeduplication(true);
+		Thread initializer = new Thread() {
+			@Override
+			public void run() {
+				reloaded.initialize();
+			}
+		};
+		initializer.start();
+		// Writes while scanning win over the scanned records.
+		reloaded.remove("http://sven.to/400");
+		reloaded.remove("http://sven.to/499");
+		reloaded.put("http://sven.to/498", entry("new"));
+		initializer.join();
+
+		assertFalse(reloaded.contains("http://sven.to/400"));
+		assertFalse(reloaded.contains("http://sven.to/499"));
+		assertEquals("new", new String(reloaded.get("http://sven.to/498").data, "UTF-8"));
+		assertEquals("entry 1", new String(reloaded.get("http://sven.to/1").data, "UTF-8"));
+		assertEquals(8 * 1024, reloaded.get("http://sven.to/300").data.length);
+		assertTrue(reloaded.isResponsibleFor("http://sven.to/index.html"));
+		assertFalse(new File(mRoot, "-1-1").exists());
+		assertEquals(1, countBlobs());
+		for(int i = 0; i < 400; i++) {
+			assertTrue(reloaded.contains("http://sven.to/" + i));
+		}
+	}
+
+	public void testBatchDurability() throws Exception {
+		AppCacheStore store = newStore();
+		store.setDurability(StorageEngine.DURABILITY_BATCH);
+		store.put("http://sven.to/a", entry("1"));
+		assertTrue(store.sync());
+		String name = store.getFileForKey("http://sven.to/a").getName();
+
+		store.put("http://sven.to/a", entry("2"));
+		store.put("http://sven.to/b", entry("b"));
+		store.put("http://sven.to/c", entry("c"));
+		store.remove("http://sven.to/c");
+		// Not synced yet, read from the temporary files.
+		assertEquals("2", new String(store.get("http://sven.to/a").data, "UTF-8"));
+		assertTrue(store.getFileForKey("http://sven.to/b").getName().endsWith(".tmp"));
+		assertEquals(2, store.getStorageEngine().sync());
+		assertEquals(0, store.getStorageEngine().sync());
+		assertEquals(name, store.getFileForKey("http://sven.to/a").getName());
+
+		// A crash before the sync keeps the synced records.
+		store.put("http://sven.to/a", entry("3"));
+		store.put("http://sven.to/d", entry("d"));
+		AppCacheStore reloaded = newStore();
+		assertEquals("2", new String(reloaded.get("http://sven.to/a").data, "UTF-8"));
+		assertEquals("b", new String(reloaded.get("http://sven.to/b").data, "UTF-8"));
+		assertFalse(reloaded.contains("http://sven.to/c"));
+		assertFalse(reloaded.contains("http://sven.to/d"));
+
+		// A full batch is synced in the background, not inside put().
+		for(int i = 0; i < 256; i++) {
+			reloaded.put("http://sven.to/" + i, entry("entry " + i));
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while(reloaded.getFileForKey("http://sven.to/0").getName().endsWith(".tmp")) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		assertEquals("entry 255", new String(newStore().get("http://sven.to/255").data, "UTF-8"));
+	}
+
+	public void testChecksum() throws Exception {
+		AppCacheStore store = newStore();
+		final List<String> corrupted = new ArrayList<String>();
+		store.setCorruptionListener(new AppCacheStore.CorruptionListener() {
+			@Override
+			public void onCorrupted(String key, boolean masterEntry) {
+				corrupted.add(key + " " + masterEntry);
+			}
+		});
+		store.applyManifest(manifest(MANIFEST), true);
+		store.put("http://sven.to/a", entry("hello"));
+		store.putStream("http://sven.to/index.html", entry(""), new ByteArrayInputStream("index".getBytes("UTF-8")));
+		store.markUpToDate("http://sven.to/index.html");
+		assertEquals("hello", new String(store.get("http://sven.to/a").data, "UTF-8"));
+		assertEquals(1, store.getStats().getVerifiedReads());
+
+		// Only the first read is verified by default.
+		corrupt(store.getFileForKey("http://sven.to/a"));
+		assertEquals("hellp", new String(store.get("http://sven.to/a").data, "UTF-8"));
+		assertEquals(1, store.getStats().getVerifiedReads());
+		store.setVerification(AppCacheStore.VERIFY_ALWAYS, 1);
+		assertNull(store.get("http://sven.to/a"));
+		assertFalse(store.contains("http://sven.to/a"));
+
+		corrupt(store.getFileForKey("http://sven.to/index.html"));
+		assertNull(store.getStream("http://sven.to/index.html"));
+		assertEquals(2, store.getStats().getCorruptEntries());
+		assertEquals("[http://sven.to/a false, http://sven.to/index.html true]", corrupted.toString());
+		assertTrue(store.getPendingMasterEntries().contains("http://sven.to/index.html"));
+
+		store.setVerification(AppCacheStore.VERIFY_SAMPLED, 2);
+		store.put("http://sven.to/b", entry("b"));
+		for(int i = 0; i < 4; i++) {
+			store.get("http://sven.to/b");
+		}
+		assertEquals(5, store.getStats().getVerifiedReads());
+
+		// A stream is verified when its end is read.
+		store.setVerification(AppCacheStore.VERIFY_FIRST_READ, 1);
+		store.put("http://sven.to/c", entry("hello"));
+		corrupt(store.getFileForKey("http://sven.to/c"));
+		InputStream in = store.getStream("http://sven.to/c");
+		try {
+			read(in);
+			fail();
+		} catch(IOException e) {
+			// expected
+		}
+		assertFalse(store.contains("http://sven.to/c"));
+		assertEquals(3, store.getStats().getCorruptEntries());
+	}
+
+	private static void corrupt(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			int b = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(b + 1);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private int countBlobs() {
+		int count = 0;
+		for(String name : mRoot.list()) {
+			if(name.startsWith("blob-")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			StringBuilder builder = new StringBuilder();
+			byte[] buffer = new byte[1000];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				builder.append(new String(buffer, 0, count, "UTF-8"));
+			}
+			return builder.toString();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.ApplicationCacheUpdater;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.DownloadProgress;
+import to.sven.applicationcache.HttpTransport;
+import to.sven.applicationcache.RequestTracer;
+import to.sven.applicationcache.UpdateStateMachine;
+
+public class ApplicationCacheUpdaterTest extends TestCase {
+	private static final String MANIFEST_URL = "http://sven.to/manifest.appcache";
+
+	private File mRoot;
+	private FakeTransport mTransport;
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = File.createTempFile("appcacheupdater", "");
+		mRoot.delete();
+		mTransport = new FakeTransport();
+		mTransport.files.put(MANIFEST_URL, "CACHE MANIFEST\n# v1\n/a.html\n/b.css\n/c.js\n");
+		mTransport.files.put("http://sven.to/a.html", "a");
+		mTransport.files.put("http://sven.to/b.css", "b");
+		mTransport.files.put("http://sven.to/c.js", "c");
+		mExecutor = Executors.newFixedThreadPool(2);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdown();
+		File[] files = mRoot.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		mRoot.delete();
+	}
+
+	private ApplicationCacheUpdater newUpdater(AppCacheStore store) {
+		return new ApplicationCacheUpdater(MANIFEST_URL, store, mTransport, mExecutor, Clock.SYSTEM);
+	}
+
+	public void testUpdateCycle() throws Exception {
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		ApplicationCacheUpdater updater = newUpdater(store);
+		RecordingListener listener = new RecordingListener();
+		updater.setUpdateListener(listener);
+
+		assertEquals(UpdateStateMachine.STATUS_UPDATEREADY, updater.update(false));
+		assertEquals(3, listener.downloading);
+		assertEquals(3, listener.lastProgress.getLoaded());
+		assertEquals(1, listener.updateReady);
+		assertEquals("b", new String(store.get("http://sven.to/b.css").data, "UTF-8"));
+		updater.swapCache();
+
+		// Unchanged manifest: answered with 304, nothing to download.
+		assertEquals(UpdateStateMachine.STATUS_IDLE, updater.update(false));
+		assertEquals(1, listener.noUpdate);
+
+		// Changed manifest: all master entries are revalidated, only the changed one is loaded.
+		mTransport.files.put(MANIFEST_URL, "CACHE MANIFEST\n# v2\n/a.html\n/b.css\n/c.js\n");
+		mTransport.files.put("http://sven.to/c.js", "c2");
+		mTransport.requests = 0;
+		mTransport.notModified = 0;
+		assertEquals(UpdateStateMachine.STATUS_UPDATEREADY, updater.update(false));
+		assertEquals(4, mTransport.requests);
+		assertEquals(2, mTransport.notModified);
+		assertEquals("c2", new String(store.get("http://sven.to/c.js").data, "UTF-8"));
+	}
+
+	public void testMissingEntryKeepsItPending() throws Exception {
+		mTransport.files.remove("http://sven.to/c.js");
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		ApplicationCacheUpdater updater = newUpdater(store);
+		RecordingListener listener = new RecordingListener();
+		updater.setUpdateListener(listener);
+
+		assertEquals(UpdateStateMachine.STATUS_IDLE, updater.update(false));
+		assertEquals(1, listener.errors);
+		assertEquals(Collections.singletonList("http://sven.to/c.js"), store.getPendingMasterEntries());
+
+		mTransport.files.put("http://sven.to/c.js", "c");
+		assertEquals(UpdateStateMachine.STATUS_UPDATEREADY, updater.update(false));
+	}
+
+	public void testMissingManifestIsObsolete() throws Exception {
+		mTransport.files.remove(MANIFEST_URL);
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		ApplicationCacheUpdater updater = newUpdater(store);
+		RecordingListener listener = new RecordingListener();
+		updater.setUpdateListener(listener);
+		assertEquals(UpdateStateMachine.STATUS_OBSOLETE, updater.update(false));
+		assertEquals(1, listener.obsolete);
+	}
+
+	public void testTracesRequestStages() throws Exception {
+		mTransport.files.remove("http://sven.to/c.js");
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		ApplicationCacheUpdater updater = newUpdater(store);
+		RecordingTracer tracer = new RecordingTracer();
+		updater.setRequestTracer(tracer);
+		updater.update(false);
+
+		int[] written = {
+			RequestTracer.STAGE_QUEUED, RequestTracer.STAGE_CACHE_CHECKED, RequestTracer.STAGE_NETWORK_START,
+			RequestTracer.STAGE_NETWORK_END, RequestTracer.STAGE_CACHE_WRITTEN, RequestTracer.STAGE_DELIVERED
+		};
+		int[] manifest = {
+			RequestTracer.STAGE_QUEUED, RequestTracer.STAGE_CACHE_CHECKED, RequestTracer.STAGE_NETWORK_START,
+			RequestTracer.STAGE_NETWORK_END, RequestTracer.STAGE_PARSED, RequestTracer.STAGE_CACHE_WRITTEN,
+			RequestTracer.STAGE_DELIVERED
+		};
+		int[] failed = {
+			RequestTracer.STAGE_QUEUED, RequestTracer.STAGE_CACHE_CHECKED, RequestTracer.STAGE_NETWORK_START,
+			RequestTracer.STAGE_NETWORK_END, RequestTracer.STAGE_FAILED
+		};
+		assertStages(manifest, tracer.stagesOf(MANIFEST_URL));
+		assertStages(written, tracer.stagesOf("http://sven.to/a.html"));
+		assertStages(failed, tracer.stagesOf("http://sven.to/c.js"));
+	}
+
+	private static void assertStages(int[] expected, List<Integer> actual) {
+		assertEquals(expected.length, actual.size());
+		for(int i = 0; i < expected.length; i++) {
+			assertEquals("Stage " + i, expected[i], actual.get(i).intValue());
+		}
+	}
+
+	private static class RecordingTracer implements RequestTracer {
+		private final Map<String, List<Integer>> mStages = new HashMap<String, List<Integer>>();
+		private final Map<String, Long> mIds = new HashMap<String, Long>();
+		private final Map<String, Long> mLastNanos = new HashMap<String, Long>();
+
+		@Override
+		public synchronized void trace(long requestId, String kind, String url, int stage, long nanos) {
+			Long id = mIds.get(url);
+			if(id == null) {
+				mIds.put(url, requestId);
+				mStages.put(url, new ArrayList<Integer>());
+			} else {
+				assertEquals(id.longValue(), requestId);
+			}
+			assertEquals(url.equals(MANIFEST_URL) ? "manifest" : "entry", kind);
+			Long last = mLastNanos.put(url, nanos);
+			assertTrue(last == null || nanos >= last);
+			mStages.get(url).add(stage);
+		}
+
+		synchronized List<Integer> stagesOf(String url) {
+			List<Integer> stages = mStages.get(url);
+			return stages == null ? Collections.<Integer>emptyList() : stages;
+		}
+	}
+
+	/**
+	 * Serves strings from a map, the ETag is the hash of the content.
+	 */
+	private static class FakeTransport implements HttpTransport {
+		final Map<String, String> files = Collections.synchronizedMap(new HashMap<String, String>());
+		volatile int requests;
+		volatile int notModified;
+
+		@Override
+		public synchronized Response get(String url, Map<String, String> headers) throws IOException {
+			requests++;
+			String content = files.get(url);
+			if(content == null) {
+				return response(404, Collections.<String, String>emptyMap(), "");
+			}
+			String etag = "\"" + Integer.toHexString(content.hashCode()) + "\"";
+			Map<String, String> responseHeaders = new HashMap<String, String>();
+			responseHeaders.put("ETag", etag);
+			if(etag.equals(headers.get("If-None-Match"))) {
+				notModified++;
+				return response(304, responseHeaders, "");
+			}
+			return response(200, responseHeaders, content);
+		}
+
+		private static Response response(final int statusCode, final Map<String, String> headers, String content)
+				throws IOException {
+			final byte[] body = content.getBytes("UTF-8");
+			return new Response() {
+				@Override
+				public int getStatusCode() {
+					return statusCode;
+				}
+
+				@Override
+				public Map<String, String> getHeaders() {
+					return headers;
+				}
+
+				@Override
+				public long getContentLength() {
+					return body.length;
+				}
+
+				@Override
+				public InputStream getBody() {
+					return new ByteArrayInputStream(body);
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	private static class RecordingListener implements ApplicationCacheUpdater.UpdateListener {
+		volatile int noUpdate;
+		volatile int downloading;
+		volatile int updateReady;
+		volatile int obsolete;
+		volatile int errors;
+		volatile DownloadProgress lastProgress;
+
+		@Override
+		public void onNoUpdate() {
+			noUpdate++;
+		}
+
+		@Override
+		public void onDownloading(int total) {
+			downloading = total;
+		}
+
+		@Override
+		public synchronized void onProgress(DownloadProgress progress) {
+			if(lastProgress == null || progress.getLoaded() > lastProgress.getLoaded()) {
+				lastProgress = progress;
+			}
+		}
+
+		@Override
+		public synchronized void onError(String url, Exception error) {
+			errors++;
+		}
+
+		@Override
+		public void onUpdateReady() {
+			updateReady++;
+		}
+
+		@Override
+		public void onObsolete() {
+			obsolete++;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.CacheBundleReader;
+
+public class CacheBundleReaderTest extends TestCase {
+	public void testReadBundle() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = writeHeader(bytes);
+		writeEntry(out, "http://sven.to/index.html", "<html></html>");
+		writeEntry(out, "http://sven.to/empty.css", "");
+		writeEntry(out, "http://sven.to/skipped.js", "var a;");
+		writeEntry(out, "http://sven.to/offline.html", "offline");
+		out.writeByte(CacheBundleReader.RECORD_END);
+
+		CacheBundleReader reader = new CacheBundleReader(new ByteArrayInputStream(bytes.toByteArray()));
+		assertTrue(reader.next());
+		assertEquals("http://sven.to/index.html", reader.url());
+		assertEquals(200, reader.statusCode());
+		assertEquals("\"etag\"", reader.headers().get("ETag"));
+		assertEquals("<html></html>", read(reader.body()));
+		assertTrue(reader.next());
+		assertEquals(0, reader.bodyLength());
+		assertEquals(-1, reader.body().read());
+		// Unread bodies are skipped:
+		assertTrue(reader.next());
+		assertTrue(reader.next());
+		assertEquals("http://sven.to/offline.html", reader.url());
+		assertEquals("offline", read(reader.body()));
+		assertFalse(reader.next());
+	}
+
+	public void testTruncatedBundle() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = writeHeader(bytes);
+		writeEntry(out, "http://sven.to/index.html", "<html></html>");
+		byte[] truncated = bytes.toByteArray();
+		CacheBundleReader reader = new CacheBundleReader(new ByteArrayInputStream(truncated, 0, truncated.length - 3));
+		assertTrue(reader.next());
+		try {
+			read(reader.body());
+			fail("Truncated body was read.");
+		} catch(IOException expected) {
+		}
+	}
+
+	public void testNotABundle() {
+		try {
+			new CacheBundleReader(new ByteArrayInputStream("CACHE MANIFEST\n".getBytes()));
+			fail("Manifest was read as bundle.");
+		} catch(IOException expected) {
+		}
+	}
+
+	private DataOutputStream writeHeader(ByteArrayOutputStream bytes) throws IOException {
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(CacheBundleReader.MAGIC.getBytes("US-ASCII"));
+		out.writeInt(CacheBundleReader.VERSION);
+		return out;
+	}
+
+	private void writeEntry(DataOutputStream out, String url, String body) throws IOException {
+		byte[] data = body.getBytes("UTF-8");
+		out.writeByte(CacheBundleReader.RECORD_ENTRY);
+		out.writeUTF(url);
+		out.writeInt(200);
+		out.writeInt(1);
+		out.writeUTF("ETag");
+		out.writeUTF("\"etag\"");
+		out.writeLong(data.length);
+		out.write(data);
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toString("UTF-8");
+	}
+}
@@ -0,0 +1,150 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.CacheManifest;
+
+public class CacheManifestTest extends TestCase {
+	public void testManifest1() throws IOException, URISyntaxException {
+		 InputStream in = open("manifest.appcache");
+		 CacheManifest cacheManifest = CacheManifest.parse("http://applicationcache.sven.to:8080/ab/manifest.appcache", in, true, true);
+		 assertEquals("http://applicationcache.sven.to:8080/ab/manifest.appcache", cacheManifest.getManifestURL().toString());
+		 cacheManifest.setComment("TEST comment");
+		 assertEquals(CacheManifest.ONLINE_WHITELIST_WILDCARD_FLAG_BLOCKING, cacheManifest.getOnlineWhitelistWildcardFlag());
+		 assertEquals(CacheManifest.CACHE_MODE_FAST, cacheManifest.getCacheMode());
+		 assertEquals("http://applicationcache.sven.to:8080/favicon.ico", cacheManifest.getExplicitEntries().get(0).toString());
+		 assertEquals("http://applicationcache.sven.to:8080/ab/index.html", cacheManifest.getExplicitEntries().get(1).toString());
+		 assertEquals("http://www.example.com/ex", cacheManifest.getExplicitEntries().get(5).toString());
+		 String expect = read("manifest_expect.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+	
+	public void testManifestMasterEntries() throws IOException, URISyntaxException {
+		 InputStream in = open("test_master_entries.appcache");
+		 CacheManifest cacheManifest = CacheManifest.parse("http://sven.to/manifest.appcache", in, true, true);
+		 Iterator<URI> iterator = cacheManifest.getMasterEntries().iterator();
+		 assertEquals("http://sven.to/index.html", iterator.next().toString());
+		 assertEquals("http://sven.to/about.html", iterator.next().toString());
+		 assertEquals("http://sven.to/offline.html", iterator.next().toString());
+		 assertEquals("http://sven.to/offline.css", iterator.next().toString());
+		 assertEquals(false, iterator.hasNext());
+	}
+	
+	public void testManifest2() throws IOException, URISyntaxException {
+		 InputStream in = open("manifest2.appcache");
+		 CacheManifest cacheManifest = CacheManifest.parse("https://applicationcache.sven.to:8080/ab/manifest2.appcache", in);
+		 assertEquals(CacheManifest.ONLINE_WHITELIST_WILDCARD_FLAG_BLOCKING, cacheManifest.getOnlineWhitelistWildcardFlag());
+		 assertEquals(CacheManifest.CACHE_MODE_PREFER_ONLINE, cacheManifest.getCacheMode());
+		 String expect = read("manifest2_expect.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+	
+	public void testManifest3() throws IOException, URISyntaxException {
+		 InputStream in = open("manifest3.appcache");
+		 CacheManifest cacheManifest = CacheManifest.parse("http://applicationcache.sven.to:8080/ab/manifest3.appcache", in);
+		 assertEquals(CacheManifest.ONLINE_WHITELIST_WILDCARD_FLAG_OPEN, cacheManifest.getOnlineWhitelistWildcardFlag());
+		 assertEquals(CacheManifest.CACHE_MODE_FAST, cacheManifest.getCacheMode());
+		 String expect = read("manifest3_expect.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+
+	public void testManifestSameOrigin() throws IOException, URISyntaxException {
+		 InputStream in = open("manifest3.appcache");
+		 CacheManifest cacheManifest = CacheManifest.parse("http://applicationcache.sven.to:8080/ab/manifest3.appcache", in, false, true);
+		 String expect = read("manifest3_expect_same_origin.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+
+	public void testManifestSameScheme() throws IOException, URISyntaxException {
+		 InputStream in = open("manifest3.appcache");
+		 CacheManifest cacheManifest = CacheManifest.parse("http://applicationcache.sven.to:8080/ab/manifest3.appcache", in, true, false);
+		 String expect = read("manifest3_expect_same_scheme.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+	
+	public void testCreatingManifest() throws IOException, URISyntaxException {
+		 CacheManifest cacheManifest = new CacheManifest(new URI("http://applicationcache.sven.to/dir/index.appcache"), true, true);
+		 addEntries(cacheManifest);
+		 String expect = read("creating_manifest_expect.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+	
+	public void testCreatingManifestWithoutManifestURI() throws IOException, URISyntaxException {
+		 CacheManifest cacheManifest = new CacheManifest();
+		 addEntries(cacheManifest);
+		 String expect = read("creating_manifest_expect_nouri.appcache");
+		 assertEquals(expect, cacheManifest.toString());
+	}
+	
+	public void testEntryComments() throws IOException, URISyntaxException {
+		 CacheManifest cacheManifest = new CacheManifest("http://sven.to/manifest.appcache");
+		 cacheManifest.setComment("version 1");
+		 cacheManifest.addExplicitEntry(new URI("http://sven.to/index.html"), "sha-256:abc");
+		 cacheManifest.addExplicitEntry("about.html");
+		 assertEquals("CACHE MANIFEST\n# version 1\n# sha-256:abc\nindex.html\nabout.html\n", cacheManifest.toString());
+		 CacheManifest parsed = CacheManifest.parse("http://sven.to/manifest.appcache",
+				 new ByteArrayInputStream(cacheManifest.toString().getBytes("UTF-8")));
+		 assertEquals(2, parsed.getExplicitEntries().size());
+	}
+	
+	public void testSizeHints() throws IOException, URISyntaxException {
+		 String manifest = "CACHE MANIFEST\n# version 1\n# sha-256:abc size=4096\n/index.html\n"
+				 + "# size=12\n\n/about.html\n/style.css\n# nosize=1\n/app.js\n";
+		 CacheManifest parsed = CacheManifest.parse("http://sven.to/manifest.appcache",
+				 new ByteArrayInputStream(manifest.getBytes("UTF-8")));
+		 assertEquals(4096, parsed.getSizeHint("http://sven.to/index.html"));
+		 assertEquals(12, parsed.getSizeHint("http://sven.to/about.html"));
+		 assertEquals(-1, parsed.getSizeHint("http://sven.to/style.css"));
+		 assertEquals(-1, parsed.getSizeHint("http://sven.to/app.js"));
+
+		 // A hint doesn't carry over a section line and other "size=" suffixes are skipped.
+		 manifest = "CACHE MANIFEST\n# size=99\nCACHE:\n/index.html\n# filesize=1 size=20\n/about.html\n";
+		 parsed = CacheManifest.parse("http://sven.to/manifest.appcache",
+				 new ByteArrayInputStream(manifest.getBytes("UTF-8")));
+		 assertEquals(-1, parsed.getSizeHint("http://sven.to/index.html"));
+		 assertEquals(20, parsed.getSizeHint("http://sven.to/about.html"));
+
+		 CacheManifest created = new CacheManifest("http://sven.to/manifest.appcache");
+		 created.addExplicitEntry(new URI("http://sven.to/index.html"), "sha-256:abc size=4096");
+		 assertEquals(4096, created.getSizeHint("http://sven.to/index.html"));
+	}
+	
+	private void addEntries(CacheManifest cacheManifest) throws URISyntaxException {
+		 cacheManifest.addExplicitEntry("http://www.google.de");
+		 cacheManifest.addExplicitEntry("/index.html#fragment");
+		 cacheManifest.addExplicitEntry("mail/home.html");
+		 cacheManifest.addExplicitEntry("mail/query.html?query");
+		 cacheManifest.addExplicitEntry("/dir/index.html");
+	}
+
+	private InputStream open(String asset) throws IOException {
+		InputStream in = getClass().getResourceAsStream("/" + asset);
+		if(in == null) {
+			throw new IOException("Missing test asset " + asset);
+		}
+		return in;
+	}
+
+	private String read(String asset) throws IOException {
+		InputStream in = open(asset);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
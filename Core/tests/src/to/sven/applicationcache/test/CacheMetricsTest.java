@@ -0,0 +1,79 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheManifest;
+import to.sven.applicationcache.CacheMetrics;
+import to.sven.applicationcache.CacheStats;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.LatencyHistogram;
+import to.sven.applicationcache.StoreEntry;
+
+public class CacheMetricsTest extends StoreTestCase {
+	private static StoreEntry entry(int size) {
+		StoreEntry entry = new StoreEntry();
+		entry.data = new byte[size];
+		return entry;
+	}
+
+	public void testHitsAndMisses() throws Exception {
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		store.applyManifest(CacheManifest.parse(MANIFEST_URL,
+				new ByteArrayInputStream("CACHE MANIFEST\n/pinned.js\n".getBytes("UTF-8"))), true);
+		store.put("http://sven.to/pinned.js", entry(100));
+		store.put("http://sven.to/other.js", entry(50));
+
+		store.get("http://sven.to/pinned.js");
+		store.get("http://sven.to/other.js");
+		store.getStream("http://sven.to/other.js").close();
+		store.get("http://sven.to/missing.js");
+
+		CacheStats stats = store.getStats();
+		assertEquals(1, stats.getPinnedHits());
+		assertEquals(2, stats.getEvictableHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(0.75, stats.getHitRate(), 0.001);
+		assertEquals(150, stats.getBytesWritten());
+		assertEquals(2, stats.getPutLatency().getCount());
+		assertEquals(4, stats.getGetLatency().getCount());
+		assertEquals(1, stats.getInitializeLatency().getCount());
+	}
+
+	public void testPruneIsCountedAndPublished() throws Exception {
+		AppCacheStore store = new AppCacheStore(mRoot, 1000, MANIFEST_URL, Clock.SYSTEM);
+		store.initialize();
+		final AtomicInteger published = new AtomicInteger();
+		store.getMetrics().setListener(new CacheMetrics.Listener() {
+			@Override
+			public void onStats(CacheStats stats) {
+				published.incrementAndGet();
+			}
+		});
+		for(int i = 0; i < 5; i++) {
+			store.put("http://sven.to/" + i, entry(300));
+		}
+		CacheStats stats = store.getStats();
+		assertTrue(stats.getPrunedEntries() > 0);
+		assertTrue(stats.getPrunedBytes() >= stats.getPrunedEntries() * 300);
+		assertTrue(published.get() > 0);
+	}
+
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(1000000, snapshot.getMaxNanos());
+		assertEquals(500500, snapshot.getMeanNanos());
+		long p50 = snapshot.getPercentileNanos(50);
+		assertTrue(p50 >= 500000 && p50 <= 500000 * 1.25);
+		long p99 = snapshot.getPercentileNanos(99);
+		assertTrue(p99 >= 990000 && p99 <= 1000000);
+		assertEquals(0, new LatencyHistogram().snapshot().getPercentileNanos(50));
+	}
+}
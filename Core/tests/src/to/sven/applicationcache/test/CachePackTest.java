@@ -0,0 +1,153 @@
+package to.sven.applicationcache.test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheManifest;
+import to.sven.applicationcache.CachePack;
+import to.sven.applicationcache.CompressionPolicy;
+import to.sven.applicationcache.StoreEntry;
+
+public class CachePackTest extends StoreTestCase {
+	private static final String MANIFEST = "CACHE MANIFEST\n/index.html\n/app.js\n";
+
+	private File mTo;
+	private File mPack;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mTo = newDirectory();
+		mPack = File.createTempFile("cachepack", ".pack");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(mTo);
+		mPack.delete();
+		super.tearDown();
+	}
+
+	private AppCacheStore newStore(File root) {
+		AppCacheStore store = new AppCacheStore(root, MANIFEST_URL);
+		store.initialize();
+		return store;
+	}
+
+	private int export(AppCacheStore store) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(mPack));
+		try {
+			return store.exportTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testExportImport() throws Exception {
+		AppCacheStore store = newStore(mRoot);
+		store.setCompressionPolicy(CompressionPolicy.deflate(6));
+		StringBuilder script = new StringBuilder();
+		for(int i = 0; i < 500; i++) {
+			script.append("function f").append(i).append("(a, b) { return a + b * ").append(i).append("; }\n");
+		}
+		StoreEntry js = entry(script.toString());
+		js.responseHeaders = Collections.singletonMap("Content-Type", "application/javascript");
+		store.put(MANIFEST_URL, entry(MANIFEST));
+		store.put("http://sven.to/app.js", js);
+		store.putStream("http://sven.to/index.html", entry(""), new ByteArrayInputStream("index".getBytes("UTF-8")));
+		store.put("http://sven.to/other.html", entry("other"));
+		store.applyManifest(CacheManifest.parse(MANIFEST_URL, new ByteArrayInputStream(MANIFEST.getBytes("UTF-8"))), true);
+		store.markUpToDate("http://sven.to/app.js");
+		assertEquals(4, export(store));
+
+		CachePack pack = new CachePack(mPack);
+		try {
+			assertEquals(MANIFEST_URL, pack.getManifestURL());
+			CachePack.Entry entry = pack.getEntry("http://sven.to/app.js");
+			// Bodies are stored uncompressed and large ones start on a page.
+			assertEquals(script.length(), entry.length);
+			assertEquals(0, entry.offset % CachePack.ALIGNMENT);
+			assertTrue(entry.isMasterEntry());
+			assertFalse(entry.isUpgradePending());
+			assertEquals("application/javascript", entry.responseHeaders.get("Content-Type"));
+			for(CachePack.Entry small : pack.getEntries()) {
+				if(small.length >= CachePack.ALIGNMENT) {
+					continue;
+				}
+				// Small ones don't cross a page.
+				assertEquals(small.offset / CachePack.ALIGNMENT, (small.offset + small.length - 1) / CachePack.ALIGNMENT);
+			}
+			ByteBuffer body = pack.map(pack.getEntry("http://sven.to/other.html"));
+			byte[] data = new byte[body.remaining()];
+			body.get(data);
+			assertEquals("other", new String(data, "UTF-8"));
+
+			AppCacheStore imported = newStore(mTo);
+			assertEquals(4, imported.importFrom(pack));
+			assertEquals(script.toString(), new String(imported.get("http://sven.to/app.js").data, "UTF-8"));
+			assertEquals("\"1\"", imported.peek("http://sven.to/other.html").etag);
+			assertTrue(imported.isResponsibleFor("http://sven.to/index.html"));
+			assertEquals(Collections.singletonList("http://sven.to/index.html"), imported.getPendingMasterEntries());
+
+			// The flags of the pack are on disk:
+			AppCacheStore reopened = newStore(mTo);
+			assertEquals(Collections.singletonList("http://sven.to/index.html"), reopened.getPendingMasterEntries());
+			StoreEntry app = reopened.peek("http://sven.to/app.js");
+			assertTrue(app.appCacheMasterEntry);
+			assertFalse(app.wasAppCacheUpgrade);
+			assertFalse(app.isExpired());
+			assertTrue(reopened.peek("http://sven.to/index.html").wasAppCacheUpgrade);
+			assertFalse(reopened.peek("http://sven.to/other.html").appCacheMasterEntry);
+		} finally {
+			pack.close();
+		}
+	}
+
+	public void testCorruptEntryIsSkipped() throws Exception {
+		AppCacheStore store = newStore(mRoot);
+		store.put("http://sven.to/a", entry("aaaa"));
+		store.put("http://sven.to/b", entry("bbbb"));
+		assertEquals(2, export(store));
+
+		CachePack pack = new CachePack(mPack);
+		long offset = pack.getEntry("http://sven.to/a").offset;
+		pack.close();
+		RandomAccessFile raf = new RandomAccessFile(mPack, "rw");
+		try {
+			raf.seek(offset);
+			raf.write('x');
+		} finally {
+			raf.close();
+		}
+
+		pack = new CachePack(mPack);
+		try {
+			AppCacheStore imported = newStore(mTo);
+			assertEquals(1, imported.importFrom(pack));
+			assertFalse(imported.contains("http://sven.to/a"));
+			assertTrue(imported.contains("http://sven.to/b"));
+		} finally {
+			pack.close();
+		}
+	}
+
+	public void testNotAPack() throws IOException {
+		FileOutputStream out = new FileOutputStream(mPack);
+		out.write(new byte[2 * CachePack.ALIGNMENT]);
+		out.close();
+		try {
+			new CachePack(mPack);
+			fail();
+		} catch(IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheManifest;
+import to.sven.applicationcache.CacheServer;
+import to.sven.applicationcache.CompressionPolicy;
+import to.sven.applicationcache.StoreEntry;
+
+public class CacheServerTest extends StoreTestCase {
+	private static final String MANIFEST = "CACHE MANIFEST\n/index.html\n/app.js\n"
+			+ "FALLBACK:\n/pages/ /offline.html\nNETWORK:\n/api/\n";
+
+	private AppCacheStore mStore;
+	private CacheServer mServer;
+	private String mScript;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		store.initialize();
+		store.setCompressionPolicy(CompressionPolicy.deflate(6));
+		StringBuilder script = new StringBuilder();
+		for(int i = 0; i < 500; i++) {
+			script.append("function f").append(i).append("(a, b) { return a + b * ").append(i).append("; }\n");
+		}
+		mScript = script.toString();
+		store.put(MANIFEST_URL, entry(MANIFEST, "text/cache-manifest"));
+		store.put("http://sven.to/index.html", entry("index", "text/html"));
+		store.put("http://sven.to/app.js", entry(mScript, "application/javascript"));
+		store.put("http://sven.to/offline.html", entry("offline", "text/html"));
+		store.put("http://sven.to/other.html", entry("other", "text/html"));
+		store.applyManifest(CacheManifest.parse(MANIFEST_URL, new ByteArrayInputStream(MANIFEST.getBytes("UTF-8"))), true);
+		// Every body is sent from its file, see testFirstReadIsVerified().
+		store.setVerification(AppCacheStore.VERIFY_NEVER, 1);
+		mStore = store;
+		mServer = new CacheServer(store, 0);
+		mServer.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.stop();
+		super.tearDown();
+	}
+
+	private static StoreEntry entry(String data, String contentType) throws IOException {
+		StoreEntry entry = entry(data);
+		entry.responseHeaders = Collections.singletonMap("Content-Type", contentType);
+		return entry;
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		return (HttpURLConnection) new URL(mServer.getUrl(path)).openConnection();
+	}
+
+	public void testManifestRules() throws IOException {
+		HttpURLConnection connection = open("/index.html");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("text/html", connection.getContentType());
+		assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+		assertEquals("index", read(connection.getInputStream()));
+
+		// Compressed bodies are streamed.
+		connection = open("/app.js");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals(mScript, read(connection.getInputStream()));
+
+		connection = open("/pages/about.html");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("offline", read(connection.getInputStream()));
+
+		assertEquals(502, open("/api/items").getResponseCode());
+		// Cached, but not in the manifest:
+		assertEquals(404, open("/other.html").getResponseCode());
+		assertEquals(404, open("/missing.html").getResponseCode());
+	}
+
+	public void testFirstReadIsVerified() throws IOException {
+		mStore.setVerification(AppCacheStore.VERIFY_FIRST_READ, 1);
+		// The first read is streamed to verify it, the following ones are sent from the file.
+		HttpURLConnection connection = open("/offline.html");
+		assertEquals("offline", read(connection.getInputStream()));
+		assertNull(connection.getHeaderField("Accept-Ranges"));
+		assertEquals(1, mStore.getStats().getVerifiedReads());
+		connection = open("/offline.html");
+		assertEquals("offline", read(connection.getInputStream()));
+		assertEquals("bytes", connection.getHeaderField("Accept-Ranges"));
+		assertEquals(1, mStore.getStats().getVerifiedReads());
+	}
+
+	public void testRangeAndConditional() throws IOException {
+		HttpURLConnection connection = open("/index.html");
+		connection.setRequestProperty("Range", "bytes=1-3");
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("bytes 1-3/5", connection.getHeaderField("Content-Range"));
+		assertEquals("nde", read(connection.getInputStream()));
+
+		connection = open("/index.html");
+		connection.setRequestProperty("Range", "bytes=-2");
+		assertEquals(206, connection.getResponseCode());
+		assertEquals("ex", read(connection.getInputStream()));
+
+		connection = open("/index.html");
+		connection.setRequestProperty("Range", "bytes=5-");
+		assertEquals(416, connection.getResponseCode());
+
+		connection = open("/index.html");
+		connection.setRequestProperty("If-None-Match", "\"1\"");
+		assertEquals(304, connection.getResponseCode());
+	}
+
+	public void testKeepAlive() throws IOException {
+		Socket socket = new Socket("127.0.0.1", mServer.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+			out.write("GET /index.html HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes("US-ASCII"));
+			assertTrue(readResponse(in, false).endsWith("\r\n\r\nindex"));
+			out.write("HEAD /offline.html HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes("US-ASCII"));
+			out.write("GET /offline.html HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+			String head = readResponse(in, true);
+			assertTrue(head.startsWith("HTTP/1.1 200 OK"));
+			assertTrue(head.endsWith("\r\n\r\n"));
+			String response = readResponse(in, false);
+			assertTrue(response.contains("Connection: close"));
+			assertTrue(response.endsWith("\r\n\r\noffline"));
+			assertEquals(-1, in.read());
+		} finally {
+			socket.close();
+		}
+	}
+
+	public void testHeadOfMissingEntry() throws IOException {
+		Socket socket = new Socket("127.0.0.1", mServer.getPort());
+		try {
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+			out.write("HEAD /missing.html HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes("US-ASCII"));
+			out.write("GET /index.html HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes("US-ASCII"));
+			assertTrue(readResponse(in, true).startsWith("HTTP/1.1 404 Not Found"));
+			String response = readResponse(in, false);
+			assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+			assertTrue(response.endsWith("\r\n\r\nindex"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Reads one response with a Content-Length.
+	 * @param head True for the response to a HEAD request, which has no body.
+	 */
+	private static String readResponse(InputStream in, boolean head) throws IOException {
+		StringBuilder response = new StringBuilder();
+		while(!response.toString().endsWith("\r\n\r\n")) {
+			int b = in.read();
+			assertTrue(b != -1);
+			response.append((char) b);
+		}
+		if(head) {
+			return response.toString();
+		}
+		int start = response.indexOf("Content-Length: ") + "Content-Length: ".length();
+		int length = Integer.parseInt(response.substring(start, response.indexOf("\r\n", start)));
+		for(int i = 0; i < length; i++) {
+			response.append((char) in.read());
+		}
+		return response.toString();
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			StringBuilder builder = new StringBuilder();
+			byte[] buffer = new byte[1000];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				builder.append(new String(buffer, 0, count, "UTF-8"));
+			}
+			return builder.toString();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package to.sven.applicationcache.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheSweeper;
+
+public class CacheSweeperTest extends StoreTestCase {
+	private static void copy(File from, File to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		try {
+			byte[] buffer = new byte[1000];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	public void testSweep() throws IOException {
+		AppCacheStore store = new AppCacheStore(mRoot, MANIFEST_URL);
+		CacheSweeper sweeper = new CacheSweeper(store);
+		// Without an index, every record would look orphaned.
+		assertFalse(sweeper.sweepBatch());
+		assertEquals(0, sweeper.sweep());
+
+		store.initialize();
+		for(int i = 0; i < 100; i++) {
+			store.put("http://sven.to/" + i, entry("entry " + i));
+		}
+		File truncated = store.getFileForKey("http://sven.to/1");
+		RandomAccessFile raf = new RandomAccessFile(truncated, "rw");
+		raf.setLength(raf.length() - 2);
+		raf.close();
+		new FileOutputStream(store.getFileForKey("http://sven.to/2")).close();
+		File orphan = new File(mRoot, "1234");
+		copy(store.getFileForKey("http://sven.to/3"), orphan);
+		File blob = new File(mRoot, "blob-orphan-0");
+		FileOutputStream out = new FileOutputStream(blob);
+		out.write(new byte[100]);
+		out.close();
+
+		sweeper.setBatch(10, 100);
+		assertFalse(sweeper.sweepBatch());
+		long reclaimed = sweeper.sweep();
+		assertTrue(reclaimed > 100);
+		assertEquals(4, sweeper.getReclaimedFiles());
+		assertEquals(1, sweeper.getPasses());
+		assertEquals(reclaimed, store.getStats().getSweptBytes());
+		assertFalse(truncated.exists());
+		assertFalse(orphan.exists());
+		assertFalse(blob.exists());
+		assertFalse(store.contains("http://sven.to/1"));
+		assertFalse(store.contains("http://sven.to/2"));
+		assertEquals("entry 3", new String(store.get("http://sven.to/3").data, "UTF-8"));
+		assertEquals(98, mRoot.list().length);
+
+		assertEquals(0, sweeper.sweep());
+		assertEquals(2, sweeper.getPasses());
+		assertEquals(4, store.getStats().getSweptFiles());
+	}
+}
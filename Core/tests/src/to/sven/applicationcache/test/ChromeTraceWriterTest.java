@@ -0,0 +1,31 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.ChromeTraceWriter;
+import to.sven.applicationcache.RequestTracer;
+
+public class ChromeTraceWriterTest extends TestCase {
+	public void testWritesSlicesBetweenStages() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ChromeTraceWriter writer = new ChromeTraceWriter(out);
+		long start = System.nanoTime();
+		writer.trace(7, "entry", "http://sven.to/\"a\".html", RequestTracer.STAGE_NETWORK_START, start);
+		writer.trace(7, "entry", "http://sven.to/\"a\".html", RequestTracer.STAGE_NETWORK_END, start + 1500000);
+		writer.trace(7, "entry", "http://sven.to/\"a\".html", RequestTracer.STAGE_FAILED, start + 2000000);
+		writer.close();
+		// Events of closed writers are dropped.
+		writer.trace(8, "entry", "http://sven.to/b.css", RequestTracer.STAGE_QUEUED, start);
+
+		String json = out.toString("UTF-8");
+		assertTrue(json, json.startsWith("[\n{\"name\":\"network queue\",\"cat\":\"entry\",\"ph\":\"i\""));
+		assertTrue(json, json.contains("{\"name\":\"network\",\"cat\":\"entry\",\"ph\":\"X\""));
+		assertTrue(json, json.contains(",\"dur\":1500.000,\"pid\":1,\"tid\":7"));
+		assertTrue(json, json.contains("\"name\":\"failed\""));
+		assertTrue(json, json.contains("\"url\":\"http://sven.to/\\\"a\\\".html\""));
+		assertFalse(json, json.contains("b.css"));
+		assertTrue(json, json.endsWith("\n]\n"));
+	}
+}
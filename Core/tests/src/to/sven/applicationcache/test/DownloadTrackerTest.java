@@ -0,0 +1,74 @@
+package to.sven.applicationcache.test;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.DownloadProgress;
+import to.sven.applicationcache.DownloadTracker;
+import to.sven.applicationcache.ProgressDeliveryPolicy;
+
+public class DownloadTrackerTest extends TestCase {
+	private long mNow = 1000;
+
+	private final Clock mClock = new Clock() {
+		@Override
+		public long elapsedRealtime() {
+			return mNow;
+		}
+	};
+
+	public void testExpectedBytesAndEta() {
+		DownloadTracker tracker = new DownloadTracker(ProgressDeliveryPolicy.EVERY_RESPONSE, mClock);
+		tracker.expect("a", 1000);
+		tracker.expect("b", 3000);
+		tracker.start(3);
+		// "c" has no size hint: extrapolated with the mean of the known sizes.
+		assertEquals(6000, tracker.getExpectedBytes(3));
+
+		mNow += 1000;
+		DownloadProgress progress = tracker.onLoaded("a", 1000, 3);
+		assertEquals(1000, progress.getReceivedBytes());
+		assertEquals(6000, progress.getExpectedBytes());
+		assertEquals(1000, progress.getCurrentBytesPerSecond());
+		assertEquals(5000, progress.getEstimatedRemainingMillis());
+
+		// The Content-Length replaces the hint.
+		tracker.expect("c", 4000);
+		mNow += 1000;
+		progress = tracker.onLoaded("c", 4000, 3);
+		assertEquals(8000, progress.getExpectedBytes());
+		assertEquals(5000, progress.getReceivedBytes());
+		assertTrue(progress.getCurrentBytesPerSecond() > 1000);
+		assertEquals(2500, progress.getBytesPerSecond());
+		assertEquals(5000f / 8000, progress.getFraction(), 0.001f);
+
+		progress = tracker.onLoaded("b", 3000, 3);
+		assertTrue(progress.isComplete());
+		assertEquals(0, progress.getEstimatedRemainingMillis());
+	}
+
+	public void testReceivedBytesOfLoadingEntries() {
+		DownloadTracker tracker = new DownloadTracker(ProgressDeliveryPolicy.EVERY_RESPONSE, mClock);
+		tracker.expect("big", 10000);
+		tracker.start(2);
+
+		mNow += 100;
+		// Throttled while receiving a body.
+		assertNull(tracker.onReceived("big", 2000));
+		mNow += 200;
+		DownloadProgress progress = tracker.onReceived("big", 2000);
+		assertNotNull(progress);
+		assertEquals(0, progress.getLoaded());
+		assertEquals(0, progress.getBatchCount());
+		assertEquals(4000, progress.getReceivedBytes());
+		assertEquals("big", progress.getLastLoadedUrl());
+
+		tracker.onReceived("failing", 500);
+		tracker.onFailed("failing");
+		assertEquals(4000, tracker.getReceivedBytes());
+
+		progress = tracker.onLoaded("big", 10000, 2);
+		assertEquals(10000, progress.getReceivedBytes());
+		assertEquals(10000, progress.getLoadedBytes());
+	}
+}
@@ -0,0 +1,169 @@
+package to.sven.applicationcache.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.AppCacheStore;
+import to.sven.applicationcache.CacheSweeper;
+import to.sven.applicationcache.Clock;
+import to.sven.applicationcache.LogStorageEngine;
+import to.sven.applicationcache.StorageEngine;
+import to.sven.applicationcache.StoreEntry;
+
+public class LogStorageEngineTest extends TestCase {
+	private static final String MANIFEST_URL = "http://sven.to/manifest.appcache";
+
+	private File mRoot;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = File.createTempFile("logengine", "");
+		mRoot.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = mRoot.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		mRoot.delete();
+	}
+
+	private LogStorageEngine open() throws IOException {
+		LogStorageEngine engine = new LogStorageEngine(mRoot, 4096, null);
+		engine.open();
+		return engine;
+	}
+
+	private static void write(StorageEngine engine, String name, String data) throws IOException {
+		StorageEngine.Writer writer = engine.create();
+		writer.write(data.getBytes("UTF-8"));
+		writer.commit(name);
+	}
+
+	private static String read(StorageEngine engine, String name) throws IOException {
+		InputStream in = engine.read(name);
+		try {
+			StringBuilder builder = new StringBuilder();
+			byte[] buffer = new byte[1000];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				builder.append(new String(buffer, 0, count, "UTF-8"));
+			}
+			return builder.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testReplayAfterReopen() throws IOException {
+		LogStorageEngine engine = open();
+		write(engine, "a", "first");
+		write(engine, "b", "second");
+		write(engine, "a", "replaced");
+		assertTrue(engine.delete("b"));
+		engine.overwrite("a", "RE".getBytes("UTF-8"));
+		StorageEngine.Writer aborted = engine.create();
+		aborted.write(1);
+		aborted.abort();
+		assertEquals("REplaced", read(engine, "a"));
+		engine.close();
+
+		// A record that was not completely written is dropped.
+		File segment = new File(mRoot, "segment-0.log");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[] { 0x41, 0x43, 0x52 });
+		raf.close();
+
+		engine = open();
+		assertEquals(Collections.singletonList("a"), engine.list());
+		assertEquals("REplaced", read(engine, "a"));
+		assertEquals(-1, engine.length("b"));
+		write(engine, "c", "after");
+		assertEquals("after", read(engine, "c"));
+		engine.close();
+	}
+
+	public void testCompaction() throws IOException {
+		LogStorageEngine engine = open();
+		StringBuilder large = new StringBuilder();
+		while(large.length() < 300 * 1024) {
+			large.append("0123456789");
+		}
+		write(engine, "large", large.toString());
+		for(int i = 0; i < 200; i++) {
+			write(engine, "key" + (i % 10), "value " + i);
+		}
+		engine.delete("key0");
+		assertTrue(engine.getSegmentCount() > 1);
+		assertTrue(engine.getDeadBytes() > 0);
+		long size = engine.getSize();
+
+		engine.compact();
+		assertTrue(engine.getSize() < size);
+		assertEquals(large.toString(), read(engine, "large"));
+		assertEquals("value 199", read(engine, "key9"));
+		assertEquals(-1, engine.length("key0"));
+		engine.close();
+
+		engine = open();
+		assertEquals(10, engine.list().size());
+		assertEquals("value 191", read(engine, "key1"));
+		assertEquals(-1, engine.length("key0"));
+		engine.close();
+	}
+
+	public void testDurability() throws IOException {
+		LogStorageEngine engine = open();
+		engine.setDurability(StorageEngine.DURABILITY_BATCH);
+		write(engine, "a", "first");
+		write(engine, "b", "second");
+		engine.delete("b");
+		assertEquals(3, engine.sync());
+		assertEquals(0, engine.sync());
+		engine.setDurability(StorageEngine.DURABILITY_SYNC);
+		write(engine, "c", "third");
+		assertEquals(0, engine.sync());
+		engine.close();
+
+		engine = open();
+		assertEquals("first", read(engine, "a"));
+		assertEquals("third", read(engine, "c"));
+		assertEquals(-1, engine.length("b"));
+		engine.close();
+	}
+
+	public void testStore() throws IOException {
+		AppCacheStore store = new AppCacheStore(open(), Integer.MAX_VALUE, MANIFEST_URL, Clock.SYSTEM);
+		store.initialize();
+		store.setDeduplication(true);
+		StoreEntry entry = new StoreEntry();
+		entry.data = new byte[10000];
+		entry.responseHeaders = Collections.emptyMap();
+		store.put("http://sven.to/a", entry);
+		store.putStream("http://sven.to/b", entry, new ByteArrayInputStream(entry.data));
+		StoreEntry small = new StoreEntry();
+		small.data = "{}".getBytes("UTF-8");
+		store.put("http://sven.to/c.json", small);
+		assertEquals(1, store.getStats().getDeduplicatedPuts());
+		assertNull(store.getFileForKey("http://sven.to/a"));
+
+		AppCacheStore reloaded = new AppCacheStore(open(), Integer.MAX_VALUE, MANIFEST_URL, Clock.SYSTEM);
+		reloaded.initialize();
+		assertEquals(10000, reloaded.get("http://sven.to/b").data.length);
+		assertEquals("{}", new String(reloaded.get("http://sven.to/c.json").data, "UTF-8"));
+		reloaded.remove("http://sven.to/a");
+		assertEquals(10000, reloaded.get("http://sven.to/b").data.length);
+		assertEquals(0, new CacheSweeper(reloaded).sweep());
+	}
+}
@@ -0,0 +1,54 @@
+package to.sven.applicationcache.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.StoreEntry;
+
+/**
+ * Base of the tests that work on a store directory. Every test gets a new
+ * {@link #mRoot}, which doesn't exist yet and is deleted again afterwards.
+ */
+public abstract class StoreTestCase extends TestCase {
+	protected static final String MANIFEST_URL = "http://sven.to/manifest.appcache";
+
+	protected File mRoot;
+
+	@Override
+	protected void setUp() throws Exception {
+		mRoot = newDirectory();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(mRoot);
+	}
+
+	/**
+	 * @return A path for a temporary directory, the directory isn't created.
+	 */
+	protected static File newDirectory() throws IOException {
+		File directory = File.createTempFile("appcache", "");
+		directory.delete();
+		return directory;
+	}
+
+	protected static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	protected static StoreEntry entry(String data) throws IOException {
+		StoreEntry entry = new StoreEntry();
+		entry.data = data.getBytes("UTF-8");
+		entry.etag = "\"1\"";
+		return entry;
+	}
+}
@@ -0,0 +1,66 @@
+package to.sven.applicationcache.test;
+
+import junit.framework.TestCase;
+
+import to.sven.applicationcache.UpdateStateMachine;
+
+public class UpdateStateMachineTest extends TestCase {
+
+	public void testLifecycle() {
+		UpdateStateMachine machine = new UpdateStateMachine();
+		assertEquals(UpdateStateMachine.STATUS_UNCACHED, machine.getStatus());
+		try {
+			machine.beginUpdate();
+			fail();
+		} catch(IllegalStateException expected) {
+		}
+
+		long generation = machine.init();
+		assertEquals(UpdateStateMachine.STATUS_CHECKING, machine.getStatus());
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.beginUpdate());
+		assertTrue(machine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_DOWNLOADING));
+		assertFalse(machine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_IDLE));
+		assertTrue(machine.transition(generation, UpdateStateMachine.STATUS_DOWNLOADING, UpdateStateMachine.STATUS_UPDATEREADY));
+		machine.swapCache();
+		assertEquals(UpdateStateMachine.STATUS_IDLE, machine.getStatus());
+	}
+
+	public void testAbortedUpdateCantTransition() {
+		UpdateStateMachine machine = new UpdateStateMachine();
+		long generation = machine.init();
+		assertTrue(machine.abort());
+		assertFalse(machine.isCurrent(generation));
+		assertFalse(machine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_DOWNLOADING));
+		assertEquals(UpdateStateMachine.STATUS_IDLE, machine.getStatus());
+		assertFalse(machine.abort());
+
+		long next = machine.beginUpdate();
+		assertTrue(next > generation);
+		assertTrue(machine.isCurrent(next));
+	}
+
+	public void testPendingUpdate() {
+		UpdateStateMachine machine = new UpdateStateMachine();
+		// Requested before init(), the first update finishes first.
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.requestUpdate());
+		long generation = machine.init();
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.requestUpdate());
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.takePendingUpdate());
+		assertTrue(machine.transition(generation, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_DOWNLOADING));
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.requestUpdate());
+		assertTrue(machine.transition(generation, UpdateStateMachine.STATUS_DOWNLOADING, UpdateStateMachine.STATUS_UPDATEREADY));
+
+		// The requests while running start a single update.
+		long pending = machine.takePendingUpdate();
+		assertEquals(generation + 1, pending);
+		assertEquals(UpdateStateMachine.STATUS_CHECKING, machine.getStatus());
+		assertTrue(machine.transition(pending, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_IDLE));
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.takePendingUpdate());
+
+		// Without a running update the requested update starts at once.
+		long next = machine.requestUpdate();
+		assertEquals(pending + 1, next);
+		assertTrue(machine.transition(next, UpdateStateMachine.STATUS_CHECKING, UpdateStateMachine.STATUS_IDLE));
+		assertEquals(UpdateStateMachine.NO_GENERATION, machine.takePendingUpdate());
+	}
+}